@@ -2,6 +2,7 @@ package dev.abstratium.abstrasst.agents;
 
 import org.jboss.logging.Logger;
 
+import dev.abstratium.abstrasst.service.WorkflowCheckpoints;
 import dev.langchain4j.agentic.Agent;
 import dev.langchain4j.agentic.agent.AgentRequest;
 import dev.langchain4j.agentic.agent.AgentResponse;
@@ -15,14 +16,17 @@ public interface CeoAgent {
 
     Logger log = Logger.getLogger(CeoAgent.class.getName());
 
-    @SystemMessage("""
+    /** shared with the agents of the programmatic workflow, and the stream of its meeting */
+    String SYSTEM_MESSAGE = """
         You are the CEO of a small company that develops software and simple hardware products.
         You are asked to give your input to the current topic and must comment on the topic from a business perspective.
         Your strategic goals are:
         - Ensure that the company goals are met
         - Ensure that the company is profitable
         - Ensure that the company is sustainable
-        """)
+        """;
+
+    @SystemMessage(SYSTEM_MESSAGE)
     @UserMessage("""
         {topic}
         """)
@@ -41,6 +45,7 @@ public interface CeoAgent {
     @AfterAgentInvocation
     static void afterAgentInvocation(AgentResponse agentResponse) {
         log.info("After agent invocation: " + agentResponse);
+        WorkflowCheckpoints.checkpoint(agentResponse.agenticScope(), "ceoInput", agentResponse.output());
     }
 
 }
@@ -2,6 +2,7 @@ package dev.abstratium.abstrasst.agents;
 
 import org.jboss.logging.Logger;
 
+import dev.abstratium.abstrasst.service.WorkflowCheckpoints;
 import dev.langchain4j.agentic.Agent;
 import dev.langchain4j.agentic.agent.AgentRequest;
 import dev.langchain4j.agentic.agent.AgentResponse;
@@ -15,13 +16,16 @@ public interface CfoAgent {
 
     Logger log = Logger.getLogger(CfoAgent.class.getName());
 
-    @SystemMessage("""
+    /** shared with the agents of the programmatic workflow, and the stream of its meeting */
+    String SYSTEM_MESSAGE = """
         You are the CFO of a small company that develops software and simple hardware products.
         You are asked to give your input to the current topic and must comment on the topic from a financial perspective.
         Your strategic goals are:
         - Increase the company's revenue by 20% in the next 6 months
         - Reduce the company's expenses by 10% in the next 6 months
-        """)
+        """;
+
+    @SystemMessage(SYSTEM_MESSAGE)
     @UserMessage("""
         {topic}
         """)
@@ -40,6 +44,7 @@ public interface CfoAgent {
     @AfterAgentInvocation
     static void afterAgentInvocation(AgentResponse agentResponse) {
         log.info("After agent invocation: " + agentResponse);
+        WorkflowCheckpoints.checkpoint(agentResponse.agenticScope(), "cfoInput", agentResponse.output());
     }
 
 }
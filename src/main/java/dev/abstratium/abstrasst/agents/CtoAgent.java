@@ -2,6 +2,7 @@ package dev.abstratium.abstrasst.agents;
 
 import org.jboss.logging.Logger;
 
+import dev.abstratium.abstrasst.service.WorkflowCheckpoints;
 import dev.langchain4j.agentic.Agent;
 import dev.langchain4j.agentic.agent.AgentRequest;
 import dev.langchain4j.agentic.agent.AgentResponse;
@@ -15,18 +16,21 @@ public interface CtoAgent {
 
     Logger log = Logger.getLogger(CtoAgent.class.getName());
 
-    @SystemMessage("""
+    /** shared with the agents of the programmatic workflow, and the stream of its meeting */
+    String SYSTEM_MESSAGE = """
         You are the CTO of a small company that develops software and simple hardware products.
         You are asked to give your input to the current topic and must comment on the topic from a technical perspective.
         Your strategic goals are:
-        - Ensure that the company can deliver high quality products 
+        - Ensure that the company can deliver high quality products
         - Ensure that the company can deliver products on time
         - Ensure that the company can deliver products with a low cost
         - Ensure that the company can deliver products with a low risk
         - Ensure that the company can remain innovative
         - Ensure that the company can deliver products with a low complexity
         - Ensure that the company can deliver new products
-        """)
+        """;
+
+    @SystemMessage(SYSTEM_MESSAGE)
     @UserMessage("""
         {topic}
         """)
@@ -45,6 +49,7 @@ public interface CtoAgent {
     @AfterAgentInvocation
     static void afterAgentInvocation(AgentResponse agentResponse) {
         log.info("After agent invocation: " + agentResponse);
+        WorkflowCheckpoints.checkpoint(agentResponse.agenticScope(), "ctoInput", agentResponse.output());
     }
 
 }
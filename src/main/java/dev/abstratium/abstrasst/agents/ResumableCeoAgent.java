@@ -0,0 +1,31 @@
+package dev.abstratium.abstrasst.agents;
+
+import dev.abstratium.abstrasst.service.WorkflowCheckpoints;
+import dev.langchain4j.agentic.declarative.ActivationCondition;
+import dev.langchain4j.agentic.declarative.ConditionalAgent;
+import dev.langchain4j.agentic.scope.AgenticScope;
+import dev.langchain4j.service.V;
+import jakarta.enterprise.context.ApplicationScoped;
+
+/**
+ * Asked by the {@link dev.abstratium.abstrasst.workflows.MyWorkflow meeting}, with the id of its run.
+ */
+@ApplicationScoped
+public interface ResumableCeoAgent {
+
+    @ConditionalAgent(
+        name = "Resumable CEO",
+        description = "This agent asks the CEO for input, unless the run already has it from an earlier attempt",
+        outputKey = "ceoInput",
+        subAgents = {
+            CeoAgent.class
+        }
+    )
+    String run(@V("SESSION_ID") String sessionId, @V("topic") String topic);
+
+    @ActivationCondition(CeoAgent.class)
+    static boolean mustRun(AgenticScope agenticScope) {
+        return WorkflowCheckpoints.mustRun(agenticScope, "ceoInput");
+    }
+
+}
@@ -0,0 +1,31 @@
+package dev.abstratium.abstrasst.agents;
+
+import dev.abstratium.abstrasst.service.WorkflowCheckpoints;
+import dev.langchain4j.agentic.declarative.ActivationCondition;
+import dev.langchain4j.agentic.declarative.ConditionalAgent;
+import dev.langchain4j.agentic.scope.AgenticScope;
+import dev.langchain4j.service.V;
+import jakarta.enterprise.context.ApplicationScoped;
+
+/**
+ * Asked by the {@link dev.abstratium.abstrasst.workflows.MyWorkflow meeting}, with the id of its run.
+ */
+@ApplicationScoped
+public interface ResumableCtoAgent {
+
+    @ConditionalAgent(
+        name = "Resumable CTO",
+        description = "This agent asks the CTO for input, unless the run already has it from an earlier attempt",
+        outputKey = "ctoInput",
+        subAgents = {
+            CtoAgent.class
+        }
+    )
+    String run(@V("SESSION_ID") String sessionId, @V("topic") String topic);
+
+    @ActivationCondition(CtoAgent.class)
+    static boolean mustRun(AgenticScope agenticScope) {
+        return WorkflowCheckpoints.mustRun(agenticScope, "ctoInput");
+    }
+
+}
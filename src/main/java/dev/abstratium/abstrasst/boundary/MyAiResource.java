@@ -4,14 +4,28 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.util.Base64;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.UUID;
 
+import dev.abstratium.abstrasst.boundary.idempotency.Idempotent;
+import dev.abstratium.abstrasst.boundary.priority.LlmPriority;
 import dev.abstratium.abstrasst.service.MyAiImageService;
 import dev.abstratium.abstrasst.service.MyAiMailService;
 import dev.abstratium.abstrasst.service.MyAiService;
 import dev.abstratium.abstrasst.service.SessionId;
+import dev.abstratium.abstrasst.service.WorkflowCheckpoints;
+import dev.abstratium.abstrasst.service.ratelimit.LlmCaller;
+import dev.abstratium.abstrasst.service.ratelimit.PriorityClass;
+import dev.abstratium.abstrasst.workflows.AgendaBriefing;
+import dev.abstratium.abstrasst.workflows.MeetingEvent;
 import dev.abstratium.abstrasst.workflows.MyWorkflow;
 import dev.abstratium.abstrasst.workflows.ProgrammaticWorkflow;
+import dev.abstratium.abstrasst.workflows.WorkflowBatches;
+import dev.abstratium.abstrasst.workflows.WorkflowJobs;
+import dev.abstratium.abstrasst.workflows.WorkflowKind;
+import dev.abstratium.core.boundary.ErrorCode;
+import dev.abstratium.core.boundary.FunctionalException;
 import dev.langchain4j.data.image.Image;
 import io.smallrye.mutiny.Multi;
 import jakarta.inject.Inject;
@@ -23,10 +37,39 @@ import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.SecurityContext;
+
+import org.jboss.resteasy.reactive.RestStreamElementType;
+import org.jboss.resteasy.reactive.common.util.RestMediaType;
 
 @Path("/my-ai")
 public class MyAiResource {
 
+    private static final String BOARD_MEETING = """
+            Board Meeting 2026-02-26
+
+            # AGENDA ITEM
+            Financial Results of 2025
+
+            ## Financial Data
+            Profit: 1000
+            Expenses: 500
+            Revenue: 1500
+            EBITDA: 500
+            EBIT: 500
+            Taxes: 10
+            Depreciation: 5
+            Interest: 2
+            Result: 500
+
+            ## Topic of discussion
+            This year we only made income from our software consulting services. We have no hardware products to sell, although we have 
+            some in the pipeline. Our core goal is to make money from products (software and hardware), the consulting
+            is just an extra revenue stream. We should discuss the next steps for the company.
+
+            """.stripIndent();
+
     @Inject
     MyAiService myAiService;
 
@@ -42,11 +85,24 @@ public class MyAiResource {
     @Inject
     ProgrammaticWorkflow programmaticWorkflow;
 
+    @Inject
+    AgendaBriefing agendaBriefing;
+
+    @Inject
+    WorkflowJobs workflowJobs;
+
+    @Inject
+    WorkflowBatches workflowBatches;
+
     @Inject
     SessionId sessionId;
 
+    @Inject
+    SecurityContext securityContext;
+
     @GET
     @Path("/poem")
+    @LlmPriority(PriorityClass.INTERACTIVE)
     @Produces(MediaType.SERVER_SENT_EVENTS)
     public Multi<String> writeAPoem(@QueryParam("topic") String topic) {
         return myAiService.writeAPoem(topic, 4);
@@ -54,6 +110,7 @@ public class MyAiResource {
     
     @GET
     @Path("/email")
+    @LlmPriority(PriorityClass.STANDARD)
     @Produces(MediaType.APPLICATION_JSON)
     public String sendEmail(@QueryParam("recipient") String recipient, @QueryParam("subject") String subject, @QueryParam("body") String body) {
         String modifiedBody = myAiService.whateverYouAsk("001", "You are a professional clown and turn everything into a joke. Rewrite this email to be funnier.", body);
@@ -69,6 +126,7 @@ public class MyAiResource {
 
     @GET
     @Path("/memory/{userId}")
+    @LlmPriority(PriorityClass.INTERACTIVE)
     @Produces(MediaType.APPLICATION_JSON)
     public String whateverYouAsk(
         @PathParam("userId") String userId, 
@@ -82,6 +140,7 @@ public class MyAiResource {
 
     @GET
     @Path("/process-image")
+    @LlmPriority(PriorityClass.STANDARD)
     @Produces(MediaType.APPLICATION_JSON)
     public String processImage() throws IOException {
         File file = new File(System.getProperty("user.home") + "/Downloads/1749725546671.jpeg");
@@ -99,65 +158,120 @@ public class MyAiResource {
         return Base64.getEncoder().encodeToString(content);
     }
 
+    /**
+     * Has no stream variant, since its member agents only return their input once it is complete.
+     * {@link #streamWorkflowProgrammatic()} streams a meeting of the same members, with the same prompts.
+     *
+     * @param runId chosen by the client, so that a retry of a run which failed resumes it, and only asks the members
+     *              who have not given their input yet. It is scoped to the user and the topic. Without it, every request
+     *              is a new run.
+     */
     @POST
+    @Idempotent
     @Path("/workflow")
+    @LlmPriority(PriorityClass.STANDARD)
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public String runWorkflow() {
-        return myWorkflow.run(UUID.randomUUID().toString(), """
-            Board Meeting 2026-02-26
-
-            # AGENDA ITEM
-            Financial Results of 2025
-
-            ## Financial Data
-            Profit: 1000
-            Expenses: 500
-            Revenue: 1500
-            EBITDA: 500
-            EBIT: 500
-            Taxes: 10
-            Depreciation: 5
-            Interest: 2
-            Result: 500
-
-            ## Topic of discussion
-            This year we only made income from our software consulting services. We have no hardware products to sell, although we have 
-            some in the pipeline. Our core goal is to make money from products (software and hardware), the consulting
-            is just an extra revenue stream. We should discuss the next steps for the company.
-
-            """.stripIndent());
+    public String runWorkflow(@QueryParam("runId") String runId) {
+        String topic = agendaBriefing.brief(BOARD_MEETING);
+        if (runId == null || runId.isBlank()) {
+            return myWorkflow.run(UUID.randomUUID().toString(), topic);
+        }
+        // a run id only identifies a run together with its user and topic, so that nobody resumes the run of another
+        return myWorkflow.run(WorkflowCheckpoints.runId(user(), runId, topic), topic);
     }
 
     @POST
+    @Idempotent
     @Path("/workflow-programmatic")
+    @LlmPriority(PriorityClass.STANDARD)
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
     public String runWorkflowProgrammatic() {
-        return programmaticWorkflow.run("""
-            Board Meeting 2026-02-26
+        return programmaticWorkflow.run(BOARD_MEETING);
+    }
 
-            # AGENDA ITEM
-            Financial Results of 2025
+    /**
+     * Queues a run of the workflow of the given kind (workflow, programmatic or minutes) and returns the job right away.
+     * Its result is then available from {@link #job(String)} or {@link #jobEvents(String)}.
+     */
+    @POST
+    @Idempotent
+    @Path("/jobs/{kind}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response submitJob(@PathParam("kind") WorkflowKind kind) {
+        return Response.accepted(workflowJobs.submit(kind, BOARD_MEETING, user())).build();
+    }
 
-            ## Financial Data
-            Profit: 1000
-            Expenses: 500
-            Revenue: 1500
-            EBITDA: 500
-            EBIT: 500
-            Taxes: 10
-            Depreciation: 5
-            Interest: 2
-            Result: 500
+    /** only the user who submitted the job sees it, to everybody else it does not exist */
+    @GET
+    @Path("/jobs/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public WorkflowJobs.Job job(@PathParam("id") String id) {
+        return workflowJobs.find(id, user()).orElseThrow(() -> jobNotFound(id));
+    }
 
-            ## Topic of discussion
-            This year we only made income from our software consulting services. We have no hardware products to sell, although we have 
-            some in the pipeline. Our core goal is to make money from products (software and hardware), the consulting
-            is just an extra revenue stream. We should discuss the next steps for the company.
+    /** the job whenever its status changes, until it is done */
+    @GET
+    @Path("/jobs/{id}/events")
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    @RestStreamElementType(MediaType.APPLICATION_JSON)
+    public Multi<WorkflowJobs.Job> jobEvents(@PathParam("id") String id) {
+        return workflowJobs.watch(id, user())
+            .onFailure(NoSuchElementException.class).transform(e -> jobNotFound(id));
+    }
 
-            """.stripIndent());
+    private String user() {
+        var principal = securityContext.getUserPrincipal();
+        return principal != null ? principal.getName() : LlmCaller.ANONYMOUS;
     }
 
+    private static FunctionalException jobNotFound(String id) {
+        return new FunctionalException(Response.Status.NOT_FOUND, ErrorCode.JOB_NOT_FOUND, "There is no workflow job " + id);
+    }
+
+    /**
+     * Runs the workflow of the given kind (workflow, programmatic or minutes) over every topic, and streams each result
+     * as a line of JSON as soon as it is there, in the order of completion.
+     */
+    @POST
+    @Idempotent
+    @Path("/batch/{kind}")
+    @LlmPriority(PriorityClass.BATCH)
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(RestMediaType.APPLICATION_NDJSON)
+    @RestStreamElementType(MediaType.APPLICATION_JSON)
+    public Multi<WorkflowBatches.Item> runBatch(@PathParam("kind") WorkflowKind kind, List<String> topics) {
+        if (topics == null || topics.isEmpty() || topics.size() > workflowBatches.maxTopics()) {
+            throw new FunctionalException(Response.Status.BAD_REQUEST, ErrorCode.VALIDATION_FAILED,
+                "A batch needs between 1 and " + workflowBatches.maxTopics() + " topics");
+        }
+        return workflowBatches.run(kind, topics);
+    }
+
+    @POST
+    @Idempotent
+    @Path("/workflow-programmatic/minutes")
+    @LlmPriority(PriorityClass.STANDARD)
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public String minutesOfWorkflowProgrammatic() {
+        return programmaticWorkflow.minutes(BOARD_MEETING);
+    }
+
+    /**
+     * Like {@link #runWorkflowProgrammatic()}, but streams the tokens and then the input of each member as they arrive,
+     * rather than waiting for the slowest member. It is also the stream of {@link #runWorkflow(String)}, whose agents
+     * share their prompts with these members, but it neither checkpoints nor resumes runs.
+     */
+    @POST
+    @Idempotent
+    @Path("/workflow-programmatic/stream")
+    @LlmPriority(PriorityClass.INTERACTIVE)
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    @RestStreamElementType(MediaType.APPLICATION_JSON)
+    public Multi<MeetingEvent> streamWorkflowProgrammatic() {
+        return programmaticWorkflow.stream(BOARD_MEETING);
+    }
 
 }
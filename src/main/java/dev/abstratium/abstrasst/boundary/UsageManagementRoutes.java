@@ -0,0 +1,66 @@
+package dev.abstratium.abstrasst.boundary;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Locale;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import dev.abstratium.abstrasst.service.UsageLedger;
+import dev.abstratium.abstrasst.service.UsageLedger.Granularity;
+import io.quarkus.vertx.http.ManagementInterface;
+import io.vertx.ext.web.RoutingContext;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+
+/**
+ * Cost and tokens of LLM calls per model over time, on the management interface, e.g.
+ * {@code GET /m/usage?granularity=hour&from=2026-01-01T00:00:00Z&to=2026-01-02T00:00:00Z}.
+ *
+ * The granularity is minute (the default) or hour. Without a range, the last 60 minutes or 24 hours are returned.
+ */
+@ApplicationScoped
+public class UsageManagementRoutes {
+
+    @Inject
+    UsageLedger usageLedger;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    void register(@Observes ManagementInterface mi) {
+        mi.router().get("/usage").blockingHandler(this::usage);
+    }
+
+    void usage(RoutingContext rc) {
+        Granularity granularity;
+        Instant from;
+        Instant to;
+        try {
+            String g = rc.queryParams().get("granularity");
+            granularity = g == null ? Granularity.MINUTE : Granularity.valueOf(g.toUpperCase(Locale.ROOT));
+            String t = rc.queryParams().get("to");
+            to = t == null ? Instant.now() : Instant.parse(t);
+            String f = rc.queryParams().get("from");
+            from = f == null ? to.minus(granularity.length().multipliedBy(granularity == Granularity.HOUR ? 24 : 60)) : Instant.parse(f);
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            rc.response().setStatusCode(400).end("granularity must be minute or hour, from and to ISO-8601 instants");
+            return;
+        }
+
+        List<Entry> entries = usageLedger.rollups(granularity, from, to).stream()
+            .map(r -> new Entry(r.start(), r.model(), r.calls(), r.inputTokens(), r.cachedInputTokens(), r.outputTokens(),
+                UsageLedger.formatDollars(r.costMicros())))
+            .toList();
+        try {
+            rc.response().putHeader("Content-Type", "application/json").end(objectMapper.writeValueAsString(entries));
+        } catch (JsonProcessingException e) {
+            rc.fail(e);
+        }
+    }
+
+    public record Entry(Instant start, String model, long calls, long inputTokens, long cachedInputTokens, long outputTokens, String cost) {}
+}
@@ -0,0 +1,53 @@
+package dev.abstratium.abstrasst.boundary.idempotency;
+
+import io.smallrye.mutiny.Multi;
+import jakarta.annotation.Priority;
+import jakarta.inject.Inject;
+import jakarta.interceptor.AroundInvoke;
+import jakarta.interceptor.Interceptor;
+import jakarta.interceptor.InvocationContext;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.SecurityContext;
+
+/**
+ * Serves resource methods annotated with {@link Idempotent} from the {@link IdempotencyStore}, if the request has
+ * an {@value IdempotencyStore#HEADER} header.
+ */
+@Idempotent
+@Interceptor
+@Priority(Interceptor.Priority.APPLICATION)
+public class IdempotencyInterceptor {
+
+    @Inject
+    IdempotencyStore store;
+
+    @Inject
+    HttpHeaders headers;
+
+    @Inject
+    SecurityContext securityContext;
+
+    @AroundInvoke
+    @SuppressWarnings("unchecked")
+    Object idempotent(InvocationContext ctx) throws Exception {
+        String key = headers.getHeaderString(IdempotencyStore.HEADER);
+        if (!store.isEnabled() || key == null || key.isBlank()) {
+            return ctx.proceed();
+        }
+        // a key only identifies a request together with its user, so that users cannot see each other's responses
+        var principal = securityContext.getUserPrincipal();
+        String scopedKey = (principal != null ? principal.getName() : "") + "\n" + key;
+        String fingerprint = IdempotencyStore.fingerprint(ctx.getMethod().toGenericString(), ctx.getParameters());
+
+        if (ctx.getMethod().getReturnType() == Multi.class) {
+            return store.executeStream(scopedKey, fingerprint, () -> {
+                try {
+                    return (Multi<Object>) ctx.proceed();
+                } catch (Exception e) {
+                    return Multi.createFrom().failure(e);
+                }
+            });
+        }
+        return store.execute(scopedKey, fingerprint, ctx::proceed);
+    }
+}
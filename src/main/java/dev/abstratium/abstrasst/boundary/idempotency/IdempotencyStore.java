@@ -0,0 +1,170 @@
+package dev.abstratium.abstrasst.boundary.idempotency;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import dev.abstratium.abstrasst.service.cache.SingleFlight;
+import dev.abstratium.core.boundary.ErrorCode;
+import dev.abstratium.core.boundary.FunctionalException;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import io.smallrye.mutiny.Multi;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.core.Response;
+
+/**
+ * Bounded, TTL based store of the responses to requests with an {@value #HEADER} header, so that a client which retries
+ * an expensive POST, e.g. after a network error, does not run and pay for it twice.
+ *
+ * The first request with a key executes. Requests with the same key which arrive while it runs wait for it and get
+ * the same response, and later ones get the stored response. Failed requests are not stored, so that a retry executes again.
+ * Keys are scoped to the user, and a key may only be reused for the same request, i.e. the same method and arguments;
+ * otherwise the request is rejected with 409.
+ *
+ * The store is in-process, like the response cache, so retries which reach another replica execute again.
+ */
+@ApplicationScoped
+public class IdempotencyStore {
+
+    public static final String HEADER = "Idempotency-Key";
+
+    private static final AttributeKey<String> RESULT = AttributeKey.stringKey("result");
+
+    private static final int MAX_KEY_LENGTH = 255;
+
+    /** the response to the first request with a key, and the request it was for */
+    private static final class Entry extends CompletableFuture<Object> {
+
+        final String fingerprint;
+
+        Entry(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    @ConfigProperty(name = "idempotency.enabled", defaultValue = "true")
+    boolean enabled;
+
+    @ConfigProperty(name = "idempotency.max-entries", defaultValue = "10000")
+    long maxEntries;
+
+    @ConfigProperty(name = "idempotency.ttl", defaultValue = "24h")
+    Duration ttl;
+
+    @Inject
+    Meter meter;
+
+    final LongAdder executed = new LongAdder();
+    final LongAdder replayed = new LongAdder();
+    final LongAdder attached = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+
+    private Cache<String, CompletableFuture<Object>> entries;
+
+    private SingleFlight<String, Object> flights;
+
+    @PostConstruct
+    void init() {
+        entries = Caffeine.newBuilder()
+            .maximumSize(maxEntries)
+            .expireAfterWrite(ttl)
+            .build();
+        flights = new SingleFlight<>(entries.asMap());
+
+        meter.counterBuilder("http.idempotency.requests")
+            .setDescription("Requests with an idempotency key, by result (executed, replayed, attached, rejected)")
+            .buildWithCallback(m -> {
+                m.record(executed.sum(), Attributes.of(RESULT, "executed"));
+                m.record(replayed.sum(), Attributes.of(RESULT, "replayed"));
+                m.record(attached.sum(), Attributes.of(RESULT, "attached"));
+                m.record(rejected.sum(), Attributes.of(RESULT, "rejected"));
+            });
+        meter.gaugeBuilder("http.idempotency.size")
+            .setDescription("Approximate number of responses in the idempotency store")
+            .ofLongs()
+            .buildWithCallback(m -> m.record(entries.estimatedSize()));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Executes the request, waits for the execution with the same key which is in flight, or returns the stored response.
+     * @param key the idempotency key, already scoped to the user
+     * @param fingerprint identifies the request, so that a key which is reused for another request is rejected
+     */
+    public Object execute(String key, String fingerprint, Callable<Object> request) throws Exception {
+        checkLength(key);
+        return copy(flights.get(key, () -> new Entry(fingerprint), () -> {
+            executed.increment();
+            return request.call();
+        }, existing -> join(existing, fingerprint)));
+    }
+
+    /**
+     * Streaming variant of {@link #execute(String, String, Callable)}. The first request streams as usual, and its items
+     * are stored once the stream completes. Duplicates receive all items at once, when the first stream has completed.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Multi<T> executeStream(String key, String fingerprint, Supplier<Multi<T>> request) {
+        checkLength(key);
+        return flights.stream(key, () -> new Entry(fingerprint), () -> {
+            executed.increment();
+            return request.get();
+        }, List::copyOf, items -> Multi.createFrom().iterable((List<T>) items), existing -> join(existing, fingerprint));
+    }
+
+    private static void checkLength(String key) {
+        if (key.length() > MAX_KEY_LENGTH) {
+            throw new FunctionalException(Response.Status.BAD_REQUEST, ErrorCode.VALIDATION_FAILED,
+                "The " + HEADER + " header must not be longer than " + MAX_KEY_LENGTH + " characters");
+        }
+    }
+
+    /** counts a request which joins an earlier one with its key, unless the key was used for a different request */
+    private void join(CompletableFuture<Object> existing, String fingerprint) {
+        if (!((Entry) existing).fingerprint.equals(fingerprint)) {
+            rejected.increment();
+            throw new FunctionalException(Response.Status.CONFLICT, ErrorCode.IDEMPOTENCY_KEY_REUSED,
+                "The " + HEADER + " was already used for a different request");
+        }
+        (existing.isDone() ? replayed : attached).increment();
+    }
+
+    /** a response is a stateful object, so every request gets its own copy */
+    private static Object copy(Object response) {
+        return response instanceof Response r ? Response.fromResponse(r).build() : response;
+    }
+
+    /** a hash of the method and its arguments */
+    static String fingerprint(String method, Object[] arguments) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(method.getBytes(StandardCharsets.UTF_8));
+            for (Object argument : arguments) {
+                digest.update((byte) 0);
+                digest.update(String.valueOf(argument).getBytes(StandardCharsets.UTF_8));
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package dev.abstratium.abstrasst.boundary.idempotency;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import jakarta.interceptor.InterceptorBinding;
+
+/**
+ * Marks a resource method which honours the {@value IdempotencyStore#HEADER} header, see {@link IdempotencyStore}.
+ *
+ * Requests without the header are executed as usual. Supported return types are {@code String}, {@code Response},
+ * other immutable entities, and {@code Multi}, whose items are replayed at once.
+ */
+@InterceptorBinding
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface Idempotent {
+}
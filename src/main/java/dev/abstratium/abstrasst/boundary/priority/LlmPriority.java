@@ -0,0 +1,27 @@
+package dev.abstratium.abstrasst.boundary.priority;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import dev.abstratium.abstrasst.service.ratelimit.PriorityClass;
+import jakarta.enterprise.util.Nonbinding;
+import jakarta.interceptor.InterceptorBinding;
+
+/**
+ * Marks a resource method whose LLM calls are made as the {@link dev.abstratium.abstrasst.service.ratelimit.LlmCaller caller}
+ * of the request's principal, with the given priority class, so that they are queued fairly by the LLM limiters.
+ * While the LLM calls of the class queue for too long, the request is rejected with 503, see
+ * {@link dev.abstratium.abstrasst.service.ratelimit.LlmLoadShedder}.
+ *
+ * Supported return types are those which make their calls before returning, and {@code Multi}, which makes them when it is subscribed.
+ */
+@InterceptorBinding
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface LlmPriority {
+
+    @Nonbinding
+    PriorityClass value();
+}
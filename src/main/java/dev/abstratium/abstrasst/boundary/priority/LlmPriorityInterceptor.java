@@ -0,0 +1,40 @@
+package dev.abstratium.abstrasst.boundary.priority;
+
+import dev.abstratium.abstrasst.service.ratelimit.LlmCaller;
+import dev.abstratium.abstrasst.service.ratelimit.LlmLoadShedder;
+import dev.abstratium.abstrasst.service.ratelimit.PriorityClass;
+import io.smallrye.mutiny.Multi;
+import jakarta.annotation.Priority;
+import jakarta.inject.Inject;
+import jakarta.interceptor.AroundInvoke;
+import jakarta.interceptor.Interceptor;
+import jakarta.interceptor.InvocationContext;
+import jakarta.ws.rs.core.SecurityContext;
+
+/**
+ * Runs resource methods annotated with {@link LlmPriority} as the caller of the request's principal, unless the
+ * {@link LlmLoadShedder} rejects the request because the LLM calls of its class are queueing for too long.
+ * It runs inside the idempotency interceptor, so that replayed responses are neither counted as calls nor shed.
+ */
+@LlmPriority(PriorityClass.STANDARD)
+@Interceptor
+@Priority(Interceptor.Priority.APPLICATION + 1)
+public class LlmPriorityInterceptor {
+
+    @Inject
+    SecurityContext securityContext;
+
+    @Inject
+    LlmLoadShedder shedder;
+
+    @AroundInvoke
+    Object withPriority(InvocationContext ctx) throws Exception {
+        PriorityClass priority = ctx.getInterceptorBinding(LlmPriority.class).value();
+        shedder.admit(priority);
+        var principal = securityContext.getUserPrincipal();
+        var caller = new LlmCaller(principal != null ? principal.getName() : LlmCaller.ANONYMOUS, priority);
+
+        Object result = caller.call(ctx::proceed);
+        return result instanceof Multi<?> multi ? caller.subscribe(multi) : result;
+    }
+}
@@ -0,0 +1,136 @@
+package dev.abstratium.abstrasst.entity;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.Objects;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.IdClass;
+import jakarta.persistence.Table;
+
+@Entity
+@Table(name = "T_llm_usage")
+@IdClass(LlmUsageRollup.Key.class)
+public class LlmUsageRollup {
+
+    /** MINUTE or HOUR */
+    @Id
+    @Column(name = "granularity", length = 8)
+    private String granularity;
+
+    @Id
+    @Column(name = "bucket_start")
+    private Instant bucketStart;
+
+    @Id
+    @Column(name = "model", length = 255)
+    private String model;
+
+    @Column(nullable = false)
+    private long calls;
+
+    @Column(name = "input_tokens", nullable = false)
+    private long inputTokens;
+
+    @Column(name = "cached_input_tokens", nullable = false)
+    private long cachedInputTokens;
+
+    @Column(name = "output_tokens", nullable = false)
+    private long outputTokens;
+
+    @Column(name = "cost_micros", nullable = false)
+    private long costMicros;
+
+    // Getters and setters
+    public String getGranularity() {
+        return granularity;
+    }
+
+    public void setGranularity(String granularity) {
+        this.granularity = granularity;
+    }
+
+    public Instant getBucketStart() {
+        return bucketStart;
+    }
+
+    public void setBucketStart(Instant bucketStart) {
+        this.bucketStart = bucketStart;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public void setModel(String model) {
+        this.model = model;
+    }
+
+    public long getCalls() {
+        return calls;
+    }
+
+    public void setCalls(long calls) {
+        this.calls = calls;
+    }
+
+    public long getInputTokens() {
+        return inputTokens;
+    }
+
+    public void setInputTokens(long inputTokens) {
+        this.inputTokens = inputTokens;
+    }
+
+    public long getCachedInputTokens() {
+        return cachedInputTokens;
+    }
+
+    public void setCachedInputTokens(long cachedInputTokens) {
+        this.cachedInputTokens = cachedInputTokens;
+    }
+
+    public long getOutputTokens() {
+        return outputTokens;
+    }
+
+    public void setOutputTokens(long outputTokens) {
+        this.outputTokens = outputTokens;
+    }
+
+    public long getCostMicros() {
+        return costMicros;
+    }
+
+    public void setCostMicros(long costMicros) {
+        this.costMicros = costMicros;
+    }
+
+    public static class Key implements Serializable {
+
+        private String granularity;
+        private Instant bucketStart;
+        private String model;
+
+        public Key() {
+        }
+
+        public Key(String granularity, Instant bucketStart, String model) {
+            this.granularity = granularity;
+            this.bucketStart = bucketStart;
+            this.model = model;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key k && granularity.equals(k.granularity) && bucketStart.equals(k.bucketStart) && model.equals(k.model);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(granularity, bucketStart, model);
+        }
+    }
+}
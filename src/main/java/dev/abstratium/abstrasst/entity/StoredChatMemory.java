@@ -0,0 +1,50 @@
+package dev.abstratium.abstrasst.entity;
+
+import java.time.Instant;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+
+@Entity
+@Table(name = "T_chat_memory")
+public class StoredChatMemory {
+
+    @Id
+    @Column(name = "memory_id", length = 255)
+    private String memoryId;
+
+    /** the messages as encoded by the ChatMessageCodec */
+    @Column(name = "encoded", nullable = false)
+    private byte[] encoded;
+
+    @Column(name = "updated_at", nullable = false)
+    private Instant updatedAt;
+
+    // Getters and setters
+    public String getMemoryId() {
+        return memoryId;
+    }
+
+    public void setMemoryId(String memoryId) {
+        this.memoryId = memoryId;
+    }
+
+    public byte[] getEncoded() {
+        return encoded;
+    }
+
+    public void setEncoded(byte[] encoded) {
+        this.encoded = encoded;
+    }
+
+    public Instant getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(Instant updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
+}
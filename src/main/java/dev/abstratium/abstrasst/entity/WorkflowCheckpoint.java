@@ -0,0 +1,89 @@
+package dev.abstratium.abstrasst.entity;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.Objects;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.IdClass;
+import jakarta.persistence.Table;
+
+@Entity
+@Table(name = "T_workflow_checkpoint")
+@IdClass(WorkflowCheckpoint.Key.class)
+public class WorkflowCheckpoint {
+
+    @Id
+    @Column(name = "run_id", length = 255)
+    private String runId;
+
+    /** the state key which the agent wrote */
+    @Id
+    @Column(name = "output_key", length = 255)
+    private String outputKey;
+
+    @Column(nullable = false)
+    private String output;
+
+    @Column(name = "created_at", nullable = false)
+    private Instant createdAt;
+
+    // Getters and setters
+    public String getRunId() {
+        return runId;
+    }
+
+    public void setRunId(String runId) {
+        this.runId = runId;
+    }
+
+    public String getOutputKey() {
+        return outputKey;
+    }
+
+    public void setOutputKey(String outputKey) {
+        this.outputKey = outputKey;
+    }
+
+    public String getOutput() {
+        return output;
+    }
+
+    public void setOutput(String output) {
+        this.output = output;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(Instant createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public static class Key implements Serializable {
+
+        private String runId;
+        private String outputKey;
+
+        public Key() {
+        }
+
+        public Key(String runId, String outputKey) {
+            this.runId = runId;
+            this.outputKey = outputKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key k && Objects.equals(runId, k.runId) && Objects.equals(outputKey, k.outputKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(runId, outputKey);
+        }
+    }
+}
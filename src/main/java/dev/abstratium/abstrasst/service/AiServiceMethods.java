@@ -0,0 +1,64 @@
+package dev.abstratium.abstrasst.service;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+
+import dev.langchain4j.memory.chat.ChatMemoryProvider;
+import io.quarkiverse.langchain4j.RegisterAiService;
+import io.quarkus.arc.Arc;
+
+/**
+ * Helpers for interceptors on AI service methods.
+ */
+public final class AiServiceMethods {
+
+    private AiServiceMethods() {
+    }
+
+    /** quarkus-langchain4j generates the implementation, but the annotations that we need live on the interface */
+    public static Method interfaceMethod(Method method) {
+        if (method.getDeclaringClass().isInterface()) {
+            return method;
+        }
+        for (Class<?> i : method.getDeclaringClass().getInterfaces()) {
+            try {
+                return i.getMethod(method.getName(), method.getParameterTypes());
+            } catch (NoSuchMethodException e) {
+                // try the next one
+            }
+        }
+        return method;
+    }
+
+    /** @return the index of the first parameter of the interface method with the given annotation, or -1 */
+    public static int parameterIndex(Method method, Class<? extends Annotation> annotation) {
+        Parameter[] parameters = interfaceMethod(method).getParameters();
+        for (int i = 0; i < parameters.length; i++) {
+            if (parameters[i].isAnnotationPresent(annotation)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Resolves the chat memory provider of the AI service that declares the method, the way quarkus-langchain4j does.
+     * @return the provider, or null if the service has no chat memory
+     */
+    public static ChatMemoryProvider chatMemoryProvider(Method method) {
+        RegisterAiService service = interfaceMethod(method).getDeclaringClass().getAnnotation(RegisterAiService.class);
+        if (service == null || service.chatMemoryProviderSupplier() == RegisterAiService.NoChatMemoryProviderSupplier.class) {
+            return null;
+        }
+        if (service.chatMemoryProviderSupplier() == RegisterAiService.BeanChatMemoryProviderSupplier.class) {
+            var bean = Arc.container().instance(ChatMemoryProvider.class);
+            return bean.isAvailable() ? bean.get() : null;
+        }
+        try {
+            return service.chatMemoryProviderSupplier().getDeclaredConstructor().newInstance().get();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create the chat memory provider supplier of " + method, e);
+        }
+    }
+}
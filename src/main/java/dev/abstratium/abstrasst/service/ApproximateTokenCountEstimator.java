@@ -0,0 +1,33 @@
+package dev.abstratium.abstrasst.service;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.TokenCountEstimator;
+
+/**
+ * Estimates about four characters per token, for models which the OpenAI tokenizer does not know.
+ * That is close enough for English text, and errs on the high side for code.
+ */
+public class ApproximateTokenCountEstimator implements TokenCountEstimator {
+
+    /** what OpenAI adds for the role and delimiters of every message */
+    static final int TOKENS_PER_MESSAGE = 4;
+
+    @Override
+    public int estimateTokenCountInText(String text) {
+        return text == null ? 0 : (text.length() + 3) / 4;
+    }
+
+    @Override
+    public int estimateTokenCountInMessage(ChatMessage message) {
+        return TOKENS_PER_MESSAGE + (int) Math.min(Integer.MAX_VALUE, (MyAiMemory.textLength(message) + 3) / 4);
+    }
+
+    @Override
+    public int estimateTokenCountInMessages(Iterable<ChatMessage> messages) {
+        int tokens = 0;
+        for (ChatMessage message : messages) {
+            tokens += estimateTokenCountInMessage(message);
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,157 @@
+package dev.abstratium.abstrasst.service;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import dev.abstratium.abstrasst.service.ratelimit.LlmCaller;
+import dev.abstratium.abstrasst.service.ratelimit.PriorityClass;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Folds the older messages of long conversations into a running summary, in the background.
+ *
+ * A {@link TokenWindowChatMemory} hands its oldest messages over once it holds more than {@code threshold} of its
+ * token budget, keeping the newest {@code retain} of the budget verbatim. The summary is made by the cheap
+ * {@link MyAiSummaryService} on a virtual thread, so the request which crossed the threshold does not wait for it.
+ * The next request then sees the summary in place of the older messages.
+ * At most {@code max-concurrent} summaries are made at a time; conversations which find no free slot try again with their next message.
+ */
+@ApplicationScoped
+public class ChatMemoryCompressor {
+
+    private static final Logger log = Logger.getLogger(ChatMemoryCompressor.class);
+
+    private static final AttributeKey<String> RESULT = AttributeKey.stringKey("result");
+
+    /** marks the message which holds the summary, so that it is recognised when it is summarised again */
+    static final String SUMMARY_PREFIX = "Summary of the conversation so far:\n";
+
+    @ConfigProperty(name = "chat-memory.compression.threshold", defaultValue = "0.75")
+    double threshold;
+
+    @ConfigProperty(name = "chat-memory.compression.retain", defaultValue = "0.4")
+    double retain;
+
+    @ConfigProperty(name = "chat-memory.compression.max-summary-words", defaultValue = "200")
+    int maxSummaryWords;
+
+    @ConfigProperty(name = "chat-memory.compression.max-concurrent", defaultValue = "4")
+    int maxConcurrent;
+
+    @Inject
+    MyAiSummaryService summaryService;
+
+    @Inject
+    Meter meter;
+
+    final LongAdder compressed = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final LongAdder discarded = new LongAdder();
+
+    Executor executor;
+
+    private Semaphore permits;
+
+    @PostConstruct
+    void init() {
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        permits = new Semaphore(maxConcurrent);
+
+        meter.counterBuilder("chat_memory.compressions")
+            .setDescription("Background summaries of chat memories, by result (ok, failed, discarded)")
+            .buildWithCallback(m -> {
+                m.record(compressed.sum(), Attributes.of(RESULT, "ok"));
+                m.record(failed.sum(), Attributes.of(RESULT, "failed"));
+                m.record(discarded.sum(), Attributes.of(RESULT, "discarded"));
+            });
+    }
+
+    @PreDestroy
+    void close() {
+        if (executor instanceof ExecutorService service) {
+            service.shutdownNow();
+        }
+    }
+
+    /** the number of tokens above which a memory with the given budget is compressed */
+    int thresholdTokens(int maxTokens) {
+        return (int) (maxTokens * threshold);
+    }
+
+    /** the number of tokens of the newest messages which are kept verbatim */
+    int retainTokens(int maxTokens) {
+        return (int) (maxTokens * retain);
+    }
+
+    /**
+     * Summarises the given oldest messages of the memory in the background, and replaces them with the summary.
+     * @return false if there is no free slot right now, in which case the memory should try again later
+     */
+    boolean submit(TokenWindowChatMemory memory, List<ChatMessage> older) {
+        if (!permits.tryAcquire()) {
+            return false;
+        }
+        // nobody waits for the summary, so it does not hold up the calls of the conversation
+        LlmCaller caller = LlmCaller.current().withPriority(PriorityClass.BATCH);
+        try {
+            executor.execute(() -> {
+                try {
+                    String summary = caller.get(() -> summaryService.summarize(render(older), maxSummaryWords));
+                    if (memory.replace(older, UserMessage.from(SUMMARY_PREFIX + summary.strip()))) {
+                        compressed.increment();
+                    } else {
+                        discarded.increment();
+                    }
+                } catch (RuntimeException e) {
+                    failed.increment();
+                    log.warnf(e, "Failed to summarise chat memory %s", memory.id());
+                } finally {
+                    memory.compressionDone();
+                    permits.release();
+                }
+            });
+            return true;
+        } catch (RuntimeException e) {
+            // rejected, e.g. during shutdown
+            permits.release();
+            return false;
+        }
+    }
+
+    static String render(List<ChatMessage> messages) {
+        var sb = new StringBuilder();
+        for (ChatMessage message : messages) {
+            switch (message) {
+                case UserMessage m when m.hasSingleText() && m.singleText().startsWith(SUMMARY_PREFIX) ->
+                    sb.append(m.singleText());
+                case UserMessage m -> sb.append("User: ").append(m.hasSingleText() ? m.singleText() : m.contents().toString());
+                case AiMessage m when m.hasToolExecutionRequests() ->
+                    sb.append("Assistant called tools: ").append(m.toolExecutionRequests().stream().map(r -> r.name() + r.arguments()).toList());
+                case AiMessage m -> sb.append("Assistant: ").append(m.text());
+                case ToolExecutionResultMessage m -> sb.append("Tool ").append(m.toolName()).append(" returned: ").append(m.text());
+                case SystemMessage m -> sb.append("Instructions: ").append(m.text());
+                default -> sb.append(message);
+            }
+            sb.append("\n\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,319 @@
+package dev.abstratium.abstrasst.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import dev.abstratium.abstrasst.entity.StoredChatMemory;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.store.memory.chat.ChatMemoryStore;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import jakarta.transaction.Transactional;
+
+/**
+ * Chat memory store backed by the database, so that conversations survive restarts and can be continued on another replica.
+ *
+ * Messages are stored in their compact {@link ChatMessageCodec} encoding, and decoded when they are read.
+ * Updates only replace the pending messages of a memory, which are written in batches by a scheduled flush (write-behind),
+ * so that the LLM request path never waits for the database. Several updates of the same memory between two flushes
+ * result in a single write. A memory without messages is deleted from the database.
+ *
+ * The {@code updated_at} of a row is its version. Each update remembers the version it is based on, i.e. the one this
+ * replica last read or wrote, and is only written if the row still has that version. Otherwise another replica has
+ * continued the conversation in the meantime, and the update is dropped rather than overwriting those turns. The rows are
+ * locked while they are compared and written, so that of two replicas which flush the same memory at once, the second one
+ * sees the version of the first. Two replicas which create the same memory at once fail on its key instead, and the one
+ * which failed finds the conflict when it retries.
+ * {@link #isCurrent(String)} tells the {@link TokenWindowChatMemory} when to read the memory again. It only looks at the
+ * versions which this replica knows, and a scheduled revalidation forgets those which another replica has moved on,
+ * so that the request path does not query the database to find out.
+ */
+@ApplicationScoped
+public class ChatMemoryStoreService implements ChatMemoryStore {
+
+    private static final Logger log = Logger.getLogger(ChatMemoryStoreService.class);
+
+    private static final AttributeKey<String> RESULT = AttributeKey.stringKey("result");
+
+    /** the version of a memory without a row */
+    static final Instant NONE = Instant.EPOCH;
+
+    /** the encoded messages of an update, and the version it is based on, null if this replica does not know it */
+    private record Update(byte[] encoded, Instant base) {}
+
+    @ConfigProperty(name = "chat-memory.max-sessions", defaultValue = "10000")
+    long maxSessions;
+
+    @ConfigProperty(name = "chat-memory.idle-expiry", defaultValue = "30m")
+    Duration idleExpiry;
+
+    @ConfigProperty(name = "chat-memory.store.batch-size", defaultValue = "100")
+    int batchSize;
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    Meter meter;
+
+    final LongAdder written = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final LongAdder conflicts = new LongAdder();
+    final LongAdder stale = new LongAdder();
+
+    /** memories which have been updated but not yet written */
+    private final ConcurrentMap<String, Update> pending = new ConcurrentHashMap<>();
+
+    /** memories which are being written right now, so that a read does not fall back to the older state in the database */
+    private final ConcurrentMap<String, Update> flushing = new ConcurrentHashMap<>();
+
+    /** guards the versions of pending updates, which a flush moves on once it has written them */
+    private final Object versionLock = new Object();
+
+    /** the version of each memory which this replica last read or wrote */
+    private Cache<String, Instant> versions;
+
+    @PostConstruct
+    void init() {
+        versions = Caffeine.newBuilder()
+            .maximumSize(maxSessions)
+            .expireAfterAccess(idleExpiry)
+            .build();
+
+        meter.gaugeBuilder("chat_memory.store.pending")
+            .setDescription("Chat memories which have been updated but not yet written to the database")
+            .ofLongs()
+            .buildWithCallback(m -> m.record(pending.size()));
+        meter.counterBuilder("chat_memory.store.writes")
+            .setDescription("Chat memories written to the database, by result (ok, failed, conflict)")
+            .buildWithCallback(m -> {
+                m.record(written.sum(), Attributes.of(RESULT, "ok"));
+                m.record(failed.sum(), Attributes.of(RESULT, "failed"));
+                m.record(conflicts.sum(), Attributes.of(RESULT, "conflict"));
+            });
+        meter.counterBuilder("chat_memory.store.stale")
+            .setDescription("Chat memories which this replica held, and which were continued on another replica")
+            .buildWithCallback(m -> m.record(stale.sum()));
+    }
+
+    @Override
+    public List<ChatMessage> getMessages(Object memoryId) {
+        String id = memoryId.toString();
+        Update local = local(id);
+        if (local != null) {
+            return ChatMessageCodec.decode(local.encoded());
+        }
+        StoredChatMemory stored = load(id);
+        if (stored == null) {
+            versions.put(id, NONE);
+            return List.of();
+        }
+        versions.put(id, stored.getUpdatedAt());
+        return ChatMessageCodec.decode(stored.getEncoded());
+    }
+
+    @Override
+    public void updateMessages(Object memoryId, List<ChatMessage> messages) {
+        String id = memoryId.toString();
+        byte[] encoded = ChatMessageCodec.encode(messages);
+        synchronized (versionLock) {
+            Update local = local(id);
+            pending.put(id, new Update(encoded, local != null ? local.base() : versions.getIfPresent(id)));
+        }
+    }
+
+    @Override
+    public void deleteMessages(Object memoryId) {
+        updateMessages(memoryId, List.of());
+    }
+
+    /**
+     * Whether the messages which this replica last read or wrote are still the newest ones, as far as the last
+     * {@link #revalidate() revalidation} knows. Never queries the database, and is false if this replica does not know
+     * the version, so that the memory is simply read again.
+     */
+    public boolean isCurrent(String id) {
+        // if another replica wrote while an update is pending, the flush finds out
+        return local(id) != null || versions.getIfPresent(id) != null;
+    }
+
+    private Update local(String id) {
+        Update update = pending.get(id);
+        return update != null ? update : flushing.get(id);
+    }
+
+    @Transactional
+    StoredChatMemory load(String id) {
+        return em.find(StoredChatMemory.class, id);
+    }
+
+    /** @return the versions of those memories which have a row */
+    @Transactional
+    Map<String, Instant> versions(List<String> ids) {
+        Map<String, Instant> result = new HashMap<>();
+        em.createQuery("SELECT m.memoryId, m.updatedAt FROM StoredChatMemory m WHERE m.memoryId IN :ids", Object[].class)
+            .setParameter("ids", ids)
+            .getResultStream()
+            .forEach(row -> result.put((String) row[0], (Instant) row[1]));
+        return result;
+    }
+
+    @Scheduled(every = "${chat-memory.store.revalidate-interval:1s}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void scheduledRevalidate() {
+        try {
+            revalidate();
+        } catch (RuntimeException e) {
+            log.warnf(e, "Failed to revalidate the chat memories, trying again with the next revalidation");
+        }
+    }
+
+    /**
+     * Compares the versions which this replica knows with those in the database, in batches of
+     * {@code chat-memory.store.batch-size}, and forgets those which another replica has moved on.
+     */
+    void revalidate() {
+        Map<String, Instant> known = Map.copyOf(versions.asMap());
+        List<String> ids = new ArrayList<>(known.keySet());
+        for (int from = 0; from < ids.size(); from += batchSize) {
+            List<String> batch = ids.subList(from, Math.min(from + batchSize, ids.size()));
+            Map<String, Instant> current = versions(batch);
+            for (String id : batch) {
+                Instant version = known.get(id);
+                // not while this replica writes it, and only if it was not read or written again since the query
+                if (local(id) == null && !version.equals(current.getOrDefault(id, NONE)) && versions.asMap().remove(id, version)) {
+                    stale.increment();
+                }
+            }
+        }
+    }
+
+    @Scheduled(every = "${chat-memory.store.flush-interval:1s}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void scheduledFlush() {
+        flush();
+    }
+
+    void onStop(@Observes ShutdownEvent ev) {
+        flush();
+    }
+
+    /**
+     * Writes all pending memories, in batches of {@code chat-memory.store.batch-size}.
+     * If a batch fails, its memories stay pending, unless they were updated again in the meantime, and are retried with the next flush.
+     * Updates which are based on an older version than the one in the database are dropped, see the class comment.
+     */
+    public synchronized void flush() {
+        while (!pending.isEmpty()) {
+            Map<String, Update> batch = new HashMap<>();
+            for (var entry : pending.entrySet()) {
+                String id = entry.getKey();
+                Update update = entry.getValue();
+                // into flushing first, so that a read never misses both
+                flushing.put(id, update);
+                if (pending.remove(id, update)) {
+                    batch.put(id, update);
+                    if (batch.size() >= batchSize) {
+                        break;
+                    }
+                } else {
+                    flushing.remove(id, update);
+                }
+            }
+            Map<String, Instant> versionsWritten;
+            try {
+                versionsWritten = write(batch);
+            } catch (RuntimeException e) {
+                failed.add(batch.size());
+                batch.forEach(pending::putIfAbsent);
+                batch.forEach(flushing::remove);
+                log.warnf(e, "Failed to write %d chat memories, they will be retried with the next flush", batch.size());
+                return;
+            }
+            synchronized (versionLock) {
+                batch.forEach((id, update) -> {
+                    Instant version = versionsWritten.get(id);
+                    if (version != null) {
+                        written.increment();
+                        versions.put(id, version);
+                        // later updates are based on what was just written
+                        pending.computeIfPresent(id, (k, p) -> Objects.equals(p.base(), update.base()) ? new Update(p.encoded(), version) : p);
+                    } else {
+                        conflicts.increment();
+                        versions.invalidate(id);
+                        pending.computeIfPresent(id, (k, p) -> Objects.equals(p.base(), update.base()) ? null : p);
+                        log.warnf("Chat memory %s was continued on another replica, dropping the update of this one", id);
+                    }
+                    flushing.remove(id);
+                });
+            }
+        }
+    }
+
+    /** @return the new versions of the memories which were written, without those which were changed by another replica */
+    @Transactional
+    Map<String, Instant> write(Map<String, Update> batch) {
+        Map<String, StoredChatMemory> existing = new HashMap<>();
+        // locked until the commit, so that another replica which flushes the same memory waits, and then sees this version
+        em.createQuery("SELECT m FROM StoredChatMemory m WHERE m.memoryId IN :ids", StoredChatMemory.class)
+            .setParameter("ids", batch.keySet())
+            .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+            .getResultStream()
+            .forEach(m -> existing.put(m.getMemoryId(), m));
+
+        Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        Map<String, Instant> result = new HashMap<>();
+        batch.forEach((id, update) -> {
+            var stored = existing.get(id);
+            Instant current = stored == null ? NONE : stored.getUpdatedAt();
+            if (update.base() != null && !update.base().equals(current)) {
+                return;
+            }
+            if (ChatMessageCodec.isEmpty(update.encoded())) {
+                if (stored != null) {
+                    em.remove(stored);
+                }
+                result.put(id, NONE);
+                return;
+            }
+            if (stored == null) {
+                stored = new StoredChatMemory();
+                stored.setMemoryId(id);
+                em.persist(stored);
+            }
+            // strictly increasing, even if two writes fall into the same millisecond, or the clocks of the replicas differ
+            Instant version = now.isAfter(current) ? now : current.plusMillis(1);
+            stored.setEncoded(update.encoded());
+            stored.setUpdatedAt(version);
+            result.put(id, version);
+        });
+        return result;
+    }
+
+    /** forgets which versions this replica knows, e.g. to simulate a restart in tests */
+    void forgetVersions() {
+        versions.invalidateAll();
+    }
+}
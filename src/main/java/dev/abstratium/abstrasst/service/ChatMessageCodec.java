@@ -0,0 +1,246 @@
+package dev.abstratium.abstrasst.service;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.ChatMessageDeserializer;
+import dev.langchain4j.data.message.ChatMessageSerializer;
+import dev.langchain4j.data.message.Content;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.TextContent;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+
+/**
+ * Compact binary form of a list of chat messages, a fraction of the size of the message objects or of their JSON.
+ *
+ * The format is a version byte and the number of messages, followed by a type byte and the fields of each message.
+ * Numbers are unsigned varints. Strings are a varint header, holding the byte length plus one (zero for null) and
+ * a flag in the lowest bit, followed by the UTF-8 bytes. If the flag is set, the bytes are deflated, and preceded by their
+ * inflated length. Only strings of at least {@link #DEFLATE_THRESHOLD} bytes are deflated, and only if that makes them smaller.
+ * Messages which cannot be represented, e.g. with images or attributes, are stored as langchain4j JSON, so that
+ * decoding always returns messages equal to the encoded ones.
+ */
+public final class ChatMessageCodec {
+
+    static final int DEFLATE_THRESHOLD = 512;
+
+    private static final byte VERSION = 1;
+
+    private static final byte JSON = 0;
+    private static final byte SYSTEM = 1;
+    private static final byte USER = 2;
+    private static final byte AI = 3;
+    private static final byte TOOL_RESULT = 4;
+
+    private ChatMessageCodec() {
+    }
+
+    public static byte[] encode(List<ChatMessage> messages) {
+        var out = new Writer();
+        out.write(VERSION);
+        out.varint(messages.size());
+        for (ChatMessage message : messages) {
+            switch (message) {
+                case SystemMessage m -> {
+                    out.write(SYSTEM);
+                    out.string(m.text());
+                }
+                case UserMessage m when m.attributes().isEmpty() && m.contents().stream().allMatch(c -> c instanceof TextContent) -> {
+                    out.write(USER);
+                    out.string(m.name());
+                    out.varint(m.contents().size());
+                    for (Content content : m.contents()) {
+                        out.string(((TextContent) content).text());
+                    }
+                }
+                case AiMessage m when m.attributes().isEmpty() -> {
+                    out.write(AI);
+                    out.string(m.text());
+                    out.string(m.thinking());
+                    out.varint(m.toolExecutionRequests().size());
+                    for (ToolExecutionRequest request : m.toolExecutionRequests()) {
+                        out.string(request.id());
+                        out.string(request.name());
+                        out.string(request.arguments());
+                    }
+                }
+                case ToolExecutionResultMessage m -> {
+                    out.write(TOOL_RESULT);
+                    out.string(m.id());
+                    out.string(m.toolName());
+                    out.string(m.text());
+                }
+                default -> {
+                    out.write(JSON);
+                    out.string(ChatMessageSerializer.messageToJson(message));
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /** whether the encoding holds no messages, without decoding it */
+    public static boolean isEmpty(byte[] bytes) {
+        return bytes.length < 2 || bytes[1] == 0;
+    }
+
+    public static List<ChatMessage> decode(byte[] bytes) {
+        var in = new Reader(bytes);
+        if (in.read() != VERSION) {
+            throw new IllegalArgumentException("Unknown chat message encoding version " + bytes[0]);
+        }
+        int count = in.varint();
+        List<ChatMessage> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte type = in.read();
+            messages.add(switch (type) {
+                case SYSTEM -> SystemMessage.from(in.string());
+                case USER -> {
+                    String name = in.string();
+                    int n = in.varint();
+                    List<Content> contents = new ArrayList<>(n);
+                    for (int j = 0; j < n; j++) {
+                        contents.add(TextContent.from(in.string()));
+                    }
+                    yield name == null ? UserMessage.from(contents) : UserMessage.from(name, contents);
+                }
+                case AI -> {
+                    var builder = AiMessage.builder().text(in.string()).thinking(in.string());
+                    int n = in.varint();
+                    List<ToolExecutionRequest> requests = new ArrayList<>(n);
+                    for (int j = 0; j < n; j++) {
+                        requests.add(ToolExecutionRequest.builder().id(in.string()).name(in.string()).arguments(in.string()).build());
+                    }
+                    yield builder.toolExecutionRequests(requests).build();
+                }
+                case TOOL_RESULT -> ToolExecutionResultMessage.from(in.string(), in.string(), in.string());
+                case JSON -> ChatMessageDeserializer.messageFromJson(in.string());
+                default -> throw new IllegalArgumentException("Unknown chat message type " + type);
+            });
+        }
+        return messages;
+    }
+
+    private static final class Writer extends ByteArrayOutputStream {
+
+        Writer() {
+            super(256);
+        }
+
+        void varint(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void string(String s) {
+            if (s == null) {
+                varint(0);
+                return;
+            }
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            byte[] deflated = utf8.length >= DEFLATE_THRESHOLD ? deflate(utf8) : null;
+            boolean compressed = deflated != null && deflated.length < utf8.length;
+            byte[] bytes = compressed ? deflated : utf8;
+            varint((bytes.length + 1) << 1 | (compressed ? 1 : 0));
+            if (compressed) {
+                // the length of the inflated bytes, so that the reader can allocate them up front
+                varint(utf8.length);
+            }
+            writeBytes(bytes);
+        }
+
+        private static byte[] deflate(byte[] bytes) {
+            var deflater = new Deflater(Deflater.BEST_SPEED, true);
+            try {
+                deflater.setInput(bytes);
+                deflater.finish();
+                byte[] buffer = new byte[bytes.length];
+                int length = 0;
+                while (!deflater.finished() && length < buffer.length) {
+                    length += deflater.deflate(buffer, length, buffer.length - length);
+                }
+                // not finished means that it would not have been smaller
+                return deflater.finished() ? Arrays.copyOf(buffer, length) : null;
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    private static final class Reader {
+
+        private final byte[] bytes;
+        private int position;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        byte read() {
+            return bytes[position++];
+        }
+
+        int varint() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = read();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        String string() {
+            int header = varint();
+            if (header == 0) {
+                return null;
+            }
+            int length = (header >>> 1) - 1;
+            boolean compressed = (header & 1) != 0;
+            String s;
+            if (compressed) {
+                int inflatedLength = varint();
+                s = new String(inflate(position, length, inflatedLength), StandardCharsets.UTF_8);
+            } else {
+                s = new String(bytes, position, length, StandardCharsets.UTF_8);
+            }
+            position += length;
+            return s;
+        }
+
+        private byte[] inflate(int offset, int length, int inflatedLength) {
+            var inflater = new Inflater(true);
+            try {
+                inflater.setInput(bytes, offset, length);
+                byte[] inflated = new byte[inflatedLength];
+                int n = 0;
+                while (n < inflatedLength && !inflater.finished()) {
+                    int read = inflater.inflate(inflated, n, inflatedLength - n);
+                    if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IllegalArgumentException("Truncated chat message encoding");
+                    }
+                    n += read;
+                }
+                return inflated;
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException("Corrupt chat message encoding", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+}
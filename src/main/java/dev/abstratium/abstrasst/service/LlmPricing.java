@@ -0,0 +1,29 @@
+package dev.abstratium.abstrasst.service;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.Optional;
+
+import io.smallrye.config.ConfigMapping;
+
+/**
+ * Prices of LLM models, in USD per million tokens, see https://developers.openai.com/api/docs/pricing
+ *
+ * Models are looked up by the name in the response, e.g. {@code gpt-4.1-nano-2025-04-14}, which matches the
+ * longest configured name that it starts with, e.g. {@code gpt-4.1-nano}.
+ */
+@ConfigMapping(prefix = "llm.pricing")
+public interface LlmPricing {
+
+    Map<String, ModelPrice> models();
+
+    interface ModelPrice {
+
+        BigDecimal input();
+
+        /** defaults to the input price, i.e. pessimistic */
+        Optional<BigDecimal> cachedInput();
+
+        BigDecimal output();
+    }
+}
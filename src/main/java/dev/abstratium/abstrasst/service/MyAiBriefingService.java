@@ -0,0 +1,42 @@
+package dev.abstratium.abstrasst.service;
+
+import dev.langchain4j.service.SystemMessage;
+import dev.langchain4j.service.UserMessage;
+import io.quarkiverse.langchain4j.RegisterAiService;
+import jakarta.enterprise.context.ApplicationScoped;
+
+@RegisterAiService(
+    // a cheap model, configured under quarkus.langchain4j.openai.summarizer, since long documents are read in many chunks
+    modelName = "summarizer",
+
+    // every chunk is read on its own, and its result is cached, so it must not depend on a conversation
+    chatMemoryProviderSupplier = RegisterAiService.NoChatMemoryProviderSupplier.class
+)
+@ApplicationScoped
+public interface MyAiBriefingService {
+
+    @SystemMessage("""
+                You prepare the members of a board for a meeting. You read one part of a long meeting document at a time.
+                Keep the agenda item, facts, numbers, proposals and the decisions which are asked for. Leave out repetitions.
+                Answer in the language of the document with the notes only.
+            """)
+    @UserMessage("""
+                Write notes of at most {maxWords} words on this part of the meeting document:
+
+                {section}
+            """)
+    String summarizeSection(String section, int maxWords);
+
+    @SystemMessage("""
+                You prepare the members of a board for a meeting. You are given notes on the parts of a long meeting
+                document, in the order of the document. Merge them into one briefing, grouped by agenda item.
+                Keep every proposal and every decision which is asked for. Answer with the briefing only.
+            """)
+    @UserMessage("""
+                Merge these notes into a briefing:
+
+                {notes}
+            """)
+    String merge(String notes);
+
+}
@@ -1,22 +1,274 @@
 package dev.abstratium.abstrasst.service;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.Content;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.TextContent;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.memory.ChatMemory;
 import dev.langchain4j.memory.chat.ChatMemoryProvider;
-import dev.langchain4j.memory.chat.MessageWindowChatMemory;
+import dev.langchain4j.model.TokenCountEstimator;
+import dev.langchain4j.model.openai.OpenAiTokenCountEstimator;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Instance;
+import jakarta.inject.Inject;
 
+/**
+ * Chat memories by memory id, bounded in number, idle time and approximate heap usage.
+ * Each memory keeps the newest messages which fit into {@code chat-memory.max-tokens}, see {@link TokenWindowChatMemory}.
+ * With {@code chat-memory.compression.enabled}, older messages of long conversations are summarised by the {@link ChatMemoryCompressor}.
+ * Memories which have been idle for a while are packed into their {@link ChatMessageCodec} encoding.
+ *
+ * Memories are held in a Caffeine cache, which evicts using W-TinyLFU, so that a burst of one-off users does not
+ * push out the memories of users who keep coming back. Each memory is weighed by the approximate size of its
+ * messages, but never less than {@code max-weight / max-sessions}, which also caps the number of sessions.
+ * An evicted memory is simply forgotten, and the user starts a new conversation, unless {@code chat-memory.store.enabled}
+ * is set, in which case the messages are kept in the {@link ChatMemoryStoreService} and reloaded when the user returns.
+ */
 @ApplicationScoped
 public class MyAiMemory implements ChatMemoryProvider {
 
-    private final ConcurrentMap<String, ChatMemory> memories = new ConcurrentHashMap<>();
+    private static final Logger log = Logger.getLogger(MyAiMemory.class);
+
+    private static final AttributeKey<String> CAUSE = AttributeKey.stringKey("cause");
+
+    /** rough per object overheads, in bytes, of a memory and of a message, on top of the text itself */
+    static final int SESSION_OVERHEAD = 512;
+    static final int MESSAGE_OVERHEAD = 96;
+
+    @ConfigProperty(name = "chat-memory.max-sessions", defaultValue = "10000")
+    long maxSessions;
+
+    @ConfigProperty(name = "chat-memory.max-weight-bytes", defaultValue = "16000000")
+    long maxWeightBytes;
+
+    @ConfigProperty(name = "chat-memory.idle-expiry", defaultValue = "30m")
+    Duration idleExpiry;
+
+    @ConfigProperty(name = "chat-memory.max-tokens", defaultValue = "4000")
+    int maxTokens;
+
+    /** the model the memories are sent to, which determines how tokens are counted */
+    @ConfigProperty(name = "chat-memory.model", defaultValue = "gpt-4.1-nano")
+    String model;
+
+    @ConfigProperty(name = "chat-memory.store.enabled", defaultValue = "true")
+    boolean persistent;
+
+    @Inject
+    Instance<ChatMemoryStoreService> store;
+
+    @ConfigProperty(name = "chat-memory.pack-after", defaultValue = "60s")
+    Duration packAfter;
+
+    @ConfigProperty(name = "chat-memory.compression.enabled", defaultValue = "false")
+    boolean compression;
+
+    @Inject
+    Instance<ChatMemoryCompressor> compressor;
+
+    @Inject
+    Meter meter;
+
+    final LongAdder sizeEvictions = new LongAdder();
+    final LongAdder expiryEvictions = new LongAdder();
+    final LongAdder packs = new LongAdder();
+
+    /** as counted by the last run of {@link #packIdle()} */
+    private volatile long packedSessions;
+
+    private Cache<String, BoundedChatMemory> memories;
+
+    private TokenCountEstimator estimator;
+
+    @PostConstruct
+    void init() {
+        estimator = tokenCountEstimator(model);
+        int minWeight = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxWeightBytes / maxSessions));
+        memories = Caffeine.newBuilder()
+            .maximumWeight(maxWeightBytes)
+            .weigher((String id, BoundedChatMemory memory) -> Math.max(minWeight, memory.weight()))
+            .expireAfterAccess(idleExpiry)
+            .evictionListener((String id, BoundedChatMemory memory, RemovalCause cause) -> {
+                if (cause == RemovalCause.EXPIRED) {
+                    expiryEvictions.increment();
+                } else {
+                    sizeEvictions.increment();
+                }
+            })
+            .build();
+
+        meter.gaugeBuilder("chat_memory.sessions")
+            .setDescription("Approximate number of chat memories held on the heap")
+            .ofLongs()
+            .buildWithCallback(m -> m.record(memories.estimatedSize()));
+        meter.gaugeBuilder("chat_memory.weight")
+            .setDescription("Approximate heap usage of all chat memories, in bytes, including the per session minimum")
+            .ofLongs()
+            .buildWithCallback(m -> m.record(weight()));
+        meter.gaugeBuilder("chat_memory.packed_sessions")
+            .setDescription("Chat memories held in their compact encoding, because they have been idle")
+            .ofLongs()
+            .buildWithCallback(m -> m.record(packedSessions));
+        meter.counterBuilder("chat_memory.packs")
+            .setDescription("Idle chat memories which were packed into their compact encoding")
+            .buildWithCallback(m -> m.record(packs.sum()));
+        meter.counterBuilder("chat_memory.evictions")
+            .setDescription("Chat memories dropped, by cause (size, expired)")
+            .buildWithCallback(m -> {
+                m.record(sizeEvictions.sum(), Attributes.of(CAUSE, "size"));
+                m.record(expiryEvictions.sum(), Attributes.of(CAUSE, "expired"));
+            });
+    }
 
     @Override
     public ChatMemory get(Object memoryId) {
         // or see https://docs.quarkiverse.io/quarkus-langchain4j/dev/guide-semantic-compression.html
-        return memories.computeIfAbsent(memoryId.toString(), id -> MessageWindowChatMemory.builder().maxMessages(10).build());
+        return memories.get(memoryId.toString(), id -> new BoundedChatMemory(id, createMemory(id)));
+    }
+
+    private TokenWindowChatMemory createMemory(String id) {
+        // with a store, the messages are loaded lazily, the first time they are read
+        return new TokenWindowChatMemory(id, maxTokens, estimator, persistent ? store.get() : null, compression ? compressor.get() : null);
+    }
+
+    static TokenCountEstimator tokenCountEstimator(String model) {
+        try {
+            return new OpenAiTokenCountEstimator(model);
+        } catch (IllegalArgumentException e) {
+            log.infof("No tokenizer is known for model %s, token counts of chat memories are approximate", model);
+            return new ApproximateTokenCountEstimator();
+        }
     }
 
+    /**
+     * Packs the memories which have been idle for {@code chat-memory.pack-after}, so that they take less heap,
+     * and weighs them again, so that more of them fit into {@code chat-memory.max-weight-bytes}.
+     */
+    @Scheduled(every = "${chat-memory.pack-interval:10s}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void packIdle() {
+        long idleNanos = packAfter.toNanos();
+        long count = 0;
+        for (BoundedChatMemory memory : memories.asMap().values()) {
+            if (memory.delegate.pack(idleNanos)) {
+                packs.increment();
+                memory.reweigh();
+            }
+            if (memory.delegate.isPacked()) {
+                count++;
+            }
+        }
+        packedSessions = count;
+    }
+
+    /** performs any pending evictions, mostly useful for tests */
+    void cleanUp() {
+        memories.cleanUp();
+    }
+
+    long size() {
+        return memories.estimatedSize();
+    }
+
+    long weight() {
+        return memories.policy().eviction().orElseThrow().weightedSize().orElse(0);
+    }
+
+    /** approximate heap usage of a message, which only needs to be good enough to compare sessions */
+    static int estimateBytes(ChatMessage message) {
+        return (int) Math.min(Integer.MAX_VALUE, MESSAGE_OVERHEAD + 2 * textLength(message));
+    }
+
+    /** number of characters in the text, tool calls and other content of a message */
+    static long textLength(ChatMessage message) {
+        return switch (message) {
+            case SystemMessage m -> m.text().length();
+            case UserMessage m -> contentLength(m.contents());
+            case AiMessage m -> length(m.text()) + length(m.thinking())
+                + m.toolExecutionRequests().stream().mapToLong(r -> length(r.name()) + length(r.arguments())).sum();
+            case ToolExecutionResultMessage m -> length(m.toolName()) + length(m.text());
+            default -> message.toString().length();
+        };
+    }
+
+    private static long contentLength(List<Content> contents) {
+        long chars = 0;
+        for (Content content : contents) {
+            chars += content instanceof TextContent text ? text.text().length() : content.toString().length();
+        }
+        return chars;
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    /**
+     * Delegates to the actual memory, and tells the cache to weigh it again whenever its messages change.
+     */
+    private final class BoundedChatMemory implements ChatMemory {
+
+        private final String id;
+        private final TokenWindowChatMemory delegate;
+
+        BoundedChatMemory(String id, TokenWindowChatMemory delegate) {
+            this.id = id;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Object id() {
+            return id;
+        }
+
+        @Override
+        public void add(ChatMessage message) {
+            delegate.add(message);
+            reweigh();
+        }
+
+        @Override
+        public List<ChatMessage> messages() {
+            boolean packed = delegate.isPacked();
+            List<ChatMessage> messages = delegate.messages();
+            if (packed) {
+                // it was unpacked, and weighs more now
+                reweigh();
+            }
+            return messages;
+        }
+
+        @Override
+        public void clear() {
+            delegate.clear();
+            reweigh();
+        }
+
+        int weight() {
+            return (int) Math.min(Integer.MAX_VALUE, SESSION_OVERHEAD + delegate.weightBytes());
+        }
+
+        /** only if it is still cached, so that a memory which was evicted in the meantime is not brought back */
+        private void reweigh() {
+            memories.asMap().replace(id, this, this);
+        }
+    }
 }
@@ -3,14 +3,17 @@ package dev.abstratium.abstrasst.service;
 import java.util.function.Supplier;
 
 import dev.langchain4j.memory.chat.ChatMemoryProvider;
+import io.quarkus.arc.Arc;
 import jakarta.enterprise.context.ApplicationScoped;
 
 @ApplicationScoped
 public class MyAiMemorySupplier implements Supplier<ChatMemoryProvider> {
 
+    // quarkus-langchain4j instantiates this class reflectively, so nothing can be injected here.
+    // look up the application scoped bean instead, so that all AI services share the same bounded set of memories
     @Override
     public ChatMemoryProvider get() {
-        return new MyAiMemory();
+        return Arc.container().instance(MyAiMemory.class).get();
     }
 
 }
@@ -0,0 +1,70 @@
+package dev.abstratium.abstrasst.service;
+
+import java.util.function.Supplier;
+
+import dev.abstratium.abstrasst.service.hedging.HedgingChatModel;
+import dev.abstratium.abstrasst.service.hedging.LlmHedging;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import io.quarkiverse.langchain4j.ModelName;
+import io.quarkus.arc.Arc;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * The models of {@link MyAiService}, whose chat model may hedge the requests of its {@link dev.abstratium.abstrasst.service.hedging.Hedged} methods.
+ *
+ * An AI service with a chat model supplier gets no streaming model from its model name, so it is supplied as well.
+ */
+@ApplicationScoped
+public class MyAiModels {
+
+    /** the named model configuration, which must match the model name of {@link MyAiService} */
+    public static final String MODEL = "gpt-4.1-nano";
+
+    @Inject
+    @ModelName(MODEL)
+    ChatModel chatModel;
+
+    @Inject
+    @ModelName(MODEL)
+    StreamingChatModel streamingChatModel;
+
+    @Inject
+    LlmHedging hedging;
+
+    private HedgingChatModel hedgingChatModel;
+
+    @PostConstruct
+    void init() {
+        hedgingChatModel = new HedgingChatModel(chatModel, hedging);
+    }
+
+    ChatModel hedgingChatModel() {
+        return hedgingChatModel;
+    }
+
+    StreamingChatModel streamingChatModel() {
+        return streamingChatModel;
+    }
+
+    // quarkus-langchain4j instantiates the suppliers reflectively, so nothing can be injected into them.
+    // they look up the application scoped bean instead, like the MyAiMemorySupplier
+
+    public static class ChatModelSupplier implements Supplier<ChatModel> {
+
+        @Override
+        public ChatModel get() {
+            return Arc.container().instance(MyAiModels.class).get().hedgingChatModel();
+        }
+    }
+
+    public static class StreamingChatModelSupplier implements Supplier<StreamingChatModel> {
+
+        @Override
+        public StreamingChatModel get() {
+            return Arc.container().instance(MyAiModels.class).get().streamingChatModel();
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package dev.abstratium.abstrasst.service;
 
+import dev.abstratium.abstrasst.service.cache.CachedResponse;
+import dev.abstratium.abstrasst.service.concurrency.SerializedByMemoryId;
+import dev.abstratium.abstrasst.service.hedging.Hedged;
 import dev.langchain4j.service.MemoryId;
 import dev.langchain4j.service.SystemMessage;
 import dev.langchain4j.service.UserMessage;
@@ -10,24 +13,34 @@ import jakarta.enterprise.context.ApplicationScoped;
 
 @RegisterAiService(
     // curl https://api.openai.com/v1/models -H "Authorization: Bearer $OPENAI_API_KEY"
-    modelName = "gpt-4.1-nano",
+    modelName = MyAiModels.MODEL,
+    chatLanguageModelSupplier = MyAiModels.ChatModelSupplier.class,
+    streamingChatLanguageModelSupplier = MyAiModels.StreamingChatModelSupplier.class,
 
     chatMemoryProviderSupplier = MyAiMemorySupplier.class
 )
 @ApplicationScoped
 public interface MyAiService {
-    
+
     @SystemMessage("You are a professional poet")
     @UserMessage("""
                 Write a poem about {topic}.
                 The poem should be {lines} lines long.
             """)
+    @CachedResponse
     Multi<String> writeAPoem(String topic, int lines);
 
+    // paraphrased questions may be answered from the semantic cache, if it is enabled, but only from earlier answers to the same user
     @SystemMessage("{dynamicSystemMessage}")
+    @CachedResponse(exact = false, semantic = true)
+    @SerializedByMemoryId
     String whateverYouAskWithMemory(@MemoryId String userId, @V("dynamicSystemMessage") String dynamicSystemMessage, @UserMessage String userMessage);
 
+    // only repeated questions within the same conversation are answered from the cache.
+    // a miss which is slow to answer may be hedged, which only sends the request twice, the memory is updated once
     @SystemMessage("{dynamicSystemMessage}")
+    @CachedResponse
+    @Hedged
     String whateverYouAsk(@MemoryId String userId, @V("dynamicSystemMessage") String dynamicSystemMessage, @UserMessage String userMessage);
 
-}
\ No newline at end of file
+}
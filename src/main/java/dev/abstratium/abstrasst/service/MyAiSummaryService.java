@@ -0,0 +1,30 @@
+package dev.abstratium.abstrasst.service;
+
+import dev.langchain4j.service.SystemMessage;
+import dev.langchain4j.service.UserMessage;
+import io.quarkiverse.langchain4j.RegisterAiService;
+import jakarta.enterprise.context.ApplicationScoped;
+
+@RegisterAiService(
+    // a cheap model, configured under quarkus.langchain4j.openai.summarizer, since summaries are made in the background
+    modelName = "summarizer",
+
+    // summarising must not add to, or read from, the memories it is summarising
+    chatMemoryProviderSupplier = RegisterAiService.NoChatMemoryProviderSupplier.class
+)
+@ApplicationScoped
+public interface MyAiSummaryService {
+
+    @SystemMessage("""
+                You summarise conversations between a user and an AI assistant.
+                Keep facts, names, numbers, decisions and open questions. Leave out pleasantries.
+                Write in the third person and in the language of the conversation. Answer with the summary only.
+            """)
+    @UserMessage("""
+                Summarise this conversation in at most {maxWords} words:
+
+                {conversation}
+            """)
+    String summarize(String conversation, int maxWords);
+
+}
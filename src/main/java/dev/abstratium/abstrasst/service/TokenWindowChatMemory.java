@@ -0,0 +1,284 @@
+package dev.abstratium.abstrasst.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.memory.ChatMemory;
+import dev.langchain4j.model.TokenCountEstimator;
+import dev.langchain4j.store.memory.chat.ChatMemoryStore;
+
+/**
+ * Keeps the newest messages which fit into a token budget.
+ *
+ * Unlike langchain4j's TokenWindowChatMemory, which re-tokenises the whole history on every change, the token count
+ * of each message is estimated once, when it is added or loaded, and kept next to it together with the running total.
+ * Trimming therefore only looks at the messages it removes.
+ *
+ * The system message is kept at the front and is never evicted, but counts towards the budget. The newest message
+ * is always kept, even if it alone exceeds the budget. Tool results are evicted together with the tool call before them,
+ * since the model rejects results without a call.
+ *
+ * With a {@link ChatMemoryCompressor}, the oldest messages are summarised in the background once the memory holds more than
+ * its threshold, and replaced with the summary when it is ready, if they are still the oldest messages by then.
+ *
+ * An idle memory can be {@link #pack(long) packed} into its {@link ChatMessageCodec} encoding, which takes a fraction
+ * of the heap of the message objects. It is decoded again the next time it is accessed.
+ *
+ * With a {@link ChatMemoryStoreService}, a loaded memory is read again from the store if another replica has continued
+ * the conversation since, so that this one does not answer from, or write back, an outdated conversation.
+ */
+class TokenWindowChatMemory implements ChatMemory {
+
+    private record Entry(ChatMessage message, int tokens) {}
+
+    private final String id;
+    private final int maxTokens;
+    private final TokenCountEstimator estimator;
+    private final ChatMemoryStore store;
+    private final ChatMemoryCompressor compressor;
+
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    private Entry system;
+    private int totalTokens;
+    private boolean loaded;
+    private boolean compressing;
+
+    /** the encoded messages, including the system message, and their token counts, while the memory is packed */
+    private byte[] packed;
+    private int[] packedTokens;
+    private long lastAccess = System.nanoTime();
+
+    /**
+     * @param store where the messages are loaded from, lazily on first access, and written to, may be null
+     * @param compressor which summarises older messages, may be null
+     */
+    TokenWindowChatMemory(String id, int maxTokens, TokenCountEstimator estimator, ChatMemoryStore store, ChatMemoryCompressor compressor) {
+        this.id = id;
+        this.maxTokens = maxTokens;
+        this.estimator = estimator;
+        this.store = store;
+        this.compressor = compressor;
+        this.loaded = store == null;
+    }
+
+    @Override
+    public Object id() {
+        return id;
+    }
+
+    @Override
+    public synchronized void add(ChatMessage message) {
+        load();
+        if (message instanceof SystemMessage) {
+            if (system != null && system.message().equals(message)) {
+                return;
+            }
+            if (system != null) {
+                totalTokens -= system.tokens();
+            }
+            system = entry(message);
+        } else {
+            entries.addLast(entry(message));
+        }
+        trim();
+        save();
+        compress();
+    }
+
+    @Override
+    public synchronized List<ChatMessage> messages() {
+        load();
+        return snapshot();
+    }
+
+    private List<ChatMessage> snapshot() {
+        List<ChatMessage> messages = new ArrayList<>(entries.size() + 1);
+        if (system != null) {
+            messages.add(system.message());
+        }
+        for (Entry entry : entries) {
+            messages.add(entry.message());
+        }
+        return messages;
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        system = null;
+        totalTokens = 0;
+        loaded = true;
+        packed = null;
+        packedTokens = null;
+        if (store != null) {
+            store.deleteMessages(id);
+        }
+    }
+
+    synchronized int tokens() {
+        load();
+        return totalTokens;
+    }
+
+    private Entry entry(ChatMessage message) {
+        var entry = new Entry(message, estimator.estimateTokenCountInMessage(message));
+        totalTokens += entry.tokens();
+        return entry;
+    }
+
+    private void trim() {
+        while (totalTokens > maxTokens && entries.size() > 1) {
+            totalTokens -= entries.removeFirst().tokens();
+            while (entries.size() > 1 && entries.peekFirst().message() instanceof ToolExecutionResultMessage) {
+                totalTokens -= entries.removeFirst().tokens();
+            }
+        }
+    }
+
+    private void compress() {
+        if (compressor == null || compressing || totalTokens <= compressor.thresholdTokens(maxTokens)) {
+            return;
+        }
+        // the oldest messages, leaving the newest ones within the retained tokens, and tool results with their call
+        int remaining = totalTokens - (system == null ? 0 : system.tokens());
+        int retain = compressor.retainTokens(maxTokens);
+        List<ChatMessage> older = new ArrayList<>();
+        var it = entries.iterator();
+        while (it.hasNext() && older.size() < entries.size() - 1) {
+            Entry entry = it.next();
+            if (remaining <= retain && !(entry.message() instanceof ToolExecutionResultMessage)) {
+                break;
+            }
+            older.add(entry.message());
+            remaining -= entry.tokens();
+        }
+        if (older.size() < 2) {
+            // summarising a single message would not save anything
+            return;
+        }
+        // set first, since a failing summary may call compressionDone as soon as this lock is released
+        compressing = true;
+        if (!compressor.submit(this, older)) {
+            compressing = false;
+        }
+    }
+
+    /**
+     * Replaces the given oldest messages with the summary, unless the memory changed in the meantime, such that they are no longer its oldest messages.
+     * @return true if the messages were replaced
+     */
+    synchronized boolean replace(List<ChatMessage> older, ChatMessage summary) {
+        if (entries.size() <= older.size()) {
+            return false;
+        }
+        var it = entries.iterator();
+        for (ChatMessage message : older) {
+            if (it.next().message() != message) {
+                return false;
+            }
+        }
+        for (int i = 0; i < older.size(); i++) {
+            totalTokens -= entries.removeFirst().tokens();
+        }
+        entries.addFirst(entry(summary));
+        save();
+        return true;
+    }
+
+    synchronized void compressionDone() {
+        compressing = false;
+    }
+
+    /**
+     * Replaces the message objects with their encoding, if the memory has not been accessed for the given time.
+     * @return true if the memory was packed
+     */
+    synchronized boolean pack(long idleNanos) {
+        if (packed != null || !loaded || compressing || (system == null && entries.isEmpty())
+                || System.nanoTime() - lastAccess < idleNanos) {
+            return false;
+        }
+        packedTokens = new int[entries.size() + (system == null ? 0 : 1)];
+        int i = 0;
+        if (system != null) {
+            packedTokens[i++] = system.tokens();
+        }
+        for (Entry entry : entries) {
+            packedTokens[i++] = entry.tokens();
+        }
+        packed = ChatMessageCodec.encode(snapshot());
+        system = null;
+        entries.clear();
+        return true;
+    }
+
+    synchronized boolean isPacked() {
+        return packed != null;
+    }
+
+    /** approximate heap usage, without loading or unpacking the messages */
+    synchronized long weightBytes() {
+        if (packed != null) {
+            return packed.length + 4L * packedTokens.length;
+        }
+        long bytes = system == null ? 0 : MyAiMemory.estimateBytes(system.message());
+        for (Entry entry : entries) {
+            bytes += MyAiMemory.estimateBytes(entry.message());
+        }
+        return bytes;
+    }
+
+    private void unpack() {
+        List<ChatMessage> messages = ChatMessageCodec.decode(packed);
+        for (int i = 0; i < messages.size(); i++) {
+            var entry = new Entry(messages.get(i), packedTokens[i]);
+            if (entry.message() instanceof SystemMessage) {
+                system = entry;
+            } else {
+                entries.addLast(entry);
+            }
+        }
+        packed = null;
+        packedTokens = null;
+    }
+
+    private void load() {
+        lastAccess = System.nanoTime();
+        if (loaded && store instanceof ChatMemoryStoreService service && !service.isCurrent(id)) {
+            entries.clear();
+            system = null;
+            totalTokens = 0;
+            packed = null;
+            packedTokens = null;
+            loaded = false;
+        }
+        if (packed != null) {
+            unpack();
+            return;
+        }
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        for (ChatMessage message : store.getMessages(id)) {
+            if (message instanceof SystemMessage) {
+                system = entry(message);
+            } else {
+                entries.addLast(entry(message));
+            }
+        }
+        // the budget may have been lowered since the messages were stored
+        trim();
+    }
+
+    private void save() {
+        if (store != null) {
+            store.updateMessages(id, snapshot());
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package dev.abstratium.abstrasst.service;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+
+import dev.abstratium.abstrasst.entity.LlmUsageRollup;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.event.Observes;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.Transactional;
+
+/**
+ * Token usage and cost of LLM calls, per session and model, and over time.
+ *
+ * Counters are {@link LongAdder}s, so that concurrent calls of the same session never lose an update and never
+ * contend on a lock. Costs are fixed point micro-dollars, computed once per call from the {@link LlmPricing}
+ * and added to the running totals, so recording a call does not depend on the number of models or calls so far.
+ *
+ * Sessions are forgotten once they have been idle for {@code usage.session-idle-expiry}. Every call is also added to
+ * per minute and per hour rollups, held in {@link UsageRing}s of a fixed size. Completed rollups are written to the
+ * database in batches by a scheduled flush, once {@code usage.rollup.grace} has passed after their end. What has not been
+ * written before, e.g. calls which arrived late or usage from before a restart, is added to the existing row.
+ */
+@ApplicationScoped
+public class UsageLedger {
+
+    private static final Logger log = Logger.getLogger(UsageLedger.class);
+
+    private static final AttributeKey<String> RESULT = AttributeKey.stringKey("result");
+
+    private static final long TOKENS_PER_MILLION = 1_000_000;
+
+    public enum Granularity {
+        MINUTE(Duration.ofMinutes(1)), HOUR(Duration.ofHours(1));
+
+        final Duration length;
+
+        Granularity(Duration length) {
+            this.length = length;
+        }
+
+        public Duration length() {
+            return length;
+        }
+    }
+
+    @ConfigProperty(name = "usage.max-sessions", defaultValue = "100000")
+    long maxSessions;
+
+    @ConfigProperty(name = "usage.session-idle-expiry", defaultValue = "30m")
+    Duration sessionIdleExpiry;
+
+    @ConfigProperty(name = "usage.rollup.minutes", defaultValue = "120")
+    int minutes;
+
+    @ConfigProperty(name = "usage.rollup.hours", defaultValue = "48")
+    int hours;
+
+    @ConfigProperty(name = "usage.rollup.grace", defaultValue = "10s")
+    Duration grace;
+
+    @ConfigProperty(name = "usage.rollup.batch-size", defaultValue = "100")
+    int batchSize;
+
+    @Inject
+    LlmPricing pricing;
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    Meter meter;
+
+    final LongAdder unpricedCalls = new LongAdder();
+    final LongAdder written = new LongAdder();
+    final LongAdder failed = new LongAdder();
+
+    LongSupplier clock = System::currentTimeMillis;
+    Ticker ticker = Ticker.systemTicker();
+
+    /** sessionId -> model -> usage */
+    private Cache<String, SessionUsage> sessions;
+
+    private final Map<Granularity, UsageRing> rings = new HashMap<>();
+
+    /** prices by model name as it appears in responses, resolved from the configured prefixes on first use */
+    private final ConcurrentMap<String, Price> prices = new ConcurrentHashMap<>();
+
+    private Map<String, Price> configuredPrices;
+
+    @PostConstruct
+    void init() {
+        // longest first, so that the most specific prefix wins
+        configuredPrices = new TreeMap<>(Comparator.comparingInt(String::length).reversed().thenComparing(Comparator.naturalOrder()));
+        pricing.models().forEach((model, price) -> configuredPrices.put(model, new Price(
+            microsPerMillion(price.input()),
+            microsPerMillion(price.cachedInput().orElse(price.input())),
+            microsPerMillion(price.output()))));
+
+        sessions = Caffeine.newBuilder()
+            .maximumSize(maxSessions)
+            .expireAfterAccess(sessionIdleExpiry)
+            .ticker(ticker)
+            .build();
+        rings.put(Granularity.MINUTE, new UsageRing(Granularity.MINUTE.length.toMillis(), minutes));
+        rings.put(Granularity.HOUR, new UsageRing(Granularity.HOUR.length.toMillis(), hours));
+
+        meter.counterBuilder("llm.unpriced_calls")
+            .setDescription("LLM calls to models without a configured price, which are accounted at no cost")
+            .buildWithCallback(m -> m.record(unpricedCalls.sum()));
+        meter.gaugeBuilder("llm.usage.sessions")
+            .setDescription("Sessions whose LLM usage is held in memory")
+            .ofLongs()
+            .buildWithCallback(m -> m.record(sessions.estimatedSize()));
+        meter.counterBuilder("llm.usage.rollup_writes")
+            .setDescription("LLM usage rollups written to the database, by result (ok, failed, dropped)")
+            .buildWithCallback(m -> {
+                m.record(written.sum(), Attributes.of(RESULT, "ok"));
+                m.record(failed.sum(), Attributes.of(RESULT, "failed"));
+                m.record(rings.values().stream().mapToLong(r -> r.dropped.sum()).sum(), Attributes.of(RESULT, "dropped"));
+            });
+    }
+
+    /**
+     * Adds the usage of one LLM call.
+     * @param inputTokens all input tokens, including the cached ones
+     * @return the cost of the call in micro-dollars
+     */
+    public long record(String sessionId, String model, long inputTokens, long cachedInputTokens, long outputTokens) {
+        Price price = prices.computeIfAbsent(model, this::resolve);
+        long cost = price.costMicros(inputTokens - cachedInputTokens, cachedInputTokens, outputTokens);
+        if (price == Price.UNKNOWN) {
+            unpricedCalls.increment();
+        }
+
+        SessionUsage session = sessions.get(sessionId, id -> new SessionUsage());
+        session.byModel.computeIfAbsent(model, m -> new UsageRing.Counts()).add(inputTokens, cachedInputTokens, outputTokens, cost);
+        session.costMicros.add(cost);
+
+        long now = clock.getAsLong();
+        for (UsageRing ring : rings.values()) {
+            ring.add(now, model, inputTokens, cachedInputTokens, outputTokens, cost);
+        }
+        return cost;
+    }
+
+    /** @return the total cost of the session so far, in micro-dollars, or zero if it has expired */
+    public long costMicros(String sessionId) {
+        SessionUsage session = sessions.getIfPresent(sessionId);
+        return session == null ? 0 : session.costMicros.sum();
+    }
+
+    /** @return a snapshot of the usage of the session, by model */
+    public Map<String, Usage> usage(String sessionId) {
+        SessionUsage session = sessions.getIfPresent(sessionId);
+        Map<String, Usage> usage = new TreeMap<>();
+        if (session != null) {
+            session.byModel.forEach((model, u) -> usage.put(model, u.snapshot(model)));
+        }
+        return usage;
+    }
+
+    /**
+     * The usage per model and minute or hour, from the database and from the rollups which have not been written yet.
+     * @return the rollups which start in the given range, ordered by start and model
+     */
+    @Transactional
+    public synchronized List<Rollup> rollups(Granularity granularity, Instant from, Instant to) {
+        Map<String, Rollup> rollups = new TreeMap<>();
+        em.createQuery("SELECT r FROM LlmUsageRollup r WHERE r.granularity = :granularity AND r.bucketStart >= :from AND r.bucketStart < :to", LlmUsageRollup.class)
+            .setParameter("granularity", granularity.name())
+            .setParameter("from", from)
+            .setParameter("to", to)
+            .getResultStream()
+            .forEach(r -> merge(rollups, new Rollup(r.getBucketStart(), r.getModel(), r.getCalls(), r.getInputTokens(),
+                r.getCachedInputTokens(), r.getOutputTokens(), r.getCostMicros())));
+        for (UsageRing.Bucket bucket : rings.get(granularity).dirty(Long.MAX_VALUE)) {
+            Instant start = Instant.ofEpochMilli(bucket.start);
+            if (!start.isBefore(from) && start.isBefore(to)) {
+                bucket.byModel.forEach((model, counts) -> merge(rollups, Rollup.of(start, counts.unwritten(counts.snapshot(model)))));
+            }
+        }
+        return new ArrayList<>(rollups.values());
+    }
+
+    private static void merge(Map<String, Rollup> rollups, Rollup rollup) {
+        rollups.merge(rollup.start() + " " + rollup.model(), rollup, Rollup::plus);
+    }
+
+    @Scheduled(every = "${usage.rollup.flush-interval:1m}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void scheduledFlush() {
+        flush(clock.getAsLong() - grace.toMillis());
+    }
+
+    void onStop(@Observes ShutdownEvent ev) {
+        // including the current minute and hour, whose rows are added to if the application starts again within them
+        flush(Long.MAX_VALUE);
+    }
+
+    /**
+     * Writes the unwritten usage of the rollups which ended before the given time, in batches of {@code usage.rollup.batch-size} rows.
+     * If a batch fails, its usage stays unwritten and is retried with the next flush, unless its slot is needed again by then.
+     */
+    synchronized void flush(long endedBeforeMillis) {
+        List<Runnable> onWritten = new ArrayList<>();
+        List<LlmUsageRollup> rows = new ArrayList<>();
+        for (var e : rings.entrySet()) {
+            for (UsageRing.Bucket bucket : e.getValue().dirty(endedBeforeMillis)) {
+                for (var c : bucket.byModel.entrySet()) {
+                    UsageRing.Counts counts = c.getValue();
+                    Usage snapshot = counts.snapshot(c.getKey());
+                    Usage unwritten = counts.unwritten(snapshot);
+                    if (unwritten.calls() == 0) {
+                        continue;
+                    }
+                    rows.add(row(e.getKey(), bucket.start, unwritten));
+                    onWritten.add(() -> counts.written(snapshot));
+                    if (rows.size() >= batchSize && !writeBatch(rows, onWritten)) {
+                        return;
+                    }
+                }
+            }
+        }
+        writeBatch(rows, onWritten);
+    }
+
+    private boolean writeBatch(List<LlmUsageRollup> rows, List<Runnable> onWritten) {
+        if (rows.isEmpty()) {
+            return true;
+        }
+        try {
+            write(rows);
+            written.add(rows.size());
+            onWritten.forEach(Runnable::run);
+            return true;
+        } catch (RuntimeException e) {
+            failed.add(rows.size());
+            log.warnf(e, "Failed to write %d LLM usage rollups, they will be retried with the next flush", rows.size());
+            return false;
+        } finally {
+            rows.clear();
+            onWritten.clear();
+        }
+    }
+
+    @Transactional
+    void write(List<LlmUsageRollup> rows) {
+        Set<Instant> starts = new HashSet<>();
+        rows.forEach(r -> starts.add(r.getBucketStart()));
+        Map<LlmUsageRollup.Key, LlmUsageRollup> existing = new HashMap<>();
+        em.createQuery("SELECT r FROM LlmUsageRollup r WHERE r.bucketStart IN :starts", LlmUsageRollup.class)
+            .setParameter("starts", starts)
+            .getResultStream()
+            .forEach(r -> existing.put(new LlmUsageRollup.Key(r.getGranularity(), r.getBucketStart(), r.getModel()), r));
+
+        for (LlmUsageRollup row : rows) {
+            var stored = existing.get(new LlmUsageRollup.Key(row.getGranularity(), row.getBucketStart(), row.getModel()));
+            if (stored == null) {
+                em.persist(row);
+            } else {
+                stored.setCalls(stored.getCalls() + row.getCalls());
+                stored.setInputTokens(stored.getInputTokens() + row.getInputTokens());
+                stored.setCachedInputTokens(stored.getCachedInputTokens() + row.getCachedInputTokens());
+                stored.setOutputTokens(stored.getOutputTokens() + row.getOutputTokens());
+                stored.setCostMicros(stored.getCostMicros() + row.getCostMicros());
+            }
+        }
+    }
+
+    private static LlmUsageRollup row(Granularity granularity, long start, Usage usage) {
+        var row = new LlmUsageRollup();
+        row.setGranularity(granularity.name());
+        row.setBucketStart(Instant.ofEpochMilli(start));
+        row.setModel(usage.model());
+        row.setCalls(usage.calls());
+        row.setInputTokens(usage.inputTokens());
+        row.setCachedInputTokens(usage.cachedInputTokens());
+        row.setOutputTokens(usage.outputTokens());
+        row.setCostMicros(usage.costMicros());
+        return row;
+    }
+
+    UsageRing ring(Granularity granularity) {
+        return rings.get(granularity);
+    }
+
+    /** forgets idle sessions now, rather than during later cache operations */
+    void cleanUp() {
+        sessions.cleanUp();
+    }
+
+    public static String formatDollars(long micros) {
+        return "$" + BigDecimal.valueOf(micros, 6).toPlainString();
+    }
+
+    private Price resolve(String model) {
+        for (var e : configuredPrices.entrySet()) {
+            if (model.startsWith(e.getKey())) {
+                return e.getValue();
+            }
+        }
+        log.warnf("No price is configured for model %s under llm.pricing.models, its calls are accounted at no cost", model);
+        return Price.UNKNOWN;
+    }
+
+    private static long microsPerMillion(BigDecimal dollarsPerMillion) {
+        return dollarsPerMillion.movePointRight(6).longValueExact();
+    }
+
+    public record Usage(String model, long calls, long inputTokens, long cachedInputTokens, long outputTokens, long costMicros) {}
+
+    public record Rollup(Instant start, String model, long calls, long inputTokens, long cachedInputTokens, long outputTokens, long costMicros) {
+
+        static Rollup of(Instant start, Usage usage) {
+            return new Rollup(start, usage.model(), usage.calls(), usage.inputTokens(), usage.cachedInputTokens(), usage.outputTokens(), usage.costMicros());
+        }
+
+        Rollup plus(Rollup other) {
+            return new Rollup(start, model, calls + other.calls, inputTokens + other.inputTokens, cachedInputTokens + other.cachedInputTokens,
+                outputTokens + other.outputTokens, costMicros + other.costMicros);
+        }
+    }
+
+    /** micro-dollars per million tokens, so that prices like $0.025 per million are exact */
+    record Price(long inputMicrosPerMillion, long cachedInputMicrosPerMillion, long outputMicrosPerMillion) {
+
+        static final Price UNKNOWN = new Price(0, 0, 0);
+
+        /** rounded half up once per call, so the error is below half a micro-dollar per call */
+        long costMicros(long uncachedInputTokens, long cachedInputTokens, long outputTokens) {
+            long scaled = uncachedInputTokens * inputMicrosPerMillion
+                + cachedInputTokens * cachedInputMicrosPerMillion
+                + outputTokens * outputMicrosPerMillion;
+            return (scaled + TOKENS_PER_MILLION / 2) / TOKENS_PER_MILLION;
+        }
+    }
+
+    private static final class SessionUsage {
+        final ConcurrentMap<String, UsageRing.Counts> byModel = new ConcurrentHashMap<>(4);
+        final LongAdder costMicros = new LongAdder();
+    }
+}
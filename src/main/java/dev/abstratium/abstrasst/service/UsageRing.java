@@ -0,0 +1,135 @@
+package dev.abstratium.abstrasst.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Usage by model in fixed size time buckets, e.g. the last 120 minutes, held in a ring buffer.
+ *
+ * The slot of a bucket is its start divided by its length, modulo the number of slots, so the ring never grows and
+ * finding the current bucket needs no lock. The first call of a new period replaces the bucket which used the slot
+ * a full ring ago; its usage must have been written by then, otherwise it is dropped and counted.
+ *
+ * Each counter remembers how much of it has been written, so that calls which arrive after their bucket was written
+ * are written with the next flush, as a difference.
+ */
+final class UsageRing {
+
+    private final long bucketMillis;
+    private final AtomicReferenceArray<Bucket> slots;
+
+    final LongAdder dropped = new LongAdder();
+
+    UsageRing(long bucketMillis, int size) {
+        this.bucketMillis = bucketMillis;
+        this.slots = new AtomicReferenceArray<>(size);
+    }
+
+    long bucketMillis() {
+        return bucketMillis;
+    }
+
+    void add(long nowMillis, String model, long input, long cachedInput, long output, long costMicros) {
+        Bucket bucket = bucket(nowMillis);
+        if (bucket != null) {
+            bucket.byModel.computeIfAbsent(model, m -> new Counts()).add(input, cachedInput, output, costMicros);
+        }
+    }
+
+    /** @return the bucket of the given time, or null if its slot already holds a newer bucket, after the clock went back */
+    private Bucket bucket(long nowMillis) {
+        long start = nowMillis - Math.floorMod(nowMillis, bucketMillis);
+        int slot = (int) Math.floorMod(start / bucketMillis, (long) slots.length());
+        while (true) {
+            Bucket bucket = slots.get(slot);
+            if (bucket != null && bucket.start >= start) {
+                return bucket.start == start ? bucket : null;
+            }
+            Bucket fresh = new Bucket(start);
+            if (slots.compareAndSet(slot, bucket, fresh)) {
+                if (bucket != null && bucket.dirty()) {
+                    dropped.increment();
+                }
+                return fresh;
+            }
+        }
+    }
+
+    /** @return the buckets with usage which has not been written yet, and which ended at or before the given time, oldest first */
+    List<Bucket> dirty(long endedBeforeMillis) {
+        List<Bucket> buckets = new ArrayList<>();
+        for (int i = 0; i < slots.length(); i++) {
+            Bucket bucket = slots.get(i);
+            if (bucket != null && bucket.start + bucketMillis <= endedBeforeMillis && bucket.dirty()) {
+                buckets.add(bucket);
+            }
+        }
+        buckets.sort((a, b) -> Long.compare(a.start, b.start));
+        return buckets;
+    }
+
+    static final class Bucket {
+        final long start;
+        final ConcurrentMap<String, Counts> byModel = new ConcurrentHashMap<>(4);
+
+        Bucket(long start) {
+            this.start = start;
+        }
+
+        boolean dirty() {
+            for (Counts counts : byModel.values()) {
+                if (counts.dirty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static final class Counts {
+        final LongAdder calls = new LongAdder();
+        final LongAdder inputTokens = new LongAdder();
+        final LongAdder cachedInputTokens = new LongAdder();
+        final LongAdder outputTokens = new LongAdder();
+        final LongAdder costMicros = new LongAdder();
+
+        /** the number of calls which have been written */
+        private volatile long writtenCalls;
+        private UsageLedger.Usage written;
+
+        void add(long input, long cachedInput, long output, long cost) {
+            calls.increment();
+            inputTokens.add(input);
+            cachedInputTokens.add(cachedInput);
+            outputTokens.add(output);
+            costMicros.add(cost);
+        }
+
+        UsageLedger.Usage snapshot(String model) {
+            return new UsageLedger.Usage(model, calls.sum(), inputTokens.sum(), cachedInputTokens.sum(), outputTokens.sum(), costMicros.sum());
+        }
+
+        boolean dirty() {
+            return calls.sum() != writtenCalls;
+        }
+
+        /** @return the usage since the last {@link #written(UsageLedger.Usage)}, given a current snapshot */
+        UsageLedger.Usage unwritten(UsageLedger.Usage snapshot) {
+            if (written == null) {
+                return snapshot;
+            }
+            return new UsageLedger.Usage(snapshot.model(), snapshot.calls() - written.calls(), snapshot.inputTokens() - written.inputTokens(),
+                snapshot.cachedInputTokens() - written.cachedInputTokens(), snapshot.outputTokens() - written.outputTokens(),
+                snapshot.costMicros() - written.costMicros());
+        }
+
+        void written(UsageLedger.Usage snapshot) {
+            written = snapshot;
+            writtenCalls = snapshot.calls();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package dev.abstratium.abstrasst.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import dev.abstratium.abstrasst.entity.WorkflowCheckpoint;
+import dev.langchain4j.agentic.scope.AgenticScope;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import io.quarkus.arc.Arc;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.Transactional;
+
+/**
+ * Checkpoints of workflow runs, so that a retry of a run which failed part way does not pay again for the agents which succeeded.
+ *
+ * After an agent completes, its output is written under the run id and its output key, before the run goes on.
+ * Only the outputs are stored rather than the whole agentic scope, since the inputs of the run come with the retry.
+ * When a run with the same id is started again, an agent whose output has a checkpoint finds it in the scope and is skipped.
+ * Checkpoints are deleted {@code retention} after they were written, whether the run completed or not.
+ */
+@ApplicationScoped
+public class WorkflowCheckpoints {
+
+    private static final Logger log = Logger.getLogger(WorkflowCheckpoints.class);
+
+    private static final AttributeKey<String> RESULT = AttributeKey.stringKey("result");
+
+    /** the state in which declarative workflows hold the id of their run */
+    public static final String RUN_ID = "SESSION_ID";
+
+    @ConfigProperty(name = "workflow.checkpoint.retention", defaultValue = "24h")
+    Duration retention;
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    Meter meter;
+
+    final LongAdder saved = new LongAdder();
+    final LongAdder restored = new LongAdder();
+    final LongAdder failed = new LongAdder();
+
+    @PostConstruct
+    void init() {
+        meter.counterBuilder("workflow.checkpoints")
+            .setDescription("Outputs of workflow agents which were checkpointed, restored on a retry, or could not be checkpointed")
+            .buildWithCallback(m -> {
+                m.record(saved.sum(), Attributes.of(RESULT, "saved"));
+                m.record(restored.sum(), Attributes.of(RESULT, "restored"));
+                m.record(failed.sum(), Attributes.of(RESULT, "failed"));
+            });
+    }
+
+    // agents are declared as interfaces, whose static hooks cannot have anything injected.
+    // they look up the application scoped bean instead
+    static WorkflowCheckpoints current() {
+        return Arc.container().instance(WorkflowCheckpoints.class).get();
+    }
+
+    /**
+     * The id under which the run with an id chosen by a client is checkpointed. It is scoped to the user, so that a user
+     * cannot resume the run of another and read its outputs, and to the topic, so that a run on another topic starts afresh.
+     */
+    public static String runId(String user, String runId, String topic) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(user.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(runId.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            return HexFormat.of().formatHex(digest.digest(topic.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * For the activation condition of an agent: copies the checkpointed output of the agent into the scope.
+     * @return true if the agent must run, because its output has no checkpoint
+     */
+    public static boolean mustRun(AgenticScope scope, String outputKey) {
+        if (scope.hasState(outputKey)) {
+            return false;
+        }
+        Object runId = scope.readState(RUN_ID);
+        if (runId == null) {
+            return true;
+        }
+        var checkpoints = current();
+        String output = checkpoints.find(runId.toString(), outputKey);
+        if (output == null) {
+            return true;
+        }
+        checkpoints.restored.increment();
+        scope.writeState(outputKey, output);
+        return false;
+    }
+
+    /**
+     * For the hook after an agent: checkpoints its output. A checkpoint which cannot be written only costs the call on a retry,
+     * so it does not fail the run.
+     */
+    public static void checkpoint(AgenticScope scope, String outputKey, Object output) {
+        Object runId = scope.readState(RUN_ID);
+        if (runId == null || output == null) {
+            return;
+        }
+        var checkpoints = current();
+        try {
+            checkpoints.save(runId.toString(), outputKey, output.toString());
+        } catch (RuntimeException e) {
+            checkpoints.failed.increment();
+            log.warnf(e, "Failed to checkpoint %s of workflow run %s", outputKey, runId);
+        }
+    }
+
+    /** @return the checkpointed output of the run, or null */
+    @Transactional
+    public String find(String runId, String outputKey) {
+        var checkpoint = em.find(WorkflowCheckpoint.class, new WorkflowCheckpoint.Key(runId, outputKey));
+        return checkpoint != null ? checkpoint.getOutput() : null;
+    }
+
+    /** writes the output, unless the run already has one for the key, e.g. because two retries ran at the same time */
+    @Transactional
+    public void save(String runId, String outputKey, String output) {
+        if (find(runId, outputKey) != null) {
+            return;
+        }
+        var checkpoint = new WorkflowCheckpoint();
+        checkpoint.setRunId(runId);
+        checkpoint.setOutputKey(outputKey);
+        checkpoint.setOutput(output);
+        checkpoint.setCreatedAt(Instant.now());
+        em.persist(checkpoint);
+        saved.increment();
+    }
+
+    @Scheduled(every = "${workflow.checkpoint.purge-interval:1h}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void scheduledPurge() {
+        purge(Instant.now().minus(retention));
+    }
+
+    @Transactional
+    void purge(Instant before) {
+        int deleted = em.createQuery("DELETE FROM WorkflowCheckpoint c WHERE c.createdAt < :before")
+            .setParameter("before", before)
+            .executeUpdate();
+        if (deleted > 0) {
+            log.debugf("Deleted %d workflow checkpoints older than %s", deleted, retention);
+        }
+    }
+}
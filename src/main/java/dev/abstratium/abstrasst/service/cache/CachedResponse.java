@@ -0,0 +1,37 @@
+package dev.abstratium.abstrasst.service.cache;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import jakarta.enterprise.util.Nonbinding;
+import jakarta.interceptor.InterceptorBinding;
+
+/**
+ * Marks an AI service method whose responses may be served from the {@link ResponseCache}.
+ *
+ * The cache key is the model name from {@code @RegisterAiService} plus the rendered system and user messages,
+ * so the method must not depend on anything else, e.g. tools or retrieval, for its answer to be correct.
+ * Supported return types are {@code String} and {@code Multi<String>}.
+ *
+ * With {@code semantic = true}, a miss in the exact cache is also looked up in the {@link SemanticCache},
+ * if that is enabled. That only applies to methods returning {@code String}.
+ * For methods with chat memory, the memory id is part of the key of either cache, and only methods returning
+ * {@code String} are cached. A hit is then only found among the earlier answers of the same conversation, and is
+ * added to its memory, but the answer was written for the conversation as it was back then.
+ */
+@InterceptorBinding
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface CachedResponse {
+
+    /** whether identical prompts may be answered from the exact cache */
+    @Nonbinding
+    boolean exact() default true;
+
+    /** whether paraphrases of earlier user messages may be answered from the semantic cache */
+    @Nonbinding
+    boolean semantic() default false;
+
+}
@@ -0,0 +1,98 @@
+package dev.abstratium.abstrasst.service.cache;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import dev.abstratium.abstrasst.service.AiServiceMethods;
+import dev.langchain4j.service.SystemMessage;
+import dev.langchain4j.service.UserMessage;
+import dev.langchain4j.service.V;
+import io.quarkiverse.langchain4j.RegisterAiService;
+
+/**
+ * The model name and the system and user messages that an AI service method sends for a given set of arguments.
+ *
+ * Templates are rendered by replacing {@code {name}} placeholders with the argument bound to that name, either via
+ * {@link V} or via the parameter name. That is a simplification of the Qute rendering that quarkus-langchain4j does,
+ * but it is deterministic and good enough to identify identical prompts, which is all it is used for.
+ */
+public record RenderedPrompt(String model, String systemMessage, String userMessage) {
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{\\s*([\\w.]+)\\s*\\}");
+
+    private static final ConcurrentMap<Method, Shape> SHAPES = new ConcurrentHashMap<>();
+
+    /**
+     * @param method the intercepted method, either the AI service interface method or its generated implementation
+     * @param args the arguments of the invocation
+     */
+    public static RenderedPrompt of(Method method, Object[] args) {
+        Shape shape = SHAPES.computeIfAbsent(method, Shape::of);
+        Map<String, Object> variables = new HashMap<>();
+        for (int i = 0; i < shape.variableNames.length; i++) {
+            if (shape.variableNames[i] != null) {
+                variables.put(shape.variableNames[i], args[i]);
+            }
+        }
+        String system = render(shape.systemTemplate, variables);
+        String user = shape.userMessageParameter >= 0
+                ? String.valueOf(args[shape.userMessageParameter])
+                : render(shape.userTemplate, variables);
+        return new RenderedPrompt(shape.model, system, user);
+    }
+
+    private static String render(String template, Map<String, Object> variables) {
+        if (template == null) {
+            return "";
+        }
+        Matcher m = PLACEHOLDER.matcher(template);
+        StringBuilder sb = new StringBuilder(template.length() + 64);
+        while (m.find()) {
+            String name = m.group(1);
+            String replacement = variables.containsKey(name) ? String.valueOf(variables.get(name)) : m.group();
+            m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    /** what we learn from the annotations of a method, computed once per method */
+    private record Shape(String model, String systemTemplate, String userTemplate, int userMessageParameter, String[] variableNames) {
+
+        static Shape of(Method method) {
+            Method declared = AiServiceMethods.interfaceMethod(method);
+            RegisterAiService service = declared.getDeclaringClass().getAnnotation(RegisterAiService.class);
+            String model = service == null ? "" : service.modelName();
+
+            SystemMessage system = declared.getAnnotation(SystemMessage.class);
+            UserMessage user = declared.getAnnotation(UserMessage.class);
+
+            Parameter[] parameters = declared.getParameters();
+            String[] names = new String[parameters.length];
+            int userMessageParameter = -1;
+            for (int i = 0; i < parameters.length; i++) {
+                V v = parameters[i].getAnnotation(V.class);
+                if (parameters[i].isAnnotationPresent(UserMessage.class)) {
+                    userMessageParameter = i;
+                }
+                if (v != null) {
+                    names[i] = v.value();
+                } else if (parameters[i].isNamePresent()) {
+                    names[i] = parameters[i].getName();
+                }
+            }
+            return new Shape(
+                model,
+                system == null ? null : String.join(system.delimiter(), system.value()),
+                user == null ? null : String.join(user.delimiter(), user.value()),
+                userMessageParameter,
+                names);
+        }
+    }
+}
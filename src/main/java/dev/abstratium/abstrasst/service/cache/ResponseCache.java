@@ -0,0 +1,130 @@
+package dev.abstratium.abstrasst.service.cache;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import io.smallrye.mutiny.Multi;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Bounded, TTL based cache of LLM responses, keyed by {@link RenderedPrompt}, and by the memory id of methods with chat memory.
+ *
+ * Entries are futures, so that a request which arrives while an identical one is still waiting for the LLM
+ * simply waits for that same future instead of calling the LLM a second time, see {@link SingleFlight}.
+ * Failed calls are removed from the cache so that the next caller tries again.
+ */
+@ApplicationScoped
+public class ResponseCache {
+
+    private static final Logger log = Logger.getLogger(ResponseCache.class);
+
+    private static final AttributeKey<String> RESULT = AttributeKey.stringKey("result");
+
+    @ConfigProperty(name = "llm.response-cache.enabled", defaultValue = "true")
+    boolean enabled;
+
+    @ConfigProperty(name = "llm.response-cache.max-entries", defaultValue = "1000")
+    long maxEntries;
+
+    @ConfigProperty(name = "llm.response-cache.ttl", defaultValue = "1h")
+    Duration ttl;
+
+    @Inject
+    Meter meter;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder coalesced = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+
+    /** @param memoryId null for methods without chat memory */
+    private record Key(RenderedPrompt prompt, Object memoryId) {}
+
+    private AsyncCache<Key, String> cache;
+
+    private SingleFlight<Key, String> flights;
+
+    @PostConstruct
+    void init() {
+        cache = Caffeine.newBuilder()
+            .maximumSize(maxEntries)
+            .expireAfterWrite(ttl)
+            .evictionListener((Key key, String value, RemovalCause cause) -> evictions.increment())
+            .buildAsync();
+        flights = new SingleFlight<>(cache.asMap());
+
+        meter.counterBuilder("llm.response_cache.lookups")
+            .setDescription("Lookups in the LLM response cache, by result (hit, miss, coalesced)")
+            .buildWithCallback(m -> {
+                m.record(hits.sum(), Attributes.of(RESULT, "hit"));
+                m.record(misses.sum(), Attributes.of(RESULT, "miss"));
+                m.record(coalesced.sum(), Attributes.of(RESULT, "coalesced"));
+            });
+        meter.counterBuilder("llm.response_cache.evictions")
+            .setDescription("Entries removed from the LLM response cache because of size or TTL")
+            .buildWithCallback(m -> m.record(evictions.sum()));
+        meter.gaugeBuilder("llm.response_cache.size")
+            .setDescription("Approximate number of entries in the LLM response cache")
+            .ofLongs()
+            .buildWithCallback(m -> m.record(cache.synchronous().estimatedSize()));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the cached response for the prompt, waits for an identical call that is in flight,
+     * or calls upstream and caches its result.
+     */
+    public String get(RenderedPrompt prompt, Callable<String> upstream) throws Exception {
+        return get(prompt, null, upstream);
+    }
+
+    /**
+     * Like {@link #get(RenderedPrompt, Callable)}, but only shares responses between calls with the same memory id,
+     * i.e. within a conversation.
+     */
+    public String get(RenderedPrompt prompt, Object memoryId, Callable<String> upstream) throws Exception {
+        return flights.get(new Key(prompt, memoryId), () -> {
+            misses.increment();
+            return upstream.call();
+        }, this::count);
+    }
+
+    /**
+     * Streaming variant of {@link #get(RenderedPrompt, Callable)}. The first caller streams from upstream as usual,
+     * and the concatenated stream is cached once it completes. Cache hits and callers that arrive while the first
+     * stream is still running receive the whole response as a single item.
+     */
+    public Multi<String> getStream(RenderedPrompt prompt, Supplier<Multi<String>> upstream) {
+        return flights.stream(new Key(prompt, null), () -> {
+            misses.increment();
+            return upstream.get();
+        }, tokens -> String.join("", tokens), text -> Multi.createFrom().item(text), this::count);
+    }
+
+    private void count(CompletableFuture<String> existing) {
+        if (existing.isDone()) {
+            hits.increment();
+        } else {
+            coalesced.increment();
+            log.debug("Coalescing identical in-flight LLM request");
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package dev.abstratium.abstrasst.service.cache;
+
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import dev.abstratium.abstrasst.service.AiServiceMethods;
+import dev.abstratium.abstrasst.service.concurrency.MemoryIdLocks;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.memory.ChatMemory;
+import dev.langchain4j.memory.chat.ChatMemoryProvider;
+import dev.langchain4j.service.MemoryId;
+import io.smallrye.mutiny.Multi;
+import jakarta.annotation.Priority;
+import jakarta.inject.Inject;
+import jakarta.interceptor.AroundInvoke;
+import jakarta.interceptor.Interceptor;
+import jakarta.interceptor.InvocationContext;
+
+/**
+ * Serves methods annotated with {@link CachedResponse} from the {@link ResponseCache}.
+ *
+ * Runs before the other LLM related interceptors, so that a cache hit does not wait for, or use up, any LLM capacity.
+ * A hit of a method with chat memory, exact or semantic, is only looked up in the same conversation, and is added to that
+ * conversation's memory, as the AI service would have done with the answer of the LLM. Streaming methods with chat memory
+ * are not cached.
+ */
+@CachedResponse
+@Interceptor
+@Priority(Interceptor.Priority.APPLICATION)
+public class ResponseCacheInterceptor {
+
+    @Inject
+    ResponseCache cache;
+
+    @Inject
+    SemanticCache semanticCache;
+
+    @Inject
+    MemoryIdLocks locks;
+
+    private static final ConcurrentMap<Method, Integer> MEMORY_ID_PARAMETERS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Method, Optional<ChatMemoryProvider>> MEMORY_PROVIDERS = new ConcurrentHashMap<>();
+
+    @AroundInvoke
+    @SuppressWarnings("unchecked")
+    Object cached(InvocationContext ctx) throws Exception {
+        CachedResponse binding = binding(ctx);
+        Class<?> returnType = ctx.getMethod().getReturnType();
+        int memoryIdIndex = MEMORY_ID_PARAMETERS.computeIfAbsent(ctx.getMethod(), m -> AiServiceMethods.parameterIndex(m, MemoryId.class));
+        Object memoryId = memoryIdIndex < 0 ? null : ctx.getParameters()[memoryIdIndex];
+        boolean exact = cache.isEnabled() && binding.exact()
+            && (returnType == String.class || returnType == Multi.class && memoryIdIndex < 0);
+        boolean semantic = semanticCache.isEnabled() && binding.semantic() && returnType == String.class;
+        if (!exact && !semantic) {
+            return ctx.proceed();
+        }
+
+        RenderedPrompt prompt = RenderedPrompt.of(ctx.getMethod(), ctx.getParameters());
+        if (returnType == Multi.class) {
+            return cache.getStream(prompt, () -> {
+                try {
+                    return (Multi<String>) ctx.proceed();
+                } catch (Exception e) {
+                    return Multi.createFrom().failure(e);
+                }
+            });
+        }
+        if (!exact) {
+            return semanticOrProceed(ctx, prompt, memoryId);
+        }
+        var upstream = new AtomicBoolean();
+        String response = cache.get(prompt, memoryId, () -> {
+            upstream.set(true);
+            return semantic ? semanticOrProceed(ctx, prompt, memoryId) : (String) ctx.proceed();
+        });
+        if (!upstream.get()) {
+            remember(ctx, memoryId, prompt, response);
+        }
+        return response;
+    }
+
+    private String semanticOrProceed(InvocationContext ctx, RenderedPrompt prompt, Object memoryId) throws Exception {
+        var probe = semanticCache.lookup(prompt, memoryId);
+        if (probe.isHit()) {
+            remember(ctx, memoryId, prompt, probe.answer());
+            return probe.answer();
+        }
+        String response = (String) ctx.proceed();
+        semanticCache.store(probe, response);
+        return response;
+    }
+
+    /** adds a turn which was answered from a cache to the memory of the conversation, if the method has one */
+    private void remember(InvocationContext ctx, Object memoryId, RenderedPrompt prompt, String answer) throws InterruptedException {
+        var provider = MEMORY_PROVIDERS.computeIfAbsent(ctx.getMethod(), m -> Optional.ofNullable(AiServiceMethods.chatMemoryProvider(m)));
+        if (memoryId != null && provider.isPresent()) {
+            // serialised with the turns of the conversation, so that no other turn ends up between the question and its answer
+            try (var permit = locks.acquire(memoryId.toString())) {
+                remember(provider.get().get(memoryId), prompt, answer);
+            }
+        }
+    }
+
+    /** adds the turn to the memory, the way the AI service adds a turn that was answered by the LLM */
+    static void remember(ChatMemory memory, RenderedPrompt prompt, String answer) {
+        if (!prompt.systemMessage().isEmpty()) {
+            memory.add(SystemMessage.from(prompt.systemMessage()));
+        }
+        memory.add(UserMessage.from(prompt.userMessage()));
+        memory.add(AiMessage.from(answer));
+    }
+
+    private static CachedResponse binding(InvocationContext ctx) {
+        var bindings = ctx.getInterceptorBindings(CachedResponse.class);
+        if (bindings.isEmpty()) {
+            throw new IllegalStateException("Missing @CachedResponse on " + ctx.getMethod());
+        }
+        return bindings.iterator().next();
+    }
+}
@@ -0,0 +1,147 @@
+package dev.abstratium.abstrasst.service.cache;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Instance;
+import jakarta.inject.Inject;
+
+/**
+ * Optional second cache tier behind the {@link ResponseCache}, which also answers paraphrases of earlier questions.
+ *
+ * The user message is embedded and looked up in an in-process {@link VectorIndex}. Only entries with the same model,
+ * the same rendered system message and the same memory id are candidates, and only if their cosine similarity reaches
+ * the configured threshold. The memory id keeps the answers of one conversation, which may draw on that conversation,
+ * from being served to another. The index holds at most {@code llm.semantic-cache.max-entries} entries and evicts the oldest first.
+ */
+@ApplicationScoped
+public class SemanticCache {
+
+    private static final Logger log = Logger.getLogger(SemanticCache.class);
+
+    private static final AttributeKey<String> RESULT = AttributeKey.stringKey("result");
+
+    /** so that the hyperplanes, and with them the buckets, are the same after every restart */
+    private static final long LSH_SEED = 0x5eed_ab57_2a55_1571L;
+
+    @ConfigProperty(name = "llm.semantic-cache.enabled", defaultValue = "false")
+    boolean enabled;
+
+    @ConfigProperty(name = "llm.semantic-cache.similarity-threshold", defaultValue = "0.92")
+    double threshold;
+
+    @ConfigProperty(name = "llm.semantic-cache.max-entries", defaultValue = "2048")
+    int maxEntries;
+
+    @ConfigProperty(name = "llm.semantic-cache.lsh-bits", defaultValue = "10")
+    int lshBits;
+
+    @ConfigProperty(name = "llm.semantic-cache.ttl", defaultValue = "1h")
+    Duration ttl;
+
+    @Inject
+    Instance<EmbeddingModel> embeddingModel;
+
+    @Inject
+    Meter meter;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+
+    /** created with the first embedding, since that is when we learn the dimension */
+    private volatile VectorIndex<String> index;
+
+    @PostConstruct
+    void init() {
+        meter.counterBuilder("llm.semantic_cache.lookups")
+            .setDescription("Lookups in the semantic LLM response cache, by result (hit, miss)")
+            .buildWithCallback(m -> {
+                m.record(hits.sum(), Attributes.of(RESULT, "hit"));
+                m.record(misses.sum(), Attributes.of(RESULT, "miss"));
+            });
+        meter.gaugeBuilder("llm.semantic_cache.size")
+            .setDescription("Number of entries in the semantic LLM response cache")
+            .ofLongs()
+            .buildWithCallback(m -> {
+                var i = index;
+                m.record(i == null ? 0 : i.size());
+            });
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Embeds the user message and looks for a similar earlier one, in the same conversation if there is a memory id.
+     * The returned probe carries the embedding, so that {@link #store(Probe, String)} does not need to embed again.
+     * @param memoryId the memory id of the invocation, or null if the method has no chat memory
+     */
+    public Probe lookup(RenderedPrompt prompt, Object memoryId) {
+        float[] vector = embed(prompt.userMessage());
+        long partition = partition(prompt, memoryId);
+        VectorIndex<String> i = indexFor(vector.length);
+        String answer = i.nearest(vector, partition, System.currentTimeMillis() - ttl.toMillis(), threshold);
+        if (answer != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return new Probe(vector, partition, answer);
+    }
+
+    public void store(Probe probe, String response) {
+        if (response == null) {
+            return;
+        }
+        indexFor(probe.vector.length).add(probe.vector, probe.partition, System.currentTimeMillis(), response);
+    }
+
+    float[] embed(String text) {
+        return embeddingModel.get().embed(text).content().vector();
+    }
+
+    private VectorIndex<String> indexFor(int dimension) {
+        var i = index;
+        if (i == null || i.dimension() != dimension) {
+            synchronized (this) {
+                i = index;
+                if (i == null || i.dimension() != dimension) {
+                    if (i != null) {
+                        log.warnf("Embedding dimension changed from %d to %d, clearing the semantic cache", i.dimension(), dimension);
+                    }
+                    i = new VectorIndex<>(maxEntries, dimension, lshBits, LSH_SEED);
+                    index = i;
+                }
+            }
+        }
+        return i;
+    }
+
+    /** FNV-1a over the model, system message and memory id, since only answers to the same instructions and conversation are interchangeable */
+    static long partition(RenderedPrompt prompt, Object memoryId) {
+        long hash = 0xcbf29ce484222325L;
+        String s = prompt.model() + '\u0000' + prompt.systemMessage() + (memoryId == null ? "" : '\u0000' + memoryId.toString());
+        for (int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /** the result of a lookup, {@code answer} is null on a miss */
+    public record Probe(float[] vector, long partition, String answer) {
+        public boolean isHit() {
+            return answer != null;
+        }
+    }
+}
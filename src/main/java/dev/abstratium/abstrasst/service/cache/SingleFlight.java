@@ -0,0 +1,156 @@
+package dev.abstratium.abstrasst.service.cache;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import io.smallrye.mutiny.Multi;
+
+/**
+ * Single-flight calls over a map of futures, such as the map view of a Caffeine cache.
+ *
+ * The first call with a key puts its future under the key and calls upstream. Calls which arrive while it runs wait for
+ * that future instead of calling upstream a second time, and later calls get its result until the map evicts it.
+ * A failed call is removed, so that the next call with the key tries again, and the calls which waited for it fail with it.
+ * A cancelled call, i.e. an interrupted one or a stream whose subscriber went away, is removed as well, but the calls
+ * which waited for it call upstream themselves, rather than failing because another caller went away.
+ */
+public final class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> flights;
+
+    public SingleFlight(ConcurrentMap<K, CompletableFuture<V>> flights) {
+        this.flights = flights;
+    }
+
+    /**
+     * @see #get(Object, Supplier, Callable, Consumer)
+     */
+    public V get(K key, Callable<V> call, Consumer<CompletableFuture<V>> joined) throws Exception {
+        return get(key, CompletableFuture::new, call, joined);
+    }
+
+    /**
+     * Returns the result of the call with the key which is done or in flight, or calls upstream.
+     * @param flight creates the future of a call which is the first with its key
+     * @param call only called by the first call with the key
+     * @param joined is given the future of an earlier call with the key before this one waits for it, and may reject it by throwing
+     */
+    public V get(K key, Supplier<? extends CompletableFuture<V>> flight, Callable<V> call, Consumer<CompletableFuture<V>> joined)
+            throws Exception {
+        while (true) {
+            CompletableFuture<V> own = flight.get();
+            CompletableFuture<V> existing = flights.putIfAbsent(key, own);
+            if (existing != null) {
+                joined.accept(existing);
+                try {
+                    return await(existing);
+                } catch (CancellationException e) {
+                    continue;
+                }
+            }
+            try {
+                V value = call.call();
+                own.complete(value);
+                return value;
+            } catch (Exception | Error e) {
+                flights.remove(key, own);
+                if (interrupted(e)) {
+                    own.cancel(false);
+                } else {
+                    own.completeExceptionally(e);
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @see #stream(Object, Supplier, Supplier, Function, Function, Consumer)
+     */
+    public <T> Multi<T> stream(K key, Supplier<Multi<T>> call, Function<List<T>, V> collect, Function<V, Multi<T>> replay,
+            Consumer<CompletableFuture<V>> joined) {
+        return stream(key, CompletableFuture::new, call, collect, replay, joined);
+    }
+
+    /**
+     * Streaming variant of {@link #get(Object, Supplier, Callable, Consumer)}. The first call streams from upstream as usual,
+     * and its items are collected into its result once the stream completes. The calls which join it get the result
+     * replayed once it is there. A stream only takes part once it is subscribed to, so that one which never is does not
+     * keep the key.
+     * @param collect makes the result of the items of a completed stream
+     * @param replay makes the items of the stream of a call which joins
+     */
+    public <T> Multi<T> stream(K key, Supplier<? extends CompletableFuture<V>> flight, Supplier<Multi<T>> call,
+            Function<List<T>, V> collect, Function<V, Multi<T>> replay, Consumer<CompletableFuture<V>> joined) {
+        return Multi.createFrom().deferred(() -> subscribe(key, flight, call, collect, replay, joined));
+    }
+
+    private <T> Multi<T> subscribe(K key, Supplier<? extends CompletableFuture<V>> flight, Supplier<Multi<T>> call,
+            Function<List<T>, V> collect, Function<V, Multi<T>> replay, Consumer<CompletableFuture<V>> joined) {
+        CompletableFuture<V> own = flight.get();
+        CompletableFuture<V> existing = flights.putIfAbsent(key, own);
+        if (existing != null) {
+            joined.accept(existing);
+            return Multi.createFrom().completionStage(existing)
+                .onItem().transformToMultiAndConcatenate(replay)
+                .onFailure(CancellationException.class).recoverWithMulti(() -> stream(key, flight, call, collect, replay, joined));
+        }
+        List<T> items = new ArrayList<>();
+        return call.get()
+            .onItem().invoke(item -> {
+                synchronized (items) {
+                    items.add(item);
+                }
+            })
+            .onCompletion().invoke(() -> {
+                synchronized (items) {
+                    own.complete(collect.apply(items));
+                }
+            })
+            .onFailure().invoke(t -> {
+                flights.remove(key, own);
+                own.completeExceptionally(t);
+            })
+            .onCancellation().invoke(() -> {
+                // an incomplete stream must not be replayed, and the calls which wait for it must not hang
+                flights.remove(key, own);
+                own.cancel(false);
+            });
+    }
+
+    /** whether the call failed because its caller was cancelled, rather than because of upstream */
+    static boolean interrupted(Throwable e) {
+        if (Thread.currentThread().isInterrupted()) {
+            return true;
+        }
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof InterruptedException || t instanceof InterruptedIOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <V> V await(CompletableFuture<V> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package dev.abstratium.abstrasst.service.cache;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Small, fixed capacity, approximate nearest neighbour index of unit vectors, each with a value attached.
+ *
+ * Built to stay small on the heap of a 64MB native image:
+ * <ul>
+ *   <li>vectors are normalised and quantised to one signed byte per dimension, all of them in a single
+ *       {@code byte[]}, so 2048 entries of 1536 dimensions need about 3MB;</li>
+ *   <li>candidates are found with random hyperplane LSH: each vector gets a {@code bits} long signature,
+ *       and a search looks at the bucket of the query's signature plus all buckets one bit away (multi-probe),
+ *       then rescores those candidates exactly;</li>
+ *   <li>slots are reused in insertion order, so the oldest entry is evicted when the index is full.</li>
+ * </ul>
+ * Buckets are intrusive doubly linked lists over the slot numbers, so there are no per-entry objects
+ * other than the values themselves.
+ */
+final class VectorIndex<V> {
+
+    private static final int NONE = -1;
+
+    private final int capacity;
+    private final int dimension;
+    private final int bits;
+
+    /** bits x dimension hyperplanes, row by row */
+    private final float[] planes;
+
+    private final byte[] vectors;
+    private final float[] scales;
+    private final long[] partitions;
+    private final long[] createdAt;
+    private final int[] signatures;
+    private final Object[] values;
+
+    private final int[] bucketHeads;
+    private final int[] next;
+    private final int[] prev;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private int cursor;
+    private int size;
+
+    VectorIndex(int capacity, int dimension, int bits, long seed) {
+        if (bits < 1 || bits > 20) {
+            throw new IllegalArgumentException("bits must be between 1 and 20, but was " + bits);
+        }
+        this.capacity = capacity;
+        this.dimension = dimension;
+        this.bits = bits;
+
+        SplittableRandom random = new SplittableRandom(seed);
+        this.planes = new float[bits * dimension];
+        for (int i = 0; i < planes.length; i++) {
+            planes[i] = (float) random.nextGaussian();
+        }
+
+        this.vectors = new byte[capacity * dimension];
+        this.scales = new float[capacity];
+        this.partitions = new long[capacity];
+        this.createdAt = new long[capacity];
+        this.signatures = new int[capacity];
+        this.values = new Object[capacity];
+
+        this.bucketHeads = new int[1 << bits];
+        this.next = new int[capacity];
+        this.prev = new int[capacity];
+        Arrays.fill(bucketHeads, NONE);
+    }
+
+    int dimension() {
+        return dimension;
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** adds the vector, evicting the oldest entry if the index is full */
+    void add(float[] vector, long partition, long now, V value) {
+        checkDimension(vector);
+        float[] unit = normalise(vector);
+        int signature = signature(unit);
+
+        lock.writeLock().lock();
+        try {
+            int slot = cursor;
+            cursor = (cursor + 1) % capacity;
+            if (values[slot] != null) {
+                unlink(slot);
+            } else {
+                size++;
+            }
+            scales[slot] = quantise(unit, vectors, slot * dimension);
+            partitions[slot] = partition;
+            createdAt[slot] = now;
+            signatures[slot] = signature;
+            values[slot] = value;
+            link(slot, signature);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the value of the most similar entry in the same partition, created at or after {@code notBefore},
+     *          whose cosine similarity to the query is at least {@code threshold}, or null
+     */
+    @SuppressWarnings("unchecked")
+    V nearest(float[] query, long partition, long notBefore, double threshold) {
+        checkDimension(query);
+        float[] unit = normalise(query);
+        int signature = signature(unit);
+        byte[] q = new byte[dimension];
+        float queryScale = quantise(unit, q, 0);
+
+        lock.readLock().lock();
+        try {
+            int best = NONE;
+            double bestSimilarity = threshold;
+            for (int probe = -1; probe < bits; probe++) {
+                int bucket = probe < 0 ? signature : signature ^ (1 << probe);
+                for (int slot = bucketHeads[bucket]; slot != NONE; slot = next[slot]) {
+                    if (partitions[slot] != partition || createdAt[slot] < notBefore) {
+                        continue;
+                    }
+                    double similarity = queryScale * scales[slot] * dot(q, slot * dimension);
+                    if (similarity >= bestSimilarity) {
+                        bestSimilarity = similarity;
+                        best = slot;
+                    }
+                }
+            }
+            return best == NONE ? null : (V) values[best];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private long dot(byte[] q, int offset) {
+        long sum = 0;
+        for (int i = 0; i < dimension; i++) {
+            sum += q[i] * vectors[offset + i];
+        }
+        return sum;
+    }
+
+    private int signature(float[] unit) {
+        int signature = 0;
+        for (int b = 0; b < bits; b++) {
+            double projection = 0;
+            int offset = b * dimension;
+            for (int i = 0; i < dimension; i++) {
+                projection += planes[offset + i] * unit[i];
+            }
+            if (projection >= 0) {
+                signature |= 1 << b;
+            }
+        }
+        return signature;
+    }
+
+    private void link(int slot, int bucket) {
+        int head = bucketHeads[bucket];
+        next[slot] = head;
+        prev[slot] = NONE;
+        if (head != NONE) {
+            prev[head] = slot;
+        }
+        bucketHeads[bucket] = slot;
+    }
+
+    private void unlink(int slot) {
+        if (prev[slot] != NONE) {
+            next[prev[slot]] = next[slot];
+        } else {
+            bucketHeads[signatures[slot]] = next[slot];
+        }
+        if (next[slot] != NONE) {
+            prev[next[slot]] = prev[slot];
+        }
+    }
+
+    private void checkDimension(float[] vector) {
+        if (vector.length != dimension) {
+            throw new IllegalArgumentException("Expected a vector with " + dimension + " dimensions, but got " + vector.length);
+        }
+    }
+
+    private static float[] normalise(float[] vector) {
+        double norm = 0;
+        for (float v : vector) {
+            norm += v * v;
+        }
+        norm = Math.sqrt(norm);
+        float[] unit = new float[vector.length];
+        if (norm == 0) {
+            return unit;
+        }
+        for (int i = 0; i < vector.length; i++) {
+            unit[i] = (float) (vector[i] / norm);
+        }
+        return unit;
+    }
+
+    /** writes the vector as signed bytes into {@code target} and returns the factor that restores the original values */
+    private static float quantise(float[] unit, byte[] target, int offset) {
+        float max = 0;
+        for (float v : unit) {
+            max = Math.max(max, Math.abs(v));
+        }
+        if (max == 0) {
+            Arrays.fill(target, offset, offset + unit.length, (byte) 0);
+            return 0;
+        }
+        float scale = max / 127f;
+        for (int i = 0; i < unit.length; i++) {
+            target[offset + i] = (byte) Math.round(unit[i] / scale);
+        }
+        return scale;
+    }
+}
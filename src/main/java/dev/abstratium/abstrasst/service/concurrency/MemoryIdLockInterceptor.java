@@ -0,0 +1,41 @@
+package dev.abstratium.abstrasst.service.concurrency;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import dev.abstratium.abstrasst.service.AiServiceMethods;
+import dev.langchain4j.service.MemoryId;
+import jakarta.annotation.Priority;
+import jakarta.inject.Inject;
+import jakarta.interceptor.AroundInvoke;
+import jakarta.interceptor.Interceptor;
+import jakarta.interceptor.InvocationContext;
+
+/**
+ * Serialises invocations of methods annotated with {@link SerializedByMemoryId} per memory id.
+ *
+ * Runs after the response cache, so that cache hits do not wait for the conversation.
+ */
+@SerializedByMemoryId
+@Interceptor
+@Priority(Interceptor.Priority.APPLICATION + 10)
+public class MemoryIdLockInterceptor {
+
+    private static final ConcurrentMap<Method, Integer> MEMORY_ID_PARAMETERS = new ConcurrentHashMap<>();
+
+    @Inject
+    MemoryIdLocks locks;
+
+    @AroundInvoke
+    Object serialised(InvocationContext ctx) throws Exception {
+        int index = MEMORY_ID_PARAMETERS.computeIfAbsent(ctx.getMethod(), m -> AiServiceMethods.parameterIndex(m, MemoryId.class));
+        Object memoryId = index < 0 ? null : ctx.getParameters()[index];
+        if (memoryId == null) {
+            return ctx.proceed();
+        }
+        try (var permit = locks.acquire(memoryId.toString())) {
+            return ctx.proceed();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package dev.abstratium.abstrasst.service.concurrency;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import dev.abstratium.core.boundary.ErrorCode;
+import dev.abstratium.core.boundary.FunctionalException;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.Meter;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.core.Response;
+
+/**
+ * One fair lock per memory id, which exists only while someone holds or waits for it.
+ *
+ * The locks live in a {@link ConcurrentHashMap} together with the number of their users, and are created and removed
+ * with {@code compute}, which only locks the bin of the key. So there is no global lock, and unlike striped locks,
+ * two conversations never wait for each other.
+ */
+@ApplicationScoped
+public class MemoryIdLocks {
+
+    private static final AttributeKey<Boolean> CONTENDED = AttributeKey.booleanKey("contended");
+
+    @ConfigProperty(name = "chat-memory.lock-timeout", defaultValue = "200s")
+    Duration timeout;
+
+    @Inject
+    Meter meter;
+
+    final LongAdder uncontended = new LongAdder();
+    final LongAdder contended = new LongAdder();
+
+    private final ConcurrentMap<String, KeyLock> locks = new ConcurrentHashMap<>();
+
+    private DoubleHistogram waits;
+
+    @PostConstruct
+    void init() {
+        meter.counterBuilder("chat_memory.lock.acquisitions")
+            .setDescription("Acquisitions of per memory id locks, by whether another turn of the same conversation held the lock")
+            .buildWithCallback(m -> {
+                m.record(uncontended.sum(), Attributes.of(CONTENDED, false));
+                m.record(contended.sum(), Attributes.of(CONTENDED, true));
+            });
+        meter.gaugeBuilder("chat_memory.lock.keys")
+            .setDescription("Memory ids which currently have a turn in progress or waiting")
+            .ofLongs()
+            .buildWithCallback(m -> m.record(locks.size()));
+        waits = meter.histogramBuilder("chat_memory.lock.wait")
+            .setDescription("Time that contended turns waited for the previous turn of the same conversation")
+            .setUnit("ms")
+            .build();
+    }
+
+    /**
+     * Waits until no other turn of the conversation is in progress.
+     * @return the permit, which must be closed once the turn is over
+     * @throws FunctionalException if the previous turn does not end within {@code chat-memory.lock-timeout}
+     */
+    public Permit acquire(String memoryId) throws InterruptedException {
+        KeyLock lock = locks.compute(memoryId, (id, l) -> {
+            l = l == null ? new KeyLock() : l;
+            l.users++;
+            return l;
+        });
+        Permit permit = new Permit(memoryId, lock);
+        if (lock.lock.tryLock()) {
+            uncontended.increment();
+            return permit;
+        }
+        contended.increment();
+        long start = System.nanoTime();
+        boolean locked = false;
+        try {
+            locked = lock.lock.tryLock(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        } finally {
+            waits.record((System.nanoTime() - start) / 1_000_000.0);
+            if (!locked) {
+                release(memoryId);
+            }
+        }
+        if (!locked) {
+            throw new FunctionalException(Response.Status.CONFLICT, ErrorCode.CONVERSATION_BUSY,
+                "The previous message of this conversation is still being answered, please try again later");
+        }
+        return permit;
+    }
+
+    int size() {
+        return locks.size();
+    }
+
+    private void release(String memoryId) {
+        locks.computeIfPresent(memoryId, (id, l) -> --l.users == 0 ? null : l);
+    }
+
+    /** the number of users is only read and written inside compute, so it needs no further synchronisation */
+    private static final class KeyLock {
+        final ReentrantLock lock = new ReentrantLock(true);
+        int users;
+    }
+
+    public final class Permit implements AutoCloseable {
+
+        private final String memoryId;
+        private final KeyLock lock;
+
+        private Permit(String memoryId, KeyLock lock) {
+            this.memoryId = memoryId;
+            this.lock = lock;
+        }
+
+        @Override
+        public void close() {
+            lock.lock.unlock();
+            release(memoryId);
+        }
+    }
+}
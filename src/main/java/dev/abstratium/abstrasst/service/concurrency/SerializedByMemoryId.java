@@ -0,0 +1,21 @@
+package dev.abstratium.abstrasst.service.concurrency;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import jakarta.interceptor.InterceptorBinding;
+
+/**
+ * Marks an AI service method whose invocations are serialised per {@code @MemoryId}, so that the turns of one
+ * conversation are applied to its chat memory one after the other, while different conversations run in parallel.
+ *
+ * Only synchronous methods are supported, since the lock is held until the method returns.
+ * Methods without a {@code @MemoryId} parameter are not serialised.
+ */
+@InterceptorBinding
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface SerializedByMemoryId {
+}
@@ -0,0 +1,21 @@
+package dev.abstratium.abstrasst.service.hedging;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import jakarta.interceptor.InterceptorBinding;
+
+/**
+ * Marks an AI service method whose chat requests may be hedged, see {@link LlmHedging}.
+ *
+ * Only requests to a model wrapped in a {@link HedgingChatModel} are hedged, so the AI service must get its chat model
+ * from a supplier which wraps it. Since a request may be sent twice, the method must be safe to call twice for one answer,
+ * which it is as long as it has no tools.
+ */
+@InterceptorBinding
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface Hedged {
+}
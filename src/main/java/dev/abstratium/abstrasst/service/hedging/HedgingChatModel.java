@@ -0,0 +1,51 @@
+package dev.abstratium.abstrasst.service.hedging;
+
+import java.util.Set;
+
+import dev.langchain4j.model.ModelProvider;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.Capability;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.request.ChatRequestParameters;
+import dev.langchain4j.model.chat.response.ChatResponse;
+
+/**
+ * A chat model which hedges the requests of {@link Hedged} methods, see {@link LlmHedging}, and passes all others on.
+ *
+ * It has no listeners of its own, since each request which it sends to the model it wraps is seen by the listeners of
+ * that model, e.g. the rate limiter and the usage tracking, hedges included.
+ */
+public class HedgingChatModel implements ChatModel {
+
+    private final ChatModel delegate;
+    private final LlmHedging hedging;
+
+    public HedgingChatModel(ChatModel delegate, LlmHedging hedging) {
+        this.delegate = delegate;
+        this.hedging = hedging;
+    }
+
+    @Override
+    public ChatResponse chat(ChatRequest request) {
+        if (!hedging.isHedged()) {
+            return delegate.chat(request);
+        }
+        String model = request.modelName() != null ? request.modelName() : delegate.defaultRequestParameters().modelName();
+        return hedging.chat(delegate, String.valueOf(model), request);
+    }
+
+    @Override
+    public ChatRequestParameters defaultRequestParameters() {
+        return delegate.defaultRequestParameters();
+    }
+
+    @Override
+    public ModelProvider provider() {
+        return delegate.provider();
+    }
+
+    @Override
+    public Set<Capability> supportedCapabilities() {
+        return delegate.supportedCapabilities();
+    }
+}
@@ -0,0 +1,26 @@
+package dev.abstratium.abstrasst.service.hedging;
+
+import jakarta.annotation.Priority;
+import jakarta.inject.Inject;
+import jakarta.interceptor.AroundInvoke;
+import jakarta.interceptor.Interceptor;
+import jakarta.interceptor.InvocationContext;
+
+/**
+ * Lets the chat requests of methods annotated with {@link Hedged} be hedged by the {@link HedgingChatModel}.
+ *
+ * Runs after the response cache, so that only misses count towards the latency and the budget of the hedges.
+ */
+@Hedged
+@Interceptor
+@Priority(Interceptor.Priority.APPLICATION + 20)
+public class HedgingInterceptor {
+
+    @Inject
+    LlmHedging hedging;
+
+    @AroundInvoke
+    Object hedged(InvocationContext ctx) throws Exception {
+        return hedging.hedged(ctx::proceed);
+    }
+}
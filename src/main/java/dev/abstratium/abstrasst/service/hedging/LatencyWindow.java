@@ -0,0 +1,41 @@
+package dev.abstratium.abstrasst.service.hedging;
+
+import java.util.Arrays;
+
+/**
+ * The latencies of the most recent calls of a model, from which the delay of a hedge is taken.
+ *
+ * It is not thread safe.
+ */
+final class LatencyWindow {
+
+    private final long[] nanos;
+    private int next;
+    private int size;
+
+    LatencyWindow(int capacity) {
+        this.nanos = new long[capacity];
+    }
+
+    void record(long latencyNanos) {
+        nanos[next] = latencyNanos;
+        next = (next + 1) % nanos.length;
+        size = Math.min(size + 1, nanos.length);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** @return the given percentile (0 to 1) of the latencies, or -1 if there are none */
+    long percentile(double percentile) {
+        if (size == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(nanos, size);
+        Arrays.sort(sorted);
+        // the nearest rank
+        int rank = (int) Math.ceil(percentile * size);
+        return sorted[Math.max(0, Math.min(size, rank) - 1)];
+    }
+}
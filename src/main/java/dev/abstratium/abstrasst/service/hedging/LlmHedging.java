@@ -0,0 +1,229 @@
+package dev.abstratium.abstrasst.service.hedging;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import dev.abstratium.abstrasst.service.ratelimit.LlmCaller;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Hedges the chat requests of {@link Hedged} methods, to cut the tail latency caused by occasional slow responses:
+ * if a request has not been answered after the {@code llm.hedging.percentile} of the recent latencies of its model,
+ * the same request is sent again, the first answer wins, and the other request is cancelled.
+ *
+ * The requests are blocking, so the first token arrives with the whole answer, and the latency which is compared is
+ * that of the whole answer. No request is hedged until the model has {@code llm.hedging.min-samples} latencies.
+ * A primary request which loses to its hedge counts with the time it had waited when the hedge answered, a lower bound
+ * of its latency, since leaving out the slow requests would lower the delay of the hedges over time.
+ * If the first request fails before the hedge is sent, it fails as usual; once the hedge is sent, the call only fails
+ * if both fail.
+ *
+ * Hedges are capped by a budget, which each call fills by {@code llm.hedging.budget} and each hedge empties by one,
+ * so that at most that share of the calls is hedged, even while the model is slow for everyone and hedging would only
+ * add to its load. The budget holds at most {@value #MAX_BURST} hedges.
+ */
+@ApplicationScoped
+public class LlmHedging {
+
+    private static final double MAX_BURST = 10;
+
+    private static final AttributeKey<String> MODEL = AttributeKey.stringKey("model");
+    private static final AttributeKey<String> RESULT = AttributeKey.stringKey("result");
+    private static final AttributeKey<String> WINNER = AttributeKey.stringKey("winner");
+
+    private static final ThreadLocal<Boolean> HEDGED = new ThreadLocal<>();
+
+    @ConfigProperty(name = "llm.hedging.enabled", defaultValue = "true")
+    boolean enabled;
+
+    @ConfigProperty(name = "llm.hedging.percentile", defaultValue = "0.95")
+    double percentile;
+
+    @ConfigProperty(name = "llm.hedging.budget", defaultValue = "0.05")
+    double budget;
+
+    @ConfigProperty(name = "llm.hedging.window", defaultValue = "200")
+    int window;
+
+    @ConfigProperty(name = "llm.hedging.min-samples", defaultValue = "20")
+    int minSamples;
+
+    @Inject
+    Meter meter;
+
+    /** answered before the hedge was due, or not hedged for lack of samples */
+    final LongAdder unhedged = new LongAdder();
+    final LongAdder hedged = new LongAdder();
+    /** due for a hedge, but the budget was empty */
+    final LongAdder throttled = new LongAdder();
+    final LongAdder primaryWins = new LongAdder();
+    final LongAdder hedgeWins = new LongAdder();
+
+    final ConcurrentMap<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+
+    /** hedges which may be sent */
+    private double credits;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    void init() {
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+
+        meter.counterBuilder("llm.hedging.calls")
+            .setDescription("Chat requests of hedged methods, by result (unhedged, hedged, throttled)")
+            .buildWithCallback(m -> {
+                m.record(unhedged.sum(), Attributes.of(RESULT, "unhedged"));
+                m.record(hedged.sum(), Attributes.of(RESULT, "hedged"));
+                m.record(throttled.sum(), Attributes.of(RESULT, "throttled"));
+            });
+        meter.counterBuilder("llm.hedging.wins")
+            .setDescription("Hedged chat requests, by the request which answered first (primary, hedge)")
+            .buildWithCallback(m -> {
+                m.record(primaryWins.sum(), Attributes.of(WINNER, "primary"));
+                m.record(hedgeWins.sum(), Attributes.of(WINNER, "hedge"));
+            });
+        meter.gaugeBuilder("llm.hedging.delay")
+            .setDescription("The time after which a chat request is hedged, per model, once there are enough samples")
+            .setUnit("ms")
+            .buildWithCallback(m -> latencies.forEach((model, window) -> {
+                long delay = delay(window);
+                if (delay >= 0) {
+                    m.record(delay / 1e6, Attributes.of(MODEL, model));
+                }
+            }));
+    }
+
+    @PreDestroy
+    void close() {
+        executor.shutdownNow();
+    }
+
+    /** runs the call, whose chat requests may be hedged */
+    <T> T hedged(Callable<T> call) throws Exception {
+        if (!enabled || HEDGED.get() != null) {
+            return call.call();
+        }
+        HEDGED.set(Boolean.TRUE);
+        try {
+            return call.call();
+        } finally {
+            HEDGED.remove();
+        }
+    }
+
+    boolean isHedged() {
+        return HEDGED.get() != null;
+    }
+
+    ChatResponse chat(ChatModel model, String modelName, ChatRequest request) {
+        LatencyWindow window = latencies.computeIfAbsent(modelName, name -> new LatencyWindow(this.window));
+        deposit();
+        long delay = delay(window);
+
+        var completion = new ExecutorCompletionService<ChatResponse>(executor);
+        Callable<ChatResponse> attempt = LlmCaller.propagate(() -> model.chat(request));
+        long start = System.nanoTime();
+        Future<ChatResponse> primary = completion.submit(attempt);
+        Future<ChatResponse> hedge = null;
+        try {
+            Future<ChatResponse> done = delay < 0 ? completion.take() : completion.poll(delay, TimeUnit.NANOSECONDS);
+            if (done == null) {
+                if (withdraw()) {
+                    hedge = completion.submit(attempt);
+                    hedged.increment();
+                } else {
+                    throttled.increment();
+                }
+                done = completion.take();
+            }
+            if (hedge == null) {
+                unhedged.increment();
+                return answered(window, start, result(done));
+            }
+            try {
+                return answered(window, start, won(done, hedge));
+            } catch (RuntimeException e) {
+                // the other request may still answer
+                try {
+                    return answered(window, start, won(completion.take(), hedge));
+                } catch (RuntimeException ignored) {
+                    throw e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the answer of " + modelName, e);
+        } finally {
+            // no-ops for the request which answered
+            primary.cancel(true);
+            if (hedge != null) {
+                hedge.cancel(true);
+            }
+        }
+    }
+
+    /** records the time from the primary request to the first answer, see the class comment */
+    private static ChatResponse answered(LatencyWindow window, long start, ChatResponse response) {
+        synchronized (window) {
+            window.record(System.nanoTime() - start);
+        }
+        return response;
+    }
+
+    private ChatResponse won(Future<ChatResponse> done, Future<ChatResponse> hedge) throws InterruptedException {
+        ChatResponse response = result(done);
+        (done == hedge ? hedgeWins : primaryWins).increment();
+        return response;
+    }
+
+    private static ChatResponse result(Future<ChatResponse> done) throws InterruptedException {
+        try {
+            return done.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /** @return the delay after which a request is hedged, or -1 if there are not enough samples yet */
+    private long delay(LatencyWindow window) {
+        synchronized (window) {
+            return window.size() < minSamples ? -1 : window.percentile(percentile);
+        }
+    }
+
+    private synchronized void deposit() {
+        credits = Math.min(MAX_BURST, credits + budget);
+    }
+
+    private synchronized boolean withdraw() {
+        // with a tolerance, since e.g. twenty deposits of 0.05 add up to slightly less than one
+        if (credits < 1 - 1e-9) {
+            return false;
+        }
+        credits--;
+        return true;
+    }
+}
@@ -0,0 +1,175 @@
+package dev.abstratium.abstrasst.service.ratelimit;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * The concurrency limit of one model, adapted by additive increase and multiplicative decrease (AIMD),
+ * like the AIMD limit of Netflix' concurrency-limits.
+ *
+ * A call which completes with a flat latency raises the limit by one, as long as the limit is actually being used, i.e.
+ * at least half of it is in flight. A call which is rejected with 429 or times out, or whose latency is more than
+ * {@code tolerance} times the long-term average, multiplies the limit by {@code backoffRatio}. The latency is taken
+ * per output token, so that long answers are not mistaken for an overloaded model.
+ *
+ * Calls which find the limit reached wait for a slot in the order of the {@link FairQueue}. Batch calls only get a slot
+ * while fewer than {@code batchShare} of the limit are in flight, so that a slot soon becomes free for the calls of
+ * the other classes, however many batch calls are waiting.
+ */
+final class AdaptiveLimit {
+
+    enum Outcome {
+        /** completed, and its latency is a sample */
+        SUCCESS,
+        /** rejected with 429 or timed out, so the limit is too high */
+        DROPPED,
+        /** failed for a reason which says nothing about the load, e.g. an invalid request */
+        IGNORED
+    }
+
+    /** the weight of a sample in the long-term average latency */
+    private static final double SMOOTHING = 0.05;
+
+    final String model;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final double tolerance;
+    private final double batchShare;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final FairQueue queue;
+
+    private double limit;
+    private int inFlight;
+
+    /** long-term average latency per output token, in nanoseconds, 0 until the first sample */
+    private double averageLatency;
+
+    AdaptiveLimit(String model, int initialLimit, int minLimit, int maxLimit, double backoffRatio, double tolerance,
+            double batchShare, ToDoubleFunction<String> weights) {
+        this.model = model;
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.tolerance = tolerance;
+        this.batchShare = batchShare;
+        this.queue = new FairQueue(weights);
+    }
+
+    /**
+     * Takes a slot if one is free for the caller and nobody is waiting for one.
+     * @return false if the caller has to wait
+     */
+    boolean tryAcquire(LlmCaller caller) {
+        lock.lock();
+        try {
+            if (queue.isEmpty() && inFlight < limit(caller.priority())) {
+                inFlight++;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a free slot and takes it.
+     * @param deadline the {@link System#nanoTime()} after which the call takes a slot beyond the limit
+     * @return true if the call got a slot within the limit, false if it went beyond it at the deadline
+     */
+    boolean acquire(LlmCaller caller, long deadline) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            var waiter = queue.add(caller);
+            try {
+                while (!queue.isFirst(waiter) || inFlight >= limit(caller.priority())) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        inFlight++;
+                        return false;
+                    }
+                    released.awaitNanos(left);
+                }
+                inFlight++;
+                return true;
+            } finally {
+                queue.remove(waiter);
+                // the next one may be able to take a slot as well
+                released.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int limit(PriorityClass priority) {
+        return priority == PriorityClass.BATCH ? Math.max(1, (int) (limit * batchShare)) : (int) limit;
+    }
+
+    /** takes a slot beyond the limit, e.g. on a thread which must not block */
+    void overflow() {
+        lock.lock();
+        try {
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives the slot back and adapts the limit to the outcome of the call.
+     * @param latencyNanos the time from sending the call to its response
+     * @param outputTokens the tokens of the response, 0 if unknown
+     */
+    void release(Outcome outcome, long latencyNanos, int outputTokens) {
+        lock.lock();
+        try {
+            int used = inFlight--;
+            switch (outcome) {
+                case SUCCESS -> {
+                    double latency = (double) latencyNanos / Math.max(1, outputTokens);
+                    if (averageLatency > 0 && latency > tolerance * averageLatency) {
+                        decrease();
+                    } else if (used * 2 >= limit) {
+                        limit = Math.min(maxLimit, limit + 1);
+                    }
+                    averageLatency = averageLatency == 0 ? latency : averageLatency + SMOOTHING * (latency - averageLatency);
+                }
+                case DROPPED -> decrease();
+                case IGNORED -> {
+                }
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void decrease() {
+        limit = Math.max(minLimit, limit * backoffRatio);
+    }
+
+    int limit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
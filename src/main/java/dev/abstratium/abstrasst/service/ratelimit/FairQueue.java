@@ -0,0 +1,98 @@
+package dev.abstratium.abstrasst.service.ratelimit;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * The order in which waiting calls are served: the calls of a higher {@link PriorityClass} first, and within a class,
+ * the calls of different users by weighted fair queueing, so that a user with many calls does not starve the others.
+ *
+ * Fairness within a class is start-time fair queueing: each call of a user is tagged with a virtual start time,
+ * the later of the virtual time of the class and the finish time of the user's previous call, which is its start time
+ * plus the inverse of the user's weight. Calls are served in the order of their start tags, and the virtual time of
+ * the class advances to the tag of the call which is served. So each user's calls are interleaved with those of the
+ * others, and a user with weight 2 gets twice the turns of a user with weight 1.
+ *
+ * It is not thread safe, and is guarded by the lock of its owner.
+ */
+final class FairQueue {
+
+    /** forgets the finish times of users once there are more than this, keeping only those which are still ahead */
+    private static final int MAX_USERS = 1024;
+
+    static final class Waiter {
+
+        final LlmCaller caller;
+        final double start;
+        final long sequence;
+
+        private Waiter(LlmCaller caller, double start, long sequence) {
+            this.caller = caller;
+            this.start = start;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final Comparator<Waiter> ORDER = Comparator.<Waiter>comparingInt(w -> w.caller.priority().ordinal())
+        .thenComparingDouble(w -> w.start)
+        .thenComparingLong(w -> w.sequence);
+
+    private final ToDoubleFunction<String> weights;
+
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(ORDER);
+    private final double[] virtualTime = new double[PriorityClass.values().length];
+    private final List<Map<String, Double>> finishTimes = new ArrayList<>();
+    private long sequence;
+
+    /**
+     * @param weights the weight of each user, at least a small positive number
+     */
+    FairQueue(ToDoubleFunction<String> weights) {
+        this.weights = weights;
+        for (int i = 0; i < virtualTime.length; i++) {
+            finishTimes.add(new HashMap<>());
+        }
+    }
+
+    Waiter add(LlmCaller caller) {
+        int cls = caller.priority().ordinal();
+        Map<String, Double> finish = finishTimes.get(cls);
+        double start = Math.max(virtualTime[cls], finish.getOrDefault(caller.user(), 0.0));
+        finish.put(caller.user(), start + 1 / Math.max(weights.applyAsDouble(caller.user()), 0.001));
+        var waiter = new Waiter(caller, start, sequence++);
+        waiters.add(waiter);
+        return waiter;
+    }
+
+    /** the waiter which is to be served next, or null */
+    Waiter first() {
+        return waiters.peek();
+    }
+
+    boolean isFirst(Waiter waiter) {
+        return waiters.peek() == waiter;
+    }
+
+    boolean isEmpty() {
+        return waiters.isEmpty();
+    }
+
+    /** removes the waiter, which has been served or has given up */
+    void remove(Waiter waiter) {
+        if (!waiters.remove(waiter)) {
+            return;
+        }
+        int cls = waiter.caller.priority().ordinal();
+        virtualTime[cls] = Math.max(virtualTime[cls], waiter.start);
+        Map<String, Double> finish = finishTimes.get(cls);
+        if (finish.size() > MAX_USERS) {
+            // a user whose finish time is behind the virtual time starts from the virtual time anyway
+            finish.values().removeIf(f -> f <= virtualTime[cls]);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package dev.abstratium.abstrasst.service.ratelimit;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import io.smallrye.mutiny.Multi;
+
+/**
+ * Who calls the LLM on the current thread, and how urgently, so that the limiters can queue its calls fairly.
+ *
+ * It is set by the resource methods, see {@link dev.abstratium.abstrasst.boundary.priority.LlmPriority}, and by the
+ * background work which is not started by a request. Work which is handed to other threads takes it along with
+ * {@link #propagate(Runnable)}. Calls without a caller are {@link PriorityClass#STANDARD standard} calls of an anonymous user.
+ */
+public record LlmCaller(String user, PriorityClass priority) {
+
+    public static final String ANONYMOUS = "";
+
+    private static final LlmCaller DEFAULT = new LlmCaller(ANONYMOUS, PriorityClass.STANDARD);
+
+    private static final ThreadLocal<LlmCaller> CURRENT = new ThreadLocal<>();
+
+    public static LlmCaller current() {
+        LlmCaller caller = CURRENT.get();
+        return caller != null ? caller : DEFAULT;
+    }
+
+    public LlmCaller withPriority(PriorityClass priority) {
+        return new LlmCaller(user, priority);
+    }
+
+    /** runs the call as this caller */
+    public <T> T call(Callable<T> call) throws Exception {
+        LlmCaller previous = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            return call.call();
+        } finally {
+            restore(previous);
+        }
+    }
+
+    /** runs the call as this caller */
+    public <T> T get(Supplier<T> call) {
+        LlmCaller previous = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            return call.get();
+        } finally {
+            restore(previous);
+        }
+    }
+
+    /** runs the task as this caller */
+    public void run(Runnable task) {
+        get(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /** subscribes to the stream as this caller, since that is when a streamed call is made */
+    public <T> Multi<T> subscribe(Multi<T> multi) {
+        return Multi.createFrom().publisher(subscriber -> run(() -> multi.subscribe(subscriber)));
+    }
+
+    /** @return the task, which runs as the current caller on whichever thread runs it */
+    public static Runnable propagate(Runnable task) {
+        LlmCaller caller = CURRENT.get();
+        return caller == null ? task : () -> caller.run(task);
+    }
+
+    /** @return the task, which runs as the current caller on whichever thread runs it */
+    public static <T> Callable<T> propagate(Callable<T> task) {
+        LlmCaller caller = CURRENT.get();
+        return caller == null ? task : () -> caller.call(task);
+    }
+
+    /** @return an executor which runs its tasks as the caller who submits them */
+    public static Executor propagating(Executor executor) {
+        return task -> executor.execute(propagate(task));
+    }
+
+    private static void restore(LlmCaller previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package dev.abstratium.abstrasst.service.ratelimit;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import dev.abstratium.abstrasst.service.ratelimit.AdaptiveLimit.Outcome;
+import dev.langchain4j.exception.TimeoutException;
+import dev.langchain4j.model.chat.listener.ChatModelErrorContext;
+import dev.langchain4j.model.chat.listener.ChatModelListener;
+import dev.langchain4j.model.chat.listener.ChatModelRequestContext;
+import dev.langchain4j.model.chat.listener.ChatModelResponseContext;
+import dev.langchain4j.model.output.TokenUsage;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.Meter;
+import io.quarkus.scheduler.Scheduled;
+import io.vertx.core.Context;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Limits the chat requests which are in flight per model, with a limit which adapts to how the model copes,
+ * see {@link AdaptiveLimit}: it rises while the latency stays flat, and backs off on 429s, timeouts and inflated latency.
+ *
+ * Like the {@link LlmRateLimiter}, it is a chat model listener, which Quarkus adds to the models of all AI services
+ * and agents, and which {@link dev.abstratium.abstrasst.workflows.ProgrammaticWorkflow} adds to the models it builds.
+ * It comes after the rate limiter, so that the time a call waits for its budget is not taken for latency.
+ * A call which finds the limit reached is rejected by the limiter and waits for a slot for at most {@code llm.concurrency.max-wait},
+ * after which it is sent beyond the limit. Waiting calls are served by the {@link PriorityClass} and fair share of their
+ * {@link LlmCaller}, and batch calls only use {@code llm.scheduling.batch-share} of the limit. A call on an event loop thread never waits.
+ *
+ * The slot of a call is given back when its response or error arrives. A streamed call which is cancelled may never
+ * get either, so slots which have been held for longer than {@code llm.concurrency.max-hold} are given back by a sweep.
+ */
+@ApplicationScoped
+@Priority(LlmConcurrencyLimiter.PRIORITY)
+public class LlmConcurrencyLimiter implements ChatModelListener {
+
+    /** listeners with a higher priority are called first */
+    static final int PRIORITY = 10;
+
+    private static final Logger log = Logger.getLogger(LlmConcurrencyLimiter.class);
+
+    private static final AttributeKey<String> MODEL = AttributeKey.stringKey("model");
+    private static final AttributeKey<String> RESULT = AttributeKey.stringKey("result");
+    private static final AttributeKey<String> PRIORITY_CLASS = AttributeKey.stringKey("priority");
+
+    /** the name of the queue of this limiter for the {@link LlmLoadShedder} */
+    private static final String QUEUE = "concurrency";
+
+    private static final String PERMIT = LlmConcurrencyLimiter.class.getName() + ".permit";
+
+    private record Permit(AdaptiveLimit limit, long sentAt, AtomicBoolean released) {
+
+        /** @return true the first time */
+        boolean release() {
+            return released.compareAndSet(false, true);
+        }
+    }
+
+    @ConfigProperty(name = "llm.concurrency.enabled", defaultValue = "true")
+    boolean enabled;
+
+    @ConfigProperty(name = "llm.concurrency.initial-limit", defaultValue = "8")
+    int initialLimit;
+
+    @ConfigProperty(name = "llm.concurrency.min-limit", defaultValue = "1")
+    int minLimit;
+
+    @ConfigProperty(name = "llm.concurrency.max-limit", defaultValue = "64")
+    int maxLimit;
+
+    @ConfigProperty(name = "llm.concurrency.backoff-ratio", defaultValue = "0.9")
+    double backoffRatio;
+
+    @ConfigProperty(name = "llm.concurrency.latency-tolerance", defaultValue = "2.0")
+    double latencyTolerance;
+
+    @ConfigProperty(name = "llm.concurrency.max-wait", defaultValue = "120s")
+    Duration maxWait;
+
+    @ConfigProperty(name = "llm.concurrency.max-hold", defaultValue = "10m")
+    Duration maxHold;
+
+    @Inject
+    LlmScheduling scheduling;
+
+    @Inject
+    LlmLoadShedder shedder;
+
+    @Inject
+    Meter meter;
+
+    /** rejected by the limiter, and waited for a slot */
+    final LongAdder queued = new LongAdder();
+    /** rejected by the limiter, and sent beyond the limit, after the max wait or on an event loop thread */
+    final LongAdder overLimit = new LongAdder();
+    final LongAdder abandoned = new LongAdder();
+
+    private final ConcurrentMap<String, AdaptiveLimit> limits = new ConcurrentHashMap<>();
+
+    private final Set<Permit> held = ConcurrentHashMap.newKeySet();
+
+    private DoubleHistogram waits;
+
+    @PostConstruct
+    void init() {
+        meter.gaugeBuilder("llm.concurrency.limit")
+            .setDescription("The adaptive limit of chat requests in flight, per model")
+            .ofLongs()
+            .buildWithCallback(m -> limits.values().forEach(l -> m.record(l.limit(), Attributes.of(MODEL, l.model))));
+        meter.gaugeBuilder("llm.concurrency.in_flight")
+            .setDescription("Chat requests in flight, per model")
+            .ofLongs()
+            .buildWithCallback(m -> limits.values().forEach(l -> m.record(l.inFlight(), Attributes.of(MODEL, l.model))));
+        meter.counterBuilder("llm.concurrency.rejections")
+            .setDescription("Chat requests which found the concurrency limit reached, by result (queued, over_limit)")
+            .buildWithCallback(m -> {
+                m.record(queued.sum(), Attributes.of(RESULT, "queued"));
+                m.record(overLimit.sum(), Attributes.of(RESULT, "over_limit"));
+            });
+        meter.counterBuilder("llm.concurrency.abandoned")
+            .setDescription("Slots which were given back by the sweep, because their call never completed")
+            .buildWithCallback(m -> m.record(abandoned.sum()));
+        waits = meter.histogramBuilder("llm.concurrency.wait")
+            .setDescription("Time that rejected chat requests waited for a slot, by priority class")
+            .setUnit("ms")
+            .build();
+    }
+
+    @Override
+    public void onRequest(ChatModelRequestContext context) {
+        String model = context.chatRequest().modelName();
+        if (!enabled || model == null) {
+            return;
+        }
+        AdaptiveLimit limit = limit(model);
+        LlmCaller caller = LlmCaller.current();
+        if (limit.tryAcquire(caller)) {
+            shedder.record(QUEUE, caller.priority(), 0);
+        } else {
+            if (Context.isOnEventLoopThread()) {
+                limit.overflow();
+                overLimit.increment();
+            } else {
+                long start = System.nanoTime();
+                try {
+                    if (limit.acquire(caller, start + maxWait.toNanos())) {
+                        queued.increment();
+                    } else {
+                        overLimit.increment();
+                        log.warnf("A call of %s waited %s for one of %d slots and is sent beyond the limit", model, maxWait, limit.limit());
+                    }
+                } catch (InterruptedException e) {
+                    // the call is being cancelled, and will not get far
+                    Thread.currentThread().interrupt();
+                    limit.overflow();
+                }
+                long waited = System.nanoTime() - start;
+                shedder.record(QUEUE, caller.priority(), waited);
+                waits.record(waited / 1e6, Attributes.of(MODEL, model, PRIORITY_CLASS, caller.priority().label()));
+            }
+        }
+        var permit = new Permit(limit, System.nanoTime(), new AtomicBoolean());
+        held.add(permit);
+        context.attributes().put(PERMIT, permit);
+    }
+
+    @Override
+    public void onResponse(ChatModelResponseContext context) {
+        TokenUsage usage = context.chatResponse().tokenUsage();
+        int outputTokens = usage == null || usage.outputTokenCount() == null ? 0 : usage.outputTokenCount();
+        release(context.attributes().get(PERMIT), Outcome.SUCCESS, outputTokens);
+    }
+
+    @Override
+    public void onError(ChatModelErrorContext context) {
+        release(context.attributes().get(PERMIT), outcome(context.error()), 0);
+    }
+
+    private void release(Object attribute, Outcome outcome, int outputTokens) {
+        if (attribute instanceof Permit permit && permit.release()) {
+            held.remove(permit);
+            permit.limit().release(outcome, System.nanoTime() - permit.sentAt(), outputTokens);
+        }
+    }
+
+    @Scheduled(every = "${llm.concurrency.sweep-interval:1m}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void sweep() {
+        long now = System.nanoTime();
+        for (Permit permit : held) {
+            if (now - permit.sentAt() > maxHold.toNanos() && permit.release()) {
+                held.remove(permit);
+                permit.limit().release(Outcome.IGNORED, 0, 0);
+                abandoned.increment();
+            }
+        }
+    }
+
+    AdaptiveLimit limit(String model) {
+        return limits.computeIfAbsent(model,
+            name -> new AdaptiveLimit(name, initialLimit, minLimit, maxLimit, backoffRatio, latencyTolerance,
+                scheduling.batchShare(), scheduling::weight));
+    }
+
+    static Outcome outcome(Throwable error) {
+        if (LlmRateLimiter.retryAfter(error, Duration.ZERO) != null) {
+            return Outcome.DROPPED;
+        }
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            // the clients of langchain4j, the JDK and Vert.x all have their own
+            if (t instanceof TimeoutException || t.getClass().getSimpleName().endsWith("TimeoutException")) {
+                return Outcome.DROPPED;
+            }
+        }
+        return Outcome.IGNORED;
+    }
+}
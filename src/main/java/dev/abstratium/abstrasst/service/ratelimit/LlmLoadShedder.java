@@ -0,0 +1,128 @@
+package dev.abstratium.abstrasst.service.ratelimit;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import dev.abstratium.core.boundary.ErrorCode;
+import dev.abstratium.core.boundary.FunctionalException;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.core.Response;
+
+/**
+ * Rejects new requests right away with 503 while the LLM calls of their priority class queue for too long, rather than
+ * letting them pile up until they time out, by which time the work spent on them is wasted.
+ *
+ * The {@link LlmRateLimiter} and the {@link LlmConcurrencyLimiter} report how long each call waited, and a
+ * {@link SojournMonitor} per limiter and {@link PriorityClass} decides from that whether the queue is overloaded: the calls
+ * of the class have waited in it for longer than {@code llm.shedding.target} for a whole {@code llm.shedding.interval}.
+ * A request is shed if the queue of its class, or of a class which is served before it, is overloaded, so batch requests
+ * are shed first and interactive ones last. The Retry-After of the rejection is the latest long wait, which is about
+ * how long the queue takes to drain.
+ *
+ * Only new requests are shed; calls which are already queued, e.g. of a workflow which has started, are served.
+ */
+@ApplicationScoped
+public class LlmLoadShedder {
+
+    private static final Logger log = Logger.getLogger(LlmLoadShedder.class);
+
+    private static final AttributeKey<String> PRIORITY_CLASS = AttributeKey.stringKey("priority");
+
+    @ConfigProperty(name = "llm.shedding.enabled", defaultValue = "true")
+    boolean enabled;
+
+    @ConfigProperty(name = "llm.shedding.target", defaultValue = "5s")
+    Duration target;
+
+    @ConfigProperty(name = "llm.shedding.interval", defaultValue = "30s")
+    Duration interval;
+
+    @Inject
+    Meter meter;
+
+    final Map<PriorityClass, LongAdder> shed = new EnumMap<>(PriorityClass.class);
+
+    /** per queue, i.e. the budgets and the slots, since a call which waited long for one may find the other free */
+    private final ConcurrentMap<String, Map<PriorityClass, SojournMonitor>> monitors = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void init() {
+        for (PriorityClass priority : PriorityClass.values()) {
+            shed.put(priority, new LongAdder());
+        }
+
+        meter.counterBuilder("llm.shedding.shed")
+            .setDescription("Requests rejected with 503 because the LLM calls of their priority class queued for too long")
+            .buildWithCallback(m -> shed.forEach((priority, n) -> m.record(n.sum(), Attributes.of(PRIORITY_CLASS, priority.label()))));
+        meter.gaugeBuilder("llm.shedding.overloaded")
+            .setDescription("Whether the LLM queues of each priority class are overloaded (1) or not (0)")
+            .ofLongs()
+            .buildWithCallback(m -> {
+                long now = System.nanoTime();
+                for (PriorityClass priority : PriorityClass.values()) {
+                    m.record(drainNanos(priority, now) >= 0 ? 1 : 0, Attributes.of(PRIORITY_CLASS, priority.label()));
+                }
+            });
+    }
+
+    /** records how long a call of the class waited in the given queue */
+    void record(String queue, PriorityClass priority, long sojournNanos) {
+        SojournMonitor monitor = monitors.computeIfAbsent(queue, q -> {
+            Map<PriorityClass, SojournMonitor> perClass = new EnumMap<>(PriorityClass.class);
+            for (PriorityClass p : PriorityClass.values()) {
+                perClass.put(p, new SojournMonitor(target.toNanos(), interval.toNanos()));
+            }
+            return perClass;
+        }).get(priority);
+        synchronized (monitor) {
+            monitor.record(sojournNanos, System.nanoTime());
+        }
+    }
+
+    /**
+     * @throws FunctionalException with 503 and Retry-After, if the request is to be shed
+     */
+    public void admit(PriorityClass priority) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (int served = 0; served <= priority.ordinal(); served++) {
+            long drain = drainNanos(PriorityClass.values()[served], now);
+            if (drain >= 0) {
+                shed.get(priority).increment();
+                long retryAfter = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(drain + TimeUnit.SECONDS.toNanos(1) - 1));
+                log.debugf("Shedding a %s request, since LLM calls are queueing for more than %s", priority.label(), target);
+                throw new FunctionalException(Response.Status.SERVICE_UNAVAILABLE, ErrorCode.OVERLOADED,
+                    "Too many requests are waiting for the LLM, please try again in " + retryAfter + "s", Duration.ofSeconds(retryAfter));
+            }
+        }
+    }
+
+    /** @return the longest recent wait in an overloaded queue of the class, or -1 if none of them is overloaded */
+    private long drainNanos(PriorityClass priority, long now) {
+        long drain = -1;
+        for (Map<PriorityClass, SojournMonitor> perClass : monitors.values()) {
+            SojournMonitor monitor = perClass.get(priority);
+            synchronized (monitor) {
+                if (monitor.overloaded(now)) {
+                    drain = Math.max(drain, monitor.lastSojournNanos());
+                }
+            }
+        }
+        return drain;
+    }
+}
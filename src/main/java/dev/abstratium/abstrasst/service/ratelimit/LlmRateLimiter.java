@@ -0,0 +1,286 @@
+package dev.abstratium.abstrasst.service.ratelimit;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jboss.logging.Logger;
+
+import dev.abstratium.abstrasst.service.ApproximateTokenCountEstimator;
+import dev.langchain4j.exception.HttpException;
+import dev.langchain4j.exception.RateLimitException;
+import dev.langchain4j.model.TokenCountEstimator;
+import dev.langchain4j.model.chat.listener.ChatModelErrorContext;
+import dev.langchain4j.model.chat.listener.ChatModelListener;
+import dev.langchain4j.model.chat.listener.ChatModelRequestContext;
+import dev.langchain4j.model.chat.listener.ChatModelResponseContext;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.output.TokenUsage;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.Meter;
+import io.vertx.core.Context;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.Response;
+
+/**
+ * Keeps the chat requests of each model within its {@link LlmRateLimits requests-per-minute and tokens-per-minute budget},
+ * so that load is queued here rather than rejected by OpenAI with 429.
+ *
+ * It is a chat model listener, which Quarkus adds to the models of all AI services and agents, and which
+ * {@link dev.abstratium.abstrasst.workflows.ProgrammaticWorkflow} adds to the models it builds, so all of them share one budget
+ * per model. Listeners are called on the calling thread before the request is sent, so a call which does not fit into
+ * the budget waits in {@link #onRequest}, for at most {@code llm.rate-limit.max-wait}. Waiting calls are served by the
+ * {@link PriorityClass} and fair share of their {@link LlmCaller}, see {@link FairQueue}.
+ * A call on an event loop thread is never made to wait; it is charged, and the calls after it wait for it.
+ *
+ * A call is admitted with an estimate of its tokens, its prompt plus its max output tokens, which is also how OpenAI
+ * counts them against its limits. Once the response is there, the estimate is corrected by the actual usage.
+ * When OpenAI rejects a call with 429, no calls of the model are admitted for as long as it asks, from its Retry-After
+ * header or the "try again in" of its message, so that retries, e.g. the {@code @Retry} of an AI service, wait rather than
+ * fail again.
+ */
+@ApplicationScoped
+@Priority(LlmRateLimiter.PRIORITY)
+public class LlmRateLimiter implements ChatModelListener {
+
+    /** before the {@link LlmConcurrencyLimiter}, since listeners with a higher priority are called first */
+    static final int PRIORITY = 20;
+
+    private static final Logger log = Logger.getLogger(LlmRateLimiter.class);
+
+    private static final AttributeKey<String> MODEL = AttributeKey.stringKey("model");
+    private static final AttributeKey<String> RESULT = AttributeKey.stringKey("result");
+    private static final AttributeKey<String> PRIORITY_CLASS = AttributeKey.stringKey("priority");
+
+    /** the name of the queue of this limiter for the {@link LlmLoadShedder} */
+    private static final String QUEUE = "rate_limit";
+
+    private static final String ADMISSION = LlmRateLimiter.class.getName() + ".admission";
+
+    /** e.g. "Please try again in 1.5s", "in 350ms" or "in 1m30s" */
+    private static final Pattern TRY_AGAIN = Pattern.compile("try again in (?:(\\d+)h)?(?:(\\d+)m(?!s))?(?:(\\d+(?:\\.\\d+)?)(ms|s))?");
+
+    private record Admission(ModelBudget budget, int estimatedTokens) {}
+
+    @Inject
+    LlmRateLimits limits;
+
+    @Inject
+    LlmScheduling scheduling;
+
+    @Inject
+    LlmLoadShedder shedder;
+
+    @Inject
+    Meter meter;
+
+    final LongAdder immediate = new LongAdder();
+    final LongAdder delayed = new LongAdder();
+    final LongAdder timedOut = new LongAdder();
+    final LongAdder pauses = new LongAdder();
+
+    private final TokenCountEstimator estimator = new ApproximateTokenCountEstimator();
+
+    private final ConcurrentMap<String, ModelBudget> budgets = new ConcurrentHashMap<>();
+
+    /** the configured model names, longest first, so that the most specific prefix wins */
+    private List<String> configuredModels;
+
+    private DoubleHistogram waits;
+
+    @PostConstruct
+    void init() {
+        configuredModels = new ArrayList<>(limits.models().keySet());
+        configuredModels.sort(Comparator.comparingInt(String::length).reversed().thenComparing(Comparator.naturalOrder()));
+
+        meter.counterBuilder("llm.rate_limit.admissions")
+            .setDescription("Chat requests admitted by the client-side rate limiter, by result (immediate, delayed, timed_out)")
+            .buildWithCallback(m -> {
+                m.record(immediate.sum(), Attributes.of(RESULT, "immediate"));
+                m.record(delayed.sum(), Attributes.of(RESULT, "delayed"));
+                m.record(timedOut.sum(), Attributes.of(RESULT, "timed_out"));
+            });
+        meter.counterBuilder("llm.rate_limit.pauses")
+            .setDescription("Rate limit rejections by OpenAI, after which the model was paused")
+            .buildWithCallback(m -> m.record(pauses.sum()));
+        meter.gaugeBuilder("llm.rate_limit.waiting")
+            .setDescription("Chat requests which are waiting for the budget of their model")
+            .ofLongs()
+            .buildWithCallback(m -> budgets.values().forEach(b -> m.record(b.waiting.get(), Attributes.of(MODEL, b.model))));
+        meter.gaugeBuilder("llm.rate_limit.available_tokens")
+            .setDescription("Tokens left in the tokens-per-minute budget of each model")
+            .ofLongs()
+            .buildWithCallback(m -> budgets.values().forEach(b -> {
+                long available = b.availableTokens();
+                if (available >= 0) {
+                    m.record(available, Attributes.of(MODEL, b.model));
+                }
+            }));
+        waits = meter.histogramBuilder("llm.rate_limit.wait")
+            .setDescription("Time that chat requests waited for the budget of their model, by priority class")
+            .setUnit("ms")
+            .build();
+    }
+
+    @Override
+    public void onRequest(ChatModelRequestContext context) {
+        ChatRequest request = context.chatRequest();
+        if (!limits.enabled() || request.modelName() == null) {
+            return;
+        }
+        ModelBudget budget = budget(request.modelName());
+        int estimated = estimate(request);
+        context.attributes().put(ADMISSION, new Admission(budget, estimated));
+
+        if (Context.isOnEventLoopThread()) {
+            budget.charge(estimated);
+            immediate.increment();
+            return;
+        }
+        LlmCaller caller = LlmCaller.current();
+        long start = System.nanoTime();
+        boolean withinBudget;
+        try {
+            withinBudget = budget.acquire(caller, estimated, start + limits.maxWait().toNanos());
+        } catch (InterruptedException e) {
+            // the call is being cancelled, and will not get far
+            Thread.currentThread().interrupt();
+            budget.charge(estimated);
+            return;
+        }
+        long waited = System.nanoTime() - start;
+        shedder.record(QUEUE, caller.priority(), waited);
+        double waitedMs = waited / 1e6;
+        waits.record(waitedMs, Attributes.of(MODEL, budget.model, PRIORITY_CLASS, caller.priority().label()));
+        if (!withinBudget) {
+            timedOut.increment();
+            log.warnf("A call of %s waited %s for its budget of %d tokens and is sent regardless", budget.model, limits.maxWait(), estimated);
+        } else if (waitedMs >= 1) {
+            delayed.increment();
+        } else {
+            immediate.increment();
+        }
+    }
+
+    @Override
+    public void onResponse(ChatModelResponseContext context) {
+        if (!(context.attributes().get(ADMISSION) instanceof Admission admission)) {
+            return;
+        }
+        TokenUsage usage = context.chatResponse().tokenUsage();
+        if (usage != null && usage.totalTokenCount() != null) {
+            admission.budget().correct(usage.totalTokenCount() - admission.estimatedTokens());
+        }
+    }
+
+    @Override
+    public void onError(ChatModelErrorContext context) {
+        if (!(context.attributes().get(ADMISSION) instanceof Admission admission)) {
+            return;
+        }
+        Duration retryAfter = retryAfter(context.error(), limits.defaultBackoff());
+        if (retryAfter == null) {
+            // the call most likely did not count, but there is no telling how much of it did
+            return;
+        }
+        admission.budget().pauseUntil(System.nanoTime() + retryAfter.toNanos());
+        pauses.increment();
+        log.warnf("OpenAI rate limited %s, no calls of it are sent for %s", admission.budget().model, retryAfter);
+    }
+
+    ModelBudget budget(String model) {
+        String configured = configuredModels.stream().filter(model::startsWith).findFirst().orElse(model);
+        return budgets.computeIfAbsent(configured, name -> {
+            var limit = limits.models().get(name);
+            return new ModelBudget(name,
+                limit == null || limit.requestsPerMinute().isEmpty() ? null : limit.requestsPerMinute().getAsLong(),
+                limit == null || limit.tokensPerMinute().isEmpty() ? null : limit.tokensPerMinute().getAsLong(),
+                scheduling::weight,
+                System.nanoTime());
+        });
+    }
+
+    int estimate(ChatRequest request) {
+        Integer maxOutputTokens = request.maxOutputTokens();
+        return estimator.estimateTokenCountInMessages(request.messages())
+            + (maxOutputTokens != null ? maxOutputTokens : limits.defaultMaxOutputTokens());
+    }
+
+    /**
+     * @return how long to wait before the next call, if the error is a rate limit rejection, otherwise null
+     */
+    static Duration retryAfter(Throwable error, Duration fallback) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof WebApplicationException e && e.getResponse() != null && e.getResponse().getStatus() == 429) {
+                Duration header = fromHeaders(e.getResponse());
+                return header != null ? header : fromMessage(e.getMessage(), fallback);
+            }
+            if (t instanceof HttpException e && e.statusCode() == 429 || t instanceof RateLimitException) {
+                // the REST client of Quarkus passes on the body of the response, but not its headers
+                return fromMessage(t.getMessage(), fallback);
+            }
+        }
+        return null;
+    }
+
+    private static Duration fromHeaders(Response response) {
+        String millis = response.getHeaderString("retry-after-ms");
+        if (millis != null) {
+            try {
+                return Duration.ofMillis((long) Double.parseDouble(millis.strip()));
+            } catch (NumberFormatException e) {
+                // try the standard header
+            }
+        }
+        String retryAfter = response.getHeaderString("Retry-After");
+        if (retryAfter == null) {
+            return null;
+        }
+        try {
+            return Duration.ofSeconds(Long.parseLong(retryAfter.strip()));
+        } catch (NumberFormatException e) {
+            try {
+                Instant at = ZonedDateTime.parse(retryAfter.strip(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+                Duration d = Duration.between(Instant.now(), at);
+                return d.isNegative() ? Duration.ZERO : d;
+            } catch (DateTimeParseException e2) {
+                return null;
+            }
+        }
+    }
+
+    static Duration fromMessage(String message, Duration fallback) {
+        Matcher m = message == null ? null : TRY_AGAIN.matcher(message);
+        if (m == null || !m.find() || (m.group(1) == null && m.group(2) == null && m.group(3) == null)) {
+            return fallback;
+        }
+        double millis = 0;
+        if (m.group(1) != null) {
+            millis += TimeUnit.HOURS.toMillis(Long.parseLong(m.group(1)));
+        }
+        if (m.group(2) != null) {
+            millis += TimeUnit.MINUTES.toMillis(Long.parseLong(m.group(2)));
+        }
+        if (m.group(3) != null) {
+            millis += Double.parseDouble(m.group(3)) * ("s".equals(m.group(4)) ? 1000 : 1);
+        }
+        return Duration.ofMillis((long) Math.ceil(millis));
+    }
+}
@@ -0,0 +1,43 @@
+package dev.abstratium.abstrasst.service.ratelimit;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.OptionalLong;
+
+import io.smallrye.config.ConfigMapping;
+import io.smallrye.config.WithDefault;
+
+/**
+ * Client-side budgets of LLM models, per replica.
+ *
+ * Models are looked up by the name in the request, which matches the longest configured name that it starts with,
+ * like the {@link dev.abstratium.abstrasst.service.LlmPricing prices}. Models without a budget are not throttled,
+ * but are still paused when OpenAI rejects a call with 429.
+ */
+@ConfigMapping(prefix = "llm.rate-limit")
+public interface LlmRateLimits {
+
+    @WithDefault("true")
+    boolean enabled();
+
+    Map<String, ModelLimit> models();
+
+    /** how long a call waits for its budget, after which it is sent anyway, and OpenAI decides */
+    @WithDefault("120s")
+    Duration maxWait();
+
+    /** the output tokens which are reserved for a call which does not set its max tokens */
+    @WithDefault("1000")
+    int defaultMaxOutputTokens();
+
+    /** how long a model is paused after a 429 which does not say when to try again */
+    @WithDefault("1s")
+    Duration defaultBackoff();
+
+    interface ModelLimit {
+
+        OptionalLong tokensPerMinute();
+
+        OptionalLong requestsPerMinute();
+    }
+}
@@ -0,0 +1,30 @@
+package dev.abstratium.abstrasst.service.ratelimit;
+
+import java.util.Map;
+
+import io.smallrye.config.ConfigMapping;
+import io.smallrye.config.WithDefault;
+
+/**
+ * How the calls which wait for the LLM are ordered, see {@link FairQueue}.
+ */
+@ConfigMapping(prefix = "llm.scheduling")
+public interface LlmScheduling {
+
+    /**
+     * the share of the concurrency limit of a model which batch calls may use, so that interactive and standard calls
+     * find a free slot even while batch calls soak up the rest
+     */
+    @WithDefault("0.75")
+    double batchShare();
+
+    /** the weights of users in the fair queueing within a priority class, by the name of their principal */
+    Map<String, Double> userWeights();
+
+    @WithDefault("1")
+    double defaultUserWeight();
+
+    default double weight(String user) {
+        return userWeights().getOrDefault(user, defaultUserWeight());
+    }
+}
@@ -0,0 +1,143 @@
+package dev.abstratium.abstrasst.service.ratelimit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * The requests-per-minute and tokens-per-minute budget of one model, either of which may be unlimited.
+ *
+ * Waiting calls are admitted in the order of the {@link FairQueue}: only the first of them may take from the buckets,
+ * so that a large call is not overtaken by ever more small ones. The first call waits until there is room for it,
+ * in short naps, so that tokens given back by other calls, pauses after a 429, and calls which arrive with a higher
+ * priority and become first, are noticed.
+ */
+final class ModelBudget {
+
+    private static final long MAX_NAP_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    final String model;
+
+    /** null if unlimited */
+    private final TokenBucket requests;
+    private final TokenBucket tokens;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final FairQueue queue;
+
+    /** calls which are waiting for their admission */
+    final AtomicInteger waiting = new AtomicInteger();
+
+    private long pausedUntil;
+
+    ModelBudget(String model, Long requestsPerMinute, Long tokensPerMinute, ToDoubleFunction<String> weights, long now) {
+        this.model = model;
+        this.requests = requestsPerMinute == null ? null : new TokenBucket(requestsPerMinute, now);
+        this.tokens = tokensPerMinute == null ? null : new TokenBucket(tokensPerMinute, now);
+        this.queue = new FairQueue(weights);
+        this.pausedUntil = now;
+    }
+
+    /**
+     * Waits until the budget has room for a call with the given estimated tokens, and takes them.
+     * @param deadline the {@link System#nanoTime()} after which the call is charged and let through regardless
+     * @return true if the call was admitted within the budget, false if it was let through at the deadline
+     */
+    boolean acquire(LlmCaller caller, int estimatedTokens, long deadline) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (queue.isEmpty() && nanosUntil(estimatedTokens, System.nanoTime()) == 0) {
+                take(1, estimatedTokens, System.nanoTime());
+                return true;
+            }
+            var waiter = queue.add(caller);
+            waiting.incrementAndGet();
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    long wait = queue.isFirst(waiter) ? nanosUntil(estimatedTokens, now) : Long.MAX_VALUE;
+                    if (wait == 0) {
+                        take(1, estimatedTokens, now);
+                        return true;
+                    }
+                    long left = deadline - now;
+                    if (left <= 0) {
+                        take(1, estimatedTokens, now);
+                        return false;
+                    }
+                    changed.awaitNanos(Math.min(Math.min(wait, left), MAX_NAP_NANOS));
+                }
+            } finally {
+                waiting.decrementAndGet();
+                queue.remove(waiter);
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** takes the call from the budget without waiting, e.g. on a thread which must not block */
+    void charge(int estimatedTokens) {
+        lock.lock();
+        try {
+            take(1, estimatedTokens, System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** takes the tokens which a call used beyond its estimate, or gives back those it did not use if negative */
+    void correct(int tokenDelta) {
+        lock.lock();
+        try {
+            take(0, tokenDelta, System.nanoTime());
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** admits no calls until the given {@link System#nanoTime()} */
+    void pauseUntil(long until) {
+        lock.lock();
+        try {
+            pausedUntil = Math.max(pausedUntil, until);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** the tokens which are left in the budget, or -1 if it is unlimited */
+    long availableTokens() {
+        lock.lock();
+        try {
+            return tokens == null ? -1 : (long) tokens.tokens(System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long nanosUntil(int estimatedTokens, long now) {
+        long wait = Math.max(0, pausedUntil - now);
+        if (requests != null) {
+            wait = Math.max(wait, requests.nanosUntil(1, now));
+        }
+        if (tokens != null) {
+            wait = Math.max(wait, tokens.nanosUntil(estimatedTokens, now));
+        }
+        return wait;
+    }
+
+    private void take(int calls, int estimatedTokens, long now) {
+        if (requests != null && calls > 0) {
+            requests.take(calls, now);
+        }
+        if (tokens != null) {
+            tokens.take(estimatedTokens, now);
+        }
+    }
+}
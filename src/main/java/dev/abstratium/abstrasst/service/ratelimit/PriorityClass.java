@@ -0,0 +1,23 @@
+package dev.abstratium.abstrasst.service.ratelimit;
+
+import java.util.Locale;
+
+/**
+ * How urgently a caller of the LLM waits for its answer. Waiting calls of a class are served before those of the next one.
+ */
+public enum PriorityClass {
+
+    /** a user is watching the answer arrive, e.g. a streamed poem or a chat */
+    INTERACTIVE,
+
+    /** a user waits for the request to complete, e.g. a workflow run */
+    STANDARD,
+
+    /** nobody is waiting, e.g. jobs, batches and background summaries */
+    BATCH;
+
+    /** the name in metrics */
+    public String label() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
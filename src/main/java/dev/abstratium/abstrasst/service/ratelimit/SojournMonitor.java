@@ -0,0 +1,57 @@
+package dev.abstratium.abstrasst.service.ratelimit;
+
+/**
+ * Tells from the sojourn times of calls in a queue whether the queue is overloaded, like the controller of CoDel.
+ *
+ * A queue whose sojourn time is above the target is not overloaded yet, since a burst takes a while to drain. It is
+ * overloaded once the sojourn time has stayed above the target for a whole interval, i.e. even the shortest sojourn time
+ * of the interval is above it. It recovers with the first call whose sojourn time is below the target, or when no call
+ * has been above the target for an interval, e.g. because new calls are being shed and the queue has drained.
+ *
+ * It is not thread safe.
+ */
+final class SojournMonitor {
+
+    private final long targetNanos;
+    private final long intervalNanos;
+
+    private boolean above;
+    private long firstAboveAt;
+    private long lastAboveAt;
+    private long lastSojournNanos;
+    private boolean overloaded;
+
+    SojournMonitor(long targetNanos, long intervalNanos) {
+        this.targetNanos = targetNanos;
+        this.intervalNanos = intervalNanos;
+    }
+
+    void record(long sojournNanos, long now) {
+        if (sojournNanos < targetNanos) {
+            above = false;
+            overloaded = false;
+            return;
+        }
+        if (!above) {
+            above = true;
+            firstAboveAt = now;
+        } else if (now - firstAboveAt >= intervalNanos) {
+            overloaded = true;
+        }
+        lastAboveAt = now;
+        lastSojournNanos = sojournNanos;
+    }
+
+    boolean overloaded(long now) {
+        if (above && now - lastAboveAt >= intervalNanos) {
+            above = false;
+            overloaded = false;
+        }
+        return overloaded;
+    }
+
+    /** the latest sojourn time above the target, roughly how long the queue takes to drain */
+    long lastSojournNanos() {
+        return lastSojournNanos;
+    }
+}
@@ -0,0 +1,51 @@
+package dev.abstratium.abstrasst.service.ratelimit;
+
+/**
+ * A bucket of tokens which refills continuously, up to its capacity, at the rate of its capacity per minute.
+ *
+ * The bucket may go into debt, when a call used more tokens than were taken for it, in which case the following calls
+ * wait until the debt is paid off. It is not thread safe.
+ */
+final class TokenBucket {
+
+    private final double capacity;
+    private final double perNano;
+
+    private double tokens;
+    private long refilledAt;
+
+    TokenBucket(long perMinute, long now) {
+        this.capacity = perMinute;
+        this.perNano = perMinute / 60e9;
+        this.tokens = perMinute;
+        this.refilledAt = now;
+    }
+
+    /**
+     * @return the nanoseconds until n tokens can be taken, 0 if they can be taken now. More than the capacity can be
+     * taken once the bucket is full, so that a call which is larger than the whole budget is not blocked forever.
+     */
+    long nanosUntil(double n, long now) {
+        refill(now);
+        double missing = Math.min(n, capacity) - tokens;
+        return missing <= 0 ? 0 : (long) Math.ceil(missing / perNano);
+    }
+
+    /** takes n tokens, or gives them back if n is negative */
+    void take(double n, long now) {
+        refill(now);
+        tokens = Math.min(capacity, tokens - n);
+    }
+
+    double tokens(long now) {
+        refill(now);
+        return tokens;
+    }
+
+    private void refill(long now) {
+        if (now > refilledAt) {
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * perNano);
+            refilledAt = now;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package dev.abstratium.abstrasst.workflows;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import dev.abstratium.abstrasst.service.MyAiBriefingService;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Condenses a long meeting document into a briefing, by {@link MapReduce} over its agenda items, so that the board members
+ * are not asked to read the whole document. Short documents are passed on unchanged.
+ */
+@ApplicationScoped
+public class AgendaBriefing {
+
+    /** change this whenever the prompts of the briefing service change, so that cached notes are not reused */
+    private static final String STAGE = "agenda-notes-v1";
+
+    @ConfigProperty(name = "workflow.briefing.max-words-per-chunk", defaultValue = "150")
+    int maxWordsPerChunk;
+
+    @Inject
+    MapReduce mapReduce;
+
+    @Inject
+    MyAiBriefingService briefingService;
+
+    public String brief(String document) {
+        return mapReduce.run(STAGE, document,
+            chunk -> briefingService.summarizeSection(chunk, maxWordsPerChunk),
+            notes -> briefingService.merge(String.join("\n\n---\n\n", notes)));
+    }
+}
@@ -0,0 +1,164 @@
+package dev.abstratium.abstrasst.workflows;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import dev.abstratium.abstrasst.service.cache.SingleFlight;
+import dev.abstratium.abstrasst.service.ratelimit.LlmCaller;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Map-reduce over long markdown documents, which would otherwise be sent to the model whole.
+ *
+ * A document of at least {@code min-chars} is split by the {@link MarkdownChunker}, every chunk is mapped on a virtual thread,
+ * at most {@code max-concurrency} at a time across all runs, and the results are reduced in the order of the chunks.
+ * Shorter documents are returned unchanged.
+ *
+ * The result of mapping a chunk is cached by the hash of the stage and the content of the chunk, so that after an edit
+ * only the chunks which changed are mapped again. As with the response cache, a chunk which is being mapped by
+ * another run is waited for rather than mapped twice, and failures are not cached, see {@link SingleFlight}.
+ * If the run which maps it is cancelled, the runs which waited for it map it themselves.
+ * The stage names the map function and must change whenever its prompt does.
+ */
+@ApplicationScoped
+public class MapReduce {
+
+    private static final AttributeKey<String> RESULT = AttributeKey.stringKey("result");
+
+    @ConfigProperty(name = "workflow.map-reduce.min-chars", defaultValue = "8000")
+    int minChars;
+
+    @ConfigProperty(name = "workflow.map-reduce.chunk-chars", defaultValue = "6000")
+    int chunkChars;
+
+    @ConfigProperty(name = "workflow.map-reduce.max-concurrency", defaultValue = "4")
+    int maxConcurrency;
+
+    @ConfigProperty(name = "workflow.map-reduce.deadline", defaultValue = "300s")
+    Duration deadline;
+
+    @ConfigProperty(name = "workflow.map-reduce.cache.max-entries", defaultValue = "10000")
+    long maxEntries;
+
+    @ConfigProperty(name = "workflow.map-reduce.cache.ttl", defaultValue = "24h")
+    Duration ttl;
+
+    @Inject
+    Meter meter;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder coalesced = new LongAdder();
+
+    private ExecutorService executor;
+    private Semaphore permits;
+    private AsyncCache<String, String> mapped;
+    private SingleFlight<String, String> flights;
+
+    @PostConstruct
+    void init() {
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        permits = new Semaphore(maxConcurrency, true);
+        mapped = Caffeine.newBuilder()
+            .maximumSize(maxEntries)
+            .expireAfterAccess(ttl)
+            .buildAsync();
+        flights = new SingleFlight<>(mapped.asMap());
+
+        meter.counterBuilder("workflow.map_reduce.chunks")
+            .setDescription("Chunks of documents to be mapped, by result (hit, miss, coalesced)")
+            .buildWithCallback(m -> {
+                m.record(hits.sum(), Attributes.of(RESULT, "hit"));
+                m.record(misses.sum(), Attributes.of(RESULT, "miss"));
+                m.record(coalesced.sum(), Attributes.of(RESULT, "coalesced"));
+            });
+    }
+
+    @PreDestroy
+    void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @param stage names the map function, so that the results of different functions are cached apart
+     * @param map what is extracted from a chunk
+     * @param reduce combines the results of all chunks, in the order of the chunks
+     * @return the reduced document, or the document itself if it is short
+     * @throws IllegalStateException if a chunk could not be mapped before the deadline, in which case the others are cancelled
+     */
+    public String run(String stage, String document, Function<String, String> map, Function<List<String>, String> reduce) {
+        if (document.length() < minChars) {
+            return document;
+        }
+        List<Future<String>> futures = new ArrayList<>();
+        for (String chunk : MarkdownChunker.chunk(document, chunkChars)) {
+            futures.add(executor.submit(LlmCaller.propagate(() -> map(stage, chunk, map))));
+        }
+        long end = System.nanoTime() + deadline.toNanos();
+        List<String> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<String> future : futures) {
+                results.add(future.get(Math.max(0, end - System.nanoTime()), TimeUnit.NANOSECONDS));
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to map a chunk of the document", e.getCause());
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("The chunks of the document were not mapped within " + deadline);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while mapping the document", e);
+        } finally {
+            // no-ops for the chunks which are done
+            futures.forEach(f -> f.cancel(true));
+        }
+        return reduce.apply(results);
+    }
+
+    private String map(String stage, String chunk, Function<String, String> map) throws Exception {
+        return flights.get(hash(stage, chunk), () -> {
+            misses.increment();
+            permits.acquire();
+            try {
+                return map.apply(chunk);
+            } finally {
+                permits.release();
+            }
+        }, existing -> (existing.isDone() ? hits : coalesced).increment());
+    }
+
+    static String hash(String stage, String chunk) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(stage.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            return HexFormat.of().formatHex(digest.digest(chunk.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
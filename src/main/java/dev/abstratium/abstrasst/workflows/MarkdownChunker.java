@@ -0,0 +1,120 @@
+package dev.abstratium.abstrasst.workflows;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a markdown document into chunks along its structure, for map-reduce over documents which are too long to send whole.
+ *
+ * Every {@code ##} section is a chunk, prefixed with the {@code #} heading and text of the agenda item it belongs to, so that
+ * each chunk can be understood on its own. A {@code #} section without {@code ##} sections, and the text before the first
+ * heading, are chunks of their own. Sections longer than the maximum are split between paragraphs, or between lines
+ * if a single paragraph is too long. Headings inside fenced code blocks are ignored.
+ *
+ * A chunk only depends on its own section and the heading of its agenda item, never on the size of others, so an edit of
+ * one section leaves the other chunks unchanged, and their cached results can be reused.
+ */
+public final class MarkdownChunker {
+
+    private MarkdownChunker() {
+    }
+
+    public static List<String> chunk(String markdown, int maxChars) {
+        // first the sections, each starting with its heading, then the chunks
+        List<String> sections = new ArrayList<>();
+        StringBuilder section = new StringBuilder();
+        boolean inFence = false;
+        for (String line : markdown.split("\n", -1)) {
+            if (line.strip().startsWith("```")) {
+                inFence = !inFence;
+            } else if (!inFence && (line.startsWith("# ") || line.startsWith("## ")) && section.length() > 0) {
+                sections.add(section.toString());
+                section.setLength(0);
+            }
+            section.append(line).append('\n');
+        }
+        sections.add(section.toString());
+
+        List<String> chunks = new ArrayList<>();
+        String context = "";
+        for (int i = 0; i < sections.size(); i++) {
+            String text = sections.get(i);
+            if (text.startsWith("# ")) {
+                boolean hasSubsections = i + 1 < sections.size() && sections.get(i + 1).startsWith("## ");
+                context = hasSubsections ? text : "";
+                if (!hasSubsections) {
+                    add(chunks, "", text, maxChars);
+                }
+            } else {
+                add(chunks, text.startsWith("## ") ? context : "", text, maxChars);
+            }
+        }
+        return chunks;
+    }
+
+    private static void add(List<String> chunks, String context, String section, int maxChars) {
+        String text = section.strip();
+        if (text.isEmpty()) {
+            return;
+        }
+        String prefix = context.isBlank() ? "" : context.strip() + "\n\n";
+        int room = Math.max(1, maxChars - prefix.length());
+        for (String part : split(text, room)) {
+            chunks.add(prefix + part);
+        }
+    }
+
+    /** splits between paragraphs, and between lines or finally anywhere if that is not enough */
+    private static List<String> split(String text, int maxChars) {
+        List<String> parts = new ArrayList<>();
+        if (text.length() <= maxChars) {
+            parts.add(text);
+            return parts;
+        }
+        StringBuilder part = new StringBuilder();
+        for (String paragraph : text.split("\n\\s*\n")) {
+            List<String> pieces = paragraph.length() <= maxChars ? List.of(paragraph) : splitLines(paragraph, maxChars);
+            for (String piece : pieces) {
+                if (part.length() > 0 && part.length() + 2 + piece.length() > maxChars) {
+                    parts.add(part.toString());
+                    part.setLength(0);
+                }
+                if (part.length() > 0) {
+                    part.append("\n\n");
+                }
+                part.append(piece);
+            }
+        }
+        if (part.length() > 0) {
+            parts.add(part.toString());
+        }
+        return parts;
+    }
+
+    private static List<String> splitLines(String paragraph, int maxChars) {
+        List<String> pieces = new ArrayList<>();
+        StringBuilder piece = new StringBuilder();
+        for (String line : paragraph.split("\n")) {
+            while (line.length() > maxChars) {
+                if (piece.length() > 0) {
+                    pieces.add(piece.toString());
+                    piece.setLength(0);
+                }
+                pieces.add(line.substring(0, maxChars));
+                line = line.substring(maxChars);
+            }
+            if (piece.length() > 0 && piece.length() + 1 + line.length() > maxChars) {
+                pieces.add(piece.toString());
+                piece.setLength(0);
+            }
+            if (piece.length() > 0) {
+                piece.append('\n');
+            }
+            piece.append(line);
+        }
+        if (piece.length() > 0) {
+            pieces.add(piece.toString());
+        }
+        return pieces;
+    }
+}
@@ -0,0 +1,24 @@
+package dev.abstratium.abstrasst.workflows;
+
+/**
+ * An event of a streamed meeting.
+ *
+ * @param type token for a part of the answer of a member, input for the complete answer of a member,
+ *             done for the output of the whole meeting, which is the last event
+ * @param key the output key of the member, i.e. cfoInput, ctoInput or ceoInput, or null when done
+ * @param text the token, the input or the output
+ */
+public record MeetingEvent(String type, String key, String text) {
+
+    public static MeetingEvent token(String key, String token) {
+        return new MeetingEvent("token", key, token);
+    }
+
+    public static MeetingEvent input(String key, String input) {
+        return new MeetingEvent("input", key, input);
+    }
+
+    public static MeetingEvent done(String output) {
+        return new MeetingEvent("done", null, output);
+    }
+}
@@ -1,44 +1,73 @@
 package dev.abstratium.abstrasst.workflows;
 
-import org.jboss.logging.Logger;
-
-import dev.abstratium.abstrasst.agents.MeetingMemberInputsAgent;
-import dev.langchain4j.agentic.agent.AgentRequest;
-import dev.langchain4j.agentic.agent.AgentResponse;
-import dev.langchain4j.agentic.declarative.AfterAgentInvocation;
-import dev.langchain4j.agentic.declarative.BeforeAgentInvocation;
-import dev.langchain4j.agentic.declarative.Output;
-import dev.langchain4j.agentic.declarative.ParallelAgent;
-import dev.langchain4j.service.V;
+import java.time.Duration;
+import java.util.Map;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import dev.abstratium.abstrasst.agents.ResumableCeoAgent;
+import dev.abstratium.abstrasst.agents.ResumableCfoAgent;
+import dev.abstratium.abstrasst.agents.ResumableCtoAgent;
+import dev.abstratium.abstrasst.service.WorkflowCheckpoints;
+import dev.abstratium.abstrasst.workflows.dag.DagExecutor;
+import dev.abstratium.abstrasst.workflows.dag.DagNode;
+import dev.abstratium.abstrasst.workflows.dag.DagResult;
+import dev.abstratium.abstrasst.workflows.dag.DagWorkflow;
+import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
 
+/**
+ * A meeting in which the declarative member agents give their input in parallel.
+ *
+ * The session id is the id of the run. The input of each member is checkpointed as soon as it is there, so that a run
+ * which is started again with the same id only asks the members whose input is missing, see {@link WorkflowCheckpoints}.
+ *
+ * The members are asked by the {@link DagExecutor} rather than by a parallel agent, whose planner waits for every member
+ * and cannot cancel any. Like the {@link ProgrammaticWorkflow}, the meeting has the {@code workflow.meeting.policy} and
+ * deadline: with fail-fast, a failing member cancels the others and fails the run; with best-effort, the run returns
+ * the inputs it has, and marks the others as unavailable.
+ */
 @ApplicationScoped
-public interface MyWorkflow {
+public class MyWorkflow {
 
-    Logger log = Logger.getLogger(MyWorkflow.class.getName());
+    @Inject
+    ResumableCfoAgent cfo;
 
-    @ParallelAgent(
-        name = "Workflow that holds a meeting",
-        description = "This workflow holds a meeting and asks all the members for their input to the current topic",
-        subAgents = {
-            MeetingMemberInputsAgent.class
-        }
-    )
-    public String run(@V("SESSION_ID") String sessionId, @V("topic") String topic);
+    @Inject
+    ResumableCtoAgent cto;
 
-    @Output
-    static String output(@V("meetingMemberInputs") String meetingMemberInputs) {
-        return meetingMemberInputs;
-    }
+    @Inject
+    ResumableCeoAgent ceo;
 
-    @BeforeAgentInvocation
-    static void beforeAgentInvocation(AgentRequest agentRequest) {
-        log.info("Before agent invocation: " + agentRequest);
-    }
+    @Inject
+    DagExecutor dagExecutor;
 
-    @AfterAgentInvocation
-    static void afterAgentInvocation(AgentResponse agentResponse) {
-        log.info("After agent invocation: " + agentResponse);
+    @ConfigProperty(name = "workflow.meeting.policy", defaultValue = "best-effort")
+    DagExecutor.Policy meetingPolicy;
+
+    @ConfigProperty(name = "workflow.meeting.deadline", defaultValue = "90s")
+    Duration meetingDeadline;
+
+    private DagWorkflow meeting;
+
+    @PostConstruct
+    void init() {
+        meeting = DagWorkflow.of(
+            DagNode.of(ProgrammaticWorkflow.CFO.outputKey(), in -> cfo.run((String) in.get("sessionId"), (String) in.get("topic")))
+                .requires("sessionId", "topic"),
+            DagNode.of(ProgrammaticWorkflow.CTO.outputKey(), in -> cto.run((String) in.get("sessionId"), (String) in.get("topic")))
+                .requires("sessionId", "topic"),
+            DagNode.of(ProgrammaticWorkflow.CEO.outputKey(), in -> ceo.run((String) in.get("sessionId"), (String) in.get("topic")))
+                .requires("sessionId", "topic"));
     }
 
+    public String run(String sessionId, String topic) {
+        DagResult result = dagExecutor.run(meeting, Map.of("topic", topic, "sessionId", sessionId), meetingPolicy, meetingDeadline);
+        if (meetingPolicy == DagExecutor.Policy.FAIL_FAST && !result.complete()) {
+            throw new IllegalStateException("The meeting failed: " + result.failures() + ", cancelled: " + result.cancelled());
+        }
+        // with best effort, the members who failed or ran out of time are marked as unavailable
+        return ProgrammaticWorkflow.output(topic, result.outputs()::get);
+    }
 }
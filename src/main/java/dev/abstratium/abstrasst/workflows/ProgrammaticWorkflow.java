@@ -1,99 +1,350 @@
 package dev.abstratium.abstrasst.workflows;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import dev.abstratium.abstrasst.agents.CeoAgent;
 import dev.abstratium.abstrasst.agents.CeoAgent2;
+import dev.abstratium.abstrasst.agents.CfoAgent;
 import dev.abstratium.abstrasst.agents.CfoAgent2;
+import dev.abstratium.abstrasst.agents.CtoAgent;
 import dev.abstratium.abstrasst.agents.CtoAgent2;
 import dev.abstratium.abstrasst.service.MyChatModelListener;
+import dev.abstratium.abstrasst.service.UsageLedger;
+import dev.abstratium.abstrasst.service.ratelimit.LlmCaller;
+import dev.abstratium.abstrasst.service.ratelimit.LlmConcurrencyLimiter;
+import dev.abstratium.abstrasst.service.ratelimit.LlmRateLimiter;
+import dev.abstratium.abstrasst.workflows.dag.DagExecutor;
+import dev.abstratium.abstrasst.workflows.dag.DagNode;
+import dev.abstratium.abstrasst.workflows.dag.DagResult;
+import dev.abstratium.abstrasst.workflows.dag.DagWorkflow;
 import dev.langchain4j.agentic.AgenticServices;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import dev.langchain4j.model.chat.response.StreamingHandle;
 import dev.langchain4j.model.openai.OpenAiChatModel;
+import dev.langchain4j.model.openai.OpenAiStreamingChatModel;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import io.smallrye.mutiny.subscription.MultiEmitter;
+import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
 
+/**
+ * A meeting of the CFO, CTO and CEO agents, built in code rather than declaratively.
+ *
+ * The chat model and the agents are built once, on first use, and shared by all runs, since they hold no state of a run.
+ * Its calls share the budget and the concurrency limit of the model with the AI services, see {@link LlmRateLimiter}
+ * and {@link LlmConcurrencyLimiter}.
+ * The members are asked in parallel by the {@link DagExecutor}, with the {@code workflow.meeting.policy} and deadline:
+ * with fail-fast, a failing member cancels the others and fails the run; with best-effort, the run returns the inputs
+ * it has, and marks the others as unavailable. The usage of a run is accounted to its own session by the shared listener,
+ * which finds the session of the current thread when a call starts; each node sets it on its thread.
+ *
+ * The {@link #minutes(String) minutes} of a meeting are a {@link DagWorkflow}, in which the secretary waits for the members.
+ *
+ * A long topic, such as a whole meeting document, is first condensed by the {@link AgendaBriefing}, so that each member
+ * reads the briefing rather than the document.
+ */
 @ApplicationScoped
 public class ProgrammaticWorkflow {
 
+    /** the session of the run on the current thread */
+    private static final ThreadLocal<String> SESSION_ID = new ThreadLocal<>();
+
+    record Member(String title, String outputKey, String systemMessage) {}
+
+    // the prompts of the declarative agents, so that all the meetings ask the same questions
+    static final Member CFO = new Member("CFO", "cfoInput", CfoAgent.SYSTEM_MESSAGE);
+
+    static final Member CTO = new Member("CTO", "ctoInput", CtoAgent.SYSTEM_MESSAGE);
+
+    static final Member CEO = new Member("CEO", "ceoInput", CeoAgent.SYSTEM_MESSAGE);
+
+    static final List<Member> MEMBERS = List.of(CFO, CTO, CEO);
+
+    static final String SECRETARY = """
+        You are the secretary of the board of a small company that develops software and simple hardware products.
+        You write the minutes of the meeting: summarise the input of each member to the topic in a few sentences,
+        and list the decisions and open questions. If the input of a member is unavailable, say so.
+        """;
+
+    @Inject
+    UsageLedger usageLedger;
+
+    @Inject
+    LlmRateLimiter rateLimiter;
+
+    @Inject
+    LlmConcurrencyLimiter concurrencyLimiter;
+
+    @Inject
+    DagExecutor dagExecutor;
+
+    @Inject
+    AgendaBriefing agendaBriefing;
+
+    @ConfigProperty(name = "workflow.meeting.policy", defaultValue = "best-effort")
+    DagExecutor.Policy meetingPolicy;
+
+    @ConfigProperty(name = "workflow.meeting.deadline", defaultValue = "90s")
+    Duration meetingDeadline;
+
+    /** the same endpoint as the models of the AI services, so that all of them can be pointed at a stand-in */
+    @ConfigProperty(name = "quarkus.langchain4j.openai.base-url", defaultValue = "https://api.openai.com/v1/")
+    String baseUrl;
+
+    private volatile ChatModel model;
+
+    /** the members in parallel */
+    private volatile DagWorkflow meeting;
+
+    /** the members in parallel, then the secretary, who writes the minutes from whatever input there is */
+    private DagWorkflow minutesWorkflow;
+
+    private volatile StreamingChatModel streamingModel;
+
+    @PostConstruct
+    void init() {
+        List<DagNode> nodes = new ArrayList<>();
+        for (Member member : MEMBERS) {
+            nodes.add(DagNode.of(member.outputKey(), in -> ask(in.get("sessionId"), member.systemMessage(), (String) in.get("topic")))
+                .requires("sessionId", "topic"));
+        }
+        nodes.add(DagNode.of("minutes", in -> ask(in.get("sessionId"), SECRETARY, output(in.get("topic"), in::get)))
+            .requires("sessionId", "topic")
+            .optionally(MEMBERS.stream().map(Member::outputKey).toArray(String[]::new)));
+        minutesWorkflow = DagWorkflow.of(nodes);
+    }
+
     public String run(String topic) {
 
         // TODO memory
         // TODO context?
 
-        ChatModel model = OpenAiChatModel.builder()
+        topic = agendaBriefing.brief(topic);
+        DagResult result = dagExecutor.run(meeting(), Map.of("topic", topic, "sessionId", UUID.randomUUID().toString()),
+            meetingPolicy, meetingDeadline);
+        if (meetingPolicy == DagExecutor.Policy.FAIL_FAST && !result.complete()) {
+            throw new IllegalStateException("The meeting failed: " + result.failures() + ", cancelled: " + result.cancelled());
+        }
+        // with best effort, the members who failed or ran out of time are marked as unavailable
+        return output(topic, result.outputs()::get);
+    }
+
+    /**
+     * Like {@link #run(String)}, but streams the tokens of each member as they arrive, the input of each member as soon
+     * as it is complete, and finally the same output as the run. The members are asked directly, with the same prompts
+     * as their agents, since an agent only returns its answer once it is complete. If a member fails or the client goes
+     * away, the streams of the others are cancelled right away.
+     */
+    public Multi<MeetingEvent> stream(String topic) {
+        // briefing blocks, and a stream is subscribed to on the event loop, so the caller is taken along to both
+        LlmCaller caller = LlmCaller.current();
+        return Uni.createFrom().item(() -> caller.get(() -> agendaBriefing.brief(topic)))
+            .runSubscriptionOn(Infrastructure.getDefaultWorkerPool())
+            .onItem().transformToMulti(briefing -> caller.subscribe(stream(streamingModel(), briefing, UUID.randomUUID().toString())));
+    }
+
+    static Multi<MeetingEvent> stream(StreamingChatModel model, String topic, String sessionId) {
+        return Multi.createFrom().emitter(emitter -> {
+            Map<String, String> inputs = new ConcurrentHashMap<>();
+            AtomicInteger remaining = new AtomicInteger(MEMBERS.size());
+            AtomicBoolean cancelled = new AtomicBoolean();
+            // the streams which are still running, known from their first token on
+            Map<String, StreamingHandle> running = new ConcurrentHashMap<>();
+            emitter.onTermination(() -> {
+                // the client went away, or another member failed, so stop paying for tokens nobody reads
+                cancelled.set(true);
+                running.values().forEach(StreamingHandle::cancel);
+            });
+
+            SESSION_ID.set(sessionId);
+            try {
+                for (Member member : MEMBERS) {
+                    var request = ChatRequest.builder()
+                        .messages(SystemMessage.from(member.systemMessage()), UserMessage.from(topic))
+                        .build();
+                    model.chat(request, new StreamingChatResponseHandler() {
+
+                        @Override
+                        public void onPartialResponse(PartialResponse partialResponse, PartialResponseContext context) {
+                            running.putIfAbsent(member.outputKey(), context.streamingHandle());
+                            if (cancelled.get()) {
+                                // terminated before the stream had a handle
+                                context.streamingHandle().cancel();
+                                return;
+                            }
+                            emit(emitter, MeetingEvent.token(member.outputKey(), partialResponse.text()));
+                        }
+
+                        @Override
+                        public void onCompleteResponse(ChatResponse response) {
+                            running.remove(member.outputKey());
+                            String input = response.aiMessage().text();
+                            inputs.put(member.outputKey(), input);
+                            emit(emitter, MeetingEvent.input(member.outputKey(), input));
+                            if (remaining.decrementAndGet() == 0) {
+                                emit(emitter, MeetingEvent.done(output(topic, inputs::get)));
+                                emitter.complete();
+                            }
+                        }
+
+                        @Override
+                        public void onError(Throwable error) {
+                            running.remove(member.outputKey());
+                            emitter.fail(error);
+                        }
+                    });
+                }
+            } finally {
+                SESSION_ID.remove();
+            }
+        });
+    }
+
+    /** the members answer on different threads, and the events must not be emitted concurrently */
+    private static void emit(MultiEmitter<? super MeetingEvent> emitter, MeetingEvent event) {
+        synchronized (emitter) {
+            emitter.emit(event);
+        }
+    }
+
+    static String output(Object topic, Function<String, Object> inputs) {
+        var sb = new StringBuilder("Topic: ").append(topic);
+        for (Member member : MEMBERS) {
+            Object input = inputs.apply(member.outputKey());
+            sb.append("\n").append(member.title()).append(" Input: ").append(input != null ? input : "unavailable");
+        }
+        return sb.toString();
+    }
+
+    private StreamingChatModel streamingModel() {
+        StreamingChatModel m = streamingModel;
+        if (m == null) {
+            synchronized (this) {
+                m = streamingModel;
+                if (m == null) {
+                    m = streamingModel = OpenAiStreamingChatModel.builder()
+                        .baseUrl(baseUrl)
+                        .apiKey(System.getenv("OPENAI_API_KEY"))
+                        .modelName("gpt-4.1-nano")
+                        .maxTokens(300)
+                        .listeners(List.of(rateLimiter, concurrencyLimiter, new MyChatModelListener(SESSION_ID::get, usageLedger)))
+                        .build();
+                }
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Asks the members for their input and then has the secretary write the minutes. If the input of a member is missing,
+     * the minutes are written without it; if the minutes are missing, the inputs which exist are returned instead.
+     */
+    public String minutes(String topic) {
+        topic = agendaBriefing.brief(topic);
+        DagResult result = dagExecutor.run(minutesWorkflow, Map.of("topic", topic, "sessionId", UUID.randomUUID().toString()));
+        String minutes = result.get("minutes");
+        return minutes != null ? minutes : output(topic, result.outputs()::get);
+    }
+
+    private String ask(Object sessionId, String systemMessage, String userMessage) {
+        return inSession(sessionId, () -> model().chat(SystemMessage.from(systemMessage), UserMessage.from(userMessage)).aiMessage().text());
+    }
+
+    /** runs the call with the given session, since the nodes of a workflow run on threads of their own */
+    private static String inSession(Object sessionId, Supplier<String> call) {
+        SESSION_ID.set((String) sessionId);
+        try {
+            return call.get();
+        } finally {
+            SESSION_ID.remove();
+        }
+    }
+
+    DagWorkflow meeting() {
+        DagWorkflow m = meeting;
+        if (m == null) {
+            synchronized (this) {
+                m = meeting;
+                if (m == null) {
+                    m = meeting = buildMeeting(model());
+                }
+            }
+        }
+        return m;
+    }
+
+    ChatModel model() {
+        ChatModel m = model;
+        if (m == null) {
+            synchronized (this) {
+                m = model;
+                if (m == null) {
+                    m = model = buildModel();
+                }
+            }
+        }
+        return m;
+    }
+
+    ChatModel buildModel() {
+        return OpenAiChatModel.builder()
+            .baseUrl(baseUrl)
             .apiKey(System.getenv("OPENAI_API_KEY"))
             .modelName("gpt-4.1-nano")
             .maxTokens(300)
-            .listeners(List.of(new MyChatModelListener(UUID.randomUUID().toString())))
+            .listeners(List.of(rateLimiter, concurrencyLimiter, new MyChatModelListener(SESSION_ID::get, usageLedger)))
             .build();
+    }
 
+    static DagWorkflow buildMeeting(ChatModel model) {
         var cfo = AgenticServices.agentBuilder(CfoAgent2.class)
                             .chatModel(model)
-                            .systemMessageProvider((memoryId) -> {
-                                return """
-                                        You are the CFO of a small company that develops software and simple hardware products.
-                                        You are asked to give your input to the current topic and must comment on the topic from a financial perspective.
-                                        Your strategic goals are:
-                                        - Increase the company's revenue by 20% in the next 6 months
-                                        - Reduce the company's expenses by 10% in the next 6 months
-                                        """.stripIndent();
-                            })
-                            .outputKey("cfoInput")
+                            .systemMessageProvider(memoryId -> CFO.systemMessage())
+                            .outputKey(CFO.outputKey())
                             .name("Chief Financial Officer")
                             .description("This agent gives financial input to the current topic")
                             .build();
         var cto = AgenticServices.agentBuilder(CtoAgent2.class)
                             .chatModel(model)
-                            .systemMessageProvider((memoryId) -> {
-                                return """
-                                        You are the CTO of a small company that develops software and simple hardware products.
-                                        You are asked to give your input to the current topic and must comment on the topic from a technical perspective.
-                                        Your strategic goals are:
-                                        - Ensure that the company can deliver high quality products 
-                                        - Ensure that the company can deliver products on time
-                                        - Ensure that the company can deliver products with a low cost
-                                        - Ensure that the company can deliver products with a low risk
-                                        - Ensure that the company can remain innovative
-                                        - Ensure that the company can deliver products with a low complexity
-                                        - Ensure that the company can deliver new products
-                                        """.stripIndent();
-                            })
-                            .outputKey("ctoInput")
+                            .systemMessageProvider(memoryId -> CTO.systemMessage())
+                            .outputKey(CTO.outputKey())
                             .name("Chief Technical Officer")
                             .description("This agent gives technical input to the current topic")
                             .build();
 
         var ceo = AgenticServices.agentBuilder(CeoAgent2.class)
                             .chatModel(model)
-                            .systemMessageProvider((memoryId) -> {
-                                return """
-                                        You are the CEO of a small company that develops software and simple hardware products.
-                                        You are asked to give your input to the current topic and must comment on the topic from a business perspective.
-                                        Your strategic goals are:
-                                        - Ensure that the company goals are met
-                                        - Ensure that the company is profitable
-                                        - Ensure that the company is sustainable
-                                        """.stripIndent();
-                            })
-                            .outputKey("ceoInput")
+                            .systemMessageProvider(memoryId -> CEO.systemMessage())
+                            .outputKey(CEO.outputKey())
                             .name("Chief Executive Officer")
                             .description("This agent gives business input to the current topic")
                             .build();
 
-        var parallelAgentBuilder = AgenticServices.parallelBuilder();
-        Object[] meetingMembers = {cfo, cto, ceo};
-        parallelAgentBuilder.subAgents(meetingMembers);
-        parallelAgentBuilder.outputKey("meetingMemberInputs");
-        parallelAgentBuilder.name("Meeting Member Inputs Agent");
-        parallelAgentBuilder.description("This agent asks all the meeting members for their input to the current topic");
-        parallelAgentBuilder.output((scope) -> {
-            return "Topic: " + scope.readState("topic") + "\n" + "CFO Input: " + scope.readState("cfoInput") + "\n" + "CTO Input: " + scope.readState("ctoInput") + "\n" + "CEO Input: " + scope.readState("ceoInput");
-        });
-        var parallelAgent = parallelAgentBuilder.build();
-
-        var result = parallelAgent.invokeWithAgenticScope(Map.of("topic", topic, "sessionId", UUID.randomUUID().toString()));
-
-        return result.result();
+        return DagWorkflow.of(
+            DagNode.of(CFO.outputKey(), in -> inSession(in.get("sessionId"), () -> cfo.run((String) in.get("topic")))).requires("sessionId", "topic"),
+            DagNode.of(CTO.outputKey(), in -> inSession(in.get("sessionId"), () -> cto.run((String) in.get("topic")))).requires("sessionId", "topic"),
+            DagNode.of(CEO.outputKey(), in -> inSession(in.get("sessionId"), () -> ceo.run((String) in.get("topic")))).requires("sessionId", "topic"));
     }
 }
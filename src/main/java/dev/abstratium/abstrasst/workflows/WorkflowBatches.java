@@ -0,0 +1,166 @@
+package dev.abstratium.abstrasst.workflows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import dev.abstratium.abstrasst.service.ratelimit.LlmCaller;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.subscription.MultiEmitter;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Runs a workflow over many topics at once, and emits each result as soon as it is there, in the order of completion.
+ *
+ * Every topic runs on a virtual thread, but at most {@code max-concurrency} topics run at the same time, across all batches,
+ * so that large batches are bounded by the rate limit of the model rather than by round trips of the client, without
+ * starving everybody else. The permits are fair, so concurrent batches take turns. A topic which fails is emitted with
+ * its error and does not stop the others. If the client goes away, the topics which are still waiting or running are cancelled.
+ */
+@ApplicationScoped
+public class WorkflowBatches {
+
+    private static final Logger log = Logger.getLogger(WorkflowBatches.class);
+
+    private static final AttributeKey<String> RESULT = AttributeKey.stringKey("result");
+
+    /**
+     * @param index the position of the topic in the batch
+     * @param result the output of the workflow, or null if it failed
+     * @param error why the workflow failed, or null
+     */
+    public record Item(int index, String result, String error) {}
+
+    @ConfigProperty(name = "workflow.batch.max-concurrency", defaultValue = "4")
+    int maxConcurrency;
+
+    @ConfigProperty(name = "workflow.batch.max-topics", defaultValue = "100")
+    int maxTopics;
+
+    @Inject
+    WorkflowRunner runner;
+
+    @Inject
+    Meter meter;
+
+    final LongAdder succeeded = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final LongAdder cancelled = new LongAdder();
+
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private ExecutorService executor;
+    private Semaphore permits;
+
+    @PostConstruct
+    void init() {
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        permits = new Semaphore(maxConcurrency, true);
+
+        meter.counterBuilder("workflow.batch.topics")
+            .setDescription("Topics of workflow batches, by result (succeeded, failed, cancelled)")
+            .buildWithCallback(m -> {
+                m.record(succeeded.sum(), Attributes.of(RESULT, "succeeded"));
+                m.record(failed.sum(), Attributes.of(RESULT, "failed"));
+                m.record(cancelled.sum(), Attributes.of(RESULT, "cancelled"));
+            });
+        meter.gaugeBuilder("workflow.batch.waiting")
+            .setDescription("Topics of workflow batches which wait for a free slot")
+            .ofLongs()
+            .buildWithCallback(m -> m.record(waiting.get()));
+    }
+
+    @PreDestroy
+    void close() {
+        executor.shutdownNow();
+    }
+
+    public int maxTopics() {
+        return maxTopics;
+    }
+
+    public Multi<Item> run(WorkflowKind kind, List<String> topics) {
+        return Multi.createFrom().emitter(emitter -> {
+            List<Future<?>> futures = new ArrayList<>(topics.size());
+            AtomicInteger remaining = new AtomicInteger(topics.size());
+            emitter.onTermination(() -> {
+                synchronized (futures) {
+                    // no-ops for the topics which are done
+                    futures.forEach(f -> f.cancel(true));
+                }
+            });
+            if (topics.isEmpty()) {
+                emitter.complete();
+                return;
+            }
+            synchronized (futures) {
+                for (int i = 0; i < topics.size(); i++) {
+                    int index = i;
+                    futures.add(executor.submit(LlmCaller.propagate(() -> {
+                        try {
+                            Item item = runOne(kind, index, topics.get(index));
+                            if (item != null) {
+                                emit(emitter, item);
+                            }
+                        } finally {
+                            // whatever happened to the topic, the stream must not wait for it forever
+                            if (remaining.decrementAndGet() == 0) {
+                                emitter.complete();
+                            }
+                        }
+                    })));
+                }
+            }
+        });
+    }
+
+    /** @return the item, or null if it was cancelled */
+    private Item runOne(WorkflowKind kind, int index, String topic) {
+        waiting.incrementAndGet();
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            cancelled.increment();
+            return null;
+        } finally {
+            waiting.decrementAndGet();
+        }
+        try {
+            String result = runner.run(kind, UUID.randomUUID().toString(), topic);
+            succeeded.increment();
+            return new Item(index, result, null);
+        } catch (RuntimeException | Error e) {
+            if (Thread.currentThread().isInterrupted()) {
+                cancelled.increment();
+                return null;
+            }
+            failed.increment();
+            log.warnf(e, "Topic %d of a workflow batch failed", index);
+            return new Item(index, null, String.valueOf(e.getMessage()));
+        } finally {
+            permits.release();
+        }
+    }
+
+    /** the topics complete on different threads, and the items must not be emitted concurrently */
+    private static void emit(MultiEmitter<? super Item> emitter, Item item) {
+        synchronized (emitter) {
+            emitter.emit(item);
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package dev.abstratium.abstrasst.workflows;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import dev.abstratium.abstrasst.entity.WorkflowJob;
+import dev.abstratium.abstrasst.service.ratelimit.LlmCaller;
+import dev.abstratium.abstrasst.service.ratelimit.PriorityClass;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.Meter;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.scheduler.Scheduled;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.Transactional;
+
+/**
+ * Runs workflows as jobs, so that the client gets a job id right away instead of holding a request open for the whole run.
+ *
+ * Jobs are queued in the database, so that they survive restarts and are shared by all replicas. Each replica runs at most
+ * {@code workers} jobs at a time on virtual threads. A free worker claims the oldest queued job with a conditional update,
+ * so that no two workers run the same job. Workers look for jobs right after a submission, after each job they finish,
+ * and every {@code poll-interval}, which picks up jobs submitted to other replicas.
+ *
+ * A replica writes a heartbeat for the jobs it runs. A running job whose heartbeat is older than {@code stale-after}
+ * belonged to a replica which died, and is queued again, up to {@code max-attempts} times. On shutdown, the jobs
+ * which are running are queued again right away. A declarative workflow uses the job id as its run id, so a job which
+ * runs again resumes from its checkpoints. Finished jobs are deleted after {@code retention}.
+ */
+@ApplicationScoped
+public class WorkflowJobs {
+
+    private static final Logger log = Logger.getLogger(WorkflowJobs.class);
+
+    private static final AttributeKey<String> RESULT = AttributeKey.stringKey("result");
+
+    public enum Status {
+        QUEUED, RUNNING, SUCCEEDED, FAILED;
+
+        public boolean done() {
+            return this == SUCCEEDED || this == FAILED;
+        }
+    }
+
+    public record Job(String id, WorkflowKind kind, Status status, String result, String error, int attempts,
+                      Instant createdAt, Instant startedAt, Instant finishedAt) {
+
+        static Job of(WorkflowJob job) {
+            return new Job(job.getJobId(), WorkflowKind.valueOf(job.getKind()), Status.valueOf(job.getStatus()), job.getResult(),
+                job.getError(), job.getAttempts(), job.getCreatedAt(), job.getStartedAt(), job.getFinishedAt());
+        }
+    }
+
+    record Claimed(String id, WorkflowKind kind, String topic, String submittedBy) {}
+
+    @ConfigProperty(name = "workflow.jobs.workers", defaultValue = "4")
+    int workers;
+
+    @ConfigProperty(name = "workflow.jobs.poll-interval", defaultValue = "2s")
+    Duration pollInterval;
+
+    @ConfigProperty(name = "workflow.jobs.stale-after", defaultValue = "2m")
+    Duration staleAfter;
+
+    @ConfigProperty(name = "workflow.jobs.max-attempts", defaultValue = "3")
+    int maxAttempts;
+
+    @ConfigProperty(name = "workflow.jobs.retention", defaultValue = "7d")
+    Duration retention;
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    Meter meter;
+
+    @Inject
+    WorkflowRunner runner;
+
+    final LongAdder succeeded = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final LongAdder requeued = new LongAdder();
+
+    /** the number of queued jobs of all replicas, as of the last poll */
+    private final AtomicLong queued = new AtomicLong();
+
+    /** the jobs which run on this replica */
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+
+    private ExecutorService executor;
+    private Semaphore permits;
+    private DoubleHistogram waits;
+    private volatile boolean stopping;
+
+    @PostConstruct
+    void init() {
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        permits = new Semaphore(workers);
+
+        meter.gaugeBuilder("workflow.jobs.queued")
+            .setDescription("Workflow jobs which wait for a worker, on all replicas")
+            .ofLongs()
+            .buildWithCallback(m -> m.record(queued.get()));
+        meter.gaugeBuilder("workflow.jobs.running")
+            .setDescription("Workflow jobs which run on this replica")
+            .ofLongs()
+            .buildWithCallback(m -> m.record(running.size()));
+        meter.counterBuilder("workflow.jobs.finished")
+            .setDescription("Workflow jobs which ended on this replica, by result (succeeded, failed, requeued)")
+            .buildWithCallback(m -> {
+                m.record(succeeded.sum(), Attributes.of(RESULT, "succeeded"));
+                m.record(failed.sum(), Attributes.of(RESULT, "failed"));
+                m.record(requeued.sum(), Attributes.of(RESULT, "requeued"));
+            });
+        waits = meter.histogramBuilder("workflow.jobs.wait")
+            .setDescription("Time from the submission of a workflow job until a worker started it")
+            .setUnit("ms")
+            .build();
+    }
+
+    /**
+     * Queues the job and returns it right away.
+     * @param submittedBy the user, as whom the job calls the LLM with batch priority, so that it only takes from their fair share
+     */
+    public Job submit(WorkflowKind kind, String topic, String submittedBy) {
+        Job job = insert(kind, topic, submittedBy);
+        try {
+            executor.execute(this::dispatch);
+        } catch (RuntimeException e) {
+            // rejected during shutdown, another replica or the next start will run it
+        }
+        return job;
+    }
+
+    @Transactional
+    public Optional<Job> find(String id) {
+        return Optional.ofNullable(em.find(WorkflowJob.class, id)).map(Job::of);
+    }
+
+    /** the job, unless it was submitted by another user, so that nobody sees the jobs of others */
+    @Transactional
+    public Optional<Job> find(String id, String submittedBy) {
+        return Optional.ofNullable(em.find(WorkflowJob.class, id))
+            .filter(job -> job.getSubmittedBy().equals(submittedBy))
+            .map(Job::of);
+    }
+
+    /**
+     * The job every {@code poll-interval} while it changes, until it is done, unless it was submitted by another user.
+     * The database is polled, since the job may run on another replica.
+     */
+    public Multi<Job> watch(String id, String submittedBy) {
+        return watch(() -> find(id, submittedBy).orElseThrow(), pollInterval);
+    }
+
+    static Multi<Job> watch(Supplier<Job> poll, Duration interval) {
+        return Uni.createFrom().item(poll)
+            .runSubscriptionOn(Infrastructure.getDefaultWorkerPool())
+            .repeat().withDelay(interval).whilst(job -> !job.status().done())
+            .skip().repetitions();
+    }
+
+    @Transactional
+    Job insert(WorkflowKind kind, String topic, String submittedBy) {
+        var job = new WorkflowJob();
+        job.setJobId(UUID.randomUUID().toString());
+        job.setKind(kind.name());
+        job.setTopic(topic);
+        job.setSubmittedBy(submittedBy);
+        job.setStatus(Status.QUEUED.name());
+        job.setCreatedAt(Instant.now());
+        em.persist(job);
+        return Job.of(job);
+    }
+
+    /** claims and starts queued jobs until there are no free workers or no more jobs */
+    void dispatch() {
+        while (!stopping && permits.tryAcquire()) {
+            Claimed job;
+            try {
+                job = claimNext();
+            } catch (RuntimeException e) {
+                permits.release();
+                log.warnf(e, "Failed to claim a workflow job, trying again with the next poll");
+                return;
+            }
+            if (job == null) {
+                permits.release();
+                return;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        execute(job);
+                    } finally {
+                        permits.release();
+                    }
+                    dispatch();
+                });
+            } catch (RuntimeException e) {
+                // rejected during shutdown, the job is queued again by onStop
+                permits.release();
+                return;
+            }
+        }
+    }
+
+    @Transactional
+    Claimed claimNext() {
+        List<String> ids = em.createQuery("SELECT j.jobId FROM WorkflowJob j WHERE j.status = :queued ORDER BY j.createdAt", String.class)
+            .setParameter("queued", Status.QUEUED.name())
+            .setMaxResults(10)
+            .getResultList();
+        Instant now = Instant.now();
+        for (String id : ids) {
+            // another worker may have claimed it since it was read
+            int claimed = em.createQuery("""
+                    UPDATE WorkflowJob j SET j.status = :running, j.startedAt = :now, j.heartbeatAt = :now, j.attempts = j.attempts + 1
+                    WHERE j.jobId = :id AND j.status = :queued""")
+                .setParameter("running", Status.RUNNING.name())
+                .setParameter("queued", Status.QUEUED.name())
+                .setParameter("now", now)
+                .setParameter("id", id)
+                .executeUpdate();
+            if (claimed == 1) {
+                var job = em.find(WorkflowJob.class, id);
+                waits.record(Duration.between(job.getCreatedAt(), now).toMillis());
+                return new Claimed(id, WorkflowKind.valueOf(job.getKind()), job.getTopic(), job.getSubmittedBy());
+            }
+        }
+        return null;
+    }
+
+    private void execute(Claimed job) {
+        running.add(job.id());
+        try {
+            String result = new LlmCaller(job.submittedBy(), PriorityClass.BATCH).get(() -> runner.run(job.kind(), job.id(), job.topic()));
+            finish(job.id(), Status.SUCCEEDED, result, null);
+            succeeded.increment();
+        } catch (RuntimeException e) {
+            if (stopping) {
+                // interrupted by the shutdown, and queued again by onStop
+                return;
+            }
+            log.warnf(e, "Workflow job %s failed", job.id());
+            String error = String.valueOf(e.getMessage());
+            try {
+                finish(job.id(), Status.FAILED, null, error.length() > 1000 ? error.substring(0, 1000) : error);
+                failed.increment();
+            } catch (RuntimeException e2) {
+                // the heartbeat stops, so the job is queued again once it is stale
+                log.warnf(e2, "Failed to mark workflow job %s as failed", job.id());
+            }
+        } finally {
+            running.remove(job.id());
+        }
+    }
+
+    @Transactional
+    void finish(String id, Status status, String result, String error) {
+        var job = em.find(WorkflowJob.class, id);
+        job.setStatus(status.name());
+        job.setResult(result);
+        job.setError(error);
+        job.setFinishedAt(Instant.now());
+    }
+
+    @Scheduled(every = "${workflow.jobs.poll-interval:2s}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void poll() {
+        try {
+            queued.set(countQueued());
+        } catch (RuntimeException e) {
+            log.warnf(e, "Failed to count the queued workflow jobs");
+        }
+        dispatch();
+    }
+
+    @Transactional
+    long countQueued() {
+        return em.createQuery("SELECT COUNT(j) FROM WorkflowJob j WHERE j.status = :queued", Long.class)
+            .setParameter("queued", Status.QUEUED.name())
+            .getSingleResult();
+    }
+
+    @Scheduled(every = "${workflow.jobs.heartbeat-interval:30s}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void maintain() {
+        Instant now = Instant.now();
+        heartbeat(now);
+        requeueStale(now.minus(staleAfter), now);
+        purge(now.minus(retention));
+    }
+
+    @Transactional
+    void heartbeat(Instant now) {
+        if (running.isEmpty()) {
+            return;
+        }
+        em.createQuery("UPDATE WorkflowJob j SET j.heartbeatAt = :now WHERE j.jobId IN :ids AND j.status = :running")
+            .setParameter("now", now)
+            .setParameter("ids", Set.copyOf(running))
+            .setParameter("running", Status.RUNNING.name())
+            .executeUpdate();
+    }
+
+    /** queues the running jobs whose replica has not written a heartbeat since the given time, or fails them if they were tried too often */
+    @Transactional
+    void requeueStale(Instant heartbeatBefore, Instant now) {
+        int abandoned = em.createQuery("""
+                UPDATE WorkflowJob j SET j.status = :failed, j.error = :error, j.finishedAt = :now
+                WHERE j.status = :running AND j.heartbeatAt < :before AND j.attempts >= :maxAttempts""")
+            .setParameter("failed", Status.FAILED.name())
+            .setParameter("error", "Abandoned after " + maxAttempts + " attempts")
+            .setParameter("now", now)
+            .setParameter("running", Status.RUNNING.name())
+            .setParameter("before", heartbeatBefore)
+            .setParameter("maxAttempts", maxAttempts)
+            .executeUpdate();
+        int stale = em.createQuery("UPDATE WorkflowJob j SET j.status = :queued WHERE j.status = :running AND j.heartbeatAt < :before")
+            .setParameter("queued", Status.QUEUED.name())
+            .setParameter("running", Status.RUNNING.name())
+            .setParameter("before", heartbeatBefore)
+            .executeUpdate();
+        if (abandoned + stale > 0) {
+            log.warnf("Queued %d stale workflow jobs again and abandoned %d", stale, abandoned);
+        }
+        requeued.add(stale);
+    }
+
+    @Transactional
+    void purge(Instant finishedBefore) {
+        em.createQuery("DELETE FROM WorkflowJob j WHERE j.finishedAt < :before")
+            .setParameter("before", finishedBefore)
+            .executeUpdate();
+    }
+
+    void onStop(@Observes ShutdownEvent ev) {
+        stopping = true;
+        executor.shutdownNow();
+        Set<String> interrupted = Set.copyOf(running);
+        if (interrupted.isEmpty()) {
+            return;
+        }
+        try {
+            requeue(interrupted);
+            requeued.add(interrupted.size());
+        } catch (RuntimeException e) {
+            log.warnf(e, "Failed to queue %d running workflow jobs again, they are queued once they are stale", interrupted.size());
+        }
+    }
+
+    /** a job interrupted by a shutdown has not really been attempted */
+    @Transactional
+    void requeue(Set<String> ids) {
+        em.createQuery("UPDATE WorkflowJob j SET j.status = :queued, j.attempts = j.attempts - 1 WHERE j.jobId IN :ids AND j.status = :running")
+            .setParameter("queued", Status.QUEUED.name())
+            .setParameter("running", Status.RUNNING.name())
+            .setParameter("ids", ids)
+            .executeUpdate();
+    }
+}
@@ -0,0 +1,18 @@
+package dev.abstratium.abstrasst.workflows;
+
+import java.util.Locale;
+
+/** the workflows which can be run as jobs or in batches, see {@link WorkflowRunner} */
+public enum WorkflowKind {
+    /** the declarative {@link MyWorkflow} */
+    WORKFLOW,
+    /** the {@link ProgrammaticWorkflow} */
+    PROGRAMMATIC,
+    /** the minutes of the {@link ProgrammaticWorkflow} */
+    MINUTES;
+
+    /** for path and query parameters, which are lower case */
+    public static WorkflowKind fromString(String kind) {
+        return valueOf(kind.toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,31 @@
+package dev.abstratium.abstrasst.workflows;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Runs a workflow of a given kind to completion, for the callers which do not hold a request open for it.
+ */
+@ApplicationScoped
+public class WorkflowRunner {
+
+    @Inject
+    MyWorkflow myWorkflow;
+
+    @Inject
+    ProgrammaticWorkflow programmaticWorkflow;
+
+    @Inject
+    AgendaBriefing agendaBriefing;
+
+    /**
+     * @param runId the id of the run, with which a declarative workflow resumes from its checkpoints
+     */
+    public String run(WorkflowKind kind, String runId, String topic) {
+        return switch (kind) {
+            case WORKFLOW -> myWorkflow.run(runId, agendaBriefing.brief(topic));
+            case PROGRAMMATIC -> programmaticWorkflow.run(topic);
+            case MINUTES -> programmaticWorkflow.minutes(topic);
+        };
+    }
+}
@@ -0,0 +1,354 @@
+package dev.abstratium.abstrasst.workflows.dag;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import dev.abstratium.abstrasst.service.ratelimit.LlmCaller;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Runs {@link DagWorkflow}s, starting every node as soon as its inputs exist.
+ *
+ * Each node runs on its own virtual thread. At most {@code workflow.dag.max-concurrency} nodes run at a time, across all
+ * workflows, so that a wide workflow or many concurrent ones cannot flood the LLM provider; nodes beyond that wait for a slot.
+ * A node which runs longer than its timeout is interrupted and counts as failed.
+ *
+ * What a failure means depends on the {@link Policy}. With {@link Policy#BEST_EFFORT best effort}, the nodes which require
+ * the output of a failed node are skipped, those which only optionally use it run without it, and all others run as usual.
+ * With {@link Policy#FAIL_FAST fail fast}, the first failure stops the run: the nodes which are still running are cancelled,
+ * and those which have not started are skipped. The same happens to all of them when the deadline of a run passes.
+ * Cancelled nodes are interrupted, which ends a blocking LLM call, rather than waiting for tokens which nobody will read.
+ * An action which does not stop when it is interrupted keeps its slot until it has actually ended, so that it cannot
+ * push the calls to the LLM provider beyond the limit.
+ *
+ * The calling thread only coordinates: it waits for nodes to complete and starts those which have become ready.
+ * Like with a structured task scope, the nodes of a run do not outlive it: when it returns, it has waited up to
+ * {@code workflow.dag.cancel-grace} for the cancelled ones to end, and logs those which are still running.
+ */
+@ApplicationScoped
+public class DagExecutor {
+
+    private static final Logger log = Logger.getLogger(DagExecutor.class);
+
+    private static final AttributeKey<String> RESULT = AttributeKey.stringKey("result");
+
+    @ConfigProperty(name = "workflow.dag.max-concurrency", defaultValue = "16")
+    int maxConcurrency;
+
+    @ConfigProperty(name = "workflow.dag.node-timeout", defaultValue = "120s")
+    Duration nodeTimeout;
+
+    @ConfigProperty(name = "workflow.dag.policy", defaultValue = "best-effort")
+    Policy policy;
+
+    @ConfigProperty(name = "workflow.dag.deadline", defaultValue = "300s")
+    Duration deadline;
+
+    @ConfigProperty(name = "workflow.dag.cancel-grace", defaultValue = "5s")
+    Duration cancelGrace;
+
+    public enum Policy {
+        /** a failure stops the run and cancels the nodes which are still running */
+        FAIL_FAST,
+        /** a failure only skips the nodes which require the failed output */
+        BEST_EFFORT
+    }
+
+    @Inject
+    Meter meter;
+
+    final LongAdder succeeded = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final LongAdder timedOut = new LongAdder();
+    final LongAdder skipped = new LongAdder();
+    final LongAdder cancelledNodes = new LongAdder();
+
+    ExecutorService executor;
+
+    Semaphore permits;
+
+    @PostConstruct
+    void init() {
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        permits = new Semaphore(maxConcurrency, true);
+
+        meter.counterBuilder("workflow.dag.nodes")
+            .setDescription("Nodes of DAG workflows, by result (ok, failed, timed_out, skipped, cancelled)")
+            .buildWithCallback(m -> {
+                m.record(succeeded.sum(), Attributes.of(RESULT, "ok"));
+                m.record(failed.sum(), Attributes.of(RESULT, "failed"));
+                m.record(timedOut.sum(), Attributes.of(RESULT, "timed_out"));
+                m.record(skipped.sum(), Attributes.of(RESULT, "skipped"));
+                m.record(cancelledNodes.sum(), Attributes.of(RESULT, "cancelled"));
+            });
+    }
+
+    @PreDestroy
+    void close() {
+        executor.shutdownNow();
+    }
+
+    private record Completion(DagNode node, Object value, String failure) {}
+
+    /** a node which has been started, and which has ended once its thread and that of its action are done */
+    private record Running(Future<?> future, CountDownLatch ended) {}
+
+    /**
+     * Runs the workflow with the configured policy and deadline.
+     * @see #run(DagWorkflow, Map, Policy, Duration)
+     */
+    public DagResult run(DagWorkflow workflow, Map<String, Object> inputs) {
+        return run(workflow, inputs, policy, deadline);
+    }
+
+    /**
+     * Runs the workflow and waits until every node has succeeded, failed, been skipped or been cancelled.
+     * @param inputs the values of the keys which no node produces
+     * @param deadline after which the nodes which are still running are cancelled, and those which are waiting are skipped
+     */
+    public DagResult run(DagWorkflow workflow, Map<String, Object> inputs, Policy policy, Duration deadline) {
+        Set<String> missing = new LinkedHashSet<>(workflow.requiredInputs());
+        missing.removeAll(inputs.keySet());
+        if (!missing.isEmpty()) {
+            throw new IllegalArgumentException("The workflow requires the inputs " + missing);
+        }
+
+        long deadlineNanos = System.nanoTime() + deadline.toNanos();
+        Map<String, Object> values = new HashMap<>(inputs);
+        Map<String, Object> outputs = new LinkedHashMap<>();
+        Map<String, String> failures = new LinkedHashMap<>();
+        Set<String> skippedNodes = new LinkedHashSet<>();
+        Set<String> cancelled = new LinkedHashSet<>();
+        List<DagNode> waiting = new ArrayList<>(workflow.nodes());
+        BlockingQueue<Completion> completions = new LinkedBlockingQueue<>();
+        Map<String, Running> running = new LinkedHashMap<>();
+
+        try {
+            while (true) {
+                // start what is ready and skip what never will be, until nothing changes, since skipping may unblock others
+                boolean changed = true;
+                while (changed) {
+                    changed = false;
+                    for (var it = waiting.iterator(); it.hasNext();) {
+                        DagNode node = it.next();
+                        if (blocked(node, workflow, failures, skippedNodes)) {
+                            it.remove();
+                            skippedNodes.add(node.outputKey());
+                            skipped.increment();
+                            changed = true;
+                        } else if (ready(node, workflow, values, failures, skippedNodes, inputs)) {
+                            it.remove();
+                            running.put(node.outputKey(), start(node, inputsOf(node, values), completions));
+                        }
+                    }
+                }
+                if (running.isEmpty()) {
+                    break;
+                }
+
+                Completion completion = completions.poll(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (completion == null) {
+                    log.warnf("Workflow deadline of %s passed, cancelling %s", deadline, running.keySet());
+                    break;
+                }
+                String key = completion.node().outputKey();
+                running.remove(key);
+                if (completion.failure() == null) {
+                    values.put(key, completion.value());
+                    outputs.put(key, completion.value());
+                } else {
+                    failures.put(key, completion.failure());
+                    if (policy == Policy.FAIL_FAST) {
+                        log.debugf("Workflow node %s failed fast, cancelling %s", key, running.keySet());
+                        break;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // without waiting, since whoever interrupted the run wants it to stop now
+            cancel(running, cancelled);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running a workflow", e);
+        }
+
+        cancel(running, cancelled);
+        awaitCancelled(running);
+        for (DagNode node : waiting) {
+            skippedNodes.add(node.outputKey());
+            skipped.increment();
+        }
+        return new DagResult(outputs, failures, skippedNodes, cancelled);
+    }
+
+    private void cancel(Map<String, Running> running, Set<String> cancelled) {
+        running.forEach((key, node) -> {
+            node.future().cancel(true);
+            cancelled.add(key);
+            cancelledNodes.increment();
+        });
+    }
+
+    private void awaitCancelled(Map<String, Running> running) {
+        long until = System.nanoTime() + cancelGrace.toNanos();
+        try {
+            for (var entry : running.entrySet()) {
+                if (!entry.getValue().ended().await(until - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    log.warnf("Workflow node %s is still running %s after it was cancelled, it keeps its slot until it ends",
+                        entry.getKey(), cancelGrace);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the cancelled nodes of a workflow", e);
+        }
+    }
+
+    private static boolean blocked(DagNode node, DagWorkflow workflow, Map<String, String> failures, Set<String> skipped) {
+        for (String key : node.requires()) {
+            if (workflow.produces(key) && (failures.containsKey(key) || skipped.contains(key))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean ready(DagNode node, DagWorkflow workflow, Map<String, Object> values, Map<String, String> failures,
+            Set<String> skipped, Map<String, Object> inputs) {
+        for (String key : node.requires()) {
+            if (!values.containsKey(key)) {
+                return false;
+            }
+        }
+        for (String key : node.optionally()) {
+            boolean resolved = values.containsKey(key) || failures.containsKey(key) || skipped.contains(key)
+                || (!workflow.produces(key) && !inputs.containsKey(key));
+            if (!resolved) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Map<String, Object> inputsOf(DagNode node, Map<String, Object> values) {
+        Map<String, Object> inputs = new HashMap<>();
+        for (String key : node.inputs()) {
+            if (values.containsKey(key)) {
+                inputs.put(key, values.get(key));
+            }
+        }
+        return inputs;
+    }
+
+    private Running start(DagNode node, Map<String, Object> inputs, BlockingQueue<Completion> completions) {
+        Duration timeout = node.timeout() != null ? node.timeout() : nodeTimeout;
+        var task = new FutureTask<Void>(LlmCaller.propagate(() -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                completions.add(new Completion(node, null, "interrupted"));
+                return;
+            }
+            try {
+                runAction(node, inputs, timeout, completions);
+            } finally {
+                permits.release();
+            }
+        }), null);
+        return new Running(task, execute(task));
+    }
+
+    /**
+     * Runs the action on its own thread, which is interrupted if it times out or the node is cancelled.
+     * Completes the node as soon as the action has returned, failed or been interrupted, but only returns,
+     * and so gives up the slot of the node, once the thread of the action is done.
+     */
+    private void runAction(DagNode node, Map<String, Object> inputs, Duration timeout, BlockingQueue<Completion> completions) {
+        var action = new FutureTask<Object>(LlmCaller.propagate(() -> node.action().run(inputs)));
+        CountDownLatch ended = execute(action);
+        try {
+            completions.add(complete(node, action, timeout));
+        } finally {
+            awaitUninterruptibly(ended);
+        }
+    }
+
+    private Completion complete(DagNode node, Future<Object> action, Duration timeout) {
+        try {
+            Object value = action.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+            if (value == null) {
+                failed.increment();
+                return new Completion(node, null, "returned null");
+            }
+            succeeded.increment();
+            return new Completion(node, value, null);
+        } catch (TimeoutException e) {
+            action.cancel(true);
+            timedOut.increment();
+            log.warnf("Workflow node %s timed out after %s", node.outputKey(), timeout);
+            return new Completion(node, null, "timed out after " + timeout);
+        } catch (ExecutionException e) {
+            failed.increment();
+            log.warnf(e.getCause(), "Workflow node %s failed", node.outputKey());
+            return new Completion(node, null, String.valueOf(e.getCause()));
+        } catch (InterruptedException e) {
+            action.cancel(true);
+            Thread.currentThread().interrupt();
+            return new Completion(node, null, "interrupted");
+        }
+    }
+
+    /** @return counted down once the thread of the task is done, even if the task was cancelled before it started */
+    private CountDownLatch execute(FutureTask<?> task) {
+        var ended = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                ended.countDown();
+            }
+        });
+        return ended;
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
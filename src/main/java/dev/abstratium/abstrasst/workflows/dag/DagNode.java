@@ -0,0 +1,65 @@
+package dev.abstratium.abstrasst.workflows.dag;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A step of a {@link DagWorkflow}, which produces the value of its output key from the values of its input keys.
+ *
+ * A node runs as soon as all of its required inputs exist and all of its optional inputs are either there or will never be,
+ * because the nodes which produce them failed or were skipped. A node whose required input will never exist is skipped.
+ * Nodes are identified by their output key, since every key is produced by at most one node.
+ *
+ * @param timeout how long the action may run, not counting the wait for a free slot, or null for the executor's default
+ */
+public record DagNode(String outputKey, Set<String> requires, Set<String> optionally, Duration timeout, Action action) {
+
+    @FunctionalInterface
+    public interface Action {
+        /**
+         * @param inputs the values of the required inputs and of the optional inputs which exist
+         * @return the value of the output key, not null
+         */
+        Object run(Map<String, Object> inputs) throws Exception;
+    }
+
+    public DagNode {
+        requires = Set.copyOf(requires);
+        optionally = Set.copyOf(optionally);
+        if (requires.contains(outputKey) || optionally.contains(outputKey)) {
+            throw new IllegalArgumentException("Node " + outputKey + " depends on itself");
+        }
+    }
+
+    public static DagNode of(String outputKey, Action action) {
+        return new DagNode(outputKey, Set.of(), Set.of(), null, action);
+    }
+
+    public DagNode requires(String... keys) {
+        return new DagNode(outputKey, union(requires, keys), optionally, timeout, action);
+    }
+
+    public DagNode optionally(String... keys) {
+        return new DagNode(outputKey, requires, union(optionally, keys), timeout, action);
+    }
+
+    public DagNode timeout(Duration timeout) {
+        return new DagNode(outputKey, requires, optionally, timeout, action);
+    }
+
+    /** all keys this node reads */
+    Set<String> inputs() {
+        Set<String> inputs = new LinkedHashSet<>(requires);
+        inputs.addAll(optionally);
+        return inputs;
+    }
+
+    private static Set<String> union(Set<String> keys, String... more) {
+        Set<String> union = new LinkedHashSet<>(keys);
+        union.addAll(Arrays.asList(more));
+        return union;
+    }
+}
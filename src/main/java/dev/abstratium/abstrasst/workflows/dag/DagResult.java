@@ -0,0 +1,32 @@
+package dev.abstratium.abstrasst.workflows.dag;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The outcome of a run of a {@link DagWorkflow}, which may be partial.
+ *
+ * @param outputs the values produced by the nodes which succeeded, by output key
+ * @param failures why nodes failed or timed out, by output key
+ * @param skipped the nodes which did not run, because a required input was missing or the run was stopped
+ * @param cancelled the nodes which were interrupted, because another node failed fast or the deadline passed
+ */
+public record DagResult(Map<String, Object> outputs, Map<String, String> failures, Set<String> skipped, Set<String> cancelled) {
+
+    public DagResult {
+        outputs = Map.copyOf(outputs);
+        failures = Map.copyOf(failures);
+        skipped = Set.copyOf(skipped);
+        cancelled = Set.copyOf(cancelled);
+    }
+
+    /** @return true if every node succeeded */
+    public boolean complete() {
+        return failures.isEmpty() && skipped.isEmpty() && cancelled.isEmpty();
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T get(String key) {
+        return (T) outputs.get(key);
+    }
+}
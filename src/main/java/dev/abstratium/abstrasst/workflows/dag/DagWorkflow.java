@@ -0,0 +1,103 @@
+package dev.abstratium.abstrasst.workflows.dag;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A set of {@link DagNode}s, whose dependencies are derived from their input and output keys.
+ *
+ * Keys which no node produces are inputs of the workflow, which are passed to {@link DagExecutor#run(DagWorkflow, Map)}.
+ * A workflow is immutable and checked for duplicate output keys and cycles when it is created, so it can be built once and run
+ * any number of times, concurrently.
+ */
+public final class DagWorkflow {
+
+    private final Map<String, DagNode> nodes;
+
+    private DagWorkflow(Map<String, DagNode> nodes) {
+        this.nodes = nodes;
+    }
+
+    public static DagWorkflow of(DagNode... nodes) {
+        return of(List.of(nodes));
+    }
+
+    public static DagWorkflow of(Collection<DagNode> nodes) {
+        Map<String, DagNode> byKey = new LinkedHashMap<>();
+        for (DagNode node : nodes) {
+            if (byKey.putIfAbsent(node.outputKey(), node) != null) {
+                throw new IllegalArgumentException("More than one node produces " + node.outputKey());
+            }
+        }
+        checkAcyclic(byKey);
+        return new DagWorkflow(byKey);
+    }
+
+    /** Kahn's algorithm: if not all nodes can be ordered, the rest form at least one cycle */
+    private static void checkAcyclic(Map<String, DagNode> nodes) {
+        Map<String, Integer> dependencies = new HashMap<>();
+        Map<String, List<String>> dependents = new HashMap<>();
+        Deque<String> ready = new ArrayDeque<>();
+        for (DagNode node : nodes.values()) {
+            int n = 0;
+            for (String input : node.inputs()) {
+                if (nodes.containsKey(input)) {
+                    n++;
+                    dependents.computeIfAbsent(input, k -> new ArrayList<>()).add(node.outputKey());
+                }
+            }
+            dependencies.put(node.outputKey(), n);
+            if (n == 0) {
+                ready.add(node.outputKey());
+            }
+        }
+        int ordered = 0;
+        while (!ready.isEmpty()) {
+            String key = ready.poll();
+            ordered++;
+            for (String dependent : dependents.getOrDefault(key, List.of())) {
+                if (dependencies.merge(dependent, -1, Integer::sum) == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        if (ordered < nodes.size()) {
+            Set<String> cyclic = new LinkedHashSet<>();
+            dependencies.forEach((key, n) -> {
+                if (n > 0) {
+                    cyclic.add(key);
+                }
+            });
+            throw new IllegalArgumentException("The nodes " + cyclic + " depend on each other");
+        }
+    }
+
+    Collection<DagNode> nodes() {
+        return nodes.values();
+    }
+
+    boolean produces(String key) {
+        return nodes.containsKey(key);
+    }
+
+    /** the keys which are required by a node but not produced by any, and must therefore be passed in */
+    public Set<String> requiredInputs() {
+        Set<String> inputs = new LinkedHashSet<>();
+        for (DagNode node : nodes.values()) {
+            for (String key : node.requires()) {
+                if (!nodes.containsKey(key)) {
+                    inputs.add(key);
+                }
+            }
+        }
+        return inputs;
+    }
+}
@@ -27,11 +27,15 @@ public enum ErrorCode {
     BUSINESS_RULE_VIOLATION("ERR-4000", "Business rule violation"),
     DUPLICATE_ENTRY("ERR-4001", "Duplicate entry detected"),
     INVALID_STATE("ERR-4002", "Invalid state for operation"),
+    CONVERSATION_BUSY("ERR-4003", "Conversation is busy"),
+    JOB_NOT_FOUND("ERR-4004", "Job not found"),
+    IDEMPOTENCY_KEY_REUSED("ERR-4005", "Idempotency key was used for a different request"),
     
     // System errors (5000-5999)
     INTERNAL_ERROR("ERR-5000", "Internal system error"),
     DATABASE_ERROR("ERR-5001", "Database operation failed"),
-    EXTERNAL_SERVICE_ERROR("ERR-5002", "External service unavailable");
+    EXTERNAL_SERVICE_ERROR("ERR-5002", "External service unavailable"),
+    OVERLOADED("ERR-5003", "Service is overloaded");
     
     private final String code;
     private final String description;
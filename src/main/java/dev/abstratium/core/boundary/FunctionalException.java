@@ -1,8 +1,10 @@
 package dev.abstratium.core.boundary;
 
 import io.quarkiverse.resteasy.problem.HttpProblem;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.Response;
 import java.net.URI;
+import java.time.Duration;
 
 /**
  * Base exception for functional/business logic errors that should be returned as RFC 7807 Problem Details.
@@ -30,6 +32,23 @@ public class FunctionalException extends HttpProblem {
             .withType(errorCode.getTypeUri()));
     }
     
+    /**
+     * Create a FunctionalException with an error code, which tells the client when to try again, e.g. with 503 or 429.
+     * 
+     * @param status HTTP status code
+     * @param errorCode Unique error code that maps to wiki documentation
+     * @param detail Detailed description of this specific error instance
+     * @param retryAfter Sent as the Retry-After header, in whole seconds
+     */
+    public FunctionalException(Response.Status status, ErrorCode errorCode, String detail, Duration retryAfter) {
+        super(builder()
+            .withStatus(status)
+            .withTitle(errorCode.getDescription())
+            .withDetail(detail)
+            .withType(errorCode.getTypeUri())
+            .withHeader(HttpHeaders.RETRY_AFTER, Math.max(1, retryAfter.toSeconds())));
+    }
+    
     /**
      * Create a FunctionalException with a custom title (legacy constructor).
      * Prefer using the ErrorCode constructor for better error tracking.
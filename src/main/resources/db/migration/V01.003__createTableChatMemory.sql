@@ -0,0 +1,7 @@
+-- the current messages of each chat memory, in the compact binary encoding of the ChatMessageCodec,
+-- serialised as a whole, since the memory window replaces them on every update
+CREATE TABLE T_chat_memory (
+    memory_id VARCHAR(255) PRIMARY KEY,
+    encoded MEDIUMBLOB NOT NULL,
+    updated_at TIMESTAMP(3) NOT NULL
+);
@@ -0,0 +1,12 @@
+-- token usage and cost of LLM calls per model, rolled up per minute and per hour
+CREATE TABLE T_llm_usage (
+    granularity VARCHAR(8) NOT NULL,
+    bucket_start TIMESTAMP(3) NOT NULL,
+    model VARCHAR(255) NOT NULL,
+    calls BIGINT NOT NULL,
+    input_tokens BIGINT NOT NULL,
+    cached_input_tokens BIGINT NOT NULL,
+    output_tokens BIGINT NOT NULL,
+    cost_micros BIGINT NOT NULL,
+    PRIMARY KEY (granularity, bucket_start, model)
+);
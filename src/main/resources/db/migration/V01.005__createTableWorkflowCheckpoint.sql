@@ -0,0 +1,10 @@
+-- the outputs of the agents of workflow runs which have completed, so that a retry of a run can skip them
+CREATE TABLE T_workflow_checkpoint (
+    run_id VARCHAR(255) NOT NULL,
+    output_key VARCHAR(255) NOT NULL,
+    output MEDIUMTEXT NOT NULL,
+    created_at TIMESTAMP(3) NOT NULL,
+    PRIMARY KEY (run_id, output_key)
+);
+
+CREATE INDEX I_workflow_checkpoint_created_at ON T_workflow_checkpoint (created_at);
@@ -0,0 +1,17 @@
+-- workflow runs which were submitted as jobs, and queued until a worker of any replica claims them
+CREATE TABLE T_workflow_job (
+    job_id VARCHAR(36) PRIMARY KEY,
+    kind VARCHAR(32) NOT NULL,
+    topic MEDIUMTEXT NOT NULL,
+    submitted_by VARCHAR(255) NOT NULL,
+    status VARCHAR(16) NOT NULL,
+    result MEDIUMTEXT,
+    error VARCHAR(1000),
+    attempts INT NOT NULL,
+    created_at TIMESTAMP(3) NOT NULL,
+    started_at TIMESTAMP(3),
+    heartbeat_at TIMESTAMP(3),
+    finished_at TIMESTAMP(3)
+);
+
+CREATE INDEX I_workflow_job_status_created_at ON T_workflow_job (status, created_at);
@@ -0,0 +1,114 @@
+package dev.abstratium.abstrasst.boundary.idempotency;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import dev.abstratium.core.boundary.FunctionalException;
+import io.opentelemetry.api.OpenTelemetry;
+import io.smallrye.mutiny.Multi;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link IdempotencyStore}.
+ */
+class IdempotencyStoreTest {
+
+    private final IdempotencyStore store = store();
+
+    private final AtomicInteger executions = new AtomicInteger();
+
+    @Test
+    void executesOnceAndReplaysTheResponse() throws Exception {
+        assertEquals("minutes 1", store.execute("key", "request", this::minutes));
+        assertEquals("minutes 1", store.execute("key", "request", this::minutes));
+        assertEquals("minutes 2", store.execute("other key", "request", this::minutes));
+
+        assertEquals(2, executions.get());
+        assertEquals(1, store.replayed.sum());
+    }
+
+    @Test
+    void duplicatesWhichArriveDuringTheExecutionWaitForIt() throws Exception {
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var first = CompletableFuture.supplyAsync(() -> call(() -> {
+            started.countDown();
+            assertTrue(release.await(5, TimeUnit.SECONDS));
+            return minutes();
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        var duplicate = CompletableFuture.supplyAsync(() -> call(this::minutes));
+
+        // give the duplicate time to attach
+        Thread.sleep(50);
+        release.countDown();
+
+        assertEquals("minutes 1", first.get(5, TimeUnit.SECONDS));
+        assertEquals("minutes 1", duplicate.get(5, TimeUnit.SECONDS));
+        assertEquals(1, executions.get());
+        assertEquals(1, store.attached.sum());
+    }
+
+    @Test
+    void doesNotStoreFailures() throws Exception {
+        assertThrows(IllegalStateException.class, () -> store.execute("key", "request", () -> {
+            throw new IllegalStateException("rate limited");
+        }));
+
+        assertEquals("minutes 1", store.execute("key", "request", this::minutes));
+    }
+
+    @Test
+    void rejectsAKeyWhichIsReusedForAnotherRequest() throws Exception {
+        store.execute("key", IdempotencyStore.fingerprint("run", new Object[] {"topic"}), this::minutes);
+
+        var e = assertThrows(FunctionalException.class,
+            () -> store.execute("key", IdempotencyStore.fingerprint("run", new Object[] {"another topic"}), this::minutes));
+        assertEquals(409, e.getStatusCode());
+        assertEquals(1, executions.get());
+    }
+
+    @Test
+    void replaysTheItemsOfAStream() {
+        var first = store.executeStream("key", "request", () -> {
+            executions.incrementAndGet();
+            return Multi.createFrom().items("a", "b");
+        }).collect().asList().await().atMost(Duration.ofSeconds(5));
+        var replay = store.executeStream("key", "request", () -> Multi.createFrom().<String>failure(new AssertionError("executed twice")))
+            .collect().asList().await().atMost(Duration.ofSeconds(5));
+
+        assertEquals(List.of("a", "b"), first);
+        assertEquals(first, replay);
+        assertEquals(1, executions.get());
+    }
+
+    private Object minutes() {
+        return "minutes " + executions.incrementAndGet();
+    }
+
+    private Object call(Callable<Object> request) {
+        try {
+            return store.execute("key", "request", request);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static IdempotencyStore store() {
+        var store = new IdempotencyStore();
+        store.enabled = true;
+        store.maxEntries = 100;
+        store.ttl = Duration.ofHours(1);
+        store.meter = OpenTelemetry.noop().getMeter("test");
+        store.init();
+        return store;
+    }
+}
@@ -0,0 +1,177 @@
+package dev.abstratium.abstrasst.service;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import dev.abstratium.abstrasst.entity.StoredChatMemory;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.ImageContent;
+import dev.langchain4j.data.message.TextContent;
+import dev.langchain4j.data.message.UserMessage;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that chat memories are written behind to the database and loaded again.
+ */
+@QuarkusTest
+class ChatMemoryStoreServiceTest {
+
+    @Inject
+    ChatMemoryStoreService store;
+
+    @Inject
+    EntityManager em;
+
+    @Test
+    void updatesAreVisibleBeforeTheyAreFlushed() {
+        List<ChatMessage> messages = List.of(UserMessage.from("hi"), AiMessage.from("hello"));
+        store.updateMessages("unflushed", messages);
+
+        assertEquals(messages, store.getMessages("unflushed"));
+
+        store.forgetVersions();
+        assertEquals(messages, store.getMessages("unflushed"));
+    }
+
+    @Test
+    void flushedMemoriesAreLoadedFromTheDatabase() {
+        List<ChatMessage> messages = List.of(UserMessage.from("what is 1 + 1?"), AiMessage.from("2"));
+        store.updateMessages("flushed", List.of(UserMessage.from("older")));
+        store.updateMessages("flushed", messages);
+        store.flush();
+        store.forgetVersions();
+
+        assertEquals(messages, store.getMessages("flushed"));
+    }
+
+    @Test
+    void deletedMemoriesAreRemovedFromTheDatabase() {
+        store.updateMessages("deleted", List.of(UserMessage.from("forget me")));
+        store.flush();
+        store.deleteMessages("deleted");
+        store.flush();
+        store.forgetVersions();
+
+        assertTrue(store.getMessages("deleted").isEmpty());
+    }
+
+    @Test
+    void storesMessagesWithOtherContentAsJson() {
+        List<ChatMessage> messages = List.of(
+            UserMessage.from(TextContent.from("what is this?"), ImageContent.from("https://example.com/cat.png")));
+        store.updateMessages("image", messages);
+        store.flush();
+        store.forgetVersions();
+
+        assertEquals(messages, store.getMessages("image"));
+    }
+
+    @Test
+    void unknownMemoriesAreEmpty() {
+        assertTrue(store.getMessages("unknown").isEmpty());
+    }
+
+    @Test
+    void readsWhatAnotherReplicaWrote() {
+        store.updateMessages("moved", List.of(UserMessage.from("hi")));
+        store.flush();
+        assertTrue(store.isCurrent("moved"));
+
+        List<ChatMessage> newer = List.of(UserMessage.from("hi"), AiMessage.from("hello"), UserMessage.from("bye"));
+        writeAsAnotherReplica("moved", newer);
+        assertTrue(store.isCurrent("moved"), "only the revalidation queries the database");
+        long stale = store.stale.sum();
+
+        store.revalidate();
+
+        assertFalse(store.isCurrent("moved"));
+        assertEquals(stale + 1, store.stale.sum());
+        assertEquals(newer, store.getMessages("moved"));
+        assertTrue(store.isCurrent("moved"));
+    }
+
+    @Test
+    void keepsWhatNoOtherReplicaChanged() {
+        store.updateMessages("kept", List.of(UserMessage.from("hi")));
+        store.flush();
+        store.getMessages("unknown");
+
+        store.revalidate();
+
+        assertTrue(store.isCurrent("kept"));
+        assertTrue(store.isCurrent("unknown"));
+    }
+
+    @Test
+    void doesNotOverwriteWhatAnotherReplicaWrote() {
+        store.updateMessages("contended", List.of(UserMessage.from("hi")));
+        store.flush();
+        store.getMessages("contended");
+        long conflicts = store.conflicts.sum();
+
+        List<ChatMessage> newer = List.of(UserMessage.from("hi"), AiMessage.from("hello"), UserMessage.from("bye"));
+        writeAsAnotherReplica("contended", newer);
+        store.updateMessages("contended", List.of(UserMessage.from("hi"), AiMessage.from("stale")));
+        store.flush();
+
+        assertEquals(newer, store.getMessages("contended"));
+        assertEquals(conflicts + 1, store.conflicts.sum());
+    }
+
+    @Test
+    void ofTwoFlushesFromTheSameBaseTheSecondFindsTheConflict() throws Exception {
+        store.updateMessages("raced", List.of(UserMessage.from("hi")));
+        store.flush();
+        store.getMessages("raced");
+        long conflicts = store.conflicts.sum();
+
+        List<ChatMessage> newer = List.of(UserMessage.from("hi"), AiMessage.from("hello"), UserMessage.from("bye"));
+        store.updateMessages("raced", List.of(UserMessage.from("hi"), AiMessage.from("stale")));
+        var flush = new AtomicReference<CompletableFuture<Void>>();
+        QuarkusTransaction.requiringNew().run(() -> {
+            // another replica flushes from the same base at the same time, and holds the row until it commits
+            var stored = em.find(StoredChatMemory.class, "raced", LockModeType.PESSIMISTIC_WRITE);
+            flush.set(CompletableFuture.runAsync(store::flush));
+            assertThrows(TimeoutException.class, () -> flush.get().get(300, TimeUnit.MILLISECONDS), "the flush did not wait for the row");
+            stored.setEncoded(ChatMessageCodec.encode(newer));
+            stored.setUpdatedAt(stored.getUpdatedAt().plusSeconds(1));
+        });
+        flush.get().get(10, TimeUnit.SECONDS);
+
+        assertEquals(newer, store.getMessages("raced"));
+        assertEquals(conflicts + 1, store.conflicts.sum());
+    }
+
+    @Test
+    void updatesDuringAFlushAreBasedOnWhatItWrote() {
+        List<ChatMessage> messages = List.of(UserMessage.from("one"), AiMessage.from("two"));
+        store.updateMessages("successive", List.of(UserMessage.from("one")));
+        store.flush();
+        store.updateMessages("successive", messages);
+        store.flush();
+        store.forgetVersions();
+
+        assertEquals(messages, store.getMessages("successive"));
+        assertTrue(store.isCurrent("successive"));
+    }
+
+    private void writeAsAnotherReplica(String id, List<ChatMessage> messages) {
+        QuarkusTransaction.requiringNew().run(() -> {
+            var stored = em.find(StoredChatMemory.class, id);
+            stored.setEncoded(ChatMessageCodec.encode(messages));
+            stored.setUpdatedAt(stored.getUpdatedAt().plusSeconds(1));
+        });
+    }
+}
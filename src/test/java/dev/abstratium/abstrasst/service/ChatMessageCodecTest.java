@@ -0,0 +1,63 @@
+package dev.abstratium.abstrasst.service;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.TextContent;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link ChatMessageCodec}.
+ */
+class ChatMessageCodecTest {
+
+    @Test
+    void roundTripsAllMessageTypes() {
+        var request = ToolExecutionRequest.builder().id("call-1").name("add").arguments("{\"a\":1,\"b\":2}").build();
+        List<ChatMessage> messages = List.of(
+            SystemMessage.from("You are helpful"),
+            UserMessage.from("What is 1 + 2? äöü 🙂"),
+            UserMessage.from("bob", List.of(TextContent.from("first"), TextContent.from("second"))),
+            AiMessage.from(request),
+            ToolExecutionResultMessage.from(request, "3"),
+            AiMessage.builder().text("It is 3").thinking("1 + 2 = 3").build(),
+            AiMessage.from("")
+        );
+
+        assertEquals(messages, ChatMessageCodec.decode(ChatMessageCodec.encode(messages)));
+    }
+
+    @Test
+    void deflatesLongTexts() {
+        String text = "The quick brown fox jumps over the lazy dog. ".repeat(100);
+        List<ChatMessage> messages = List.of(UserMessage.from(text), AiMessage.from(text));
+
+        byte[] encoded = ChatMessageCodec.encode(messages);
+
+        assertEquals(messages, ChatMessageCodec.decode(encoded));
+        assertTrue(encoded.length < text.length() / 4, "encoded length was " + encoded.length);
+    }
+
+    @Test
+    void isSmallerThanTheMessageObjects() {
+        List<ChatMessage> messages = List.of(UserMessage.from("hi"), AiMessage.from("hello, how can I help?"));
+
+        byte[] encoded = ChatMessageCodec.encode(messages);
+
+        assertTrue(encoded.length * 4 < messages.stream().mapToInt(MyAiMemory::estimateBytes).sum());
+    }
+
+    @Test
+    void knowsWhetherItIsEmpty() {
+        assertTrue(ChatMessageCodec.isEmpty(ChatMessageCodec.encode(List.of())));
+        assertFalse(ChatMessageCodec.isEmpty(ChatMessageCodec.encode(List.of(UserMessage.from("hi")))));
+    }
+}
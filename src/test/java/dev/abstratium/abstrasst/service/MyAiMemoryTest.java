@@ -0,0 +1,102 @@
+package dev.abstratium.abstrasst.service;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.data.message.UserMessage;
+import io.opentelemetry.api.OpenTelemetry;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the bounds of {@link MyAiMemory}.
+ */
+class MyAiMemoryTest {
+
+    @Test
+    void sharesTheMemoryOfASession() {
+        var provider = provider(10, 1_000_000);
+        provider.get("a").add(UserMessage.from("hello"));
+
+        assertSame(provider.get("a"), provider.get("a"));
+        assertEquals(1, provider.get("a").messages().size());
+        assertEquals(0, provider.get("b").messages().size());
+    }
+
+    @Test
+    void capsTheNumberOfSessions() {
+        var provider = provider(5, 1_000_000);
+        for (int i = 0; i < 50; i++) {
+            provider.get("user-" + i);
+        }
+        provider.cleanUp();
+
+        assertTrue(provider.size() <= 5, "size was " + provider.size());
+        assertTrue(provider.sizeEvictions.sum() >= 45);
+    }
+
+    @Test
+    void evictsWhenMessagesGrowTooLarge() {
+        var provider = provider(1000, 100_000);
+        String big = "x".repeat(10_000);
+        for (int i = 0; i < 20; i++) {
+            provider.get("user-" + i).add(UserMessage.from(big));
+        }
+        provider.cleanUp();
+
+        // each session weighs roughly 20KB, so only a handful fit
+        assertTrue(provider.size() <= 5, "size was " + provider.size());
+    }
+
+    @Test
+    void evictedMemoryIsNotBroughtBackByLaterWrites() {
+        var provider = provider(1, 1_000_000);
+        var first = provider.get("first");
+        provider.get("second");
+        provider.get("third");
+        provider.cleanUp();
+
+        first.add(UserMessage.from("still talking"));
+        provider.cleanUp();
+
+        assertTrue(provider.size() <= 1, "size was " + provider.size());
+    }
+
+    @Test
+    void packsIdleMemoriesToFitMoreSessions() {
+        var provider = provider(1000, 1_000_000);
+        String text = "The quick brown fox jumps over the lazy dog. ".repeat(20);
+        for (int i = 0; i < 10; i++) {
+            provider.get("user-" + i).add(UserMessage.from(text + i));
+        }
+        // the cache applies new weights asynchronously
+        provider.cleanUp();
+        long before = provider.weight();
+
+        provider.packIdle();
+        provider.cleanUp();
+
+        assertEquals(10, provider.packs.sum());
+        assertTrue(provider.weight() * 2 < before, "weight was " + provider.weight() + " and before " + before);
+        assertEquals(UserMessage.from(text + 3), provider.get("user-3").messages().get(0));
+    }
+
+    @Test
+    void estimatesTextSize() {
+        assertEquals(MyAiMemory.MESSAGE_OVERHEAD + 2 * 5, MyAiMemory.estimateBytes(UserMessage.from("hello")));
+    }
+
+    private static MyAiMemory provider(long maxSessions, long maxWeightBytes) {
+        var provider = new MyAiMemory();
+        provider.maxSessions = maxSessions;
+        provider.maxWeightBytes = maxWeightBytes;
+        provider.idleExpiry = Duration.ofMinutes(30);
+        provider.packAfter = Duration.ZERO;
+        provider.maxTokens = 100_000;
+        provider.model = "gpt-4.1-nano";
+        provider.meter = OpenTelemetry.noop().getMeter("test");
+        provider.init();
+        return provider;
+    }
+}
@@ -0,0 +1,214 @@
+package dev.abstratium.abstrasst.service;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.store.memory.chat.InMemoryChatMemoryStore;
+import io.opentelemetry.api.OpenTelemetry;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link TokenWindowChatMemory}, using the approximate estimator, i.e. 4 tokens per message plus 1 per 4 characters.
+ */
+class TokenWindowChatMemoryTest {
+
+    private static final String TEN_TOKENS = "x".repeat(24);
+
+    @Test
+    void keepsNewestMessagesWithinBudget() {
+        var memory = new TokenWindowChatMemory("a", 25, new ApproximateTokenCountEstimator(), null, null);
+        memory.add(UserMessage.from(TEN_TOKENS + "1"));
+        memory.add(UserMessage.from(TEN_TOKENS + "2"));
+        memory.add(UserMessage.from(TEN_TOKENS + "3"));
+
+        assertEquals(List.of(UserMessage.from(TEN_TOKENS + "2"), UserMessage.from(TEN_TOKENS + "3")), memory.messages());
+        assertEquals(22, memory.tokens());
+    }
+
+    @Test
+    void keepsSystemMessageAndReplacesIt() {
+        var memory = new TokenWindowChatMemory("a", 25, new ApproximateTokenCountEstimator(), null, null);
+        memory.add(SystemMessage.from("be nice"));
+        memory.add(UserMessage.from(TEN_TOKENS + "1"));
+        memory.add(UserMessage.from(TEN_TOKENS + "2"));
+        memory.add(SystemMessage.from("be brief"));
+
+        List<ChatMessage> messages = memory.messages();
+        assertEquals(SystemMessage.from("be brief"), messages.get(0));
+        assertEquals(List.of(SystemMessage.from("be brief"), UserMessage.from(TEN_TOKENS + "2")), messages);
+    }
+
+    @Test
+    void keepsNewestMessageEvenIfItExceedsTheBudget() {
+        var memory = new TokenWindowChatMemory("a", 5, new ApproximateTokenCountEstimator(), null, null);
+        memory.add(UserMessage.from(TEN_TOKENS));
+
+        assertEquals(1, memory.messages().size());
+    }
+
+    @Test
+    void evictsToolResultsWithTheirCall() {
+        var memory = new TokenWindowChatMemory("a", 30, new ApproximateTokenCountEstimator(), null, null);
+        var request = ToolExecutionRequest.builder().id("1").name("add").arguments("{}").build();
+        memory.add(AiMessage.from(request));
+        memory.add(ToolExecutionResultMessage.from(request, "2"));
+        memory.add(UserMessage.from(TEN_TOKENS + "1"));
+        memory.add(UserMessage.from(TEN_TOKENS + "2"));
+        memory.add(UserMessage.from(TEN_TOKENS + "3"));
+
+        assertFalse(memory.messages().stream().anyMatch(m -> m instanceof ToolExecutionResultMessage));
+    }
+
+    @Test
+    void countsTokensOfEachMessageOnlyOnce() {
+        var counted = new AtomicInteger();
+        var estimator = new ApproximateTokenCountEstimator() {
+            @Override
+            public int estimateTokenCountInMessage(ChatMessage message) {
+                counted.incrementAndGet();
+                return super.estimateTokenCountInMessage(message);
+            }
+        };
+        var memory = new TokenWindowChatMemory("a", 100, estimator, null, null);
+        for (int i = 0; i < 50; i++) {
+            memory.add(UserMessage.from(TEN_TOKENS + i));
+            memory.messages();
+        }
+
+        assertEquals(50, counted.get());
+    }
+
+    @Test
+    void loadsLazilyFromStoreAndWritesBack() {
+        var store = new InMemoryChatMemoryStore();
+        store.updateMessages("a", List.of(UserMessage.from("earlier")));
+        var memory = new TokenWindowChatMemory("a", 100, new ApproximateTokenCountEstimator(), store, null);
+        memory.add(AiMessage.from("later"));
+
+        assertEquals(List.of(UserMessage.from("earlier"), AiMessage.from("later")), store.getMessages("a"));
+
+        memory.clear();
+        assertTrue(store.getMessages("a").isEmpty());
+    }
+
+    @Test
+    void readsAgainOnceAnotherReplicaContinuedTheConversation() {
+        var shared = new InMemoryChatMemoryStore();
+        shared.updateMessages("a", List.of(UserMessage.from("earlier")));
+        var current = new AtomicBoolean(true);
+        var store = new ChatMemoryStoreService() {
+            @Override
+            public List<ChatMessage> getMessages(Object memoryId) {
+                current.set(true);
+                return shared.getMessages(memoryId);
+            }
+
+            @Override
+            public void updateMessages(Object memoryId, List<ChatMessage> messages) {
+                shared.updateMessages(memoryId, messages);
+            }
+
+            @Override
+            public boolean isCurrent(String id) {
+                return current.get();
+            }
+        };
+        var memory = new TokenWindowChatMemory("a", 100, new ApproximateTokenCountEstimator(), store, null);
+        assertEquals(List.of(UserMessage.from("earlier")), memory.messages());
+
+        shared.updateMessages("a", List.of(UserMessage.from("earlier"), AiMessage.from("elsewhere")));
+        current.set(false);
+        memory.add(UserMessage.from("here"));
+
+        assertEquals(List.of(UserMessage.from("earlier"), AiMessage.from("elsewhere"), UserMessage.from("here")), shared.getMessages("a"));
+    }
+
+    @Test
+    void packsIdleMemoryAndUnpacksOnAccess() {
+        var memory = new TokenWindowChatMemory("a", 10_000, new ApproximateTokenCountEstimator(), null, null);
+        memory.add(SystemMessage.from("be nice"));
+        for (int i = 0; i < 20; i++) {
+            memory.add(UserMessage.from("The quick brown fox jumps over the lazy dog, " + i));
+            memory.add(AiMessage.from("Indeed it does, " + i));
+        }
+        List<ChatMessage> before = memory.messages();
+        int tokens = memory.tokens();
+        long weight = memory.weightBytes();
+
+        assertFalse(memory.pack(Long.MAX_VALUE), "was not idle long enough");
+        assertTrue(memory.pack(0));
+
+        assertTrue(memory.isPacked());
+        assertTrue(memory.weightBytes() * 2 < weight, "packed " + memory.weightBytes() + " vs " + weight);
+        assertEquals(before, memory.messages());
+        assertFalse(memory.isPacked());
+        assertEquals(tokens, memory.tokens());
+    }
+
+    @Test
+    void replacesOlderMessagesWithSummary() {
+        var compressor = compressor(conversation -> "they said hello");
+        var memory = new TokenWindowChatMemory("a", 100, new ApproximateTokenCountEstimator(), null, compressor);
+        for (int i = 0; i < 8; i++) {
+            memory.add(UserMessage.from(TEN_TOKENS + i));
+        }
+
+        List<ChatMessage> messages = memory.messages();
+        assertEquals(UserMessage.from(ChatMemoryCompressor.SUMMARY_PREFIX + "they said hello"), messages.get(0));
+        assertEquals(UserMessage.from(TEN_TOKENS + 7), messages.get(messages.size() - 1));
+        assertTrue(memory.tokens() <= 75, "tokens were " + memory.tokens());
+        assertEquals(1, compressor.compressed.sum());
+    }
+
+    @Test
+    void keepsMessagesIfSummaryFails() {
+        var compressor = compressor(conversation -> {
+            throw new IllegalStateException("model unavailable");
+        });
+        var memory = new TokenWindowChatMemory("a", 100, new ApproximateTokenCountEstimator(), null, compressor);
+        for (int i = 0; i < 8; i++) {
+            memory.add(UserMessage.from(TEN_TOKENS + i));
+        }
+
+        assertEquals(UserMessage.from(TEN_TOKENS + 0), memory.messages().get(0));
+        assertTrue(compressor.failed.sum() > 0);
+    }
+
+    @Test
+    void discardsSummaryIfMemoryChangedInTheMeantime() {
+        var memory = new TokenWindowChatMemory("a", 100, new ApproximateTokenCountEstimator(), null, null);
+        memory.add(UserMessage.from("1"));
+        memory.add(UserMessage.from("2"));
+        memory.add(UserMessage.from("3"));
+        List<ChatMessage> older = memory.messages().subList(0, 2);
+        memory.clear();
+        memory.add(UserMessage.from("4"));
+
+        assertFalse(memory.replace(older, UserMessage.from("summary")));
+    }
+
+    private static ChatMemoryCompressor compressor(Function<String, String> summarizer) {
+        var compressor = new ChatMemoryCompressor();
+        compressor.threshold = 0.75;
+        compressor.retain = 0.4;
+        compressor.maxSummaryWords = 100;
+        compressor.maxConcurrent = 1;
+        compressor.summaryService = (conversation, maxWords) -> summarizer.apply(conversation);
+        compressor.meter = OpenTelemetry.noop().getMeter("test");
+        compressor.init();
+        // summarise on the calling thread, so that the result can be checked right away
+        compressor.executor = Runnable::run;
+        return compressor;
+    }
+}
@@ -0,0 +1,46 @@
+package dev.abstratium.abstrasst.service;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that usage rollups are written to the database and read back together with those which are not written yet.
+ */
+@QuarkusTest
+class UsageLedgerRollupTest {
+
+    @Inject
+    UsageLedger ledger;
+
+    @Test
+    void mergesWrittenAndUnwrittenUsage() {
+        Instant from = Instant.now().minus(Duration.ofHours(1));
+        Instant to = Instant.now().plus(Duration.ofHours(1));
+
+        ledger.record("rollup", "rollup-test-model", 100, 0, 10);
+        ledger.flush(Long.MAX_VALUE);
+        ledger.record("rollup", "rollup-test-model", 200, 0, 20);
+
+        var hour = ledger.rollups(UsageLedger.Granularity.HOUR, from, to).stream()
+            .filter(r -> r.model().equals("rollup-test-model"))
+            .toList();
+        // two rows if the hour ended between the calls
+        assertEquals(2, hour.stream().mapToLong(UsageLedger.Rollup::calls).sum());
+        assertEquals(300, hour.stream().mapToLong(UsageLedger.Rollup::inputTokens).sum());
+
+        ledger.flush(Long.MAX_VALUE);
+        ledger.flush(Long.MAX_VALUE);
+
+        var written = ledger.rollups(UsageLedger.Granularity.HOUR, from, to).stream()
+            .filter(r -> r.model().equals("rollup-test-model"))
+            .toList();
+        assertEquals(hour, written);
+    }
+}
@@ -0,0 +1,182 @@
+package dev.abstratium.abstrasst.service;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import io.opentelemetry.api.OpenTelemetry;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link UsageLedger}.
+ */
+class UsageLedgerTest {
+
+    @Test
+    void computesCostInMicroDollars() {
+        var ledger = ledger();
+
+        // 1M uncached input at $0.40, 1M output at $1.60
+        assertEquals(2_000_000, ledger.record("s", "gpt-4.1-nano-2025-04-14", 1_000_000, 0, 1_000_000));
+        // 1000 input of which 500 cached: 500 * 0.40 + 500 * 0.10 = 250 micros
+        assertEquals(250, ledger.record("s", "gpt-4.1-nano", 1000, 500, 0));
+        assertEquals(2_000_250, ledger.costMicros("s"));
+        assertEquals("$2.000250", UsageLedger.formatDollars(ledger.costMicros("s")));
+    }
+
+    @Test
+    void prefersTheLongestMatchingPrefix() {
+        var ledger = ledger();
+
+        assertEquals(1_000_000, ledger.record("s", "gpt-4.1-2025-04-14", 500_000, 0, 0));
+        assertEquals(400_000, ledger.record("s", "gpt-4.1-nano-2025-04-14", 1_000_000, 0, 0));
+    }
+
+    @Test
+    void accountsUnknownModelsAtNoCost() {
+        var ledger = ledger();
+
+        assertEquals(0, ledger.record("s", "some-other-model", 1000, 0, 1000));
+        assertEquals(1000, ledger.usage("s").get("some-other-model").outputTokens());
+        assertEquals(1, ledger.unpricedCalls.sum());
+    }
+
+    @Test
+    void losesNoUpdatesUnderConcurrency() throws Exception {
+        var ledger = ledger();
+        try (var executor = Executors.newFixedThreadPool(8)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 10_000; i++) {
+                        ledger.record("s", "gpt-4.1-nano", 10, 0, 5);
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        }
+
+        var usage = ledger.usage("s").get("gpt-4.1-nano");
+        assertEquals(80_000, usage.calls());
+        assertEquals(800_000, usage.inputTokens());
+        assertEquals(400_000, usage.outputTokens());
+    }
+
+    @Test
+    void forgetsIdleSessions() {
+        var ledger = ledger();
+        ledger.record("s", "gpt-4.1-nano", 1000, 0, 0);
+
+        ticker.addAndGet(Duration.ofMinutes(31).toNanos());
+        ledger.cleanUp();
+
+        assertEquals(0, ledger.costMicros("s"));
+        assertTrue(ledger.usage("s").isEmpty());
+    }
+
+    @Test
+    void rollsUpPerMinuteAndHour() {
+        var ledger = ledger();
+        clock.set(Instant.parse("2026-01-01T10:00:30Z").toEpochMilli());
+        ledger.record("a", "gpt-4.1-nano", 1000, 0, 0);
+        clock.set(Instant.parse("2026-01-01T10:00:50Z").toEpochMilli());
+        ledger.record("b", "gpt-4.1-nano", 1000, 0, 0);
+        clock.set(Instant.parse("2026-01-01T10:01:10Z").toEpochMilli());
+        ledger.record("b", "gpt-4.1", 1000, 0, 0);
+
+        var minute = ledger.ring(UsageLedger.Granularity.MINUTE).dirty(Long.MAX_VALUE);
+        assertEquals(2, minute.size());
+        assertEquals(Instant.parse("2026-01-01T10:00:00Z").toEpochMilli(), minute.get(0).start);
+        assertEquals(2, minute.get(0).byModel.get("gpt-4.1-nano").calls.sum());
+        assertEquals(800, minute.get(0).byModel.get("gpt-4.1-nano").costMicros.sum());
+        assertEquals(Set.of("gpt-4.1"), minute.get(1).byModel.keySet());
+
+        var hour = ledger.ring(UsageLedger.Granularity.HOUR).dirty(Long.MAX_VALUE);
+        assertEquals(1, hour.size());
+        assertEquals(Set.of("gpt-4.1-nano", "gpt-4.1"), hour.get(0).byModel.keySet());
+
+        // only completed minutes are written
+        assertEquals(1, ledger.ring(UsageLedger.Granularity.MINUTE).dirty(clock.get()).size());
+    }
+
+    @Test
+    void reusesTheSlotOfTheOldestBucketAndCountsItIfItWasNotWritten() {
+        var ledger = ledger();
+        var ring = ledger.ring(UsageLedger.Granularity.MINUTE);
+        long start = Instant.parse("2026-01-01T10:00:00Z").toEpochMilli();
+        for (int i = 0; i < 3; i++) {
+            ring.add(start + i * 60_000, "m", 1, 0, 1, 1);
+        }
+        var first = ring.dirty(Long.MAX_VALUE).get(0).byModel.get("m");
+        first.written(first.snapshot("m"));
+
+        // the ring has three slots, so the fourth and fifth minutes replace the first and second
+        ring.add(start + 3 * 60_000, "m", 1, 0, 1, 1);
+        assertEquals(0, ring.dropped.sum());
+        ring.add(start + 4 * 60_000, "m", 1, 0, 1, 1);
+        assertEquals(1, ring.dropped.sum());
+
+        var buckets = ring.dirty(Long.MAX_VALUE);
+        assertEquals(List.of(start + 2 * 60_000, start + 3 * 60_000, start + 4 * 60_000), buckets.stream().map(b -> b.start).toList());
+
+        // a late call for a minute whose slot has been reused is not counted in a wrong minute
+        ring.add(start + 60_000, "m", 1, 0, 1, 1);
+        assertEquals(1, ring.dirty(Long.MAX_VALUE).get(0).byModel.get("m").calls.sum());
+    }
+
+    @Test
+    void writesCallsWhichArriveAfterTheirBucketWasWritten() {
+        var ledger = ledger();
+        var ring = ledger.ring(UsageLedger.Granularity.MINUTE);
+        ring.add(clock.get(), "m", 10, 0, 5, 3);
+        var counts = ring.dirty(Long.MAX_VALUE).get(0).byModel.get("m");
+        counts.written(counts.snapshot("m"));
+        assertTrue(ring.dirty(Long.MAX_VALUE).isEmpty());
+
+        ring.add(clock.get(), "m", 20, 0, 7, 4);
+
+        assertEquals(new UsageLedger.Usage("m", 1, 20, 0, 7, 4), counts.unwritten(counts.snapshot("m")));
+    }
+
+    private final AtomicLong ticker = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong(Instant.parse("2026-01-01T10:00:00Z").toEpochMilli());
+
+    private UsageLedger ledger() {
+        var ledger = new UsageLedger();
+        ledger.pricing = () -> Map.of(
+            "gpt-4.1-nano", price("0.40", "0.10", "1.60"),
+            "gpt-4.1", price("2.00", null, "8.00"));
+        ledger.meter = OpenTelemetry.noop().getMeter("test");
+        ledger.maxSessions = 1000;
+        ledger.sessionIdleExpiry = Duration.ofMinutes(30);
+        ledger.minutes = 3;
+        ledger.hours = 2;
+        ledger.grace = Duration.ofSeconds(10);
+        ledger.batchSize = 100;
+        ledger.ticker = ticker::get;
+        ledger.clock = clock::get;
+        ledger.init();
+        return ledger;
+    }
+
+    private static LlmPricing.ModelPrice price(String input, String cachedInput, String output) {
+        return new LlmPricing.ModelPrice() {
+            public BigDecimal input() { return new BigDecimal(input); }
+            public Optional<BigDecimal> cachedInput() { return Optional.ofNullable(cachedInput).map(BigDecimal::new); }
+            public BigDecimal output() { return new BigDecimal(output); }
+        };
+    }
+}
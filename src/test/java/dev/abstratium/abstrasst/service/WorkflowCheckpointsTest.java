@@ -0,0 +1,85 @@
+package dev.abstratium.abstrasst.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import dev.abstratium.abstrasst.agents.ResumableCeoAgent;
+import dev.abstratium.abstrasst.agents.ResumableCfoAgent;
+import dev.abstratium.abstrasst.agents.ResumableCtoAgent;
+
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that the checkpoints of workflow runs are written once, read back by run id, restored by the resumable agents, and purged.
+ */
+@QuarkusTest
+class WorkflowCheckpointsTest {
+
+    @Inject
+    WorkflowCheckpoints checkpoints;
+
+    @Inject
+    ResumableCfoAgent cfo;
+
+    @Inject
+    ResumableCtoAgent cto;
+
+    @Inject
+    ResumableCeoAgent ceo;
+
+    @Test
+    void keepsTheFirstOutputOfEachAgentOfARun() {
+        String runId = UUID.randomUUID().toString();
+
+        checkpoints.save(runId, "cfoInput", "money");
+        checkpoints.save(runId, "cfoInput", "more money");
+        checkpoints.save(runId, "ctoInput", "tech");
+
+        assertEquals("money", checkpoints.find(runId, "cfoInput"));
+        assertEquals("tech", checkpoints.find(runId, "ctoInput"));
+        assertNull(checkpoints.find(runId, "ceoInput"));
+        assertNull(checkpoints.find(UUID.randomUUID().toString(), "cfoInput"));
+    }
+
+    @Test
+    void resumableAgentsReturnTheCheckpointedInputWithoutAskingTheMember() {
+        String runId = UUID.randomUUID().toString();
+        checkpoints.save(runId, "cfoInput", "money");
+        checkpoints.save(runId, "ctoInput", "tech");
+        checkpoints.save(runId, "ceoInput", "vision");
+        long restored = checkpoints.restored.sum();
+
+        assertEquals("money", cfo.run(runId, "the budget"));
+        assertEquals("tech", cto.run(runId, "the budget"));
+        assertEquals("vision", ceo.run(runId, "the budget"));
+        assertEquals(restored + 3, checkpoints.restored.sum());
+    }
+
+    @Test
+    void scopesRunIdsToTheUserAndTheTopic() {
+        String runId = WorkflowCheckpoints.runId("alice", "retry-1", "the budget");
+
+        assertEquals(runId, WorkflowCheckpoints.runId("alice", "retry-1", "the budget"));
+        assertNotEquals(runId, WorkflowCheckpoints.runId("bob", "retry-1", "the budget"));
+        assertNotEquals(runId, WorkflowCheckpoints.runId("alice", "retry-1", "the hiring"));
+        assertNotEquals(runId, WorkflowCheckpoints.runId("alice", "retry-2", "the budget"));
+    }
+
+    @Test
+    void purgesCheckpointsWrittenBeforeTheCutoff() {
+        String runId = UUID.randomUUID().toString();
+        checkpoints.save(runId, "cfoInput", "money");
+
+        checkpoints.purge(Instant.now().minus(Duration.ofDays(1)));
+        assertEquals("money", checkpoints.find(runId, "cfoInput"));
+
+        checkpoints.purge(Instant.now().plusSeconds(1));
+        assertNull(checkpoints.find(runId, "cfoInput"));
+    }
+}
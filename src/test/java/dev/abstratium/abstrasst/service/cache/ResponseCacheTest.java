@@ -0,0 +1,152 @@
+package dev.abstratium.abstrasst.service.cache;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.smallrye.mutiny.Multi;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the exact match LLM response cache, without CDI or an LLM.
+ */
+class ResponseCacheTest {
+
+    private static final RenderedPrompt PROMPT = new RenderedPrompt("gpt-4.1-nano", "You are a poet", "Write a poem about cats");
+
+    private ResponseCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new ResponseCache();
+        cache.enabled = true;
+        cache.maxEntries = 100;
+        cache.ttl = Duration.ofMinutes(1);
+        cache.meter = OpenTelemetry.noop().getMeter("test");
+        cache.init();
+    }
+
+    @Test
+    void secondIdenticalCallIsServedFromCache() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+
+        assertEquals("meow", cache.get(PROMPT, () -> "meow" + (calls.incrementAndGet() > 1 ? "!" : "")));
+        assertEquals("meow", cache.get(PROMPT, () -> "meow" + (calls.incrementAndGet() > 1 ? "!" : "")));
+
+        assertEquals(1, calls.get());
+        assertEquals(1, cache.misses.sum());
+        assertEquals(1, cache.hits.sum());
+    }
+
+    @Test
+    void differentSystemMessageIsADifferentEntry() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        var other = new RenderedPrompt(PROMPT.model(), "You are a clown", PROMPT.userMessage());
+
+        cache.get(PROMPT, () -> "a" + calls.incrementAndGet());
+        String answer = cache.get(other, () -> "b" + calls.incrementAndGet());
+
+        assertEquals("b2", answer);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void sameQuestionInAnotherConversationIsADifferentEntry() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+
+        cache.get(PROMPT, "alice", () -> "a" + calls.incrementAndGet());
+        assertEquals("b2", cache.get(PROMPT, "bob", () -> "b" + calls.incrementAndGet()));
+        assertEquals("b2", cache.get(PROMPT, "bob", () -> "b" + calls.incrementAndGet()));
+        assertEquals("c3", cache.get(PROMPT, () -> "c" + calls.incrementAndGet()));
+
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    void concurrentIdenticalCallsShareOneUpstreamCall() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch upstreamStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<String> first = executor.submit(() -> cache.get(PROMPT, () -> {
+                calls.incrementAndGet();
+                upstreamStarted.countDown();
+                release.await();
+                return "shared";
+            }));
+            assertTrue(upstreamStarted.await(5, TimeUnit.SECONDS));
+
+            List<Future<String>> others = List.of(
+                executor.submit(() -> cache.get(PROMPT, () -> "not expected " + calls.incrementAndGet())),
+                executor.submit(() -> cache.get(PROMPT, () -> "not expected " + calls.incrementAndGet())));
+
+            release.countDown();
+            assertEquals("shared", first.get(5, TimeUnit.SECONDS));
+            for (var f : others) {
+                assertEquals("shared", f.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, calls.get());
+            assertEquals(2, cache.coalesced.sum() + cache.hits.sum());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void failedCallIsNotCached() throws Exception {
+        assertThrows(IllegalStateException.class, () -> cache.get(PROMPT, () -> {
+            throw new IllegalStateException("429");
+        }));
+
+        assertEquals("second try", cache.get(PROMPT, () -> "second try"));
+        assertEquals(2, cache.misses.sum());
+    }
+
+    @Test
+    void completedStreamIsCachedAsWholeText() {
+        List<String> first = cache.getStream(PROMPT, () -> Multi.createFrom().items("Roses ", "are ", "red"))
+            .collect().asList().await().indefinitely();
+        List<String> second = cache.getStream(PROMPT, () -> Multi.createFrom().items("not", "expected"))
+            .collect().asList().await().indefinitely();
+
+        assertEquals(List.of("Roses ", "are ", "red"), first);
+        assertEquals(List.of("Roses are red"), second);
+        assertEquals(1, cache.hits.sum());
+    }
+
+    @Test
+    void failedStreamIsNotCached() {
+        assertThrows(RuntimeException.class, () -> cache.getStream(PROMPT, () -> Multi.createFrom().failure(new RuntimeException("boom")))
+            .collect().asList().await().indefinitely());
+
+        List<String> retry = cache.getStream(PROMPT, () -> Multi.createFrom().items("ok"))
+            .collect().asList().await().indefinitely();
+        assertEquals(List.of("ok"), retry);
+    }
+
+    @Test
+    void renderedPromptSubstitutesNamedVariables() throws Exception {
+        interface Poet {
+            @dev.langchain4j.service.SystemMessage("You are a {style} poet")
+            @dev.langchain4j.service.UserMessage("Write about {topic}")
+            String write(@dev.langchain4j.service.V("style") String style, @dev.langchain4j.service.V("topic") String topic);
+        }
+
+        var prompt = RenderedPrompt.of(Poet.class.getMethod("write", String.class, String.class), new Object[] {"lazy", "cats"});
+
+        assertEquals("You are a lazy poet", prompt.systemMessage());
+        assertEquals("Write about cats", prompt.userMessage());
+    }
+}
@@ -0,0 +1,96 @@
+package dev.abstratium.abstrasst.service.cache;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.memory.chat.MessageWindowChatMemory;
+import io.opentelemetry.api.OpenTelemetry;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the semantic LLM response cache, with a fake embedding model which maps paraphrases onto the same vector.
+ */
+class SemanticCacheTest {
+
+    private static final String SYSTEM = "You are a helpful assistant";
+
+    /** questions with the same topic are paraphrases of each other */
+    private static final Map<String, Integer> TOPICS = Map.of(
+        "What did I tell you earlier?", 1,
+        "What did I say before?", 1,
+        "How high is the Matterhorn?", 2);
+
+    private SemanticCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new SemanticCache() {
+            @Override
+            float[] embed(String text) {
+                return vector(TOPICS.get(text));
+            }
+        };
+        cache.enabled = true;
+        cache.threshold = 0.92;
+        cache.maxEntries = 100;
+        cache.lshBits = 8;
+        cache.ttl = Duration.ofMinutes(1);
+        cache.meter = OpenTelemetry.noop().getMeter("test");
+        cache.init();
+    }
+
+    @Test
+    void answersParaphrases() {
+        var miss = cache.lookup(prompt("How high is the Matterhorn?"), null);
+        assertFalse(miss.isHit());
+        cache.store(miss, "4478 m");
+
+        assertEquals("4478 m", cache.lookup(prompt("How high is the Matterhorn?"), null).answer());
+        assertFalse(cache.lookup(prompt("What did I say before?"), null).isHit());
+    }
+
+    @Test
+    void neverAnswersFromTheConversationOfAnotherMemoryId() {
+        var alice = cache.lookup(prompt("What did I tell you earlier?"), "alice");
+        assertFalse(alice.isHit());
+        cache.store(alice, "You told me that your PIN is 1234.");
+
+        assertFalse(cache.lookup(prompt("What did I say before?"), "bob").isHit());
+        assertFalse(cache.lookup(prompt("What did I say before?"), null).isHit());
+        assertEquals("You told me that your PIN is 1234.", cache.lookup(prompt("What did I say before?"), "alice").answer());
+        assertEquals(1, cache.hits.sum());
+    }
+
+    @Test
+    void hitIsAddedToTheMemory() {
+        var memory = MessageWindowChatMemory.withMaxMessages(10);
+
+        ResponseCacheInterceptor.remember(memory, prompt("What did I say before?"), "That you like cats.");
+
+        assertEquals(3, memory.messages().size());
+        assertEquals(SystemMessage.from(SYSTEM), memory.messages().get(0));
+        assertEquals(UserMessage.from("What did I say before?"), memory.messages().get(1));
+        assertEquals(AiMessage.from("That you like cats."), memory.messages().get(2));
+    }
+
+    private static RenderedPrompt prompt(String userMessage) {
+        return new RenderedPrompt("gpt-4.1-nano", SYSTEM, userMessage);
+    }
+
+    private static float[] vector(int seed) {
+        var random = new SplittableRandom(seed);
+        float[] v = new float[32];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = (float) random.nextGaussian();
+        }
+        return v;
+    }
+}
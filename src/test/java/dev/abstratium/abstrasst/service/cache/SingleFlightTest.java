@@ -0,0 +1,68 @@
+package dev.abstratium.abstrasst.service.cache;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.helpers.test.AssertSubscriber;
+import io.smallrye.mutiny.subscription.MultiEmitter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests what the calls which join another call with the same key get, when that call fails or is cancelled.
+ */
+class SingleFlightTest {
+
+    private final ConcurrentMap<String, CompletableFuture<String>> map = new ConcurrentHashMap<>();
+
+    private final SingleFlight<String, String> flights = new SingleFlight<>(map);
+
+    private final AtomicInteger joined = new AtomicInteger();
+
+    @Test
+    void callsWhichJoinedAFailedCallFailWithIt() {
+        var first = new CompletableFuture<MultiEmitter<? super String>>();
+        stream(Multi.createFrom().<String>emitter(emitter -> first.complete(emitter))).subscribe().withSubscriber(AssertSubscriber.create(Long.MAX_VALUE));
+        var second = stream(Multi.createFrom().item("never")).subscribe().withSubscriber(AssertSubscriber.create(Long.MAX_VALUE));
+
+        first.join().fail(new IllegalStateException("rate limited"));
+
+        second.awaitFailure(Duration.ofSeconds(5)).assertFailedWith(IllegalStateException.class, "rate limited");
+        assertEquals(1, joined.get());
+    }
+
+    @Test
+    void callsWhichJoinedACancelledStreamStreamThemselves() {
+        var first = stream(Multi.createFrom().emitter(emitter -> emitter.emit("a")))
+            .subscribe().withSubscriber(AssertSubscriber.create(Long.MAX_VALUE));
+        var second = stream(Multi.createFrom().items("b", "c")).subscribe().withSubscriber(AssertSubscriber.create(Long.MAX_VALUE));
+
+        first.cancel();
+
+        assertEquals(List.of("b", "c"), second.awaitCompletion(Duration.ofSeconds(5)).getItems());
+        // and the result of the second is the one which is kept
+        var third = stream(Multi.createFrom().item("never")).subscribe().withSubscriber(AssertSubscriber.create(Long.MAX_VALUE));
+        assertEquals(List.of("bc"), third.awaitCompletion(Duration.ofSeconds(5)).getItems());
+    }
+
+    @Test
+    void streamsWhichAreNeverSubscribedToDoNotKeepTheKey() {
+        stream(Multi.createFrom().item("never"));
+
+        assertTrue(map.isEmpty());
+        var second = stream(Multi.createFrom().item("a")).subscribe().withSubscriber(AssertSubscriber.create(Long.MAX_VALUE));
+        assertEquals(List.of("a"), second.awaitCompletion(Duration.ofSeconds(5)).getItems());
+        assertEquals(0, joined.get());
+    }
+
+    private Multi<String> stream(Multi<String> upstream) {
+        return flights.stream("key", () -> upstream, items -> String.join("", items), Multi.createFrom()::item, existing -> joined.incrementAndGet());
+    }
+}
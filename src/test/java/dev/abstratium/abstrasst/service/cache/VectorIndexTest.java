@@ -0,0 +1,91 @@
+package dev.abstratium.abstrasst.service.cache;
+
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the quantised LSH index behind the semantic cache.
+ */
+class VectorIndexTest {
+
+    private static final int DIMENSION = 64;
+
+    @Test
+    void findsSlightlyPerturbedVector() {
+        var index = new VectorIndex<String>(16, DIMENSION, 8, 42);
+        float[] original = random(1);
+        index.add(original, 1, 0, "original");
+        index.add(random(2), 1, 0, "other");
+
+        assertEquals("original", index.nearest(perturb(original, 0.05f, 3), 1, 0, 0.9));
+    }
+
+    @Test
+    void ignoresDissimilarVectors() {
+        var index = new VectorIndex<String>(16, DIMENSION, 8, 42);
+        index.add(random(1), 1, 0, "one");
+
+        assertNull(index.nearest(random(2), 1, 0, 0.9));
+    }
+
+    @Test
+    void onlyMatchesWithinTheSamePartition() {
+        var index = new VectorIndex<String>(16, DIMENSION, 8, 42);
+        float[] v = random(1);
+        index.add(v, 1, 0, "partition one");
+
+        assertNull(index.nearest(v, 2, 0, 0.9));
+        assertEquals("partition one", index.nearest(v, 1, 0, 0.9));
+    }
+
+    @Test
+    void ignoresEntriesOlderThanNotBefore() {
+        var index = new VectorIndex<String>(16, DIMENSION, 8, 42);
+        float[] v = random(1);
+        index.add(v, 1, 1000, "old");
+
+        assertNull(index.nearest(v, 1, 1001, 0.9));
+    }
+
+    @Test
+    void evictsOldestEntryWhenFull() {
+        var index = new VectorIndex<String>(3, DIMENSION, 8, 42);
+        float[] first = random(1);
+        index.add(first, 1, 0, "first");
+        index.add(random(2), 1, 0, "second");
+        index.add(random(3), 1, 0, "third");
+        index.add(random(4), 1, 0, "fourth");
+
+        assertEquals(3, index.size());
+        assertNull(index.nearest(first, 1, 0, 0.9));
+        assertEquals("fourth", index.nearest(random(4), 1, 0, 0.9));
+    }
+
+    @Test
+    void rejectsWrongDimension() {
+        var index = new VectorIndex<String>(3, DIMENSION, 8, 42);
+
+        assertThrows(IllegalArgumentException.class, () -> index.add(new float[DIMENSION + 1], 1, 0, "x"));
+    }
+
+    private static float[] random(long seed) {
+        var random = new SplittableRandom(seed);
+        float[] v = new float[DIMENSION];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = (float) random.nextGaussian();
+        }
+        return v;
+    }
+
+    private static float[] perturb(float[] v, float amount, long seed) {
+        var random = new SplittableRandom(seed);
+        float[] p = v.clone();
+        for (int i = 0; i < p.length; i++) {
+            p[i] += (float) random.nextGaussian() * amount;
+        }
+        return p;
+    }
+}
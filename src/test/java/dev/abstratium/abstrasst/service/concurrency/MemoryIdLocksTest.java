@@ -0,0 +1,100 @@
+package dev.abstratium.abstrasst.service.concurrency;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import dev.abstratium.core.boundary.FunctionalException;
+import io.opentelemetry.api.OpenTelemetry;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link MemoryIdLocks}.
+ */
+class MemoryIdLocksTest {
+
+    @Test
+    void serialisesTurnsOfOneConversation() throws Exception {
+        var locks = locks(Duration.ofSeconds(10));
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(executor.submit(() -> {
+                    try (var permit = locks.acquire("user")) {
+                        events.add("start");
+                        Thread.sleep(5);
+                        events.add("end");
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get(10, TimeUnit.SECONDS);
+            }
+        }
+
+        for (int i = 0; i < events.size(); i += 2) {
+            assertEquals("start", events.get(i));
+            assertEquals("end", events.get(i + 1));
+        }
+        assertEquals(10, locks.uncontended.sum() + locks.contended.sum());
+        assertTrue(locks.contended.sum() > 0);
+        assertEquals(0, locks.size());
+    }
+
+    @Test
+    void otherConversationsDoNotWait() throws Exception {
+        var locks = locks(Duration.ofSeconds(10));
+        try (var held = locks.acquire("a")) {
+            var latch = new CountDownLatch(1);
+            Thread.ofVirtual().start(() -> {
+                try (var permit = locks.acquire("b")) {
+                    latch.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        }
+        assertEquals(0, locks.contended.sum());
+    }
+
+    @Test
+    void givesUpAfterTimeout() throws Exception {
+        var locks = locks(Duration.ofMillis(20));
+        try (var held = locks.acquire("a"); var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var other = executor.submit(() -> locks.acquire("a"));
+            var e = assertThrows(ExecutionException.class, () -> other.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(FunctionalException.class, e.getCause());
+            assertEquals(1, locks.size());
+        }
+        assertEquals(0, locks.size());
+    }
+
+    @Test
+    void isReentrantForTheSameThread() throws Exception {
+        var locks = locks(Duration.ofMillis(20));
+        try (var outer = locks.acquire("a"); var inner = locks.acquire("a")) {
+            assertEquals(1, locks.size());
+        }
+        assertEquals(0, locks.size());
+    }
+
+    private static MemoryIdLocks locks(Duration timeout) {
+        var locks = new MemoryIdLocks();
+        locks.timeout = timeout;
+        locks.meter = OpenTelemetry.noop().getMeter("test");
+        locks.init();
+        return locks;
+    }
+}
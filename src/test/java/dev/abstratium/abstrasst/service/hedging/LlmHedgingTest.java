@@ -0,0 +1,134 @@
+package dev.abstratium.abstrasst.service.hedging;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import io.opentelemetry.api.OpenTelemetry;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link LlmHedging} and {@link HedgingChatModel}.
+ */
+class LlmHedgingTest {
+
+    private static final ChatRequest REQUEST = ChatRequest.builder().messages(UserMessage.from("hi")).modelName("gpt-4.1-nano").build();
+
+    @Test
+    void requestsOutsideHedgedMethodsArePassedOn() {
+        var hedging = hedging(1.0);
+        var model = new HedgingChatModel(new FakeModel(i -> 0), hedging);
+
+        assertEquals("answer 0", model.chat(REQUEST).aiMessage().text());
+        assertEquals(0, hedging.unhedged.sum());
+    }
+
+    @Test
+    void aSlowRequestIsHedgedAndTheFirstAnswerWins() throws Exception {
+        var hedging = hedging(1.0);
+        // the 6th request hangs, and its hedge answers right away
+        var fake = new FakeModel(i -> i == 5 ? 10_000 : 20);
+        var model = new HedgingChatModel(fake, hedging);
+
+        for (int i = 0; i < 5; i++) {
+            hedging.hedged(() -> model.chat(REQUEST));
+        }
+        assertEquals(5, hedging.unhedged.sum());
+
+        long start = System.nanoTime();
+        String answer = hedging.hedged(() -> model.chat(REQUEST)).aiMessage().text();
+        assertTrue(System.nanoTime() - start < 2_000_000_000L);
+        assertEquals("answer 6", answer);
+        assertEquals(1, hedging.hedged.sum());
+        assertEquals(1, hedging.hedgeWins.sum());
+        assertEquals(0, hedging.primaryWins.sum());
+
+        // the loser was cancelled
+        Thread.sleep(100);
+        assertTrue(fake.interrupted.contains(5), fake.interrupted.toString());
+        // and counts with how long it had waited, i.e. at least until the hedge was sent after 20ms and answered after 20ms more
+        var window = hedging.latencies.values().iterator().next();
+        assertEquals(6, window.size());
+        assertTrue(window.percentile(1.0) >= 40_000_000L, String.valueOf(window.percentile(1.0)));
+    }
+
+    @Test
+    void hedgesAreCappedByTheBudget() throws Exception {
+        var hedging = hedging(0.25);
+        hedging.percentile = 0.5;
+        hedging.minSamples = 10;
+        var fake = new FakeModel(i -> i < 10 ? 5 : 200);
+        var model = new HedgingChatModel(fake, hedging);
+
+        for (int i = 0; i < 10; i++) {
+            hedging.hedged(() -> model.chat(REQUEST));
+        }
+        // ten calls filled the budget with 2.5 hedges, and each of the next calls adds a quarter
+        for (int i = 0; i < 4; i++) {
+            hedging.hedged(() -> model.chat(REQUEST));
+        }
+        assertEquals(3, hedging.hedged.sum());
+        assertEquals(1, hedging.throttled.sum());
+    }
+
+    @Test
+    void aFailureBeforeTheHedgeIsDueIsNotHedged() {
+        var hedging = hedging(1.0);
+        ChatModel failing = new ChatModel() {
+
+            @Override
+            public ChatResponse chat(ChatRequest request) {
+                throw new IllegalArgumentException("invalid request");
+            }
+        };
+        var model = new HedgingChatModel(failing, hedging);
+
+        assertThrows(IllegalArgumentException.class, () -> hedging.hedged(() -> model.chat(REQUEST)));
+        assertEquals(0, hedging.hedged.sum());
+    }
+
+    private static LlmHedging hedging(double budget) {
+        var hedging = new LlmHedging();
+        hedging.enabled = true;
+        hedging.percentile = 0.95;
+        hedging.budget = budget;
+        hedging.window = 100;
+        hedging.minSamples = 5;
+        hedging.meter = OpenTelemetry.noop().getMeter("test");
+        hedging.init();
+        return hedging;
+    }
+
+    /** answers each request after the delay in milliseconds for its number */
+    private static class FakeModel implements ChatModel {
+
+        final AtomicInteger requests = new AtomicInteger();
+        final List<Integer> interrupted = new CopyOnWriteArrayList<>();
+        private final IntFunction<Integer> delays;
+
+        FakeModel(IntFunction<Integer> delays) {
+            this.delays = delays;
+        }
+
+        @Override
+        public ChatResponse chat(ChatRequest request) {
+            int n = requests.getAndIncrement();
+            try {
+                Thread.sleep(delays.apply(n));
+            } catch (InterruptedException e) {
+                interrupted.add(n);
+                throw new IllegalStateException(e);
+            }
+            return ChatResponse.builder().aiMessage(AiMessage.from("answer " + n)).build();
+        }
+    }
+}
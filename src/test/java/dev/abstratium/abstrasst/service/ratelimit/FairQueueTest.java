@@ -0,0 +1,78 @@
+package dev.abstratium.abstrasst.service.ratelimit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link FairQueue}.
+ */
+class FairQueueTest {
+
+    @Test
+    void servesHigherPriorityClassesFirst() {
+        var queue = new FairQueue(user -> 1);
+        queue.add(new LlmCaller("a", PriorityClass.BATCH));
+        queue.add(new LlmCaller("a", PriorityClass.STANDARD));
+        queue.add(new LlmCaller("a", PriorityClass.INTERACTIVE));
+
+        assertEquals(List.of("a/INTERACTIVE", "a/STANDARD", "a/BATCH"), drain(queue, 3));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    void interleavesTheCallsOfUsersWithinAClass() {
+        var queue = new FairQueue(user -> 1);
+        for (int i = 0; i < 3; i++) {
+            queue.add(new LlmCaller("a", PriorityClass.BATCH));
+        }
+        queue.add(new LlmCaller("b", PriorityClass.BATCH));
+        queue.add(new LlmCaller("b", PriorityClass.BATCH));
+
+        assertEquals(List.of("a/BATCH", "b/BATCH", "a/BATCH", "b/BATCH", "a/BATCH"), drain(queue, 5));
+    }
+
+    @Test
+    void givesUsersTurnsByTheirWeight() {
+        var weights = Map.of("a", 2.0, "b", 1.0);
+        var queue = new FairQueue(weights::get);
+        for (int i = 0; i < 4; i++) {
+            queue.add(new LlmCaller("a", PriorityClass.STANDARD));
+            queue.add(new LlmCaller("b", PriorityClass.STANDARD));
+        }
+
+        List<String> first = drain(queue, 6);
+        assertEquals(4, first.stream().filter("a/STANDARD"::equals).count(), first.toString());
+    }
+
+    @Test
+    void aUserWhoArrivesLateDoesNotCatchUpOnTurnsItMissed() {
+        var queue = new FairQueue(user -> 1);
+        for (int i = 0; i < 3; i++) {
+            queue.add(new LlmCaller("a", PriorityClass.STANDARD));
+        }
+        assertEquals(List.of("a/STANDARD", "a/STANDARD"), drain(queue, 2));
+
+        queue.add(new LlmCaller("b", PriorityClass.STANDARD));
+        queue.add(new LlmCaller("b", PriorityClass.STANDARD));
+        queue.add(new LlmCaller("a", PriorityClass.STANDARD));
+
+        // b starts at the virtual time, rather than with all the turns since the start
+        assertEquals(List.of("b/STANDARD", "a/STANDARD", "b/STANDARD", "a/STANDARD"), drain(queue, 4));
+    }
+
+    /** serves the given number of waiters, the way the owner of the queue does */
+    private static List<String> drain(FairQueue queue, int n) {
+        List<String> served = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            var first = queue.first();
+            served.add(first.caller.user() + "/" + first.caller.priority());
+            queue.remove(first);
+        }
+        return served;
+    }
+}
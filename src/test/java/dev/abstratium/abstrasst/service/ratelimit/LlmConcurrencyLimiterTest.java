@@ -0,0 +1,206 @@
+package dev.abstratium.abstrasst.service.ratelimit;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import dev.abstratium.abstrasst.service.ratelimit.AdaptiveLimit.Outcome;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.exception.HttpException;
+import dev.langchain4j.exception.TimeoutException;
+import dev.langchain4j.model.ModelProvider;
+import dev.langchain4j.model.chat.listener.ChatModelErrorContext;
+import dev.langchain4j.model.chat.listener.ChatModelRequestContext;
+import dev.langchain4j.model.chat.listener.ChatModelResponseContext;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.output.TokenUsage;
+import io.opentelemetry.api.OpenTelemetry;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link LlmConcurrencyLimiter} and {@link AdaptiveLimit}.
+ */
+class LlmConcurrencyLimiterTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final LlmCaller USER = new LlmCaller("user", PriorityClass.STANDARD);
+
+    @Test
+    void raisesTheLimitWhileTheLatencyStaysFlat() throws Exception {
+        var limit = limit(2, 4);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limit.tryAcquire(USER));
+            assertTrue(limit.tryAcquire(USER));
+            limit.release(Outcome.SUCCESS, 100 * MS, 10);
+            limit.release(Outcome.SUCCESS, 100 * MS, 10);
+        }
+        assertEquals(4, limit.limit());
+        assertEquals(0, limit.inFlight());
+    }
+
+    @Test
+    void doesNotRaiseALimitWhichIsNotUsed() {
+        var limit = limit(8, 64);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limit.tryAcquire(USER));
+            limit.release(Outcome.SUCCESS, 100 * MS, 10);
+        }
+        assertEquals(8, limit.limit());
+    }
+
+    @Test
+    void backsOffOnDropsAndInflatedLatency() {
+        var limit = limit(8, 64);
+        limit.tryAcquire(USER);
+        limit.release(Outcome.DROPPED, 0, 0);
+        assertEquals(4, limit.limit());
+
+        limit.tryAcquire(USER);
+        limit.release(Outcome.SUCCESS, 100 * MS, 10);
+        // the same latency per output token is not inflation
+        limit.tryAcquire(USER);
+        limit.release(Outcome.SUCCESS, 1000 * MS, 100);
+        assertEquals(4, limit.limit());
+
+        limit.tryAcquire(USER);
+        limit.release(Outcome.SUCCESS, 500 * MS, 10);
+        assertEquals(2, limit.limit());
+
+        limit.tryAcquire(USER);
+        limit.release(Outcome.IGNORED, 0, 0);
+        assertEquals(2, limit.limit());
+
+        for (int i = 0; i < 5; i++) {
+            limit.tryAcquire(USER);
+            limit.release(Outcome.DROPPED, 0, 0);
+        }
+        assertEquals(1, limit.limit());
+    }
+
+    @Test
+    void callsBeyondTheLimitWaitForASlot() throws Exception {
+        var limiter = limiter(1, Duration.ofSeconds(10));
+        var first = request(limiter);
+
+        var second = CompletableFuture.supplyAsync(() -> request(limiter));
+        Thread.sleep(100);
+        assertFalse(second.isDone());
+        assertEquals(1, limiter.limit("gpt-4.1-nano").inFlight());
+
+        respond(limiter, first);
+        respond(limiter, second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, limiter.queued.sum());
+        assertEquals(0, limiter.limit("gpt-4.1-nano").inFlight());
+    }
+
+    @Test
+    void waitingCallsAreServedByPriorityClass() throws Exception {
+        var limit = limit(2, 2);
+        assertTrue(limit.tryAcquire(USER));
+        assertTrue(limit.tryAcquire(USER));
+
+        var batch = CompletableFuture.supplyAsync(() -> acquire(limit, new LlmCaller("jobs", PriorityClass.BATCH)));
+        Thread.sleep(50);
+        var interactive = CompletableFuture.supplyAsync(() -> acquire(limit, USER.withPriority(PriorityClass.INTERACTIVE)));
+        Thread.sleep(50);
+
+        limit.release(Outcome.IGNORED, 0, 0);
+        assertTrue(interactive.get(5, TimeUnit.SECONDS));
+        // batch calls get at most half of the slots, so one stays free for the others
+        limit.release(Outcome.IGNORED, 0, 0);
+        Thread.sleep(50);
+        assertFalse(batch.isDone());
+        limit.release(Outcome.IGNORED, 0, 0);
+        assertTrue(batch.get(5, TimeUnit.SECONDS));
+        assertFalse(limit.tryAcquire(new LlmCaller("jobs", PriorityClass.BATCH)));
+        assertTrue(limit.tryAcquire(USER));
+    }
+
+    @Test
+    void callsAreSentBeyondTheLimitAfterTheMaxWait() {
+        var limiter = limiter(1, Duration.ofMillis(100));
+        request(limiter);
+        request(limiter);
+
+        assertEquals(1, limiter.overLimit.sum());
+        assertEquals(2, limiter.limit("gpt-4.1-nano").inFlight());
+    }
+
+    @Test
+    void rateLimitsAndTimeoutsAreDrops() {
+        var limiter = limiter(4, Duration.ofSeconds(10));
+        var context = request(limiter);
+        limiter.onError(new ChatModelErrorContext(new HttpException(429, "Please try again in 1s."),
+            context.chatRequest(), ModelProvider.OPEN_AI, context.attributes()));
+        assertEquals(2, limiter.limit("gpt-4.1-nano").limit());
+        assertEquals(0, limiter.limit("gpt-4.1-nano").inFlight());
+
+        assertEquals(Outcome.DROPPED, LlmConcurrencyLimiter.outcome(new RuntimeException(new TimeoutException("read timed out"))));
+        assertEquals(Outcome.DROPPED, LlmConcurrencyLimiter.outcome(new RuntimeException(new java.util.concurrent.TimeoutException())));
+        assertEquals(Outcome.IGNORED, LlmConcurrencyLimiter.outcome(new HttpException(400, "invalid request")));
+    }
+
+    @Test
+    void theSweepGivesBackSlotsOfCallsWhichNeverComplete() throws Exception {
+        var limiter = limiter(1, Duration.ofSeconds(10));
+        limiter.maxHold = Duration.ofMillis(10);
+        var context = request(limiter);
+        Thread.sleep(20);
+
+        limiter.sweep();
+        assertEquals(1, limiter.abandoned.sum());
+        assertEquals(0, limiter.limit("gpt-4.1-nano").inFlight());
+
+        // a late response does not give the slot back twice
+        respond(limiter, context);
+        assertEquals(0, limiter.limit("gpt-4.1-nano").inFlight());
+    }
+
+    private static AdaptiveLimit limit(int initialLimit, int maxLimit) {
+        return new AdaptiveLimit("model", initialLimit, 1, maxLimit, 0.5, 2.0, 0.5, user -> 1);
+    }
+
+    private static boolean acquire(AdaptiveLimit limit, LlmCaller caller) {
+        try {
+            return limit.acquire(caller, System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ChatModelRequestContext request(LlmConcurrencyLimiter limiter) {
+        var request = ChatRequest.builder().messages(UserMessage.from("hi")).modelName("gpt-4.1-nano").build();
+        var context = new ChatModelRequestContext(request, ModelProvider.OPEN_AI, new HashMap<>());
+        limiter.onRequest(context);
+        return context;
+    }
+
+    private static void respond(LlmConcurrencyLimiter limiter, ChatModelRequestContext context) {
+        limiter.onResponse(new ChatModelResponseContext(ChatResponse.builder().aiMessage(AiMessage.from("ok"))
+            .tokenUsage(new TokenUsage(10, 10)).build(), context.chatRequest(), ModelProvider.OPEN_AI, context.attributes()));
+    }
+
+    private static LlmConcurrencyLimiter limiter(int initialLimit, Duration maxWait) {
+        var limiter = new LlmConcurrencyLimiter();
+        limiter.enabled = true;
+        limiter.initialLimit = initialLimit;
+        limiter.minLimit = 1;
+        limiter.maxLimit = 64;
+        limiter.backoffRatio = 0.5;
+        limiter.latencyTolerance = 2.0;
+        limiter.maxWait = maxWait;
+        limiter.maxHold = Duration.ofMinutes(10);
+        limiter.shedder = LlmLoadShedderTest.shedder(Duration.ofSeconds(5), Duration.ofSeconds(30));
+        limiter.scheduling = LlmRateLimiterTest.scheduling();
+        limiter.meter = OpenTelemetry.noop().getMeter("test");
+        limiter.init();
+        return limiter;
+    }
+}
@@ -0,0 +1,79 @@
+package dev.abstratium.abstrasst.service.ratelimit;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import dev.abstratium.core.boundary.FunctionalException;
+import io.opentelemetry.api.OpenTelemetry;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link LlmLoadShedder} and {@link SojournMonitor}.
+ */
+class LlmLoadShedderTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    void isOverloadedOnceTheSojournStaysAboveTheTargetForAnInterval() {
+        var monitor = new SojournMonitor(100 * MS, 1000 * MS);
+        // a burst
+        monitor.record(500 * MS, 0);
+        monitor.record(500 * MS, 500 * MS);
+        assertFalse(monitor.overloaded(500 * MS));
+
+        monitor.record(800 * MS, 1000 * MS);
+        assertTrue(monitor.overloaded(1000 * MS));
+        assertEquals(800 * MS, monitor.lastSojournNanos());
+
+        // a short sojourn means that the queue has drained
+        monitor.record(10 * MS, 1100 * MS);
+        assertFalse(monitor.overloaded(1100 * MS));
+        monitor.record(500 * MS, 1200 * MS);
+        assertFalse(monitor.overloaded(1200 * MS));
+    }
+
+    @Test
+    void recoversWhenNoCallHasWaitedLongForAnInterval() {
+        var monitor = new SojournMonitor(100 * MS, 1000 * MS);
+        monitor.record(500 * MS, 0);
+        monitor.record(500 * MS, 1000 * MS);
+        assertTrue(monitor.overloaded(1500 * MS));
+        assertFalse(monitor.overloaded(2000 * MS));
+    }
+
+    @Test
+    void shedsTheRequestsOfOverloadedAndLaterClasses() throws Exception {
+        var shedder = shedder(Duration.ofMillis(10), Duration.ofMillis(50));
+        shedder.record("concurrency", PriorityClass.STANDARD, 2500 * MS);
+        Thread.sleep(60);
+        shedder.record("concurrency", PriorityClass.STANDARD, 2500 * MS);
+
+        shedder.admit(PriorityClass.INTERACTIVE);
+        var e = assertThrows(FunctionalException.class, () -> shedder.admit(PriorityClass.STANDARD));
+        assertEquals(503, e.getStatusCode());
+        assertEquals(3L, e.getHeaders().get("Retry-After"));
+        assertThrows(FunctionalException.class, () -> shedder.admit(PriorityClass.BATCH));
+        assertEquals(1, shedder.shed.get(PriorityClass.STANDARD).sum());
+        assertEquals(1, shedder.shed.get(PriorityClass.BATCH).sum());
+
+        // another queue of the class, which is fine, does not make up for it
+        shedder.record("rate_limit", PriorityClass.STANDARD, 0);
+        assertThrows(FunctionalException.class, () -> shedder.admit(PriorityClass.STANDARD));
+        shedder.record("concurrency", PriorityClass.STANDARD, 0);
+        shedder.admit(PriorityClass.STANDARD);
+    }
+
+    static LlmLoadShedder shedder(Duration target, Duration interval) {
+        var shedder = new LlmLoadShedder();
+        shedder.enabled = true;
+        shedder.target = target;
+        shedder.interval = interval;
+        shedder.meter = OpenTelemetry.noop().getMeter("test");
+        shedder.init();
+        return shedder;
+    }
+}
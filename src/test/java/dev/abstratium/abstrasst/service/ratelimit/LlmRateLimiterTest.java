@@ -0,0 +1,206 @@
+package dev.abstratium.abstrasst.service.ratelimit;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.exception.HttpException;
+import dev.langchain4j.model.ModelProvider;
+import dev.langchain4j.model.chat.listener.ChatModelErrorContext;
+import dev.langchain4j.model.chat.listener.ChatModelRequestContext;
+import dev.langchain4j.model.chat.listener.ChatModelResponseContext;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.output.TokenUsage;
+import io.opentelemetry.api.OpenTelemetry;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link LlmRateLimiter}.
+ */
+class LlmRateLimiterTest {
+
+    /** 100 tokens per second */
+    private static final long TOKENS_PER_MINUTE = 6000;
+
+    @Test
+    void admitsWithinTheBudgetAndQueuesBeyondIt() {
+        var limiter = limiter(Duration.ofSeconds(10));
+
+        assertTrue(millis(() -> call(limiter, "gpt-4.1-nano-2025-04-14", 5990)) < 100);
+        assertEquals(1, limiter.immediate.sum());
+
+        // the bucket is empty, and refills with 100 tokens per second
+        long waited = millis(() -> call(limiter, "gpt-4.1-nano", 40));
+        assertTrue(waited >= 300, "waited " + waited + "ms");
+        assertEquals(1, limiter.delayed.sum());
+    }
+
+    @Test
+    void correctsTheEstimateByTheActualUsage() {
+        var limiter = limiter(Duration.ofSeconds(10));
+
+        var context = call(limiter, "gpt-4.1-nano", 5990);
+        limiter.onResponse(new ChatModelResponseContext(ChatResponse.builder().aiMessage(AiMessage.from("ok"))
+            .tokenUsage(new TokenUsage(20, 10)).build(), context.chatRequest(), ModelProvider.OPEN_AI, context.attributes()));
+
+        // the unused tokens were given back
+        assertTrue(millis(() -> call(limiter, "gpt-4.1-nano", 1000)) < 100);
+        assertEquals(0, limiter.delayed.sum());
+    }
+
+    @Test
+    void modelsWithoutBudgetAreNotThrottled() {
+        var limiter = limiter(Duration.ofSeconds(10));
+
+        assertTrue(millis(() -> {
+            for (int i = 0; i < 10; i++) {
+                call(limiter, "gpt-4o", 100_000);
+            }
+        }) < 100);
+        assertEquals(10, limiter.immediate.sum());
+    }
+
+    @Test
+    void pausesTheModelAfterARateLimitRejection() {
+        var limiter = limiter(Duration.ofSeconds(10));
+
+        var context = call(limiter, "gpt-4o", 10);
+        limiter.onError(new ChatModelErrorContext(new HttpException(429, "Rate limit reached for gpt-4o on tokens per min (TPM). Please try again in 400ms."),
+            context.chatRequest(), ModelProvider.OPEN_AI, context.attributes()));
+        assertEquals(1, limiter.pauses.sum());
+
+        long waited = millis(() -> call(limiter, "gpt-4o", 10));
+        assertTrue(waited >= 350, "waited " + waited + "ms");
+    }
+
+    @Test
+    void letsACallThroughAfterTheMaxWait() {
+        var limiter = limiter(Duration.ofMillis(200));
+
+        call(limiter, "gpt-4.1-nano", 5990);
+        long waited = millis(() -> call(limiter, "gpt-4.1-nano", 5000));
+        assertTrue(waited >= 150 && waited < 2000, "waited " + waited + "ms");
+        assertEquals(1, limiter.timedOut.sum());
+    }
+
+    @Test
+    void interactiveCallsOvertakeWaitingBatchCalls() throws Exception {
+        var limiter = limiter(Duration.ofSeconds(10));
+        call(limiter, "gpt-4.1-nano", 5990);
+
+        var batch = CompletableFuture.runAsync(() -> new LlmCaller("jobs", PriorityClass.BATCH).run(() -> call(limiter, "gpt-4.1-nano", 40)));
+        Thread.sleep(50);
+        var interactive = CompletableFuture.runAsync(() -> new LlmCaller("user", PriorityClass.INTERACTIVE).run(() -> call(limiter, "gpt-4.1-nano", 40)));
+
+        interactive.get(5, TimeUnit.SECONDS);
+        assertFalse(batch.isDone());
+        batch.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void readsWhenToTryAgain() {
+        Duration fallback = Duration.ofSeconds(1);
+        assertEquals(Duration.ofMillis(1500), LlmRateLimiter.fromMessage("Please try again in 1.5s.", fallback));
+        assertEquals(Duration.ofMillis(350), LlmRateLimiter.fromMessage("Please try again in 350ms.", fallback));
+        assertEquals(Duration.ofSeconds(90), LlmRateLimiter.fromMessage("Please try again in 1m30s.", fallback));
+        assertEquals(Duration.ofMinutes(6), LlmRateLimiter.fromMessage("Please try again in 6m0s.", fallback));
+        assertEquals(fallback, LlmRateLimiter.fromMessage("You exceeded your current quota", fallback));
+
+        assertEquals(Duration.ofMillis(20), LlmRateLimiter.retryAfter(
+            new RuntimeException(new HttpException(429, "try again in 20ms")), fallback));
+        assertNull(LlmRateLimiter.retryAfter(new HttpException(500, "try again in 20ms"), fallback));
+    }
+
+    private static ChatModelRequestContext call(LlmRateLimiter limiter, String model, int maxOutputTokens) {
+        var request = ChatRequest.builder()
+            .messages(UserMessage.from("hi"))
+            .modelName(model)
+            .maxOutputTokens(maxOutputTokens)
+            .build();
+        var context = new ChatModelRequestContext(request, ModelProvider.OPEN_AI, new HashMap<>());
+        limiter.onRequest(context);
+        return context;
+    }
+
+    private static long millis(Runnable r) {
+        long start = System.nanoTime();
+        r.run();
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private static LlmRateLimiter limiter(Duration maxWait) {
+        var limiter = new LlmRateLimiter();
+        limiter.limits = new LlmRateLimits() {
+
+            @Override
+            public boolean enabled() {
+                return true;
+            }
+
+            @Override
+            public Map<String, ModelLimit> models() {
+                return Map.of("gpt-4.1-nano", new ModelLimit() {
+
+                    @Override
+                    public OptionalLong tokensPerMinute() {
+                        return OptionalLong.of(TOKENS_PER_MINUTE);
+                    }
+
+                    @Override
+                    public OptionalLong requestsPerMinute() {
+                        return OptionalLong.of(1000);
+                    }
+                });
+            }
+
+            @Override
+            public Duration maxWait() {
+                return maxWait;
+            }
+
+            @Override
+            public int defaultMaxOutputTokens() {
+                return 1000;
+            }
+
+            @Override
+            public Duration defaultBackoff() {
+                return Duration.ofSeconds(1);
+            }
+        };
+        limiter.shedder = LlmLoadShedderTest.shedder(Duration.ofSeconds(5), Duration.ofSeconds(30));
+        limiter.scheduling = scheduling();
+        limiter.meter = OpenTelemetry.noop().getMeter("test");
+        limiter.init();
+        return limiter;
+    }
+
+    static LlmScheduling scheduling() {
+        return new LlmScheduling() {
+
+            @Override
+            public double batchShare() {
+                return 0.5;
+            }
+
+            @Override
+            public Map<String, Double> userWeights() {
+                return Map.of();
+            }
+
+            @Override
+            public double defaultUserWeight() {
+                return 1;
+            }
+        };
+    }
+}
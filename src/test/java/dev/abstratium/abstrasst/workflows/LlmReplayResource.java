@@ -0,0 +1,138 @@
+package dev.abstratium.abstrasst.workflows;
+
+import java.io.File;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.logging.Logger;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.global.GlobalSettings;
+import com.github.tomakehurst.wiremock.http.UniformDistribution;
+
+import io.quarkus.test.common.QuarkusTestResourceLifecycleManager;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+
+/**
+ * A stand-in for the OpenAI API, so that the workflows can be run and measured without it.
+ *
+ * In the default replay mode, the chat requests are answered from the recordings in {@code llm.replay.dir}, matched by
+ * their JSON body, and any other chat request with a canned answer, after a synthetic latency of {@code llm.replay.latency-ms},
+ * plus or minus {@code llm.replay.jitter-ms}. In record mode ({@code -Dllm.replay.mode=record}), the requests are passed
+ * on to {@code llm.replay.target} with the real key, and the responses are written to {@code llm.replay.dir} when the tests end.
+ * The recordings hold no headers, so no key is written.
+ *
+ * All of the models, those of the AI services and those built by {@link ProgrammaticWorkflow}, are pointed at the stand-in.
+ * Only non-streaming chat requests are supported.
+ */
+public class LlmReplayResource implements QuarkusTestResourceLifecycleManager {
+
+    private static final Logger log = Logger.getLogger(LlmReplayResource.class);
+
+    /** the answer to chat requests which have not been recorded */
+    static final String CANNED_ANSWER = "Noted, no objections from my side.";
+
+    /** marks the field of a test into which the server is injected, e.g. to read the requests it served */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.FIELD)
+    public @interface Server {
+    }
+
+    private final boolean record = "record".equals(System.getProperty("llm.replay.mode", "replay"));
+    private final File dir = new File(System.getProperty("llm.replay.dir", "src/test/resources/llm-recordings"));
+    private final String target = System.getProperty("llm.replay.target", "https://api.openai.com");
+    private final int latencyMs = Integer.getInteger("llm.replay.latency-ms", 200);
+    private final int jitterMs = Integer.getInteger("llm.replay.jitter-ms", 0);
+
+    private WireMockServer server;
+
+    @Override
+    public Map<String, String> start() {
+        if (record) {
+            new File(dir, "mappings").mkdirs();
+            new File(dir, "__files").mkdirs();
+        }
+        server = new WireMockServer(options().dynamicPort().usingFilesUnderDirectory(dir.getPath()));
+        server.start();
+        if (record) {
+            server.stubFor(any(anyUrl()).willReturn(aResponse().proxiedFrom(target)));
+            log.infof("Recording the LLM requests to %s into %s", target, dir.getAbsolutePath());
+        } else {
+            // below the recordings, whose priority is the default
+            server.stubFor(post(urlPathEqualTo("/v1/chat/completions")).atPriority(100).willReturn(okJson(cannedCompletion())));
+            server.updateGlobalSettings(jitterMs > 0
+                ? GlobalSettings.builder().delayDistribution(new UniformDistribution(Math.max(0, latencyMs - jitterMs), latencyMs + jitterMs)).build()
+                : GlobalSettings.builder().fixedDelay(latencyMs).build());
+            log.infof("Replaying %d recorded LLM responses from %s with %d +/- %d ms latency",
+                server.getStubMappings().size() - 1, dir.getAbsolutePath(), latencyMs, jitterMs);
+        }
+
+        String baseUrl = server.baseUrl() + "/v1/";
+        Map<String, String> config = new HashMap<>();
+        config.put("quarkus.langchain4j.openai.base-url", baseUrl);
+        config.put("quarkus.langchain4j.openai.\"gpt-4.1-nano\".base-url", baseUrl);
+        config.put("quarkus.langchain4j.openai.summarizer.base-url", baseUrl);
+        if (!record) {
+            // the stand-in does not care about the key, and the machine may not have one
+            config.put("quarkus.langchain4j.openai.api-key", "replay");
+            config.put("quarkus.langchain4j.openai.\"gpt-4.1-nano\".api-key", "replay");
+            config.put("quarkus.langchain4j.openai.summarizer.api-key", "replay");
+        }
+        // the limiters would measure their own queues and hedges rather than the overhead of the workflows
+        config.put("llm.rate-limit.enabled", "false");
+        config.put("llm.concurrency.enabled", "false");
+        config.put("llm.hedging.enabled", "false");
+        config.put("llm.shedding.enabled", "false");
+        return config;
+    }
+
+    @Override
+    public void inject(TestInjector testInjector) {
+        testInjector.injectIntoFields(server, new TestInjector.AnnotatedAndMatchesType(Server.class, WireMockServer.class));
+    }
+
+    @Override
+    public void stop() {
+        if (server == null) {
+            return;
+        }
+        try {
+            if (record) {
+                var recorded = server.snapshotRecord(WireMock.recordSpec()
+                    .onlyRequestsMatching(postRequestedFor(urlPathEqualTo("/v1/chat/completions")))
+                    .matchRequestBodyWithEqualToJson(true, true)
+                    .ignoreRepeatRequests()
+                    .makeStubsPersistent(true));
+                log.infof("Recorded %d LLM responses into %s", recorded.getStubMappings().size(), dir.getAbsolutePath());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static String cannedCompletion() {
+        return """
+            {
+              "id": "chatcmpl-replay",
+              "object": "chat.completion",
+              "created": 1760000000,
+              "model": "gpt-4.1-nano",
+              "choices": [
+                {
+                  "index": 0,
+                  "message": { "role": "assistant", "content": "%s" },
+                  "finish_reason": "stop"
+                }
+              ],
+              "usage": { "prompt_tokens": 120, "completion_tokens": 12, "total_tokens": 132 }
+            }
+            """.formatted(CANNED_ANSWER);
+    }
+}
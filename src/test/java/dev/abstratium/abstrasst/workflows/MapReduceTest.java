@@ -0,0 +1,143 @@
+package dev.abstratium.abstrasst.workflows;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.opentelemetry.api.OpenTelemetry;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link MapReduce}.
+ */
+class MapReduceTest {
+
+    private static final String DOCUMENT = """
+        # AGENDA ITEM
+        Financial results
+
+        ## Revenue
+        Revenue grew.
+
+        ## Expenses
+        Expenses grew.
+
+        # AGENDA ITEM
+        Hiring
+        """;
+
+    private final MapReduce mapReduce = mapReduce(2);
+
+    @AfterEach
+    void close() {
+        mapReduce.close();
+    }
+
+    @Test
+    void mapsChunksInParallelAndReducesThemInOrder() {
+        // the first two chunks wait for each other to have started, so they only finish if they run concurrently
+        var started = new CountDownLatch(2);
+
+        String result = mapReduce.run("stage", DOCUMENT, chunk -> {
+            started.countDown();
+            try {
+                assertTrue(started.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return chunk.lines().reduce((a, b) -> b).orElseThrow();
+        }, results -> String.join("|", results));
+
+        assertEquals("Revenue grew.|Expenses grew.|Hiring", result);
+    }
+
+    @Test
+    void onlyMapsChunksWhichChanged() {
+        var mapped = ConcurrentHashMap.<String>newKeySet();
+        AtomicInteger calls = new AtomicInteger();
+
+        mapReduce.run("stage", DOCUMENT, chunk -> { calls.incrementAndGet(); mapped.add(chunk); return "x"; }, results -> "");
+        assertEquals(3, calls.get());
+
+        mapped.clear();
+        mapReduce.run("stage", DOCUMENT.replace("Expenses grew.", "Expenses shrank."), chunk -> { calls.incrementAndGet(); mapped.add(chunk); return "x"; }, results -> "");
+        assertEquals(4, calls.get());
+        assertTrue(mapped.iterator().next().contains("Expenses shrank."));
+        assertEquals(2, mapReduce.hits.sum());
+
+        // another map function does not see the results of the first
+        mapReduce.run("other", DOCUMENT, chunk -> { calls.incrementAndGet(); return "y"; }, results -> "");
+        assertEquals(7, calls.get());
+    }
+
+    @Test
+    void doesNotCacheFailures() {
+        assertThrows(IllegalStateException.class, () -> mapReduce.run("stage", DOCUMENT, chunk -> {
+            if (chunk.contains("Hiring")) {
+                throw new IllegalArgumentException("rate limited");
+            }
+            return "x";
+        }, results -> ""));
+
+        assertEquals("x|x|x", mapReduce.run("stage", DOCUMENT, chunk -> "x", results -> String.join("|", results)));
+    }
+
+    @Test
+    void runWhichWaitedForACancelledRunMapsTheChunkItself() throws Exception {
+        var mapping = new CountDownLatch(1);
+        var cancelled = new CompletableFuture<Throwable>();
+        var first = new Thread(() -> cancelled.complete(assertThrows(IllegalStateException.class, () -> mapReduce.run("stage", DOCUMENT, chunk -> {
+            if (!chunk.contains("Hiring")) {
+                return "a";
+            }
+            mapping.countDown();
+            try {
+                Thread.sleep(Duration.ofMinutes(1));
+                return "too late";
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }, results -> String.join("|", results)))));
+        first.start();
+        assertTrue(mapping.await(5, TimeUnit.SECONDS));
+
+        var second = CompletableFuture.supplyAsync(() -> mapReduce.run("stage", DOCUMENT, chunk -> "b", results -> String.join("|", results)));
+        // wait until the second run has looked up all chunks, and so waits for the first to map the last one
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (mapReduce.hits.sum() + mapReduce.coalesced.sum() < 3 && System.nanoTime() < end) {
+            Thread.sleep(1);
+        }
+        first.interrupt();
+
+        assertNotNull(cancelled.get(5, TimeUnit.SECONDS));
+        assertTrue(second.get(5, TimeUnit.SECONDS).endsWith("|b"));
+    }
+
+    @Test
+    void passesShortDocumentsOn() {
+        mapReduce.minChars = 10_000;
+
+        assertEquals(DOCUMENT, mapReduce.run("stage", DOCUMENT, chunk -> fail("must not map"), results -> fail("must not reduce")));
+    }
+
+    private static MapReduce mapReduce(int maxConcurrency) {
+        var mapReduce = new MapReduce();
+        mapReduce.minChars = 0;
+        mapReduce.chunkChars = 1000;
+        mapReduce.maxConcurrency = maxConcurrency;
+        mapReduce.deadline = Duration.ofSeconds(30);
+        mapReduce.maxEntries = 100;
+        mapReduce.ttl = Duration.ofHours(1);
+        mapReduce.meter = OpenTelemetry.noop().getMeter("test");
+        mapReduce.init();
+        return mapReduce;
+    }
+}
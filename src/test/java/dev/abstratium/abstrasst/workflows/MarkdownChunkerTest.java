@@ -0,0 +1,69 @@
+package dev.abstratium.abstrasst.workflows;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link MarkdownChunker}.
+ */
+class MarkdownChunkerTest {
+
+    private static final String DOCUMENT = """
+        Board meeting, 26 February
+
+        # AGENDA ITEM
+        Financial results of 2025
+
+        ## Revenue
+        Revenue grew by 12%.
+
+        ## Expenses
+        Expenses grew by 3%.
+
+        # AGENDA ITEM
+        Any other business
+        """;
+
+    @Test
+    void chunksSectionsWithTheHeadingOfTheirAgendaItem() {
+        List<String> chunks = MarkdownChunker.chunk(DOCUMENT, 1000);
+
+        assertEquals(List.of(
+            "Board meeting, 26 February",
+            "# AGENDA ITEM\nFinancial results of 2025\n\n## Revenue\nRevenue grew by 12%.",
+            "# AGENDA ITEM\nFinancial results of 2025\n\n## Expenses\nExpenses grew by 3%.",
+            "# AGENDA ITEM\nAny other business"), chunks);
+    }
+
+    @Test
+    void anEditOnlyChangesItsOwnChunk() {
+        List<String> before = MarkdownChunker.chunk(DOCUMENT, 1000);
+        List<String> after = MarkdownChunker.chunk(DOCUMENT.replace("grew by 12%", "grew by 12%, mostly in hardware, which was not expected"), 1000);
+
+        assertEquals(before.size(), after.size());
+        for (int i = 0; i < before.size(); i++) {
+            assertEquals(i != 1, before.get(i).equals(after.get(i)), "chunk " + i);
+        }
+    }
+
+    @Test
+    void splitsLongSectionsBetweenParagraphs() {
+        String paragraph = "word ".repeat(20).strip();
+        String document = "# Item\n\n" + paragraph + "\n\n" + paragraph + "\n\n" + paragraph + "\n";
+
+        List<String> chunks = MarkdownChunker.chunk(document, 250);
+
+        assertEquals(List.of("# Item\n\n" + paragraph + "\n\n" + paragraph, paragraph), chunks);
+        assertTrue(chunks.stream().allMatch(c -> c.length() <= 250));
+    }
+
+    @Test
+    void ignoresHeadingsInCodeBlocks() {
+        String document = "# Item\n```\n# not a heading\n## nor this\n```\n";
+
+        assertEquals(List.of("# Item\n```\n# not a heading\n## nor this\n```"), MarkdownChunker.chunk(document, 1000));
+    }
+}
@@ -0,0 +1,165 @@
+package dev.abstratium.abstrasst.workflows;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+
+import dev.abstratium.abstrasst.workflows.dag.DagExecutor;
+import dev.abstratium.abstrasst.workflows.dag.TestDagExecutor;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the policies of the declarative meeting, with stub member agents.
+ */
+class MyWorkflowTest {
+
+    private TestDagExecutor dag;
+
+    private MyWorkflow workflow;
+
+    @BeforeEach
+    void setUp() {
+        dag = new TestDagExecutor();
+        workflow = new MyWorkflow();
+        workflow.dagExecutor = dag;
+        workflow.meetingDeadline = Duration.ofSeconds(10);
+        workflow.cfo = (sessionId, topic) -> "CFO on " + topic;
+        workflow.cto = (sessionId, topic) -> "CTO on " + topic;
+        workflow.ceo = (sessionId, topic) -> "CEO on " + topic;
+    }
+
+    @AfterEach
+    void close() {
+        dag.close();
+    }
+
+    @Test
+    void asksAllMembers() {
+        workflow.meetingPolicy = DagExecutor.Policy.FAIL_FAST;
+        workflow.init();
+
+        assertEquals("Topic: the budget\nCFO Input: CFO on the budget\nCTO Input: CTO on the budget\nCEO Input: CEO on the budget",
+            workflow.run("run", "the budget"));
+    }
+
+    @Test
+    void failingMemberCancelsTheOthers() throws InterruptedException {
+        var started = new CountDownLatch(2);
+        var interrupted = new CountDownLatch(2);
+        workflow.cfo = (sessionId, topic) -> waitUntilInterrupted(started, interrupted);
+        workflow.ceo = (sessionId, topic) -> waitUntilInterrupted(started, interrupted);
+        workflow.cto = (sessionId, topic) -> {
+            assertTrue(await(started));
+            throw new IllegalStateException("rate limited");
+        };
+        workflow.meetingPolicy = DagExecutor.Policy.FAIL_FAST;
+        workflow.init();
+
+        long start = System.nanoTime();
+        var e = assertThrows(IllegalStateException.class, () -> workflow.run("run", "the budget"));
+
+        assertTrue(e.getMessage().contains("rate limited"), e.getMessage());
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS), "the other members were not cancelled");
+        assertTrue(System.nanoTime() - start < Duration.ofSeconds(5).toNanos(), "the run waited for the other members");
+    }
+
+    @Test
+    void cancellingAMemberAbandonsItsCallToTheProvider() throws Exception {
+        var provider = new WireMockServer(options().dynamicPort());
+        provider.start();
+        var client = HttpClient.newHttpClient();
+        try {
+            provider.stubFor(post("/chat").willReturn(ok("too late").withFixedDelay(30_000)));
+            var started = new CountDownLatch(1);
+            var ended = new CompletableFuture<Exception>();
+            workflow.cfo = (sessionId, topic) -> {
+                var request = HttpRequest.newBuilder(URI.create(provider.baseUrl() + "/chat"))
+                    .POST(HttpRequest.BodyPublishers.ofString(topic))
+                    .build();
+                started.countDown();
+                try {
+                    return client.send(request, HttpResponse.BodyHandlers.ofString()).body();
+                } catch (IOException | InterruptedException e) {
+                    ended.complete(e);
+                    throw new IllegalStateException(e);
+                }
+            };
+            workflow.cto = (sessionId, topic) -> {
+                assertTrue(await(started));
+                provider.verify(1, postRequestedFor(urlEqualTo("/chat")));
+                throw new IllegalStateException("rate limited");
+            };
+            workflow.meetingPolicy = DagExecutor.Policy.FAIL_FAST;
+            workflow.init();
+
+            long start = System.nanoTime();
+            assertThrows(IllegalStateException.class, () -> workflow.run("run", "the budget"));
+
+            assertTrue(System.nanoTime() - start < Duration.ofSeconds(10).toNanos(), "the run waited for the provider");
+            assertInstanceOf(InterruptedException.class, ended.getNow(null), "the call to the provider was still open when the run returned");
+        } finally {
+            client.shutdownNow();
+            provider.stop();
+        }
+    }
+
+    @Test
+    void marksTheMembersWhoFailedAsUnavailable() {
+        workflow.cto = (sessionId, topic) -> {
+            throw new IllegalStateException("rate limited");
+        };
+        workflow.meetingPolicy = DagExecutor.Policy.BEST_EFFORT;
+        workflow.init();
+
+        assertEquals("Topic: the budget\nCFO Input: CFO on the budget\nCTO Input: unavailable\nCEO Input: CEO on the budget",
+            workflow.run("run", "the budget"));
+    }
+
+    @Test
+    void cancelsTheMembersWhoAreLateForTheDeadline() {
+        var interrupted = new CountDownLatch(1);
+        workflow.ceo = (sessionId, topic) -> waitUntilInterrupted(new CountDownLatch(0), interrupted);
+        workflow.meetingPolicy = DagExecutor.Policy.BEST_EFFORT;
+        workflow.meetingDeadline = Duration.ofMillis(200);
+        workflow.init();
+
+        assertEquals("Topic: the budget\nCFO Input: CFO on the budget\nCTO Input: CTO on the budget\nCEO Input: unavailable",
+            workflow.run("run", "the budget"));
+        assertTrue(await(interrupted));
+    }
+
+    /** stands in for an LLM call which only ends when it is cancelled */
+    private static String waitUntilInterrupted(CountDownLatch started, CountDownLatch interrupted) {
+        started.countDown();
+        try {
+            Thread.sleep(Duration.ofMinutes(1));
+            return "too late";
+        } catch (InterruptedException e) {
+            interrupted.countDown();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean await(CountDownLatch latch) {
+        try {
+            return latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
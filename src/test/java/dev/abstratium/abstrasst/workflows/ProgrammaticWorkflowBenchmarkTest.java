@@ -0,0 +1,83 @@
+package dev.abstratium.abstrasst.workflows;
+
+import java.util.Map;
+
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import dev.abstratium.abstrasst.workflows.dag.DagExecutor;
+import dev.abstratium.abstrasst.workflows.dag.DagWorkflow;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares the time of a run when the chat model and the agents are built for each run, as they used to be,
+ * with that of a run of the meeting which is built once. The LLM is a stub, so only the overhead is measured.
+ *
+ * Only reports the numbers, since wall-clock comparisons are not reliable on a loaded machine.
+ * Run with {@code mvn test -Pbenchmark}.
+ */
+@QuarkusTest
+@Tag("benchmark")
+class ProgrammaticWorkflowBenchmarkTest {
+
+    private static final Logger log = Logger.getLogger(ProgrammaticWorkflowBenchmarkTest.class);
+
+    private static final int WARMUP = 50;
+    private static final int RUNS = 200;
+
+    @Inject
+    ProgrammaticWorkflow workflow;
+
+    @Inject
+    DagExecutor dagExecutor;
+
+    private final ChatModel stub = new ChatModel() {
+        @Override
+        public ChatResponse doChat(ChatRequest request) {
+            return ChatResponse.builder().aiMessage(AiMessage.from("ok")).build();
+        }
+    };
+
+    @Test
+    void constructionOverheadOfTheMeeting() {
+        for (int i = 0; i < WARMUP; i++) {
+            buildEachRun();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            buildEachRun();
+        }
+        long buildEachRun = (System.nanoTime() - start) / RUNS;
+
+        DagWorkflow meeting = ProgrammaticWorkflow.buildMeeting(stub);
+        for (int i = 0; i < WARMUP; i++) {
+            run(meeting);
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            run(meeting);
+        }
+        long buildOnce = (System.nanoTime() - start) / RUNS;
+
+        log.infof("per run: %d us when built for each run, %d us when built once", buildEachRun / 1000, buildOnce / 1000);
+    }
+
+    private void buildEachRun() {
+        // the model is built like in production, including its HTTP client, but the agents use the stub to answer
+        assertNotNull(workflow.buildModel());
+        run(ProgrammaticWorkflow.buildMeeting(stub));
+    }
+
+    private void run(DagWorkflow meeting) {
+        var result = dagExecutor.run(meeting, Map.of("topic", "the budget", "sessionId", "benchmark"));
+        assertEquals("ok", result.get("cfoInput"));
+    }
+}
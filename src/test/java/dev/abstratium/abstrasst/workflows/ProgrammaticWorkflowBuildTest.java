@@ -0,0 +1,28 @@
+package dev.abstratium.abstrasst.workflows;
+
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that the chat model and the agents of the programmatic workflow are built once and shared by all runs.
+ * {@link ProgrammaticWorkflowBenchmarkTest} measures what that saves.
+ */
+@QuarkusTest
+class ProgrammaticWorkflowBuildTest {
+
+    @Inject
+    ProgrammaticWorkflow workflow;
+
+    @Test
+    void buildsTheModelAndTheMeetingOnce() {
+        var model = workflow.model();
+        var meeting = workflow.meeting();
+
+        assertSame(model, workflow.model());
+        assertSame(meeting, workflow.meeting());
+    }
+}
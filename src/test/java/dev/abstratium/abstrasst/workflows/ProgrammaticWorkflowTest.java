@@ -0,0 +1,138 @@
+package dev.abstratium.abstrasst.workflows;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import dev.langchain4j.model.chat.response.StreamingHandle;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the streamed meeting with a stub model, which answers each member on its own thread.
+ */
+class ProgrammaticWorkflowTest {
+
+    @Test
+    void streamsEachInputAsSoonAsItIsComplete() {
+        // the CEO only answers once the CFO has, so the CFO's input must be streamed before the meeting is over
+        var cfoDone = new CountDownLatch(1);
+        StreamingChatModel model = stub((member, handler) -> {
+            if (member == ProgrammaticWorkflow.CEO) {
+                await(cfoDone);
+            }
+            answer(member, handler);
+            if (member == ProgrammaticWorkflow.CFO) {
+                cfoDone.countDown();
+            }
+        });
+
+        List<MeetingEvent> events = ProgrammaticWorkflow.stream(model, "the budget", "session")
+            .collect().asList().await().atMost(Duration.ofSeconds(10));
+
+        List<String> inputs = events.stream().filter(e -> e.type().equals("input")).map(MeetingEvent::key).toList();
+        assertEquals(3, inputs.size());
+        assertTrue(inputs.indexOf("cfoInput") < inputs.indexOf("ceoInput"));
+
+        for (var member : ProgrammaticWorkflow.MEMBERS) {
+            List<MeetingEvent> own = events.stream().filter(e -> member.outputKey().equals(e.key())).toList();
+            assertEquals(List.of(MeetingEvent.token(member.outputKey(), member.title() + " "), MeetingEvent.token(member.outputKey(), "says hi"),
+                MeetingEvent.input(member.outputKey(), member.title() + " says hi")), own);
+        }
+
+        MeetingEvent done = events.get(events.size() - 1);
+        assertEquals("done", done.type());
+        assertEquals("Topic: the budget\nCFO Input: CFO says hi\nCTO Input: CTO says hi\nCEO Input: CEO says hi", done.text());
+    }
+
+    @Test
+    void failsIfAMemberFails() {
+        StreamingChatModel model = stub((member, handler) -> {
+            if (member == ProgrammaticWorkflow.CTO) {
+                handler.onError(new IllegalStateException("rate limited"));
+            } else {
+                answer(member, handler);
+            }
+        });
+
+        var e = assertThrows(IllegalStateException.class,
+            () -> ProgrammaticWorkflow.stream(model, "the budget", "session").collect().asList().await().atMost(Duration.ofSeconds(10)));
+        assertEquals("rate limited", e.getMessage());
+    }
+
+    @Test
+    void cancelsTheOtherStreamsAsSoonAsAMemberFails() {
+        var cfoStarted = new CountDownLatch(1);
+        var cfoCancelled = new CountDownLatch(1);
+        StreamingChatModel model = stub((member, handler) -> {
+            if (member == ProgrammaticWorkflow.CFO) {
+                // one token, and then nothing more until the stream is cancelled
+                handler.onPartialResponse(new PartialResponse("CFO "), new PartialResponseContext(new StreamingHandle() {
+                    public void cancel() {
+                        cfoCancelled.countDown();
+                    }
+
+                    public boolean isCancelled() {
+                        return cfoCancelled.getCount() == 0;
+                    }
+                }));
+                cfoStarted.countDown();
+            } else if (member == ProgrammaticWorkflow.CTO) {
+                await(cfoStarted);
+                handler.onError(new IllegalStateException("rate limited"));
+            }
+        });
+
+        assertThrows(IllegalStateException.class,
+            () -> ProgrammaticWorkflow.stream(model, "the budget", "session").collect().asList().await().atMost(Duration.ofSeconds(10)));
+        await(cfoCancelled);
+    }
+
+    private interface Answer {
+        void answer(ProgrammaticWorkflow.Member member, StreamingChatResponseHandler handler);
+    }
+
+    private static StreamingChatModel stub(Answer answer) {
+        return new StreamingChatModel() {
+            @Override
+            public void doChat(ChatRequest request, StreamingChatResponseHandler handler) {
+                String system = ((SystemMessage) request.messages().get(0)).text();
+                var member = ProgrammaticWorkflow.MEMBERS.stream().filter(m -> m.systemMessage().equals(system)).findFirst().orElseThrow();
+                Thread.ofVirtual().start(() -> answer.answer(member, handler));
+            }
+        };
+    }
+
+    private static void answer(ProgrammaticWorkflow.Member member, StreamingChatResponseHandler handler) {
+        var context = new PartialResponseContext(new StreamingHandle() {
+            public void cancel() {
+            }
+
+            public boolean isCancelled() {
+                return false;
+            }
+        });
+        handler.onPartialResponse(new PartialResponse(member.title() + " "), context);
+        handler.onPartialResponse(new PartialResponse("says hi"), context);
+        handler.onCompleteResponse(ChatResponse.builder().aiMessage(AiMessage.from(member.title() + " says hi")).build());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
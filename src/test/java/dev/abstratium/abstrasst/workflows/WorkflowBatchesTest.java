@@ -0,0 +1,144 @@
+package dev.abstratium.abstrasst.workflows;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import dev.abstratium.abstrasst.workflows.WorkflowBatches.Item;
+import io.opentelemetry.api.OpenTelemetry;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link WorkflowBatches}, with a runner which does not call a model.
+ */
+class WorkflowBatchesTest {
+
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+    private WorkflowBatches batches;
+
+    @AfterEach
+    void close() {
+        batches.close();
+    }
+
+    @Test
+    void emitsResultsInTheOrderOfCompletion() {
+        // the first topic only completes once the second one has
+        var secondDone = new CountDownLatch(1);
+        batches = batches(2, topic -> {
+            if (topic.equals("first")) {
+                await(secondDone);
+            } else {
+                secondDone.countDown();
+            }
+            return "minutes of " + topic;
+        });
+
+        List<Item> items = batches.run(WorkflowKind.MINUTES, List.of("first", "second"))
+            .collect().asList().await().atMost(Duration.ofSeconds(10));
+
+        assertEquals(List.of(new Item(1, "minutes of second", null), new Item(0, "minutes of first", null)), items);
+    }
+
+    @Test
+    void runsAtMostTheConfiguredNumberOfTopicsAtOnceAndReportsFailures() {
+        batches = batches(3, topic -> {
+            int now = concurrent.incrementAndGet();
+            maxConcurrent.accumulateAndGet(now, Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                concurrent.decrementAndGet();
+            }
+            if (topic.equals("7")) {
+                throw new IllegalStateException("rate limited");
+            }
+            return topic;
+        });
+        List<String> topics = IntStream.range(0, 12).mapToObj(String::valueOf).toList();
+
+        List<Item> items = batches.run(WorkflowKind.PROGRAMMATIC, topics)
+            .collect().asList().await().atMost(Duration.ofSeconds(10));
+
+        assertEquals(12, items.size());
+        assertEquals(3, maxConcurrent.get());
+        assertEquals(new Item(7, null, "rate limited"), items.stream().filter(i -> i.index() == 7).findFirst().orElseThrow());
+        assertEquals(11, batches.succeeded.sum());
+        assertEquals(1, batches.failed.sum());
+    }
+
+    @Test
+    void reportsTopicsWhichFailWithAnError() {
+        batches = batches(2, topic -> {
+            if (topic.equals("deep")) {
+                throw new StackOverflowError("too deep");
+            }
+            return topic;
+        });
+
+        List<Item> items = batches.run(WorkflowKind.MINUTES, List.of("deep", "shallow"))
+            .collect().asList().await().atMost(Duration.ofSeconds(10));
+
+        assertEquals(2, items.size());
+        assertTrue(items.contains(new Item(0, null, "too deep")));
+        assertEquals(1, batches.failed.sum());
+    }
+
+    @Test
+    void cancelsTheTopicsWhenTheClientGoesAway() throws InterruptedException {
+        var started = new CountDownLatch(1);
+        var interrupted = new CountDownLatch(1);
+        batches = batches(1, topic -> {
+            started.countDown();
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            return topic;
+        });
+
+        var subscription = batches.run(WorkflowKind.WORKFLOW, List.of("a", "b")).subscribe().with(item -> fail("no item expected"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        subscription.cancel();
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static WorkflowBatches batches(int maxConcurrency, UnaryOperator<String> workflow) {
+        var batches = new WorkflowBatches();
+        batches.maxConcurrency = maxConcurrency;
+        batches.maxTopics = 100;
+        batches.meter = OpenTelemetry.noop().getMeter("test");
+        batches.runner = new WorkflowRunner() {
+            @Override
+            public String run(WorkflowKind kind, String runId, String topic) {
+                return workflow.apply(topic);
+            }
+        };
+        batches.init();
+        return batches;
+    }
+}
@@ -0,0 +1,65 @@
+package dev.abstratium.abstrasst.workflows;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.jupiter.api.Test;
+
+import dev.abstratium.abstrasst.workflows.WorkflowJobs.Status;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the queue of workflow jobs in the database. There are no workers in tests, so the tests claim the jobs themselves.
+ */
+@QuarkusTest
+class WorkflowJobsQueueTest {
+
+    @Inject
+    WorkflowJobs jobs;
+
+    @Test
+    void claimsEachJobOnceInTheOrderOfSubmission() {
+        var first = jobs.insert(WorkflowKind.PROGRAMMATIC, "first", "alice");
+        var second = jobs.insert(WorkflowKind.MINUTES, "second", "bob");
+
+        var claimed = jobs.claimNext();
+        assertEquals(first.id(), claimed.id());
+        assertEquals("first", claimed.topic());
+        assertEquals("alice", claimed.submittedBy());
+        assertEquals(second.id(), jobs.claimNext().id());
+        assertNull(jobs.claimNext());
+
+        assertTrue(jobs.find(first.id(), "bob").isEmpty(), "bob sees the job of alice");
+        var running = jobs.find(first.id(), "alice").orElseThrow();
+        assertEquals(Status.RUNNING, running.status());
+        assertEquals(1, running.attempts());
+        assertNotNull(running.startedAt());
+
+        jobs.finish(first.id(), Status.SUCCEEDED, "minutes", null);
+        var done = jobs.find(first.id()).orElseThrow();
+        assertEquals(Status.SUCCEEDED, done.status());
+        assertEquals("minutes", done.result());
+
+        jobs.purge(Instant.now().plusSeconds(1));
+        assertTrue(jobs.find(first.id()).isEmpty());
+        jobs.finish(second.id(), Status.FAILED, null, "rate limited");
+    }
+
+    @Test
+    void queuesStaleJobsAgainUntilTheyWereTriedTooOften() {
+        var job = jobs.insert(WorkflowKind.WORKFLOW, "topic", "alice");
+
+        for (int attempt = 1; attempt <= 3; attempt++) {
+            assertEquals(job.id(), jobs.claimNext().id());
+            jobs.requeueStale(Instant.now().plus(Duration.ofMinutes(1)), Instant.now());
+        }
+
+        var abandoned = jobs.find(job.id()).orElseThrow();
+        assertEquals(Status.FAILED, abandoned.status());
+        assertEquals(3, abandoned.attempts());
+        assertNull(jobs.claimNext());
+    }
+}
@@ -0,0 +1,50 @@
+package dev.abstratium.abstrasst.workflows;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import dev.abstratium.abstrasst.workflows.WorkflowJobs.Job;
+import dev.abstratium.abstrasst.workflows.WorkflowJobs.Status;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link WorkflowJobs} which need no database.
+ */
+class WorkflowJobsTest {
+
+    @Test
+    void watchEmitsTheJobWhenItChangesUntilItIsDone() {
+        Instant created = Instant.now();
+        var states = List.of(
+            job(Status.QUEUED, created),
+            job(Status.QUEUED, created),
+            job(Status.RUNNING, created),
+            job(Status.RUNNING, created),
+            job(Status.SUCCEEDED, created),
+            job(Status.SUCCEEDED, created));
+        AtomicInteger polls = new AtomicInteger();
+
+        List<Status> seen = WorkflowJobs.watch(() -> states.get(polls.getAndIncrement()), Duration.ofMillis(1))
+            .map(Job::status)
+            .collect().asList()
+            .await().atMost(Duration.ofSeconds(5));
+
+        assertEquals(List.of(Status.QUEUED, Status.RUNNING, Status.SUCCEEDED), seen);
+        assertEquals(5, polls.get());
+    }
+
+    @Test
+    void kindsAreTakenFromLowerCasePaths() {
+        assertEquals(WorkflowKind.MINUTES, WorkflowKind.fromString("minutes"));
+        assertThrows(IllegalArgumentException.class, () -> WorkflowKind.fromString("nap"));
+    }
+
+    private static Job job(Status status, Instant created) {
+        return new Job("id", WorkflowKind.WORKFLOW, status, status == Status.SUCCEEDED ? "minutes" : null, null, 1, created, null, null);
+    }
+}
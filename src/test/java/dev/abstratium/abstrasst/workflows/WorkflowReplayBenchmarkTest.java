@@ -0,0 +1,176 @@
+package dev.abstratium.abstrasst.workflows;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.stubbing.ServeEvent;
+
+import dev.abstratium.abstrasst.agents.CeoAgent;
+import dev.abstratium.abstrasst.agents.CfoAgent;
+import dev.abstratium.abstrasst.agents.CtoAgent;
+import dev.langchain4j.agentic.AgenticServices;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.ChatModel;
+import io.quarkus.test.common.WithTestResource;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Measures the orchestration overhead of the agents and the workflows, separately from the latency of the LLM,
+ * by running them against the {@link LlmReplayResource}.
+ *
+ * The overhead of a call is its wall time minus the time during which at least one of its LLM requests was waiting
+ * for its answer, so that parallel requests are only counted once. The synthetic latency of the stand-in is what is
+ * subtracted; the HTTP round trip, the (de)serialisation and everything the framework does around it are the overhead.
+ * The throughput is measured with several runs at a time, the way the batch and job endpoints run them.
+ * The LLM limiters are disabled, so that neither their queues nor their hedged requests are measured.
+ *
+ * Only reports the numbers, since wall-clock comparisons are not reliable on a loaded machine.
+ * Run with {@code mvn test -Pbenchmark}.
+ */
+@QuarkusTest
+@Tag("benchmark")
+@WithTestResource(LlmReplayResource.class)
+class WorkflowReplayBenchmarkTest {
+
+    private static final Logger log = Logger.getLogger(WorkflowReplayBenchmarkTest.class);
+
+    private static final String TOPIC = "Should we move our build servers into the cloud?";
+
+    private static final int WARMUP = 3;
+    private static final int RUNS = 10;
+    private static final int CONCURRENCY = 8;
+
+    record Measurement(String name, double wallMs, double llmMs, double llmRequests) {
+
+        double overheadMs() {
+            return wallMs - llmMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-14s wall %7.1f ms, llm %7.1f ms (%.1f requests), overhead %6.1f ms",
+                name, wallMs, llmMs, llmRequests, overheadMs());
+        }
+    }
+
+    @Inject
+    WorkflowRunner runner;
+
+    @Inject
+    ProgrammaticWorkflow programmaticWorkflow;
+
+    @LlmReplayResource.Server
+    WireMockServer llm;
+
+    @Test
+    void overheadPerAgent() {
+        ChatModel model = programmaticWorkflow.buildModel();
+        var cfo = AgenticServices.agentBuilder(CfoAgent.class).chatModel(model).build();
+        var cto = AgenticServices.agentBuilder(CtoAgent.class).chatModel(model).build();
+        var ceo = AgenticServices.agentBuilder(CeoAgent.class).chatModel(model).build();
+
+        List<Measurement> measurements = List.of(
+            // the bare call, to which the agents add their own overhead
+            measure("model", () -> model.chat(UserMessage.from(TOPIC)).aiMessage().text()),
+            measure("CFO agent", () -> cfo.run(TOPIC)),
+            measure("CTO agent", () -> cto.run(TOPIC)),
+            measure("CEO agent", () -> ceo.run(TOPIC)));
+
+        log.info("overhead per agent:\n" + String.join("\n", measurements.stream().map(Measurement::toString).toList()));
+        for (Measurement m : measurements) {
+            assertEquals(1.0, m.llmRequests(), m.name());
+        }
+    }
+
+    @Test
+    void overheadAndThroughputPerWorkflow() throws Exception {
+        List<String> report = new ArrayList<>();
+        for (WorkflowKind kind : WorkflowKind.values()) {
+            // a new run id for each run, so that the declarative workflow does not resume from the checkpoints of another
+            Supplier<String> run = () -> runner.run(kind, UUID.randomUUID().toString(), TOPIC);
+            Measurement sequential = measure(kind.name(), run);
+            assertTrue(sequential.llmRequests() >= 3, sequential.toString());
+
+            long start = System.nanoTime();
+            int runs = RUNS * CONCURRENCY;
+            try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                List<Future<String>> futures = new ArrayList<>();
+                var permits = new Semaphore(CONCURRENCY);
+                for (int i = 0; i < runs; i++) {
+                    futures.add(executor.submit((Callable<String>) () -> {
+                        permits.acquire();
+                        try {
+                            return run.get();
+                        } finally {
+                            permits.release();
+                        }
+                    }));
+                }
+                for (Future<String> future : futures) {
+                    assertFalse(future.get().isBlank());
+                }
+            }
+            double perSecond = runs / ((System.nanoTime() - start) / 1e9);
+
+            report.add(String.format("%s, %.1f runs/s with %d at a time, %.1f runs/s one after the other",
+                sequential, perSecond, CONCURRENCY, 1000 / sequential.wallMs()));
+        }
+        log.info("overhead and throughput per workflow:\n" + String.join("\n", report));
+    }
+
+    /** runs the call one at a time, and returns the mean wall time, LLM time and number of LLM requests */
+    private Measurement measure(String name, Supplier<String> call) {
+        for (int i = 0; i < WARMUP; i++) {
+            assertFalse(call.get().isBlank());
+        }
+        double wall = 0;
+        double llmTime = 0;
+        double requests = 0;
+        for (int i = 0; i < RUNS; i++) {
+            llm.resetRequests();
+            long start = System.nanoTime();
+            assertFalse(call.get().isBlank());
+            wall += (System.nanoTime() - start) / 1e6;
+            List<ServeEvent> events = llm.getAllServeEvents();
+            llmTime += waiting(events);
+            requests += events.size();
+        }
+        return new Measurement(name, wall / RUNS, llmTime / RUNS, requests / RUNS);
+    }
+
+    /** the time during which at least one of the requests was waiting for the synthetic latency */
+    static long waiting(List<ServeEvent> events) {
+        List<long[]> intervals = new ArrayList<>();
+        for (ServeEvent event : events) {
+            long received = event.getRequest().getLoggedDate().getTime();
+            Integer delay = event.getTiming().getAddedDelay();
+            intervals.add(new long[] {received, received + (delay == null ? 0 : delay)});
+        }
+        intervals.sort(Comparator.comparingLong(interval -> interval[0]));
+        long total = 0;
+        long end = Long.MIN_VALUE;
+        for (long[] interval : intervals) {
+            long from = Math.max(interval[0], end);
+            if (interval[1] > from) {
+                total += interval[1] - from;
+                end = interval[1];
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,243 @@
+package dev.abstratium.abstrasst.workflows.dag;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.opentelemetry.api.OpenTelemetry;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link DagExecutor} and {@link DagWorkflow}.
+ */
+class DagExecutorTest {
+
+    private final DagExecutor dag = executor(16);
+
+    @AfterEach
+    void close() {
+        dag.close();
+    }
+
+    @Test
+    void runsNodesAsSoonAsTheirInputsExist() {
+        // b and c both wait for each other to have started, so they only finish if they run concurrently
+        var started = new CountDownLatch(2);
+        var workflow = DagWorkflow.of(
+            DagNode.of("d", in -> in.get("b") + "+" + in.get("c")).requires("b", "c"),
+            DagNode.of("b", in -> meet(started, "b(" + in.get("a") + ")")).requires("a"),
+            DagNode.of("c", in -> meet(started, "c(" + in.get("a") + ")")).requires("a"),
+            DagNode.of("a", in -> "a(" + in.get("topic") + ")").requires("topic"));
+
+        DagResult result = dag.run(workflow, Map.of("topic", "t"));
+
+        assertTrue(result.complete());
+        assertEquals("b(a(t))+c(a(t))", result.get("d"));
+        assertEquals(Set.of("a", "b", "c", "d"), result.outputs().keySet());
+    }
+
+    @Test
+    void skipsNodesWhoseRequiredInputFailedAndRunsTheRest() {
+        var workflow = DagWorkflow.of(
+            DagNode.of("cto", in -> { throw new IllegalStateException("rate limited"); }),
+            DagNode.of("cfo", in -> "money"),
+            DagNode.of("followUp", in -> "follow up on " + in.get("cto")).requires("cto"),
+            DagNode.of("afterFollowUp", in -> "after " + in.get("followUp")).requires("followUp"),
+            DagNode.of("minutes", in -> "minutes of " + new TreeMap<>(in)).optionally("cfo", "cto", "followUp"));
+
+        DagResult result = dag.run(workflow, Map.of());
+
+        assertFalse(result.complete());
+        assertEquals(Set.of("cto"), result.failures().keySet());
+        assertTrue(result.failures().get("cto").contains("rate limited"));
+        assertEquals(Set.of("followUp", "afterFollowUp"), result.skipped());
+        assertEquals("minutes of {cfo=money}", result.get("minutes"));
+    }
+
+    @Test
+    void interruptsNodesWhichTimeOut() {
+        var interrupted = new CountDownLatch(1);
+        var workflow = DagWorkflow.of(
+            DagNode.of("slow", in -> sleepUntilInterrupted(interrupted)).timeout(Duration.ofMillis(50)),
+            DagNode.of("fast", in -> "fast"));
+
+        DagResult result = dag.run(workflow, Map.of());
+
+        assertEquals("fast", result.get("fast"));
+        assertTrue(result.failures().get("slow").startsWith("timed out"));
+        assertEquals(1, dag.timedOut.sum());
+        assertDoesNotThrow(() -> assertTrue(interrupted.await(5, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    void failFastCancelsTheRunningNodesAndSkipsTheWaitingOnes() {
+        var interrupted = new CountDownLatch(1);
+        var workflow = DagWorkflow.of(
+            DagNode.of("cto", in -> {
+                Thread.sleep(50);
+                throw new IllegalStateException("rate limited");
+            }),
+            DagNode.of("cfo", in -> sleepUntilInterrupted(interrupted)),
+            DagNode.of("followUp", in -> "follow up").requires("cfo"));
+
+        DagResult result = dag.run(workflow, Map.of(), DagExecutor.Policy.FAIL_FAST, Duration.ofSeconds(10));
+
+        assertEquals(Set.of("cto"), result.failures().keySet());
+        assertEquals(Set.of("cfo"), result.cancelled());
+        assertEquals(Set.of("followUp"), result.skipped());
+        assertDoesNotThrow(() -> assertTrue(interrupted.await(5, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    void cancelsWhatIsStillRunningWhenTheDeadlinePasses() {
+        var interrupted = new CountDownLatch(1);
+        var workflow = DagWorkflow.of(
+            DagNode.of("fast", in -> "fast"),
+            DagNode.of("slow", in -> sleepUntilInterrupted(interrupted)),
+            DagNode.of("minutes", in -> "minutes").optionally("fast", "slow"));
+
+        long start = System.nanoTime();
+        DagResult result = dag.run(workflow, Map.of(), DagExecutor.Policy.BEST_EFFORT, Duration.ofMillis(100));
+
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals("fast", result.get("fast"));
+        assertEquals(Set.of("slow"), result.cancelled());
+        assertEquals(Set.of("minutes"), result.skipped());
+        assertDoesNotThrow(() -> assertTrue(interrupted.await(5, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    void runsAtMostMaxConcurrencyNodesAtATime() {
+        var executor = executor(2);
+        try {
+            var current = new AtomicInteger();
+            var max = new AtomicInteger();
+            List<DagNode> nodes = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                nodes.add(DagNode.of("n" + i, in -> {
+                    max.accumulateAndGet(current.incrementAndGet(), Math::max);
+                    Thread.sleep(20);
+                    current.decrementAndGet();
+                    return "ok";
+                }));
+            }
+
+            DagResult result = executor.run(DagWorkflow.of(nodes), Map.of());
+
+            assertEquals(8, result.outputs().size());
+            assertEquals(2, max.get());
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Test
+    void waitsForCancelledNodesWhichIgnoreTheInterrupt() {
+        var started = new CountDownLatch(1);
+        var ended = new AtomicBoolean();
+        var workflow = DagWorkflow.of(
+            DagNode.of("stubborn", in -> sleepIgnoringInterrupts(started, ended, Duration.ofMillis(500))),
+            DagNode.of("cto", in -> {
+                assertTrue(started.await(5, TimeUnit.SECONDS));
+                throw new IllegalStateException("rate limited");
+            }));
+
+        DagResult result = dag.run(workflow, Map.of(), DagExecutor.Policy.FAIL_FAST, Duration.ofSeconds(10));
+
+        assertEquals(Set.of("stubborn"), result.cancelled());
+        assertTrue(ended.get(), "the run returned while a cancelled node was still running");
+        assertEquals(16, dag.permits.availablePermits());
+    }
+
+    @Test
+    void cancelledNodesKeepTheirSlotUntilTheyEnd() throws InterruptedException {
+        var executor = executor(2);
+        executor.cancelGrace = Duration.ofMillis(50);
+        try {
+            var started = new CountDownLatch(1);
+            var ended = new AtomicBoolean();
+            var workflow = DagWorkflow.of(
+                DagNode.of("stubborn", in -> sleepIgnoringInterrupts(started, ended, Duration.ofSeconds(1))));
+
+            DagResult result = executor.run(workflow, Map.of(), DagExecutor.Policy.BEST_EFFORT, Duration.ofMillis(100));
+
+            assertEquals(Set.of("stubborn"), result.cancelled());
+            assertFalse(ended.get());
+            assertEquals(1, executor.permits.availablePermits(), "the cancelled node gave up its slot while it was still running");
+            assertTrue(executor.permits.tryAcquire(2, 5, TimeUnit.SECONDS), "the cancelled node did not give up its slot once it ended");
+            assertTrue(ended.get());
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Test
+    void rejectsInvalidWorkflows() {
+        var cycle = assertThrows(IllegalArgumentException.class, () -> DagWorkflow.of(
+            DagNode.of("a", in -> "a").requires("c"),
+            DagNode.of("b", in -> "b").requires("a"),
+            DagNode.of("c", in -> "c").requires("b"),
+            DagNode.of("d", in -> "d").requires("a")));
+        assertEquals("The nodes [a, b, c, d] depend on each other", cycle.getMessage());
+
+        assertThrows(IllegalArgumentException.class, () -> DagWorkflow.of(DagNode.of("a", in -> "a"), DagNode.of("a", in -> "b")));
+        assertThrows(IllegalArgumentException.class, () -> DagNode.of("a", in -> "a").requires("a"));
+
+        var workflow = DagWorkflow.of(DagNode.of("a", in -> "a").requires("topic"));
+        assertThrows(IllegalArgumentException.class, () -> dag.run(workflow, Map.of()));
+    }
+
+    private static String sleepUntilInterrupted(CountDownLatch interrupted) throws InterruptedException {
+        try {
+            Thread.sleep(10_000);
+            return "too late";
+        } catch (InterruptedException e) {
+            interrupted.countDown();
+            throw e;
+        }
+    }
+
+    /** stands in for a blocking call which does not react to being interrupted */
+    private static String sleepIgnoringInterrupts(CountDownLatch started, AtomicBoolean ended, Duration duration) {
+        started.countDown();
+        long until = System.nanoTime() + duration.toNanos();
+        for (long left = duration.toNanos(); left > 0; left = until - System.nanoTime()) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(left);
+            } catch (InterruptedException e) {
+                // carries on
+            }
+        }
+        ended.set(true);
+        return "too late";
+    }
+
+    private static String meet(CountDownLatch latch, String value) throws InterruptedException {
+        latch.countDown();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return value;
+    }
+
+    private static DagExecutor executor(int maxConcurrency) {
+        var executor = new DagExecutor();
+        executor.maxConcurrency = maxConcurrency;
+        executor.nodeTimeout = Duration.ofSeconds(10);
+        executor.policy = DagExecutor.Policy.BEST_EFFORT;
+        executor.deadline = Duration.ofSeconds(30);
+        executor.cancelGrace = Duration.ofSeconds(5);
+        executor.meter = OpenTelemetry.noop().getMeter("test");
+        executor.init();
+        return executor;
+    }
+}
@@ -0,0 +1,26 @@
+package dev.abstratium.abstrasst.workflows.dag;
+
+import java.time.Duration;
+
+import io.opentelemetry.api.OpenTelemetry;
+
+/**
+ * A {@link DagExecutor} for the tests of workflows outside of this package, which cannot configure one.
+ */
+public class TestDagExecutor extends DagExecutor {
+
+    public TestDagExecutor() {
+        maxConcurrency = 16;
+        nodeTimeout = Duration.ofSeconds(10);
+        policy = Policy.BEST_EFFORT;
+        deadline = Duration.ofSeconds(30);
+        cancelGrace = Duration.ofSeconds(5);
+        meter = OpenTelemetry.noop().getMeter("test");
+        init();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+    }
+}